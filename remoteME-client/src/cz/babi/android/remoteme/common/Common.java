@@ -54,12 +54,18 @@ public class Common {
 	/** Default connection TCP port. */
 	public static final long DEFAULT_CONNECTION_PORT = 4449;
 
+	/** Version of handshake sent in HELLO and WELCOME messages. */
+	public static final int HANDSHAKE_VERSION = 3;
+
 	/** Default socket timeout. */
 	public static final int DEFAULT_SOCKET_TIMEOUT = 5000;
 
 	/** Default mouse wheel smooth. */
 	public static final int DEFAULT_MOUSE_WHEEL_SMOOTH = 40;
 
+	/** Default mouse move tick in milliseconds. Zero means every move is sent immediately. */
+	public static final int DEFAULT_MOUSE_MOVE_TICK = 8;
+
 	/** Variable define secretID for encrypting and decrypting messages.
 	 * <b>MAKE SHURE THAT THIS SECRET ID IS THE SAME LIKE IN SERVER APPLICATION</b> */
 	public static final String SECRET_ID = "remoteME is really cool app";
@@ -68,7 +74,8 @@ public class Common {
 	 * <b>MAKE SHURE THAT THIS SECRET ID IS THE SAME LIKE IN SERVER APPLICATION</b> */
 	public static final String DEFAULT_PASSWORD = "default-password";
 
-	/** Will be used for UDP scan mode and for first TCP comunication. */
+	/** Will be used for UDP scan mode and for first TCP comunication.
+	 * It is not thread-safe, so every thread uses its own copy: new AES128(AES128_DEFAULT). */
 	public static final AES128 AES128_DEFAULT = new AES128(Common.SECRET_ID,
 			Common.DEFAULT_PASSWORD);
 
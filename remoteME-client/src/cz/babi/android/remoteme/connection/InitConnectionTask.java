@@ -19,10 +19,12 @@ package cz.babi.android.remoteme.connection;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.GeneralSecurityException;
 import java.util.Date;
 
 import android.content.Intent;
@@ -34,9 +36,13 @@ import cz.babi.android.remoteme.ActivityMain;
 import cz.babi.android.remoteme.R;
 import cz.babi.android.remoteme.common.Common;
 import cz.babi.android.remoteme.crypto.AES128;
+import cz.babi.android.remoteme.crypto.DatagramCrypto;
+import cz.babi.android.remoteme.crypto.KeyExchange;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
 import cz.babi.android.remoteme.data.MySQLiteOpenHelper;
 import cz.babi.android.remoteme.entity.Message;
 import cz.babi.android.remoteme.entity.Message.SimpleMessage;
+import cz.babi.android.remoteme.entity.Welcome;
 import cz.babi.android.remoteme.service.ConnectionService;
 import cz.babi.android.remoteme.ui.ActivityDialogListOfRemoteControllers;
 import cz.babi.android.remoteme.ui.ActivityDialogServerConnect.ConnectionFragment;
@@ -55,7 +61,8 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 	
 	private int socketTimeout;
 	
-	private static final AES128 AES128_DEFAULT = Common.AES128_DEFAULT;
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
 	
 	private ConnectionFragment parentFragment = null;
 	
@@ -66,8 +73,15 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 	private Socket clientSocket;
 	private BufferedReader in;
 	private PrintWriter out;
+	private OutputStream rawOut;
 	
 	private boolean needEncryptedCommunication;
+	private boolean useBinaryProtocol;
+	private KeyExchange keyExchange;
+	private SessionCrypto sessionCrypto;
+	private DatagramCrypto datagramCrypto;
+	private int motionPort;
+	private String resumeToken;
 	
 	private boolean canceledByUser = false;
 	
@@ -102,6 +116,33 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 		
 		publishProgress(ConnectionFragment.PREPARE_INIT_UI);
 		
+		if(!connect()) return null;
+		
+		publishProgress(ConnectionFragment.UPDATE_INIT_UI_TRUE);
+		publishProgress(ConnectionFragment.PREPARE_AUTH_UI);
+		
+		/* Old servers do not answer unknown request, they just stop reading. So hello
+		 * has a timeout and then we need to connect again and go through whole handshake
+		 * step by step. */
+		if(!sayHello()) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Server does not know " +
+					"hello. Using old handshake.]");
+			stopTask();
+			clientSocket = new Socket();
+			
+			if(!connect()) return null;
+			
+			doOldHandshake();
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Connect to the server and open streams.
+	 * @return If connection is ready for handshake.
+	 */
+	private boolean connect() {
 		/* There are two attempts to connect to the server. */
 		int attempt = 1;
 		while(attempt<3) {
@@ -109,7 +150,7 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 				clientSocket.connect(new InetSocketAddress(remoteHost, remotePort), socketTimeout/2);
 				break;
 			} catch(IOException ioe) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not connect to host.]" +
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[connect][Can not connect to host.]" +
 						"[Attempt: " + attempt + ".]");
 				attempt++;
 				if(attempt==3) clientSocket = null;
@@ -117,161 +158,293 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 		}
 		
 		/* If user canceled connecting task */
-		if(canceledByUser) return null;
+		if(canceledByUser) return false;
 		
-		if(clientSocket!=null) {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Connected to server.]");
-			
-			try {
-				clientSocket.setTcpNoDelay(true);
-			} catch(SocketException e) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not set TCP no " +
-						"delay to socket.]");
-			}
+		if(clientSocket==null) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[connect][Can not connect to server.]");
+			publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+			publishProgress(ConnectionFragment.ERROR_INIT);
+			return false;
+		}
+		
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[connect][Connected to server.]");
+		
+		try {
+			clientSocket.setTcpNoDelay(true);
+		} catch(SocketException e) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[connect][Can not set TCP no " +
+					"delay to socket.]");
+		}
+		
+		try {
+			in = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
+		} catch(IOException ioe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[connect][Can not create input " +
+					"reader from client socket.]");
+			stopTask();
+			return false;
+		}
+		
+		try {
+			rawOut = clientSocket.getOutputStream();
+			out = new PrintWriter(rawOut, true);
+		} catch(IOException ioe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[connect][Can not create output " +
+					"writer from client socket.]");
+			stopTask();
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Whole handshake in one round trip. Hello carries handshake version,
+	 * offered protocol with public key and password. See {@link Welcome#parse(String)}
+	 * for answer.
+	 * @return False if server does not know hello, it does not answer in time
+	 * or its answer is malformed. Otherwise handshake is finished, successfully or not.
+	 */
+	private boolean sayHello() {
+		String password = (remotePassword!=null) ? remotePassword : "";
+		SimpleMessage helloMessage = new SimpleMessage(Message.HELLO.getId(),
+				Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR + offerProtocol() +
+				SimpleMessage.SEPARATOR + password);
+		
+		out.println(aes128.encryptText(helloMessage.toString()));
+		out.flush();
+		
+		/* Old server would block us forever. */
+		String rawAnswer;
+		try {
+			clientSocket.setSoTimeout(socketTimeout/2);
+			rawAnswer = readAnswer();
+			clientSocket.setSoTimeout(0);
+		} catch(SocketException se) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[sayHello][Can not set socket timeout.]");
+			return false;
+		}
+		if(rawAnswer==null) return false;
+		
+		SimpleMessage simpleAnswer = parseIncommingMessage(aes128.decryptText(rawAnswer));
+		if(simpleAnswer==null) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sayHello][Response is malformed.]");
+			return false;
+		}
+		
+		if(simpleAnswer.getId()!=Message.WELCOME.getId()) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sayHello][Response has wrong ID.]");
+			publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+			publishProgress(ConnectionFragment.ERROR_INIT);
+			return true;
+		}
+		
+		Welcome welcome = Welcome.parse(simpleAnswer.getAddInfo());
+		
+		if(!welcome.isAuthenticated()) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sayHello][Password does not match ,(]");
+			publishProgress(ConnectionFragment.UPDATE_AUTH_UI_FALSE);
+			publishProgress(ConnectionFragment.ERROR_AUTH);
+			return true;
+		}
+		
+		if(!useWelcome(welcome)) {
+			publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+			publishProgress(ConnectionFragment.ERROR_INIT);
+			return true;
+		}
+		
+		publishProgress(ConnectionFragment.UPDATE_AUTH_UI_TRUE);
+		publishProgress(ConnectionFragment.TASK_ENDS);
+		
+		return true;
+	}
+	
+	/**
+	 * Old handshake. Password and encrypted communication are asked one after another.
+	 */
+	private void doOldHandshake() {
+		/* Prepare and send simple 'do i need password' message to the server. */
+		SimpleMessage needPasswordMessage = Message.DO_I_NEED_PASSWORD;
+		String encryptedPasswordMessage = aes128.encryptText(
+				needPasswordMessage.toString());
+		
+		out.println(encryptedPasswordMessage);
+		out.flush();
+		
+		String rawAnswer = readAnswer();
+		
+		if(rawAnswer!=null) {
+			String decryptedAnswer = aes128.decryptText(rawAnswer);
+			SimpleMessage simpleAnswer = parseIncommingMessage(decryptedAnswer);
 			
-			try {
-				in = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-			} catch(IOException ioe) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not create input " +
-						"reader from client socket.]");
-				stopTask();
-				return null;
+			if(simpleAnswer==null) {
+				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Response is " +
+						"malformed.]");
+				publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+				publishProgress(ConnectionFragment.ERROR_INIT);
+				return;
 			}
 			
-			try {
-				out = new PrintWriter(clientSocket.getOutputStream(), true);
-			} catch(IOException ioe) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not create output " +
-						"writer from client socket.]");
-				stopTask();
-				return null;
+			if(simpleAnswer.getId()==Message.YES.getId()) {
+				/* Prepare and send simple "password check" message to the server. */
+				SimpleMessage passwordMessage = Message.CHECK_PASSWORD;
+				passwordMessage.setAddInfo(remotePassword);
+				
+				encryptedPasswordMessage = aes128.encryptText(
+						passwordMessage.toString());
+				
+				out.println(encryptedPasswordMessage);
+				out.flush();
+				
+				rawAnswer = readAnswer();
+				
+				if(rawAnswer!=null) {
+					decryptedAnswer = aes128.decryptText(rawAnswer);
+					simpleAnswer = parseIncommingMessage(decryptedAnswer);
+					
+					if(simpleAnswer==null) {
+						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Looks " +
+								"like we catched a wrong response.]");
+					} else if(simpleAnswer.getId()==Message.YES.getId()) {
+						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Password " +
+								"match. Let's roll.]");
+						
+						publishProgress(ConnectionFragment.UPDATE_AUTH_UI_TRUE);
+						publishProgress(ConnectionFragment.TASK_ENDS);
+					} else if(simpleAnswer.getId()==Message.NO.getId()) {
+						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Password " +
+								"does not match ,(]");
+						
+						publishProgress(ConnectionFragment.UPDATE_AUTH_UI_FALSE);
+						publishProgress(ConnectionFragment.ERROR_AUTH);
+						return;
+					} else {
+						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Looks " +
+								"like we catched a wrong response.]");
+					}
+				} else {
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][There is no " +
+							"response.]");
+				}
+			} else if(simpleAnswer.getId()==Message.NO.getId()) {
+				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][We do not need " +
+						"password for comunicate with server.]");
+				
+				publishProgress(ConnectionFragment.UPDATE_AUTH_UI_TRUE);
+				publishProgress(ConnectionFragment.TASK_ENDS);
+			} else {
+				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Response has wrong" +
+						" ID.]");
+				publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+				publishProgress(ConnectionFragment.ERROR_INIT);
+				return;
 			}
 			
-			publishProgress(ConnectionFragment.UPDATE_INIT_UI_TRUE);
-			publishProgress(ConnectionFragment.PREPARE_AUTH_UI);
+			/* Prepare and send simple 'need encryption communication' message to the server.
+			 * We also offer binary protocol with session key. Old servers just ignore it. */
+			SimpleMessage needEncryptedComMessage = Message.NEED_ENCRYPTED_COMMUNICATION;
+			needEncryptedComMessage.setAddInfo(offerProtocol());
+			String encryptedNeedEncryptedCom = aes128.encryptText(
+					needEncryptedComMessage.toString());
 			
-			/* Prepare and send simple 'do i need password' message to the server. */
-			SimpleMessage needPasswordMessage = Message.DO_I_NEED_PASSWORD;
-			String encryptedPasswordMessage = AES128_DEFAULT.encryptText(
-					needPasswordMessage.toString());
-			
-			out.print(encryptedPasswordMessage);
+			out.println(encryptedNeedEncryptedCom);
 			out.flush();
 			
-			String rawAnswer = null;
-			try {
-				rawAnswer = in.readLine();
-			} catch(IOException e) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not read " +
-						"from input stream.]");
-			}
+			rawAnswer = readAnswer();
 			
+			/* Now we need to check response to our request about encrypted communication. */
 			if(rawAnswer!=null) {
-				String decryptedAnswer = AES128_DEFAULT.decryptText(rawAnswer);
-				SimpleMessage simpleAnswer = parseIncommingMessage(decryptedAnswer);
+				decryptedAnswer = aes128.decryptText(rawAnswer);
+				simpleAnswer = parseIncommingMessage(decryptedAnswer);
 				
-				if(simpleAnswer.getId()==Message.YES.getId()) {
-					/* Prepare and send simple "password check" message to the server. */
-					SimpleMessage passwordMessage = Message.CHECK_PASSWORD;
-					passwordMessage.setAddInfo(remotePassword);
-					
-					encryptedPasswordMessage = AES128_DEFAULT.encryptText(
-							passwordMessage.toString());
-					
-					out.print(encryptedPasswordMessage);
-					out.flush();
-					
-					rawAnswer = null;
-					try {
-						rawAnswer = in.readLine();
-					} catch(IOException e) {
-						if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not read " +
-								"from input stream.]");
-					}
-					
-					if(rawAnswer!=null) {
-						decryptedAnswer = AES128_DEFAULT.decryptText(rawAnswer);
-						simpleAnswer = parseIncommingMessage(decryptedAnswer);
-						
-						if(simpleAnswer.getId()==Message.YES.getId()) {
-							if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Password " +
-									"match. Let's roll.]");
-							
-							publishProgress(ConnectionFragment.UPDATE_AUTH_UI_TRUE);
-							publishProgress(ConnectionFragment.TASK_ENDS);
-						} else if(simpleAnswer.getId()==Message.NO.getId()) {
-							if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Password " +
-									"does not match ,(]");
-							
-							publishProgress(ConnectionFragment.UPDATE_AUTH_UI_FALSE);
-							publishProgress(ConnectionFragment.ERROR_AUTH);
-							return null;
-						} else {
-							if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Looks " +
-									"like we catched a wrong response.]");
-						}
-					} else {
-						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][There is no " +
-								"response.]");
-					}
-				} else if(simpleAnswer.getId()==Message.NO.getId()) {
-					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][We do not need " +
-							"password for comunicate with server.]");
-					
-					publishProgress(ConnectionFragment.UPDATE_AUTH_UI_TRUE);
-					publishProgress(ConnectionFragment.TASK_ENDS);
-				} else {
-					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Response has wrong" +
-							" ID.]");
+				if(simpleAnswer==null) {
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Response is " +
+							"malformed.]");
 					publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
 					publishProgress(ConnectionFragment.ERROR_INIT);
-					return null;
+					return;
 				}
 				
-				/* Prepare and send simple 'need encryption communication' message to the server. */
-				SimpleMessage needEncryptedComMessage = Message.NEED_ENCRYPTED_COMMUNICATION;
-				String encryptedNeedEncryptedCom = AES128_DEFAULT.encryptText(
-						needEncryptedComMessage.toString());
-				
-				out.print(encryptedNeedEncryptedCom);
-				out.flush();
-				
-				rawAnswer = null;
-				try {
-					rawAnswer = in.readLine();
-				} catch(IOException e) {
-					if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[doInBackground][Can not read " +
-							"from input stream.]");
+				/* If we need an encrypted communication we need to check if our password match. */
+				if(simpleAnswer.getId()==Message.YES.getId()) {
+					needEncryptedCommunication = true;
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][We need " +
+							"encrypted communication.]");
+				} else if(simpleAnswer.getId()==Message.NO.getId()) {
+					needEncryptedCommunication = false;
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][We do not need " +
+							"encrypted communication.]");
 				}
 				
-				/* Now we need to check response to our request about encrypted communication. */
-				if(rawAnswer!=null) {
-					decryptedAnswer = AES128_DEFAULT.decryptText(rawAnswer);
-					simpleAnswer = parseIncommingMessage(decryptedAnswer);
-					
-					/* If we need an encrypted communication we need to check if our password match. */
-					if(simpleAnswer.getId()==Message.YES.getId()) {
-						needEncryptedCommunication = true;
-						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][We need " +
-								"encrypted communication.]");
-					} else if(simpleAnswer.getId()==Message.NO.getId()) {
-						needEncryptedCommunication = false;
-						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][We do not need " +
-								"encrypted communication.]");
-					}
+				if(!useWelcome(new Welcome(true, needEncryptedCommunication, null, 0,
+						simpleAnswer.getAddInfo()))) {
+					publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
+					publishProgress(ConnectionFragment.ERROR_INIT);
 				}
-			} else {
-				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Can not connect to server.]");
-				publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
-				publishProgress(ConnectionFragment.ERROR_INIT);
 			}
 		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doInBackground][Can not connect to server.]");
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doOldHandshake][Can not connect to server.]");
 			publishProgress(ConnectionFragment.UPDATE_INIT_UI_FALSE);
 			publishProgress(ConnectionFragment.ERROR_INIT);
 		}
+	}
+	
+	/**
+	 * Generate new key pair for session key of this handshake.
+	 * @return Offered protocol, see {@link Welcome#offerProtocol(KeyExchange)}.
+	 */
+	private String offerProtocol() {
+		try {
+			keyExchange = new KeyExchange();
+		} catch(GeneralSecurityException gse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[offerProtocol][Can not generate key " +
+					"pair. Session key is not offered.]", gse);
+			keyExchange = null;
+		}
 		
-		return null;
+		return Welcome.offerProtocol(keyExchange);
+	}
+	
+	/**
+	 * Use protocol and encryption chosen by server.
+	 * @param welcome Result of handshake.
+	 * @return False if server expects session key, but it can not be used.
+	 */
+	private boolean useWelcome(Welcome welcome) {
+		needEncryptedCommunication = welcome.isEncrypted();
+		useBinaryProtocol = welcome.isBinary();
+		resumeToken = welcome.getResumeToken();
+		motionPort = welcome.getMotionPort();
+		
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[useWelcome][Encrypted communication: " +
+				needEncryptedCommunication + ". Binary protocol: " + welcome.getProtocol() + ".]");
+		
+		try {
+			sessionCrypto = welcome.createSessionCrypto(keyExchange);
+			datagramCrypto = welcome.createDatagramCrypto(keyExchange);
+		} catch(GeneralSecurityException gse) {
+			/* Server expects frames encrypted by session key, so we can not go on. */
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[useWelcome][Can not init " +
+					"session crypto.]", gse);
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Read one answer of the server.
+	 * @return Raw answer or null if there is no answer.
+	 */
+	private String readAnswer() {
+		try {
+			return in.readLine();
+		} catch(IOException e) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[readAnswer][Can not read " +
+					"from input stream.]");
+			return null;
+		}
 	}
 	
 	@Override
@@ -303,7 +476,13 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 			ConnectionService.clientSocket = clientSocket;
 			ConnectionService.in = in;
 			ConnectionService.out = out;
+			ConnectionService.rawOut = rawOut;
 			ConnectionService.needEncryptedCommunication = needEncryptedCommunication;
+			ConnectionService.useBinaryProtocol = useBinaryProtocol;
+			ConnectionService.sessionCrypto = sessionCrypto;
+			ConnectionService.resumeToken = resumeToken;
+			ConnectionService.motionPort = motionPort;
+			ConnectionService.datagramCrypto = datagramCrypto;
 			
 			/* Start service. */
 			Intent connectionServiceIntent = new Intent(parentFragment.getActivity(),
@@ -331,19 +510,26 @@ public class InitConnectionTask extends AsyncTask<Void, Integer, Void> {
 	
 	/**
 	 * Parsing incomming message from raw String to SimpleMessage..
-	 * @param incomingMessage Raw String.
-	 * @return Parsed SimpleMessage.
+	 * @param incomingMessage Raw String. May be null if it can not be decrypted.
+	 * @return Parsed SimpleMessage or null if message is malformed.
 	 */
 	private SimpleMessage parseIncommingMessage(String incomingMessage) {
 		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[parseIncommingMessage]");
 		
-		int messageId = Integer.valueOf(
-				incomingMessage.substring(0, incomingMessage.indexOf(
-						SimpleMessage.SEPARATOR)));
+		if(incomingMessage==null) return null;
+		
+		int separatorIndex = incomingMessage.indexOf(SimpleMessage.SEPARATOR);
+		if(separatorIndex<0) return null;
+		
+		int messageId;
+		try {
+			messageId = Integer.parseInt(incomingMessage.substring(0, separatorIndex));
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
 		
-		String addInfo = incomingMessage.substring(
-				incomingMessage.indexOf(SimpleMessage.SEPARATOR),
-				incomingMessage.length());
+		String addInfo = incomingMessage.substring(separatorIndex+1,
+				incomingMessage.length()).trim();
 		
 		return new SimpleMessage(messageId, addInfo);
 	}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+import android.os.SystemClock;
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.crypto.AES128;
+import cz.babi.android.remoteme.entity.Server;
+
+/**
+ * Discovery of servers for networks where multicast is dropped. Request of
+ * scan mode is sent by unicast to every address of the network and server
+ * answers to the address it came from.
+ * <p>
+ * Only one socket is used. At most {@link #MAX_IN_FLIGHT} probes wait for
+ * response at once, so the network is not flooded. Timeout of probe adapts
+ * to round trip time of received responses like in TCP, and every address
+ * gets {@link #MAX_ATTEMPTS} probes. Without any server whole /24 is swept
+ * in about two seconds.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class SubnetSweep {
+
+	private static final String TAG_CLASS_NAME = SubnetSweep.class.getSimpleName();
+
+	/**
+	 * Listener of founded servers.
+	 */
+	public interface OnServerFoundListener {
+
+		/**
+		 * Called from thread of sweep for every valid response.
+		 * @param server Server which responded.
+		 */
+		public void onServerFound(Server server);
+	}
+
+	/** Prefix used if it is not configured. */
+	public static final int DEFAULT_PREFIX_LENGTH = 24;
+	/** Shortest prefix which can be swept. It means 4094 addresses. */
+	public static final int MIN_PREFIX_LENGTH = 20;
+
+	/** Max count of probes waiting for response at once. */
+	private static final int MAX_IN_FLIGHT = 64;
+	/** Count of probes sent to one address. */
+	private static final int MAX_ATTEMPTS = 2;
+
+	/** Timeout of probe before the first response is received. */
+	private static final int INITIAL_TIMEOUT_MILLIS = 300;
+	/** Bounds of adaptive timeout. Phones in power save mode answer slowly. */
+	private static final int MIN_TIMEOUT_MILLIS = 100;
+	private static final int MAX_TIMEOUT_MILLIS = 1000;
+
+	/** Max length of response. */
+	private static final int MAX_RESPONSE_LENGTH = 512;
+
+	private final int firstAddress;
+	private final int hostCount;
+	private final int ownAddress;
+	private final int port;
+	private final byte[] request;
+	private final AES128 aes128;
+	private final OnServerFoundListener listener;
+
+	private DatagramSocket datagramSocket = null;
+	private volatile boolean stopped = false;
+
+	/* Smoothed round trip time and its variance in milliseconds. Negative if unknown. */
+	private int smoothedRtt = -1;
+	private int rttVariance = 0;
+	private int timeout = INITIAL_TIMEOUT_MILLIS;
+
+	/**
+	 * Constructor.
+	 * @param address Any address of swept network.
+	 * @param prefixLength Length of network prefix. Shorter than {@link #MIN_PREFIX_LENGTH}
+	 * is not allowed and only part of the network around the address is swept.
+	 * @param ownAddress Address of this device. It is not probed.
+	 * @param port Port of scan mode.
+	 * @param request Encrypted request of scan mode.
+	 * @param aes128 Cipher for responses.
+	 * @param listener Listener of founded servers.
+	 */
+	public SubnetSweep(int address, int prefixLength, int ownAddress, int port, byte[] request,
+			AES128 aes128, OnServerFoundListener listener) {
+		if(prefixLength<MIN_PREFIX_LENGTH) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[SubnetSweep][Prefix /" + prefixLength +
+					" is too short, only /" + MIN_PREFIX_LENGTH + " will be swept.]");
+			prefixLength = MIN_PREFIX_LENGTH;
+		} else if(prefixLength>32) prefixLength = 32;
+
+		int networkAddress = address & (prefixLength==32 ? -1 : ~(-1>>>prefixLength));
+		int size = 1<<(32-prefixLength);
+
+		/* Network and broadcast address are skipped, if there are any. */
+		if(prefixLength<=30) {
+			firstAddress = networkAddress + 1;
+			hostCount = size - 2;
+		} else {
+			firstAddress = networkAddress;
+			hostCount = size;
+		}
+
+		this.ownAddress = ownAddress;
+		this.port = port;
+		this.request = request;
+		this.aes128 = aes128;
+		this.listener = listener;
+	}
+
+	/**
+	 * Sweep the network. Blocks until every address is probed, deadline
+	 * is reached or sweep is stopped.
+	 * @param deadline Value of {@link SystemClock#elapsedRealtime()} when sweep ends.
+	 */
+	public void sweep(long deadline) {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sweep][Sweeping " + toString(firstAddress) +
+				" and next " + (hostCount-1) + " addresses.]");
+
+		try {
+			datagramSocket = new DatagramSocket();
+		} catch(SocketException se) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[sweep][Can not create a DatagramSocket.]", se);
+			return;
+		}
+
+		/* Sweep could be stopped before socket was created. */
+		if(stopped) {
+			datagramSocket.close();
+			return;
+		}
+
+		DatagramPacket requestPacket = new DatagramPacket(request, request.length);
+		requestPacket.setPort(port);
+
+		byte[] response = new byte[MAX_RESPONSE_LENGTH];
+		DatagramPacket responsePacket = new DatagramPacket(response, response.length);
+
+		/* State of every address is kept in arrays indexed by offset from the first address. */
+		byte[] attempts = new byte[hostCount];
+		long[] sentAt = new long[hostCount];
+		boolean[] responded = new boolean[hostCount];
+
+		int[] inFlight = new int[MAX_IN_FLIGHT];
+		int inFlightCount = 0;
+
+		/* Every address is in the queue at most once. */
+		int[] retries = new int[hostCount];
+		int retryHead = 0;
+		int retryCount = 0;
+
+		int nextHost = 0;
+
+		while(!stopped) {
+			long now = SystemClock.elapsedRealtime();
+			if(now>=deadline) break;
+
+			/* Forget answered probes and expired ones. Expired are sent again later. */
+			for(int i=0; i<inFlightCount;) {
+				int host = inFlight[i];
+				if(responded[host] || now-sentAt[host]>=timeout) {
+					if(!responded[host] && attempts[host]<MAX_ATTEMPTS) {
+						retries[(retryHead+retryCount)%hostCount] = host;
+						retryCount++;
+					}
+					inFlight[i] = inFlight[--inFlightCount];
+				} else i++;
+			}
+
+			/* Fill free places by new probes. Retries go first. */
+			while(inFlightCount<MAX_IN_FLIGHT) {
+				int host;
+				if(retryCount>0) {
+					host = retries[retryHead];
+					retryHead = (retryHead+1)%hostCount;
+					retryCount--;
+					if(responded[host]) continue;
+				} else if(nextHost<hostCount) {
+					host = nextHost++;
+					if(firstAddress+host==ownAddress) continue;
+				} else break;
+
+				sendProbe(requestPacket, firstAddress+host);
+
+				attempts[host]++;
+				sentAt[host] = now;
+				inFlight[inFlightCount++] = host;
+			}
+
+			/* Every address was probed. */
+			if(inFlightCount==0) break;
+
+			/* Wait for response until the oldest probe expires. */
+			long oldest = now;
+			for(int i=0; i<inFlightCount; i++) oldest = Math.min(oldest, sentAt[inFlight[i]]);
+
+			try {
+				datagramSocket.setSoTimeout((int)Math.max(1, Math.min(oldest+timeout, deadline) - now));
+				responsePacket.setLength(response.length);
+				datagramSocket.receive(responsePacket);
+			} catch(SocketTimeoutException ste) {
+				continue;
+			} catch(IOException ioe) {
+				if(Common.ERROR && !stopped) Log.e(TAG_CLASS_NAME, "[sweep][An error occurred during receiving " +
+						"an udp datagram.]", ioe);
+				break;
+			}
+
+			Server server = UDPScanModeTask.parseResponse(responsePacket, aes128);
+			if(server==null) continue;
+
+			byte[] sourceAddress = responsePacket.getAddress().getAddress();
+			if(sourceAddress.length==4) {
+				int host = toInt(sourceAddress) - firstAddress;
+
+				if(host>=0 && host<hostCount && !responded[host]) {
+					responded[host] = true;
+					/* Response to retransmitted probe does not tell which probe it answers. */
+					if(attempts[host]==1) updateTimeout(SystemClock.elapsedRealtime()-sentAt[host]);
+				}
+			}
+
+			listener.onServerFound(server);
+		}
+
+		datagramSocket.close();
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sweep][Sweep is finished.]");
+	}
+
+	/**
+	 * Stop the sweep. Thread of sweep ends soon.
+	 */
+	public void stop() {
+		stopped = true;
+		if(datagramSocket!=null) datagramSocket.close();
+	}
+
+	/**
+	 * Send request to one address.
+	 * @param requestPacket Datagram with request.
+	 * @param address Address of probed host.
+	 */
+	private void sendProbe(DatagramPacket requestPacket, int address) {
+		try {
+			requestPacket.setAddress(InetAddress.getByAddress(toBytes(address)));
+			datagramSocket.send(requestPacket);
+		} catch(IOException ioe) {
+			/* Some addresses can not be reached at all. Probe simply expires. */
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[sendProbe][Can not send a probe to " +
+					toString(address) + ".]");
+		}
+	}
+
+	/**
+	 * Update timeout by new sample of round trip time.
+	 * @param rtt Round trip time in milliseconds.
+	 */
+	private void updateTimeout(long rtt) {
+		int sample = (int)Math.min(rtt, MAX_TIMEOUT_MILLIS);
+
+		if(smoothedRtt<0) {
+			smoothedRtt = sample;
+			rttVariance = sample/2;
+		} else {
+			rttVariance = (3*rttVariance + Math.abs(smoothedRtt-sample))/4;
+			smoothedRtt = (7*smoothedRtt + sample)/8;
+		}
+
+		timeout = Math.max(MIN_TIMEOUT_MILLIS, Math.min(MAX_TIMEOUT_MILLIS, smoothedRtt + 4*rttVariance));
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[updateTimeout][RTT: " + sample + " ms, timeout: " +
+				timeout + " ms.]");
+	}
+
+	/**
+	 * Parse network in CIDR notation. Address without prefix means /24.
+	 * @param cidr Network like 192.168.1.0/24.
+	 * @return Array with address and length of prefix or null if it is not valid.
+	 */
+	public static int[] parseCidr(String cidr) {
+		if(cidr==null) return null;
+
+		String[] parts = cidr.trim().split("/", -1);
+		if(parts.length>2) return null;
+
+		String[] octets = parts[0].split("\\.", -1);
+		if(octets.length!=4) return null;
+
+		int address = 0;
+		int prefixLength = DEFAULT_PREFIX_LENGTH;
+		try {
+			for(String octet : octets) {
+				int value = Integer.parseInt(octet);
+				if(value<0 || value>255) return null;
+				address = (address<<8) | value;
+			}
+
+			if(parts.length==2) prefixLength = Integer.parseInt(parts[1]);
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+
+		if(prefixLength<0 || prefixLength>32) return null;
+
+		return new int[] {address, prefixLength};
+	}
+
+	/**
+	 * @param address IPv4 address in network byte order.
+	 * @return Address as int.
+	 */
+	private static int toInt(byte[] address) {
+		return ((address[0] & 0xFF)<<24) | ((address[1] & 0xFF)<<16) |
+				((address[2] & 0xFF)<<8) | (address[3] & 0xFF);
+	}
+
+	/**
+	 * @param address Address as int.
+	 * @return IPv4 address in network byte order.
+	 */
+	private static byte[] toBytes(int address) {
+		return new byte[] {(byte)(address>>>24), (byte)(address>>>16), (byte)(address>>>8), (byte)address};
+	}
+
+	/**
+	 * @param address Address as int.
+	 * @return Address in dotted notation.
+	 */
+	private static String toString(int address) {
+		try {
+			return InetAddress.getByAddress(toBytes(address)).getHostAddress();
+		} catch(UnknownHostException uhe) {
+			return String.valueOf(address);
+		}
+	}
+}
@@ -22,14 +22,17 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.MulticastLock;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import cz.babi.android.remoteme.R;
@@ -44,11 +47,20 @@ import cz.babi.android.remoteme.ui.ActivityDialogServerSearch.SearchingFragment;
  * This task is used for Scan Mode.
  * We are using UDP protocol here for sending broadcast request datagrams and
  * receive responses.
+ * <p>
+ * Every server is published to the fragment as soon as its response comes,
+ * so the user does not have to wait for the whole timeout. Request is sent
+ * again after {@link #FIRST_RETRANSMIT_MILLIS}, and then with doubled delay,
+ * until the timeout expires.
+ * <p>
+ * If subnet sweep is enabled in preferences, request is sent by
+ * {@link SubnetSweep} to every address of the network instead.
  *
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
  */
-public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
+public class UDPScanModeTask extends AsyncTask<Void, Server, ArrayList<Server>>
+		implements SubnetSweep.OnServerFoundListener {
 
 	private SearchingFragment parentFragment = null;
 
@@ -57,19 +69,32 @@ public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
 	private WifiManager wifiManager;
 	private MulticastLock wifiMulticastLock;
 
-	private boolean stoppedByUser = false;
+	private volatile boolean stoppedByUser = false;
+
+	private volatile SubnetSweep subnetSweep = null;
+
+	/* Servers are identified by address and port. */
+	private final ArrayList<Server> availableServers = new ArrayList<Server>();
+	private final HashSet<String> foundedKeys = new HashSet<String>();
 
 	private final SharedPreferences preferences;
 
 	private static final String TAG_CLASS_NAME = UDPScanModeTask.class.getSimpleName();
 
-	private static final AES128 AES128_DEFAULT = Common.AES128_DEFAULT;
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
 
 	/** variable define port for our request and responses */
 	private int port;
 	/** variable define multicast address which datagrams will be sent to */
 	private static final String MULTICAST_ADDR = "230.0.0.1";
 
+	/** Delay before the first retransmission of request. It is doubled after every one. */
+	private static final long FIRST_RETRANSMIT_MILLIS = 100;
+
+	/** Max length of response. */
+	private static final int MAX_RESPONSE_LENGTH = 512;
+
 	/**
 	 * Constructor.
 	 * @param parentFragmentActivity Parent activity. Needs for access to its methods.
@@ -90,6 +115,12 @@ public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
 		return findServers();
 	}
 
+	@Override
+	protected void onProgressUpdate(Server... servers) {
+		if(parentFragment!=null && !stoppedByUser)
+			for(Server server : servers) parentFragment.addFoundedServer(server);
+	}
+
 	@Override
 	protected void onPostExecute(ArrayList<Server> result) {
 		if(parentFragment!=null) {
@@ -114,16 +145,56 @@ public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
 	private ArrayList<Server> findServers() {
 		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Start scaning...]");
 
+		/* Need to encrypt our request */
+		String requestMessage = aes128.encryptText(Message.SCAN_MODE_REQUEST.toString());
+
+		byte[] request = null;
+		try {
+			request = requestMessage.getBytes(Common.CHARSET_UTF8);
+		} catch(UnsupportedEncodingException uee) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][An error occurred while trying to encode text.]", uee);
+			return availableServers;
+		}
+
+		long deadline = SystemClock.elapsedRealtime() + preferences.getInt(
+				this.parentFragment.getResources().getString(R.string.pref_name_socket_timeout),
+				Common.DEFAULT_SOCKET_TIMEOUT);
+
+		wifiManager = (WifiManager)parentFragment.getActivity().getSystemService(Context.WIFI_SERVICE);
+
+		if(preferences.getBoolean(this.parentFragment.getResources().getString(
+				R.string.pref_name_subnet_sweep), false)) sweepSubnet(request, deadline);
+		else scanMulticast(request, deadline);
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Founded servers:]");
+		for(Server instance : availableServers) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][# " + instance.getServerName() + " > running on "
+					+ instance.getOsName() + " > " + instance.getIpAddress() + ":"
+					+ instance.getPort() + " > with mac: " + instance.getMacAddress() + "]");
+		}
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][End of task. Bye bey.]");
+
+		return availableServers;
+	}
+
+	/**
+	 * Send request to multicast group and wait for responses.
+	 * @param request Encrypted request.
+	 * @param deadline Value of {@link SystemClock#elapsedRealtime()} when scan ends.
+	 */
+	private void scanMulticast(byte[] request, long deadline) {
 		/* On some devices scan mod not work properly. By locking multicast we are able
 		 * to fix it. */
-		wifiManager = (WifiManager)parentFragment.getActivity().getSystemService(Context.WIFI_SERVICE);
 		wifiMulticastLock = wifiManager.createMulticastLock("multicastLock");
 		wifiMulticastLock.acquire();
 
 		try {
 			multicastSocket = new MulticastSocket(port);
 		} catch(IOException ioe) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not create a MulticastSocket on port " + port + ".]", ioe);
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][Can not create a MulticastSocket on port " + port + ".]", ioe);
+			releaseMulticastLock();
+			return;
 		}
 
 		InetAddress multicastAddress = null;
@@ -131,175 +202,214 @@ public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
 		try {
 			multicastAddress = InetAddress.getByName(MULTICAST_ADDR);
 		} catch (UnknownHostException uhe) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not get InetAddress from multicast address "
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][Can not get InetAddress from multicast address "
 					+ MULTICAST_ADDR + ".]", uhe);
-		}
-
-		/* Need to encrypt our request */
-		String requestMessage = AES128_DEFAULT.encryptText(Message.SCAN_MODE_REQUEST.toString());
-
-		byte[] request = null;
-		try {
-			request = requestMessage.getBytes(Common.CHARSET_UTF8);
-		} catch(UnsupportedEncodingException uee) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][An error occurred while trying to encode text.]", uee);
+			closeSocket(null);
+			return;
 		}
 
 		DatagramPacket requestDatagramPacket = new DatagramPacket(
 				request, request.length, multicastAddress, port);
 
-		/* Here we send two broadcast datagrams (requests) */
+		/* Need to prepare for responses. Old servers send them to the group. */
 		try {
-			multicastSocket.send(requestDatagramPacket);
-			multicastSocket.send(requestDatagramPacket);
+			multicastSocket.joinGroup(multicastAddress);
 		} catch (IOException ioe) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not send a request datagram to " +
-					requestDatagramPacket.getAddress().getHostAddress() + ":" +
-					requestDatagramPacket.getPort() + "]", ioe);
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][Socket can not join into multicast group.]", ioe);
 		}
 
-		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Request sent!]");
-
-		/* Need to prepare for responses */
-		if(multicastAddress.isMulticastAddress()) {
-			try {
-				multicastSocket.joinGroup(multicastAddress);
-			} catch (IOException ioe) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Socket can not join into multicast group.]", ioe);
-			}
-		} else {
-			try {
-				multicastSocket.setBroadcast(true);
-			} catch(SocketException se) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not turned broadcast on.[findServers]", se);
-			}
-		}
-
-		ArrayList<Server> availableServers = new ArrayList<Server>();
-
 		/* We do not want to receive our sent datagrams. */
 		try {
 			multicastSocket.setLoopbackMode(true);
 		} catch (SocketException se) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not set LoopBack mode to socket.]", se);
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][Can not set LoopBack mode to socket.]", se);
 		}
 
-		/* We need to set up timeout for scanning. */
-		try {
-			multicastSocket.setSoTimeout(
-					preferences.getInt(
-							this.parentFragment.getResources().getString(
-									R.string.pref_name_socket_timeout),
-									Common.DEFAULT_SOCKET_TIMEOUT));
-		} catch (SocketException se) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Can not set timeout to MulticastSocket.]", se);
-		}
+		long nextRequestTime = SystemClock.elapsedRealtime();
+		long retransmitDelay = FIRST_RETRANSMIT_MILLIS;
 
-		/* There need to be a loop for waiting for an incoming responses. */
-		while(true) {
-			/* We do not know what size will be a encrypted response */
-			byte[] response = new byte[128];
-			DatagramPacket responseDatagramPacket = new DatagramPacket(
-					response, response.length);
+		/* We do not know what size will be a encrypted response. Buffer is reused. */
+		byte[] response = new byte[MAX_RESPONSE_LENGTH];
+		DatagramPacket responseDatagramPacket = new DatagramPacket(response, response.length);
 
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Waiting for incoming response...]");
+		/* There need to be a loop for waiting for an incoming responses. */
+		while(!stoppedByUser) {
+			long now = SystemClock.elapsedRealtime();
+			if(now>=deadline) break;
+
+			/* Request is sent on schedule, lost datagrams are common on Wi-Fi. */
+			if(now>=nextRequestTime) {
+				try {
+					multicastSocket.send(requestDatagramPacket);
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[scanMulticast][Request sent!]");
+				} catch (IOException ioe) {
+					if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][Can not send a request datagram to " +
+							requestDatagramPacket.getAddress().getHostAddress() + ":" +
+							requestDatagramPacket.getPort() + "]", ioe);
+				}
+
+				nextRequestTime = now + retransmitDelay;
+				retransmitDelay *= 2;
+			}
 
-			/* Here we are waiting for incoming response */
+			/* Here we are waiting for incoming response until next request or the end. */
 			try {
+				multicastSocket.setSoTimeout((int)Math.max(1, Math.min(nextRequestTime, deadline) - now));
+				responseDatagramPacket.setLength(response.length);
 				multicastSocket.receive(responseDatagramPacket);
+			} catch (SocketTimeoutException ste) {
+				continue;
 			} catch (IOException ioe) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][An error occurred during receiving an udp datagram. " +
-						"Probably timeout was reached or user canceled the task.]");
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[scanMulticast][An error occurred during receiving an udp datagram. " +
+						"Probably user canceled the task.]");
 				break;
 			}
 
-			if(responseDatagramPacket.getAddress()!=null) {
-				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Received response from:" +
-						responseDatagramPacket.getAddress().getHostAddress() + ":" +
-						responseDatagramPacket.getPort() + "]");
-				String responseMessage = new String(responseDatagramPacket.getData());
-
-				/* Need to trim response message */
-				responseMessage = new String(responseMessage.trim());
-
-				/* Here we need to decrypt incoming response */
-				String decryptedMessage = AES128_DEFAULT.decryptText(responseMessage);
-
-				SimpleMessage simpleMessage = parseIncommingMessage(decryptedMessage);
-
-				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Response from server: " +
-						simpleMessage.toString() + "]");
-
-				if(simpleMessage.getId()==Message.SCAN_MODE_RESPONSE.getId()) {
-
-					String hostName = simpleMessage.getAddInfo().split(SimpleMessage.SEPARATOR)[1];
-					String hostOsName = simpleMessage.getAddInfo().split(SimpleMessage.SEPARATOR)[2];
-					String macAddress = simpleMessage.getAddInfo().split(SimpleMessage.SEPARATOR)[3];
-
-					String hostAddress = responseDatagramPacket.getAddress().getHostAddress();
-					long hostPort = responseDatagramPacket.getPort();
-
-					/* Check if founded server is already added to list */
-					boolean alreadyAdded = false;
-					for(Server server : availableServers) {
-						if(server.getIpAddress().compareTo(hostAddress)==0) {
-							alreadyAdded = true;
-							break;
-						}
-					}
-					/* If server is not in the list */
-					if(!alreadyAdded) {
-						availableServers.add(
-								new Server(hostAddress, macAddress, hostPort, hostName, hostOsName));
-
-						if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Hoooaaaa, right response catched!!!]" +
-								"[Server was added to the list.]");
-					} else if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Hoooaaaa, right response catched!!!]" +
-							"[Server is already in the list.]");
-				} else if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Wrong response :(]");
-			} else if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Response datagram do not have address.]");
+			Server server = parseResponse(responseDatagramPacket, aes128);
+			if(server!=null) onServerFound(server);
 		}
 
-		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Founded servers:]");
-		for(Server instance : availableServers) {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][# " + instance.getServerName() + " > running on "
-					+ instance.getOsName() + " > " + instance.getIpAddress() + ":"
-					+ instance.getPort() + " > with mac: " + instance.getMacAddress() + "]");
+		closeSocket(multicastAddress);
+	}
+
+	/**
+	 * Send request to every address of network. It is used if access point drops multicast.
+	 * @param request Encrypted request.
+	 * @param deadline Value of {@link SystemClock#elapsedRealtime()} when scan ends.
+	 */
+	private void sweepSubnet(byte[] request, long deadline) {
+		/* Address from WifiManager is in little endian. */
+		int ownAddress = Integer.reverseBytes(wifiManager.getConnectionInfo().getIpAddress());
+
+		int[] network = SubnetSweep.parseCidr(preferences.getString(this.parentFragment.getResources().
+				getString(R.string.pref_name_subnet_sweep_range), ""));
+
+		if(network==null) {
+			if(ownAddress==0) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[sweepSubnet][Device is not connected to Wi-Fi " +
+						"and no network is configured.]");
+				return;
+			}
+			network = new int[] {ownAddress, SubnetSweep.DEFAULT_PREFIX_LENGTH};
 		}
 
+		subnetSweep = new SubnetSweep(network[0], network[1], ownAddress, port, request, aes128, this);
+		if(!stoppedByUser) subnetSweep.sweep(deadline);
+	}
+
+	/**
+	 * Add server to the list and show it, if it was not founded yet.
+	 * Servers are identified by address and port.
+	 * @param server Founded server.
+	 */
+	@Override
+	public void onServerFound(Server server) {
+		if(foundedKeys.add(server.getIpAddress() + ":" + server.getPort())) {
+			availableServers.add(server);
+			publishProgress(server);
+
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[onServerFound][Hoooaaaa, right response catched!!!]" +
+					"[Server was added to the list.]");
+		} else if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[onServerFound][Hoooaaaa, right response catched!!!]" +
+				"[Server is already in the list.]");
+	}
+
+	/**
+	 * Parse response of server.
+	 * @param responseDatagramPacket Received datagram.
+	 * @param aes128 Cipher for response.
+	 * @return Founded server or null if datagram is not valid response.
+	 */
+	static Server parseResponse(DatagramPacket responseDatagramPacket, AES128 aes128) {
+		if(responseDatagramPacket.getAddress()==null) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[parseResponse][Response datagram do not have address.]");
+			return null;
+		}
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[parseResponse][Received response from:" +
+				responseDatagramPacket.getAddress().getHostAddress() + ":" +
+				responseDatagramPacket.getPort() + "]");
+
+		String responseMessage;
 		try {
-			if(multicastSocket.isConnected()) multicastSocket.leaveGroup(multicastAddress);
-		} catch (IOException ioe) {
-			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[findServers][Socket can not leave multicast group.]", ioe);
+			responseMessage = new String(responseDatagramPacket.getData(), 0,
+					responseDatagramPacket.getLength(), Common.CHARSET_UTF8).trim();
+		} catch(UnsupportedEncodingException uee) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[parseResponse][An error occurred while trying to decode text.]", uee);
+			return null;
 		}
 
-		if(multicastSocket.isConnected()) multicastSocket.close();
+		/* Here we need to decrypt incoming response */
+		SimpleMessage simpleMessage = parseIncommingMessage(aes128.decryptText(responseMessage));
 
-		if(wifiMulticastLock!=null && wifiMulticastLock.isHeld()) {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][Release multicast lock.]");
-			wifiMulticastLock.release();
+		if(simpleMessage==null || simpleMessage.getId()!=Message.SCAN_MODE_RESPONSE.getId()) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[parseResponse][Wrong response :(]");
+			return null;
 		}
 
-		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[findServers][End of task. Bye bey.]");
+		String[] fields = simpleMessage.getAddInfo().split(SimpleMessage.SEPARATOR);
 
-		return availableServers;
+		String hostName = (fields.length>1) ? fields[1] : "";
+		String hostOsName = (fields.length>2) ? fields[2] : "";
+		String macAddress = (fields.length>3) ? fields[3] : "";
+
+		String hostAddress = responseDatagramPacket.getAddress().getHostAddress();
+		long hostPort = responseDatagramPacket.getPort();
+
+		return new Server(hostAddress, macAddress, hostPort, hostName, hostOsName);
+	}
+
+	/**
+	 * Leave multicast group, close socket and release multicast lock.
+	 * @param multicastAddress Joined multicast group. May be null.
+	 */
+	private void closeSocket(InetAddress multicastAddress) {
+		if(!multicastSocket.isClosed()) {
+			if(multicastAddress!=null) {
+				try {
+					multicastSocket.leaveGroup(multicastAddress);
+				} catch (IOException ioe) {
+					if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[closeSocket][Socket can not leave multicast group.]", ioe);
+				}
+			}
+
+			multicastSocket.close();
+		}
+
+		releaseMulticastLock();
+	}
+
+	/**
+	 * Release multicast lock, if it is held.
+	 */
+	private void releaseMulticastLock() {
+		if(wifiMulticastLock!=null && wifiMulticastLock.isHeld()) {
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[releaseMulticastLock][Release multicast lock.]");
+			wifiMulticastLock.release();
+		}
 	}
 
 	/**
 	 * Parsing incomming message from raw String to SimpleMessage..
 	 * @param incomingMessage Raw String.
-	 * @return Parsed SimpleMessage.
+	 * @return Parsed SimpleMessage. May be null if message is malformed.
 	 */
-	private SimpleMessage parseIncommingMessage(String incomingMessage) {
+	private static SimpleMessage parseIncommingMessage(String incomingMessage) {
 		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[parseIncommingMessage]");
 
-		int messageId = Integer.valueOf(
-				incomingMessage.substring(0, incomingMessage.indexOf(
-						SimpleMessage.SEPARATOR)));
+		if(incomingMessage==null) return null;
+
+		int separatorIndex = incomingMessage.indexOf(SimpleMessage.SEPARATOR);
+		if(separatorIndex<0) return null;
+
+		int messageId;
+		try {
+			messageId = Integer.valueOf(incomingMessage.substring(0, separatorIndex));
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
 
-		String addInfo = incomingMessage.substring(
-				incomingMessage.indexOf(SimpleMessage.SEPARATOR),
-				incomingMessage.length());
+		String addInfo = incomingMessage.substring(separatorIndex, incomingMessage.length());
 
 		return new SimpleMessage(messageId, addInfo);
 	}
@@ -309,7 +419,8 @@ public class UDPScanModeTask extends AsyncTask<Void, Void, ArrayList<Server>> {
 	 */
 	public void stopTask() {
 		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[stopTask]");
-		multicastSocket.close();
 		stoppedByUser = true;
+		if(multicastSocket!=null) multicastSocket.close();
+		if(subnetSweep!=null) subnetSweep.stop();
 	}
 }
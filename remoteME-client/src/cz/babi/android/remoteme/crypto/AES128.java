@@ -35,6 +35,9 @@ import cz.babi.android.remoteme.interfaces.DefaultCrypto;
 
 /**
  * Class that provide simple 128bit AES encryption and decryption.
+ * Instance holds its own ciphers and it is not thread-safe, so every thread
+ * (client session) needs its own instance. Use {@link #AES128(AES128)} to get
+ * one without generating the key again.
  * 
  * @author babi
  * @author dev.misiarz@gmail.com
@@ -68,6 +71,19 @@ public class AES128 implements DefaultCrypto {
 		initEncryptCipher();
 	}
 	
+	/**
+	 * Constructor. New instance has the same key, but its own ciphers.
+	 * @param crypto Instance to copy the key from.
+	 */
+	public AES128(AES128 crypto) {
+		this.secretId = crypto.secretId;
+		this.password = crypto.password;
+		this.generatedKey = crypto.generatedKey;
+		
+		initDecryptCipher();
+		initEncryptCipher();
+	}
+	
 	/**
 	 * @see cz.babi.desktop.remoteme.interfaces.DefaultCrypto#encryptText(java.lang.String)
 	 * @return Encrypted input text. May be null.
@@ -90,7 +106,7 @@ public class AES128 implements DefaultCrypto {
 				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to encode text.]", uee);
 			}
 			
-			ret = Base64.encodeToString(encryptedRawData, Base64.DEFAULT);
+			ret = Base64.encodeToString(encryptedRawData, Base64.NO_WRAP);
 		}
 		
 		return ret;
@@ -125,6 +141,45 @@ public class AES128 implements DefaultCrypto {
 		return ret;
 	}
 	
+	/**
+	 * @see cz.babi.android.remoteme.interfaces.DefaultCrypto#encryptData(byte[])
+	 * @return Encrypted data. May be null.
+	 */
+	@Override
+	public byte[] encryptData(byte[] originalData) {
+		if(this.generatedKey==null) return null;
+		
+		try {
+			return encryptCipher.doFinal(originalData);
+		} catch (IllegalBlockSizeException ibse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[Illegal clock size.]", ibse);
+		} catch (BadPaddingException bpe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[Bad padding.]", bpe);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * @see cz.babi.android.remoteme.interfaces.DefaultCrypto#decryptData(byte[])
+	 * @return Decrypted data. May be null.
+	 */
+	@Override
+	public byte[] decryptData(byte[] encryptedData) {
+		if(this.generatedKey==null) return null;
+		
+		try {
+			return decryptCipher.doFinal(encryptedData);
+		} catch (IllegalBlockSizeException ibse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to " +
+					"retreive original data.]", ibse);
+		} catch (BadPaddingException bpe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[Bad padding.]", bpe);
+		}
+		
+		return null;
+	}
+	
 	/**
 	 * Method generate Key for encryption and decryption.
 	 * @return Generated Key. May be null.
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+
+/**
+ * Encryption of motion datagrams with the key of a session. Datagrams can
+ * be lost or reordered, so unlike {@link SessionCrypto} every datagram is
+ * encrypted alone and its sequence number is the nonce. Tag is computed from
+ * direction, sequence number and encrypted data. Must be same as on server
+ * side.
+ * <p>
+ * Instance is not thread-safe.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class DatagramCrypto {
+
+	private static final String TAG_CLASS_NAME = DatagramCrypto.class.getSimpleName();
+
+	/** Length of tag at the end of every datagram. */
+	public static final int TAG_LENGTH = SessionCrypto.TAG_LENGTH;
+
+	private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+	private static final String ALGORITHM_MAC = "HmacSHA1";
+
+	private static final byte DIRECTION_TO_SERVER = 3;
+	private static final byte DIRECTION_TO_CLIENT = 4;
+
+	private final Cipher cipher;
+	private final Mac mac;
+	private final SecretKeySpec cipherKey;
+
+	private final byte[] header = new byte[5];
+	private final byte[] tag = new byte[TAG_LENGTH];
+
+	/**
+	 * Constructor.
+	 * @param sessionKey Key of this session agreed with server.
+	 * @throws GeneralSecurityException If cipher can not be initialized.
+	 */
+	public DatagramCrypto(byte[] sessionKey) throws GeneralSecurityException {
+		if(sessionKey==null || sessionKey.length!=SessionCrypto.KEY_LENGTH)
+			throw new GeneralSecurityException("Wrong length of session key.");
+
+		cipherKey = new SecretKeySpec(sessionKey, 0, 16, Common.ALGORITHM_AES);
+		cipher = Cipher.getInstance(TRANSFORMATION);
+
+		mac = Mac.getInstance(ALGORITHM_MAC);
+		mac.init(new SecretKeySpec(sessionKey, 16, 16, ALGORITHM_MAC));
+	}
+
+	/**
+	 * Encrypt outgoing datagram.
+	 * @param sequence Sequence number of datagram. Must not be used twice.
+	 * @param data Data to encrypt.
+	 * @return Encrypted data with tag. May be null.
+	 */
+	public byte[] seal(int sequence, byte[] data) {
+		byte[] sealed = new byte[data.length + TAG_LENGTH];
+
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, cipherKey, counter(DIRECTION_TO_SERVER, sequence));
+			cipher.doFinal(data, 0, data.length, sealed, 0);
+
+			computeTag(DIRECTION_TO_SERVER, sequence, sealed, 0, data.length);
+			System.arraycopy(tag, 0, sealed, data.length, TAG_LENGTH);
+		} catch (GeneralSecurityException gse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to encrypt datagram.]", gse);
+			return null;
+		}
+
+		return sealed;
+	}
+
+	/**
+	 * Check and decrypt incoming datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @param sealed Buffer with encrypted data and tag.
+	 * @param offset Offset of encrypted data in buffer.
+	 * @param length Length of encrypted data with tag.
+	 * @return Decrypted data or null if datagram is not valid.
+	 */
+	public byte[] open(int sequence, byte[] sealed, int offset, int length) {
+		if(length<TAG_LENGTH) return null;
+
+		int dataLength = length - TAG_LENGTH;
+
+		try {
+			computeTag(DIRECTION_TO_CLIENT, sequence, sealed, offset, dataLength);
+
+			/* Compare whole tag, so time does not tell where it differs. */
+			int difference = 0;
+			for(int i=0; i<TAG_LENGTH; i++) difference |= tag[i] ^ sealed[offset+dataLength+i];
+			if(difference!=0) return null;
+
+			cipher.init(Cipher.DECRYPT_MODE, cipherKey, counter(DIRECTION_TO_CLIENT, sequence));
+			return cipher.doFinal(sealed, offset, dataLength);
+		} catch (GeneralSecurityException gse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to decrypt datagram.]", gse);
+			return null;
+		}
+	}
+
+	/**
+	 * Compute tag of datagram to {@link #tag}.
+	 * @param direction Direction of datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @param data Buffer with encrypted data.
+	 * @param offset Offset of encrypted data.
+	 * @param length Length of encrypted data.
+	 */
+	private void computeTag(byte direction, int sequence, byte[] data, int offset, int length) {
+		header[0] = direction;
+		for(int i=0; i<4; i++) header[4-i] = (byte)(sequence>>>(i*8));
+
+		mac.update(header);
+		mac.update(data, offset, length);
+
+		byte[] fullTag = mac.doFinal();
+		System.arraycopy(fullTag, 0, tag, 0, TAG_LENGTH);
+	}
+
+	/**
+	 * @param direction Direction of datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @return Initial counter block of cipher for given datagram.
+	 */
+	private static IvParameterSpec counter(byte direction, int sequence) {
+		byte[] counterBlock = new byte[16];
+		counterBlock[0] = direction;
+		for(int i=0; i<4; i++) counterBlock[11-i] = (byte)(sequence>>>(i*8));
+
+		return new IvParameterSpec(counterBlock);
+	}
+}
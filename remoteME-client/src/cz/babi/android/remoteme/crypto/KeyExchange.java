@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.KeyAgreement;
+
+/**
+ * Ephemeral ECDH key exchange for {@link SessionCrypto} and {@link DatagramCrypto}.
+ * Must be same as on server side.
+ * <p>
+ * New key pair is generated for every handshake. Session key is SHA-256 of
+ * the shared secret and of both public keys, client key first.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class KeyExchange {
+	
+	private static final String ALGORITHM_EC = "EC";
+	private static final String ALGORITHM_AGREEMENT = "ECDH";
+	private static final String ALGORITHM_DIGEST = "SHA-256";
+	private static final String CURVE = "secp256r1";
+	
+	/** Prefix of hashed data, so the session key is not used for anything else. */
+	private static final byte[] LABEL = "remoteME session key".getBytes();
+	
+	private final KeyPair keyPair;
+	
+	/**
+	 * Constructor. Generates new key pair.
+	 * @throws GeneralSecurityException If EC keys are not supported by this device.
+	 */
+	public KeyExchange() throws GeneralSecurityException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(ALGORITHM_EC);
+		generator.initialize(new ECGenParameterSpec(CURVE));
+		keyPair = generator.generateKeyPair();
+	}
+	
+	/**
+	 * @return Encoded public key, which is sent to server.
+	 */
+	public byte[] getPublicKey() {
+		return keyPair.getPublic().getEncoded();
+	}
+	
+	/**
+	 * Derive session key from public key of server.
+	 * @param peerPublicKey Encoded public key of server.
+	 * @return Session key, see {@link SessionCrypto#KEY_LENGTH}.
+	 * @throws GeneralSecurityException If public key is not valid.
+	 */
+	public byte[] deriveSessionKey(byte[] peerPublicKey) throws GeneralSecurityException {
+		if(peerPublicKey==null || peerPublicKey.length==0)
+			throw new GeneralSecurityException("Missing public key.");
+		
+		PublicKey peerKey = KeyFactory.getInstance(ALGORITHM_EC).generatePublic(
+				new X509EncodedKeySpec(peerPublicKey));
+		
+		KeyAgreement agreement = KeyAgreement.getInstance(ALGORITHM_AGREEMENT);
+		agreement.init(keyPair.getPrivate());
+		agreement.doPhase(peerKey, true);
+		
+		MessageDigest digest = MessageDigest.getInstance(ALGORITHM_DIGEST);
+		digest.update(LABEL);
+		digest.update(agreement.generateSecret());
+		digest.update(getPublicKey());
+		digest.update(peerPublicKey);
+		
+		return digest.digest();
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.entity;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
+import cz.babi.android.remoteme.interfaces.DefaultCrypto;
+
+/**
+ * Binary message. It is used instead of SimpleMessage if both sides agree
+ * on binary protocol during the handshake.
+ * <p>
+ * Frame is: opcode (1 byte), payload length (unsigned varint), payload.
+ * Opcodes are same as IDs of SimpleMessages. Mouse move holds two floats,
+ * mouse wheel one float, key macros hold int ID (and UTF-8 text if macro is
+ * defined), other messages hold UTF-8 text or nothing.
+ * If communication is encrypted, whole frame is encrypted and sent as payload
+ * of frame with {@link #ENCRYPTED} opcode. If session key was negotiated, frames
+ * are encrypted by session crypto and sent with {@link #SESSION_ENCRYPTED} opcode.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class BinaryMessage {
+	
+	private static final String TAG_CLASS_NAME = BinaryMessage.class.getSimpleName();
+	
+	/** Client sends this as additional info of 'need encrypted communication' request
+	 * and server sends it back if it switches to binary protocol. */
+	public static final String PROTOCOL_BINARY = "binary1";
+	/** Binary protocol where encrypted frames use the key generated for the session.
+	 * Server sends the key together with protocol name. */
+	public static final String PROTOCOL_BINARY_SESSION = "binary2";
+	
+	/** Opcode of frame which holds another encrypted frame. */
+	public static final int ENCRYPTED = 0;
+	/** Opcode of frame which holds another frame encrypted by session crypto. */
+	public static final int SESSION_ENCRYPTED = 127;
+	
+	/** Max count of key macros which client can define in one session. */
+	public static final int MAX_MACROS = 1024;
+	
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	
+	/**
+	 * Encode message without payload.
+	 * @param opcode Message opcode.
+	 * @return Encoded frame.
+	 */
+	public static byte[] encode(int opcode) {
+		return encode(opcode, EMPTY_PAYLOAD);
+	}
+	
+	/**
+	 * Encode message with text payload.
+	 * @param opcode Message opcode.
+	 * @param text Text to send.
+	 * @return Encoded frame.
+	 */
+	public static byte[] encode(int opcode, String text) {
+		byte[] payload = EMPTY_PAYLOAD;
+		
+		if(text!=null) {
+			try {
+				payload = text.getBytes(Common.CHARSET_UTF8);
+			} catch(UnsupportedEncodingException uee) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to encode text.]", uee);
+			}
+		}
+		
+		return encode(opcode, payload);
+	}
+	
+	/**
+	 * Encode message with int value and text as payload.
+	 * @param opcode Message opcode.
+	 * @param value Value to send.
+	 * @param text Text to send after value. May be null.
+	 * @return Encoded frame.
+	 */
+	public static byte[] encode(int opcode, int value, String text) {
+		byte[] textPayload = EMPTY_PAYLOAD;
+		
+		if(text!=null) {
+			try {
+				textPayload = text.getBytes(Common.CHARSET_UTF8);
+			} catch(UnsupportedEncodingException uee) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[An error occurred while trying to encode text.]", uee);
+			}
+		}
+		
+		ByteBuffer payload = ByteBuffer.allocate(4 + textPayload.length);
+		payload.putInt(value);
+		payload.put(textPayload);
+		
+		return encode(opcode, payload.array());
+	}
+	
+	/**
+	 * Encode message with float values as payload.
+	 * @param opcode Message opcode.
+	 * @param values Values to send.
+	 * @return Encoded frame.
+	 */
+	public static byte[] encode(int opcode, float... values) {
+		ByteBuffer payload = ByteBuffer.allocate(values.length*4);
+		for(float value : values) payload.putFloat(value);
+		
+		return encode(opcode, payload.array());
+	}
+	
+	/**
+	 * Encode message.
+	 * @param opcode Message opcode.
+	 * @param payload Message payload.
+	 * @return Encoded frame.
+	 */
+	public static byte[] encode(int opcode, byte[] payload) {
+		ByteBuffer frame = ByteBuffer.allocate(1 + 5 + payload.length);
+		
+		frame.put((byte)opcode);
+		
+		int length = payload.length;
+		while((length & ~0x7F)!=0) {
+			frame.put((byte)((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		frame.put((byte)length);
+		
+		frame.put(payload);
+		
+		byte[] ret = new byte[frame.position()];
+		frame.flip();
+		frame.get(ret);
+		
+		return ret;
+	}
+	
+	/**
+	 * Encrypt whole frame and wrap it to another frame.
+	 * @param frame Encoded frame.
+	 * @param crypto Crypto to use.
+	 * @return Encrypted frame. May be null.
+	 */
+	public static byte[] encrypt(byte[] frame, DefaultCrypto crypto) {
+		byte[] encryptedData = crypto.encryptData(frame);
+		if(encryptedData==null) return null;
+		
+		return encode(ENCRYPTED, encryptedData);
+	}
+	
+	/**
+	 * Encrypt whole frame by session crypto and wrap it to another frame.
+	 * @param frame Encoded frame.
+	 * @param sessionCrypto Session crypto to use.
+	 * @return Encrypted frame. May be null.
+	 */
+	public static byte[] encrypt(byte[] frame, SessionCrypto sessionCrypto) {
+		byte[] encryptedData = sessionCrypto.encrypt(frame);
+		if(encryptedData==null) return null;
+		
+		return encode(SESSION_ENCRYPTED, encryptedData);
+	}
+}
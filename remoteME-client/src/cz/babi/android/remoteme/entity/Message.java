@@ -58,6 +58,18 @@ public class Message {
 	public static SimpleMessage BYE_BYE = getSimpleMessage(14);
 	/** Used for special commands, like shutdown, restart od logoff. */
 	public static SimpleMessage SPECIAL_COMMAND = getSimpleMessage(15);
+	/** More messages in one binary frame. Used only by binary protocol. */
+	public static SimpleMessage BATCH = getSimpleMessage(16);
+	/** Define key macro and stroke it. Used only by binary protocol. */
+	public static SimpleMessage KEY_MACRO_DEFINE = getSimpleMessage(17);
+	/** Stroke key macro defined before. Used only by binary protocol. */
+	public static SimpleMessage KEY_MACRO = getSimpleMessage(18);
+	/** Whole handshake in one request. Version, offered protocol and password. */
+	public static SimpleMessage HELLO = getSimpleMessage(19);
+	/** Answer to hello or resume. Version, authentication, encryption, resume token and protocol. */
+	public static SimpleMessage WELCOME = getSimpleMessage(20);
+	/** Resume session after reconnect. Version, offered protocol and resume token. */
+	public static SimpleMessage RESUME = getSimpleMessage(21);
 	
 	
 	/**
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.entity;
+
+import java.security.GeneralSecurityException;
+
+import android.util.Base64;
+import cz.babi.android.remoteme.crypto.DatagramCrypto;
+import cz.babi.android.remoteme.crypto.KeyExchange;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
+import cz.babi.android.remoteme.entity.Message.SimpleMessage;
+
+/**
+ * Result of handshake. It is parsed from welcome message or from answer to
+ * 'need encrypted communication' request of old handshake.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class Welcome {
+	
+	/** First handshake version with port of UDP motion channel. */
+	private static final int HANDSHAKE_VERSION_MOTION = 2;
+	
+	private final boolean isAuthenticated;
+	private final boolean isEncrypted;
+	private final String resumeToken;
+	private final int motionPort;
+	private final String protocol;
+	private final String serverPublicKey;
+	
+	/* Session key is derived only once for both cryptos. */
+	private byte[] sessionKey;
+	
+	/**
+	 * Constructor.
+	 * @param isAuthenticated If client is authenticated.
+	 * @param isEncrypted If communication is encrypted.
+	 * @param resumeToken Resume token. May be null.
+	 * @param motionPort Port of UDP motion channel. Zero if there is no channel.
+	 * @param protocolInfo Protocol chosen by server followed by its public key, if session
+	 * key is used.
+	 */
+	public Welcome(boolean isAuthenticated, boolean isEncrypted, String resumeToken,
+			int motionPort, String protocolInfo) {
+		this.isAuthenticated = isAuthenticated;
+		this.isEncrypted = isEncrypted;
+		this.resumeToken = (resumeToken==null || resumeToken.length()==0) ? null : resumeToken;
+		this.motionPort = motionPort;
+		
+		if(protocolInfo==null) protocolInfo = "";
+		
+		int separatorIndex = protocolInfo.indexOf(SimpleMessage.SEPARATOR);
+		if(separatorIndex>=0) {
+			this.protocol = protocolInfo.substring(0, separatorIndex);
+			this.serverPublicKey = protocolInfo.substring(separatorIndex+1);
+		} else {
+			this.protocol = protocolInfo;
+			this.serverPublicKey = null;
+		}
+	}
+	
+	/**
+	 * Protocol offered to server. Binary protocol with session key is offered
+	 * only if there is a key exchange, its public key follows the protocol.
+	 * Format is same in hello, resume and 'need encrypted communication' requests.
+	 * @param keyExchange Key exchange of this handshake. Null if it is not supported.
+	 * @return Offered protocol and public key.
+	 */
+	public static String offerProtocol(KeyExchange keyExchange) {
+		if(keyExchange==null) return BinaryMessage.PROTOCOL_BINARY + SimpleMessage.SEPARATOR;
+		
+		return BinaryMessage.PROTOCOL_BINARY_SESSION + SimpleMessage.SEPARATOR +
+				Base64.encodeToString(keyExchange.getPublicKey(), Base64.NO_WRAP);
+	}
+	
+	/**
+	 * Parse additional info of welcome message. Format is
+	 * <code>version;authenticated;encrypted;token;protocol</code>, where
+	 * authenticated and encrypted are IDs of YES or NO messages. Since version 2
+	 * there is port of UDP motion channel before protocol.
+	 * @param addInfo Additional info of welcome message.
+	 * @return Parsed welcome.
+	 */
+	public static Welcome parse(String addInfo) {
+		int version = 0;
+		int separatorIndex = addInfo.indexOf(SimpleMessage.SEPARATOR);
+		try {
+			version = Integer.parseInt((separatorIndex>=0) ? addInfo.substring(0, separatorIndex) : addInfo);
+		} catch(NumberFormatException nfe) {
+			/* Welcome is refused anyway. */
+		}
+		
+		/* Protocol is the last one, it may contain public key of server. */
+		int fieldCount = (version>=HANDSHAKE_VERSION_MOTION) ? 6 : 5;
+		String[] fields = addInfo.split(SimpleMessage.SEPARATOR, fieldCount);
+		
+		String yes = String.valueOf(Message.YES.getId());
+		
+		boolean isAuthenticated = fields.length>1 && yes.equals(fields[1]);
+		boolean isEncrypted = fields.length>2 && yes.equals(fields[2]);
+		String resumeToken = (fields.length>3) ? fields[3] : null;
+		
+		int motionPort = 0;
+		if(fieldCount==6 && fields.length>4) {
+			try {
+				motionPort = Integer.parseInt(fields[4]);
+			} catch(NumberFormatException nfe) {
+				motionPort = 0;
+			}
+		}
+		
+		String protocolInfo = (fields.length>fieldCount-1) ? fields[fieldCount-1] : null;
+		
+		return new Welcome(isAuthenticated, isEncrypted, resumeToken, motionPort, protocolInfo);
+	}
+	
+	/**
+	 * @return the isAuthenticated
+	 */
+	public boolean isAuthenticated() {
+		return isAuthenticated;
+	}
+	
+	/**
+	 * @return the isEncrypted
+	 */
+	public boolean isEncrypted() {
+		return isEncrypted;
+	}
+	
+	/**
+	 * @return Resume token. Null if server does not support resuming.
+	 */
+	public String getResumeToken() {
+		return resumeToken;
+	}
+	
+	/**
+	 * @return Port of UDP motion channel. Zero if server does not open it.
+	 */
+	public int getMotionPort() {
+		return motionPort;
+	}
+	
+	/**
+	 * @return the protocol
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+	
+	/**
+	 * @return If binary protocol is used.
+	 */
+	public boolean isBinary() {
+		return BinaryMessage.PROTOCOL_BINARY.equals(protocol) ||
+				BinaryMessage.PROTOCOL_BINARY_SESSION.equals(protocol);
+	}
+	
+	/**
+	 * Create crypto of binary frames.
+	 * @param keyExchange Key exchange of this handshake. May be null.
+	 * @return Crypto or null if session key was not negotiated.
+	 * @throws GeneralSecurityException If server expects session key, but it can not be derived.
+	 */
+	public SessionCrypto createSessionCrypto(KeyExchange keyExchange)
+			throws GeneralSecurityException {
+		byte[] key = deriveSessionKey(keyExchange);
+		
+		return (key==null) ? null : new SessionCrypto(key);
+	}
+	
+	/**
+	 * Create crypto of motion datagrams.
+	 * @param keyExchange Key exchange of this handshake. May be null.
+	 * @return Crypto or null if session key was not negotiated.
+	 * @throws GeneralSecurityException If session key can not be derived.
+	 */
+	public DatagramCrypto createDatagramCrypto(KeyExchange keyExchange)
+			throws GeneralSecurityException {
+		byte[] key = deriveSessionKey(keyExchange);
+		
+		return (key==null) ? null : new DatagramCrypto(key);
+	}
+	
+	/**
+	 * @param keyExchange Key exchange of this handshake. May be null.
+	 * @return Session key or null if it was not negotiated.
+	 * @throws GeneralSecurityException If server expects session key, but it can not be derived.
+	 */
+	private byte[] deriveSessionKey(KeyExchange keyExchange) throws GeneralSecurityException {
+		if(!isEncrypted || serverPublicKey==null ||
+				!BinaryMessage.PROTOCOL_BINARY_SESSION.equals(protocol)) return null;
+		
+		if(keyExchange==null) throw new GeneralSecurityException("Key exchange is missing.");
+		
+		if(sessionKey==null) {
+			try {
+				sessionKey = keyExchange.deriveSessionKey(Base64.decode(serverPublicKey,
+						Base64.NO_WRAP));
+			} catch(IllegalArgumentException iae) {
+				throw new GeneralSecurityException("Public key of server is malformed.", iae);
+			}
+		}
+		
+		return sessionKey;
+	}
+}
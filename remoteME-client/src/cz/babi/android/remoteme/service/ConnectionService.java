@@ -18,8 +18,10 @@ package cz.babi.android.remoteme.service;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.LinkedList;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -32,6 +34,7 @@ import android.graphics.BitmapFactory;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
@@ -43,10 +46,12 @@ import android.widget.TextView;
 import android.widget.Toast;
 import cz.babi.android.remoteme.R;
 import cz.babi.android.remoteme.common.Common;
-import cz.babi.android.remoteme.crypto.AES128;
+import cz.babi.android.remoteme.crypto.DatagramCrypto;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
 import cz.babi.android.remoteme.entity.Message;
-import cz.babi.android.remoteme.entity.Message.SimpleMessage;
 import cz.babi.android.remoteme.entity.Server;
+import cz.babi.android.remoteme.service.ConnectionWriter.ConnectionListener;
+import cz.babi.android.remoteme.service.Reconnector.ReconnectListener;
 import cz.babi.android.remoteme.ui.ActivityDialogListOfRemoteControllers;
 
 /**
@@ -55,21 +60,33 @@ import cz.babi.android.remoteme.ui.ActivityDialogListOfRemoteControllers;
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
  */
-public class ConnectionService extends Service {
+public class ConnectionService extends Service implements ConnectionListener, ReconnectListener {
 
 	private static final String TAG_CLASS_NAME = ConnectionService.class.getSimpleName();
 
 	private static final int NOTIFICATION_ID = 0;
 
+	/** Max count of commands held while connection is lost. */
+	private static final int GAP_BUFFER_CAPACITY = 64;
+
 	public static Server server;
 
 	public static Socket clientSocket;
 	public static BufferedReader in;
 	public static PrintWriter out;
+	/** Raw output for binary frames. */
+	public static OutputStream rawOut;
 
 	public static boolean needEncryptedCommunication;
-
-	private static final AES128 AES128_DEFAULT = Common.AES128_DEFAULT;
+	public static boolean useBinaryProtocol;
+	/** Crypto of binary frames. Null if session key was not negotiated. */
+	public static SessionCrypto sessionCrypto;
+	/** Token for resuming of session after connection is lost. Null if server does not support it. */
+	public static String resumeToken;
+	/** Port of UDP motion channel. Zero if server does not open it. */
+	public static int motionPort;
+	/** Crypto of motion datagrams. Null if session key was not negotiated. */
+	public static DatagramCrypto datagramCrypto;
 
 	private final IBinder binder = new ConnectionBinder();
 
@@ -82,6 +99,35 @@ public class ConnectionService extends Service {
 	private boolean disconnectWithError = false;
 	private boolean isNotificationVisible = false;
 
+	/* All messages are sent by this thread. */
+	private ConnectionWriter connectionWriter;
+
+	/* Connection health callbacks come from writer thread, UI must be updated from main thread. */
+	private Handler mainHandler;
+
+	/* Not null while connection is lost and we try to resume the session. */
+	private Reconnector reconnector;
+
+	/**
+	 * One command made by user while connection is lost.
+	 */
+	private static class GapCommand {
+		final int id;
+		final String text;
+		float x;
+		float y;
+
+		GapCommand(int id, String text, float x, float y) {
+			this.id = id;
+			this.text = text;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/* Commands made while connection is lost. Used only by main thread. */
+	private final LinkedList<GapCommand> gapBuffer = new LinkedList<GapCommand>();
+
 	/**
 	 * Class for clients to access.  Because we know this service always
 	 * runs in the same process as its clients, we don't need to deal with
@@ -111,6 +157,11 @@ public class ConnectionService extends Service {
 		if(preferences.getBoolean(getString(R.string.pref_name_keep_wifi_alive), true))
 			lockWiFi();
 
+		mainHandler = new Handler();
+
+		/* Start writer. */
+		if(out!=null) startWriter();
+
 		/* Display a notification about us starting. */
 		if(preferences.getBoolean(getString(R.string.pref_name_show_notification), true)) {
 			showNotification();
@@ -127,17 +178,19 @@ public class ConnectionService extends Service {
 		/* If Wi-Fi is locked we need to unlock it. */
 		if(wifiLock.isHeld()) unlockWifi();
 
+		if(reconnector!=null) {
+			reconnector.cancel();
+			reconnector = null;
+		}
+
 		/* If there was no error we send 'bye bye' message to server and show toast to user. */
 		if(!disconnectWithError) {
-			/* Just tell to server that we are disconnecting. */
-			SimpleMessage byeBye = Message.BYE_BYE;
-
-			String message = byeBye.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(
-					byeBye.toString());
-
-			out.println(message);
-			out.flush();
+			/* Just tell to server that we are disconnecting. Writer sends everything
+			 * what is waiting and stops. */
+			if(connectionWriter!=null) {
+				connectionWriter.send(Message.BYE_BYE.getId(), null, 0);
+				connectionWriter.finish();
+			}
 
 			/* Tell the user we stopped. */
 			LayoutInflater mInflater = (LayoutInflater)this.getSystemService(
@@ -233,24 +286,157 @@ public class ConnectionService extends Service {
 	}
 
 	/**
-	 * If server is unreachable we need to stop service and notice that to user.
+	 * Start writer for current connection.
 	 */
-	private void closeConnection() {
-		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[closeConnection]");
+	private void startWriter() {
+		int mouseMoveTick = Integer.valueOf(preferences.getString(
+				getString(R.string.pref_name_mouse_move_tick),
+				String.valueOf(Common.DEFAULT_MOUSE_MOVE_TICK)));
+
+		MotionChannel motionChannel = null;
+		if(motionPort>0 && clientSocket!=null)
+			motionChannel = new MotionChannel(clientSocket.getInetAddress(), motionPort,
+					datagramCrypto);
+
+		connectionWriter = new ConnectionWriter(out, rawOut, needEncryptedCommunication,
+				useBinaryProtocol, sessionCrypto, mouseMoveTick, motionChannel, this);
+		connectionWriter.start();
+	}
+
+	/**
+	 * Stop writer and close socket of current connection.
+	 */
+	private void closeSocket() {
+		if(connectionWriter!=null) connectionWriter.finish();
 
 		if(clientSocket!=null)
 			try {
 				clientSocket.close();
 			} catch(IOException e) {
-				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[stopService][Can not close client " +
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[closeSocket][Can not close client " +
 						"socket.]");
 			}
+	}
+
+	/**
+	 * Connection is lost. Session is resumed in background, if server gave
+	 * us resume token. Otherwise connection is closed.
+	 * @return If session will be resumed.
+	 */
+	private boolean startReconnect() {
+		if(reconnector!=null) return true;
+		if(disconnectWithError || resumeToken==null || server==null) return false;
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[startReconnect]");
+
+		closeSocket();
+
+		int socketTimeout = preferences.getInt(getString(R.string.pref_name_socket_timeout),
+				Common.DEFAULT_SOCKET_TIMEOUT);
+
+		reconnector = new Reconnector(Common.getProperIpAddress(server.getIpAddress()),
+				(int)server.getPort(), socketTimeout, resumeToken, this);
+
+		/* Token can be used only once. Resumed session gets a new one. */
+		resumeToken = null;
+
+		reconnector.start();
+
+		return true;
+	}
+
+	/**
+	 * Hold command until session is resumed. Mouse moves are merged. If buffer
+	 * is full, the oldest command is dropped.
+	 * @param id Message ID.
+	 * @param text Additional text. May be null.
+	 * @param x Additional value.
+	 * @param y Additional value. Used by mouse move.
+	 */
+	private void holdCommand(int id, String text, float x, float y) {
+		if(id==Message.MOUSE_MOVE.getId() && !gapBuffer.isEmpty() &&
+				gapBuffer.getLast().id==id) {
+			GapCommand move = gapBuffer.getLast();
+			move.x += x;
+			move.y += y;
+			return;
+		}
+
+		if(gapBuffer.size()>=GAP_BUFFER_CAPACITY) gapBuffer.removeFirst();
+
+		gapBuffer.add(new GapCommand(id, text, x, y));
+	}
+
+	/**
+	 * Session is resumed. Start new writer and send commands held in the meantime.
+	 * @param resumed Reconnector which resumed the session.
+	 */
+	private void resumeConnection(Reconnector resumed) {
+		/* Reconnecting was canceled in the meantime. */
+		if(resumed!=reconnector) {
+			try {
+				resumed.getClientSocket().close();
+			} catch(IOException e) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[resumeConnection][Can not close " +
+						"client socket.]");
+			}
+			return;
+		}
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[resumeConnection][" + gapBuffer.size() +
+				" commands held.]");
+
+		reconnector = null;
+
+		ConnectionService.clientSocket = resumed.getClientSocket();
+		ConnectionService.in = resumed.getIn();
+		ConnectionService.out = resumed.getOut();
+		ConnectionService.rawOut = resumed.getRawOut();
+		ConnectionService.needEncryptedCommunication = resumed.getWelcome().isEncrypted();
+		ConnectionService.useBinaryProtocol = resumed.getWelcome().isBinary();
+		ConnectionService.sessionCrypto = resumed.getSessionCrypto();
+		ConnectionService.resumeToken = resumed.getWelcome().getResumeToken();
+		ConnectionService.motionPort = resumed.getWelcome().getMotionPort();
+		ConnectionService.datagramCrypto = resumed.getDatagramCrypto();
+
+		startWriter();
+
+		while(!gapBuffer.isEmpty()) {
+			GapCommand command = gapBuffer.removeFirst();
+			if(command.id==Message.MOUSE_MOVE.getId())
+				connectionWriter.moveMouse(command.x, command.y);
+			else connectionWriter.send(command.id, command.text, command.x);
+		}
+	}
+
+	/**
+	 * If server is unreachable we need to stop service and notice that to user.
+	 */
+	private void closeConnection() {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[closeConnection]");
+
+		/* Connection is already closed. */
+		if(disconnectWithError) return;
+
+		if(reconnector!=null) {
+			reconnector.cancel();
+			reconnector = null;
+		}
+		gapBuffer.clear();
+
+		closeSocket();
 
 		ConnectionService.server = null;
 		ConnectionService.clientSocket = null;
 		ConnectionService.in = null;
 		ConnectionService.out = null;
+		ConnectionService.rawOut = null;
 		ConnectionService.needEncryptedCommunication = false;
+		ConnectionService.useBinaryProtocol = false;
+		ConnectionService.sessionCrypto = null;
+		ConnectionService.resumeToken = null;
+		ConnectionService.motionPort = 0;
+		ConnectionService.datagramCrypto = null;
 
 		LayoutInflater mInflater = (LayoutInflater)this.getSystemService(
 				Context.LAYOUT_INFLATER_SERVICE);
@@ -268,6 +454,53 @@ public class ConnectionService extends Service {
 		disconnectWithError = true;
 	}
 
+	/**
+	 * Writer can not send messages. Session is resumed or connection is closed
+	 * from main thread.
+	 * @see cz.babi.android.remoteme.service.ConnectionWriter.ConnectionListener#onConnectionLost()
+	 */
+	@Override
+	public void onConnectionLost() {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[onConnectionLost]");
+
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(!startReconnect()) closeConnection();
+			}
+		});
+	}
+
+	/**
+	 * @see cz.babi.android.remoteme.service.Reconnector.ReconnectListener#onReconnected(cz.babi.android.remoteme.service.Reconnector)
+	 */
+	@Override
+	public void onReconnected(final Reconnector resumed) {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[onReconnected]");
+
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				resumeConnection(resumed);
+			}
+		});
+	}
+
+	/**
+	 * @see cz.babi.android.remoteme.service.Reconnector.ReconnectListener#onReconnectFailed(cz.babi.android.remoteme.service.Reconnector)
+	 */
+	@Override
+	public void onReconnectFailed(final Reconnector failed) {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[onReconnectFailed]");
+
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if(failed==reconnector) closeConnection();
+			}
+		});
+	}
+
 	/**
 	 * Check connection error.
 	 * @return Is connection error?
@@ -275,29 +508,22 @@ public class ConnectionService extends Service {
 	private boolean checkConnectionError() {
 		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[checkConnectionError]");
 
-		if(out==null) return true;
-		else return out.checkError();
+		if(connectionWriter==null) return true;
+		else return !connectionWriter.isConnected();
 	}
 
 	/**
-	 * Move mouse.
+	 * Move mouse. Moves are merged and sent once per mouse move tick.
 	 * @param offsetX Amount X.
 	 * @param offsetY Amount Y.
 	 * @return If command is done.
 	 */
 	public boolean moveMouse(final float offsetX, final float offsetY) {
-		if(!checkConnectionError()) {
-			SimpleMessage mouseMove = Message.MOUSE_MOVE;
-			mouseMove.setAddInfo(String.valueOf(offsetX) + SimpleMessage.SEPARATOR +
-					String.valueOf(offsetY));
-
-			String message = mouseMove.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(
-					mouseMove.toString());
-
-			out.println(message);
-			out.flush();
-
+		if(reconnector==null && !checkConnectionError() &&
+				connectionWriter.moveMouse(offsetX, offsetY)) {
+			return true;
+		} else if(startReconnect()) {
+			holdCommand(Message.MOUSE_MOVE.getId(), null, offsetX, offsetY);
 			return true;
 		} else {
 			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[moveMouse][Server is disconnected.]");
@@ -312,23 +538,7 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean mouseWheel(float wheelAmount) {
-		if(!checkConnectionError()) {
-			SimpleMessage mouseWheel = Message.MOUSE_WHEEL;
-			mouseWheel.setAddInfo(String.valueOf(wheelAmount));
-
-			String message = mouseWheel.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(
-					mouseWheel.toString());
-
-			out.println(message);
-			out.flush();
-
-			return true;
-		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[mouseWheel][Server is disconnected.]");
-			closeConnection();
-			return false;
-		}
+		return send(Message.MOUSE_WHEEL.getId(), null, wheelAmount);
 	}
 
 	/**
@@ -337,22 +547,7 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean mouseLeftClick() {
-		if(!checkConnectionError()) {
-			SimpleMessage mouseLeftClick = Message.MOUSE_LEFT_CLICK;
-
-			String message = mouseLeftClick.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(
-					mouseLeftClick.toString());
-
-			out.println(message);
-			out.flush();
-
-			return true;
-		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[mouseLeftClick][Server is disconnected.]");
-			closeConnection();
-			return false;
-		}
+		return send(Message.MOUSE_LEFT_CLICK.getId(), null, 0);
 	}
 
 	/**
@@ -361,22 +556,7 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean mouseRightClick() {
-		if(!out.checkError()) {
-			SimpleMessage mouseRightClick = Message.MOUSE_RIGHT_CLICK;
-
-			String message = mouseRightClick.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(
-					mouseRightClick.toString());
-
-			out.println(message);
-			out.flush();
-
-			return true;
-		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[mouseRightClick][Server is disconnected.]");
-			closeConnection();
-			return false;
-		}
+		return send(Message.MOUSE_RIGHT_CLICK.getId(), null, 0);
 	}
 
 	/**
@@ -385,22 +565,7 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean keyStroke(String character) {
-		if(!out.checkError()) {
-			SimpleMessage keyStroke = Message.KEY_STROKE;
-			keyStroke.setAddInfo(character);
-
-			String message = keyStroke.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(message);
-
-			out.println(message);
-			out.flush();
-
-			return true;
-		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[keyStroke][Server is disconnected.]");
-			closeConnection();
-			return false;
-		}
+		return send(Message.KEY_STROKE.getId(), character, 0);
 	}
 
 	/**
@@ -409,22 +574,7 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean keyClipboard(String character) {
-		if(!out.checkError()) {
-			SimpleMessage keyClipboard = Message.KEY_CLIPBOARD;
-			keyClipboard.setAddInfo(character);
-
-			String message = keyClipboard.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(message);
-
-			out.println(message);
-			out.flush();
-
-			return true;
-		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[keyClipboard][Server is disconnected.]");
-			closeConnection();
-			return false;
-		}
+		return send(Message.KEY_CLIPBOARD.getId(), character, 0);
 	}
 
 	/**
@@ -433,19 +583,24 @@ public class ConnectionService extends Service {
 	 * @return If command is done.
 	 */
 	public boolean doSpecial(String action) {
-		if(!out.checkError()) {
-			SimpleMessage doSpecial = Message.SPECIAL_COMMAND;
-			doSpecial.setAddInfo(action);
-
-			String message = doSpecial.toString();
-			if(needEncryptedCommunication) message = AES128_DEFAULT.encryptText(message);
-
-			out.println(message);
-			out.flush();
+		return send(Message.SPECIAL_COMMAND.getId(), action, 0);
+	}
 
+	/**
+	 * Put message to the writer queue. It never blocks.
+	 * @param id Message ID.
+	 * @param text Additional text. May be null.
+	 * @param value Additional value.
+	 * @return If command is done.
+	 */
+	private boolean send(int id, String text, float value) {
+		if(reconnector==null && !checkConnectionError() && connectionWriter.send(id, text, value)) {
+			return true;
+		} else if(startReconnect()) {
+			holdCommand(id, text, value, 0);
 			return true;
 		} else {
-			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[doSpecial][Server is disconnected.]");
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[send][Server is disconnected.]");
 			closeConnection();
 			return false;
 		}
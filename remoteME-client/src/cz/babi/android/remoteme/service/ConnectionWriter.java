@@ -0,0 +1,505 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.crypto.AES128;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
+import cz.babi.android.remoteme.entity.BinaryMessage;
+import cz.babi.android.remoteme.entity.Message;
+import cz.babi.android.remoteme.entity.Message.SimpleMessage;
+
+/**
+ * This thread is the only one which writes to the server. Callers just put
+ * commands to the queue, so they are never blocked by the network.
+ * <p>
+ * Mouse moves do not go to the queue. They are merged to one pending move,
+ * which is sent at most once per tick. Stale moves are simply replaced by the
+ * merged one. Other commands are never dropped. If the queue is full, caller
+ * gives the writer a moment to make space, so a burst of commands does not
+ * break the connection. Only if the queue stays full, the connection is stuck
+ * and it is reported as lost.
+ * <p>
+ * With binary protocol, all commands which are waiting in the queue are sent
+ * together in one batch frame. So fast typing is encrypted and written once
+ * per batch, not once per character. Key strokes are sent as key macros.
+ * The first stroke defines macro with its own ID, next strokes send only ID.
+ * <p>
+ * If server opened {@link MotionChannel}, mouse moves and mouse wheel go
+ * through UDP. Only move which has to be sent before another command stays
+ * on TCP, so server gets them in the right order. Wheel ends the batch and
+ * everything written to TCP is flushed before the wheel is sent, so it can
+ * not overtake earlier commands.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class ConnectionWriter extends Thread {
+
+	private static final String TAG_CLASS_NAME = ConnectionWriter.class.getSimpleName();
+
+	/** Max count of waiting commands. */
+	private static final int QUEUE_CAPACITY = 256;
+
+	/** How long caller waits for space in full queue. */
+	private static final long OFFER_TIMEOUT_MILLIS = 250;
+
+	/** Writer checks its state at least this often, even if there is nothing to do. */
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	/** Max count of commands in one batch. */
+	private static final int MAX_BATCH_COUNT = 64;
+
+	/** Batch is closed when it is longer than this. It should fit to one TCP segment. */
+	private static final int MAX_BATCH_LENGTH = 1024;
+
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
+
+	/**
+	 * Listener for connection health.
+	 */
+	public interface ConnectionListener {
+
+		/**
+		 * Connection is lost. It is called only once, from writer thread or from
+		 * the thread which found out that the queue is full.
+		 */
+		void onConnectionLost();
+	}
+
+	/**
+	 * One command waiting for send.
+	 */
+	private static class Command {
+		final int id;
+		final String text;
+		final float x;
+		final float y;
+
+		Command(int id, String text, float x, float y) {
+			this.id = id;
+			this.text = text;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private final LinkedBlockingQueue<Command> queue =
+			new LinkedBlockingQueue<Command>(QUEUE_CAPACITY);
+
+	private final PrintWriter out;
+	private final OutputStream rawOut;
+	private final boolean needEncryptedCommunication;
+	private final boolean useBinaryProtocol;
+	private final SessionCrypto sessionCrypto;
+	private final long mouseMoveTickNanos;
+
+	/* UDP channel for moves. Null if there is no channel or it does not work. */
+	private MotionChannel motionChannel;
+
+	private final ConnectionListener listener;
+
+	/* Pending mouse move. */
+	private final Object pendingMoveLock = new Object();
+	private float pendingOffsetX = 0;
+	private float pendingOffsetY = 0;
+	private boolean hasPendingMove = false;
+	private long nextMoveTime = 0;
+
+	/* IDs of key macros defined in this session. Used only by writer thread. */
+	private final HashMap<String, Integer> macroIds = new HashMap<String, Integer>();
+
+	/* Frames of current batch. */
+	private final ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_BATCH_LENGTH*2);
+
+	private final AtomicBoolean isLost = new AtomicBoolean(false);
+
+	private volatile boolean isRunning = true;
+	private volatile boolean isFinishing = false;
+
+	/**
+	 * Constructor.
+	 * @param out Writer for text protocol.
+	 * @param rawOut Output for binary protocol.
+	 * @param needEncryptedCommunication If messages need to be encrypted.
+	 * @param useBinaryProtocol If binary protocol is used.
+	 * @param sessionCrypto Crypto of binary frames. Null if session key was not negotiated.
+	 * @param mouseMoveTick Min time between two mouse moves in milliseconds.
+	 * @param motionChannel UDP channel for moves. Not connected yet. May be null.
+	 * @param listener Listener for connection health.
+	 */
+	public ConnectionWriter(PrintWriter out, OutputStream rawOut, boolean needEncryptedCommunication,
+			boolean useBinaryProtocol, SessionCrypto sessionCrypto, int mouseMoveTick,
+			MotionChannel motionChannel, ConnectionListener listener) {
+		super("ConnectionWriter");
+
+		this.out = out;
+		this.rawOut = rawOut;
+		this.needEncryptedCommunication = needEncryptedCommunication;
+		this.useBinaryProtocol = useBinaryProtocol;
+		this.sessionCrypto = sessionCrypto;
+		this.mouseMoveTickNanos = TimeUnit.MILLISECONDS.toNanos(mouseMoveTick);
+		this.motionChannel = useBinaryProtocol ? motionChannel : null;
+		this.listener = listener;
+	}
+
+	/**
+	 * @return If connection is alive.
+	 */
+	public boolean isConnected() {
+		return isRunning;
+	}
+
+	/**
+	 * Add mouse move to pending move.
+	 * @param offsetX Amount X.
+	 * @param offsetY Amount Y.
+	 * @return If connection is alive.
+	 */
+	public boolean moveMouse(float offsetX, float offsetY) {
+		if(!isRunning) return false;
+
+		boolean wasEmpty;
+		synchronized(pendingMoveLock) {
+			pendingOffsetX += offsetX;
+			pendingOffsetY += offsetY;
+			wasEmpty = !hasPendingMove;
+			hasPendingMove = true;
+		}
+
+		if(wasEmpty) LockSupport.unpark(this);
+
+		return true;
+	}
+
+	/**
+	 * Add command to the queue. Pending mouse move is queued first, so server
+	 * gets commands in the same order as user made them.
+	 * @param id Message ID.
+	 * @param text Additional text. May be null.
+	 * @param value Additional value. Used by mouse wheel.
+	 * @return If connection is alive.
+	 */
+	public boolean send(int id, String text, float value) {
+		if(!isRunning) return false;
+
+		/* Lock is held while move waits for space, so no newer move can overtake it. */
+		synchronized(pendingMoveLock) {
+			if(hasPendingMove && !offer(takePendingMove())) return false;
+		}
+
+		if(!offer(new Command(id, text, value, 0))) return false;
+		LockSupport.unpark(this);
+
+		return true;
+	}
+
+	/**
+	 * Send all waiting commands and stop.
+	 */
+	public void finish() {
+		isFinishing = true;
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[run]");
+
+		/* Commands wait in the queue until we know if datagrams get through. */
+		if(motionChannel!=null && !motionChannel.connect()) closeMotionChannel();
+
+		try {
+			while(isRunning) {
+				Command command = queue.poll();
+
+				if(command!=null) {
+					if(command.id==Message.MOUSE_WHEEL.getId() && sendWheel(command)) continue;
+					if(useBinaryProtocol) writeBatch(command);
+					else write(command);
+					continue;
+				}
+
+				/* Queue is empty. So flush everything we wrote. */
+				flush();
+
+				long now = System.nanoTime();
+				long parkNanos = MAX_IDLE_NANOS;
+
+				Command move = null;
+				synchronized(pendingMoveLock) {
+					if(hasPendingMove) {
+						if(isFinishing || now-nextMoveTime>=0) {
+							move = takePendingMove();
+							nextMoveTime = now + mouseMoveTickNanos;
+						} else parkNanos = nextMoveTime - now;
+					}
+				}
+
+				if(move!=null) {
+					if(!sendMotion(move)) write(move);
+					continue;
+				}
+
+				if(isFinishing) break;
+
+				LockSupport.parkNanos(this, parkNanos);
+			}
+		} catch(IOException ioe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[run][Can not send a message.]");
+			connectionLost();
+		}
+
+		isRunning = false;
+
+		closeMotionChannel();
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[run][Finish.]");
+	}
+
+	/**
+	 * Add command to the queue. If the queue is full, wait a moment for the
+	 * writer. If there is still no space, connection is reported as lost.
+	 * @param command Command to add.
+	 * @return If command was added.
+	 */
+	private boolean offer(Command command) {
+		if(queue.offer(command)) return true;
+
+		LockSupport.unpark(this);
+
+		try {
+			if(queue.offer(command, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) return true;
+		} catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[offer][Queue is full. Server does not " +
+				"read our messages.]");
+		connectionLost();
+		return false;
+	}
+
+	/**
+	 * Take pending move. Must be called with pendingMoveLock held.
+	 * @return Pending move as a command.
+	 */
+	private Command takePendingMove() {
+		Command move = new Command(Message.MOUSE_MOVE.getId(), null, pendingOffsetX,
+				pendingOffsetY);
+
+		pendingOffsetX = 0;
+		pendingOffsetY = 0;
+		hasPendingMove = false;
+
+		return move;
+	}
+
+	/**
+	 * Write one command. It is not flushed.
+	 * @param command Command to write.
+	 * @throws IOException If connection is lost.
+	 */
+	private void write(Command command) throws IOException {
+		if(useBinaryProtocol) {
+			writeFrame(encode(command));
+		} else {
+			String addInfo = command.text;
+			if(command.id==Message.MOUSE_MOVE.getId()) {
+				addInfo = String.valueOf(command.x) + SimpleMessage.SEPARATOR +
+						String.valueOf(command.y);
+			} else if(command.id==Message.MOUSE_WHEEL.getId()) {
+				addInfo = String.valueOf(command.x);
+			}
+
+			String message = new SimpleMessage(command.id, addInfo).toString();
+			if(needEncryptedCommunication) message = aes128.encryptText(message);
+
+			out.println(message);
+		}
+	}
+
+	/**
+	 * Write given command together with commands waiting in the queue as one
+	 * batch frame. If there is no other command, it is written alone.
+	 * @param command First command of batch.
+	 * @throws IOException If connection is lost.
+	 */
+	private void writeBatch(Command command) throws IOException {
+		byte[] frame = encode(command);
+
+		Command next = pollBatchCommand();
+		if(next==null) {
+			writeFrame(frame);
+			return;
+		}
+
+		batch.reset();
+		batch.write(frame);
+
+		int count = 1;
+		while(next!=null) {
+			batch.write(encode(next));
+			count++;
+
+			if(count>=MAX_BATCH_COUNT || batch.size()>=MAX_BATCH_LENGTH) break;
+			next = pollBatchCommand();
+		}
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[writeBatch][" + count + " commands.]");
+
+		writeFrame(BinaryMessage.encode(Message.BATCH.getId(), batch.toByteArray()));
+	}
+
+	/**
+	 * Take next command of batch from the queue. Mouse wheel which goes
+	 * through motion channel is left in the queue, it ends the batch.
+	 * @return Next command or null if the batch ends.
+	 */
+	private Command pollBatchCommand() {
+		/* Writer is the only one who takes from the queue, so head does not change. */
+		Command next = queue.peek();
+		if(next==null) return null;
+		if(next.id==Message.MOUSE_WHEEL.getId() && motionChannel!=null) return null;
+
+		return queue.poll();
+	}
+
+	/**
+	 * Flush commands written to TCP and send mouse wheel through motion channel.
+	 * @param command Mouse wheel.
+	 * @return False if there is no motion channel.
+	 * @throws IOException If connection is lost.
+	 */
+	private boolean sendWheel(Command command) throws IOException {
+		if(motionChannel==null) return false;
+
+		flush();
+		return sendMotion(command);
+	}
+
+	/**
+	 * Send mouse move or mouse wheel through motion channel. If datagram can
+	 * not be sent, channel is closed and next moves go through TCP.
+	 * @param command Mouse move or mouse wheel.
+	 * @return False if there is no motion channel.
+	 */
+	private boolean sendMotion(Command command) {
+		if(motionChannel==null) return false;
+
+		if(motionChannel.send(encode(command))) return true;
+
+		closeMotionChannel();
+		return false;
+	}
+
+	/**
+	 * Close motion channel. Next moves go through TCP.
+	 */
+	private void closeMotionChannel() {
+		if(motionChannel==null) return;
+
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[closeMotionChannel]");
+
+		motionChannel.close();
+		motionChannel = null;
+	}
+
+	/**
+	 * @param command Command to encode.
+	 * @return Binary frame of command.
+	 */
+	private byte[] encode(Command command) {
+		if(command.id==Message.MOUSE_MOVE.getId()) {
+			return BinaryMessage.encode(command.id, command.x, command.y);
+		} else if(command.id==Message.MOUSE_WHEEL.getId()) {
+			return BinaryMessage.encode(command.id, command.x);
+		} else if(command.id==Message.KEY_STROKE.getId() && command.text!=null) {
+			return encodeKeyStroke(command.text);
+		} else if(command.text!=null) {
+			return BinaryMessage.encode(command.id, command.text);
+		} else {
+			return BinaryMessage.encode(command.id);
+		}
+	}
+
+	/**
+	 * Encode key stroke as key macro. If there is no space for another macro,
+	 * it is sent as plain key stroke.
+	 * @param text Key(s) to stroke.
+	 * @return Binary frame of key stroke.
+	 */
+	private byte[] encodeKeyStroke(String text) {
+		Integer macroId = macroIds.get(text);
+		if(macroId!=null) return BinaryMessage.encode(Message.KEY_MACRO.getId(), macroId.intValue(), null);
+
+		if(macroIds.size()>=BinaryMessage.MAX_MACROS)
+			return BinaryMessage.encode(Message.KEY_STROKE.getId(), text);
+
+		int newMacroId = macroIds.size();
+		macroIds.put(text, Integer.valueOf(newMacroId));
+
+		return BinaryMessage.encode(Message.KEY_MACRO_DEFINE.getId(), newMacroId, text);
+	}
+
+	/**
+	 * Encrypt binary frame if need so and write it. It is not flushed.
+	 * @param frame Frame to write.
+	 * @throws IOException If connection is lost.
+	 */
+	private void writeFrame(byte[] frame) throws IOException {
+		if(sessionCrypto!=null) frame = BinaryMessage.encrypt(frame, sessionCrypto);
+		else if(needEncryptedCommunication) frame = BinaryMessage.encrypt(frame, aes128);
+		if(frame!=null) rawOut.write(frame);
+	}
+
+	/**
+	 * Flush all written commands.
+	 * @throws IOException If connection is lost.
+	 */
+	private void flush() throws IOException {
+		if(useBinaryProtocol) rawOut.flush();
+		else {
+			out.flush();
+			if(out.checkError()) throw new IOException("Can not write to the server.");
+		}
+	}
+
+	/**
+	 * Stop writer and tell it to listener.
+	 */
+	private void connectionLost() {
+		if(!isLost.compareAndSet(false, true)) return;
+
+		isRunning = false;
+		LockSupport.unpark(this);
+
+		if(listener!=null) listener.onConnectionLost();
+	}
+}
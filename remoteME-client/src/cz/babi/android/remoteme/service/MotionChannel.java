@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.service;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.crypto.DatagramCrypto;
+
+/**
+ * UDP channel for mouse moves and mouse wheel. Server opens it during the
+ * handshake and sends its port in welcome message. Lost datagram is not sent
+ * again, the next move comes a few milliseconds later anyway.
+ * <p>
+ * Every datagram starts with 4 bytes of sequence number followed by binary
+ * frames, encrypted by {@link DatagramCrypto} if communication is encrypted.
+ * Datagram without frames is a probe. Server sends it back, so we know that
+ * datagrams get through before we rely on them.
+ * <p>
+ * It is used only by writer thread.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class MotionChannel {
+
+	private static final String TAG_CLASS_NAME = MotionChannel.class.getSimpleName();
+
+	/** How long we wait for answer to one probe. */
+	private static final int PROBE_TIMEOUT_MILLIS = 200;
+
+	/** Count of probes before channel is given up. */
+	private static final int PROBE_ATTEMPTS = 3;
+
+	/** Length of sequence number at the start of every datagram. */
+	private static final int SEQUENCE_LENGTH = 4;
+
+	private final InetAddress remoteAddress;
+	private final int remotePort;
+	private final DatagramCrypto datagramCrypto;
+
+	private DatagramSocket datagramSocket;
+	private int sequence = 0;
+
+	/**
+	 * Constructor.
+	 * @param remoteAddress Address of the server.
+	 * @param remotePort Port of motion channel from welcome message.
+	 * @param datagramCrypto Crypto of datagrams. Null if communication is not encrypted.
+	 */
+	public MotionChannel(InetAddress remoteAddress, int remotePort, DatagramCrypto datagramCrypto) {
+		this.remoteAddress = remoteAddress;
+		this.remotePort = remotePort;
+		this.datagramCrypto = datagramCrypto;
+	}
+
+	/**
+	 * Open socket and check that server answers to probe.
+	 * @return If channel can be used.
+	 */
+	public boolean connect() {
+		try {
+			datagramSocket = new DatagramSocket();
+			datagramSocket.connect(remoteAddress, remotePort);
+			datagramSocket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+
+			byte[] buffer = new byte[SEQUENCE_LENGTH + DatagramCrypto.TAG_LENGTH];
+			DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+
+			for(int attempt=1; attempt<=PROBE_ATTEMPTS; attempt++) {
+				int probeSequence = sequence;
+				if(!send(new byte[0])) return false;
+
+				try {
+					answer.setLength(buffer.length);
+					datagramSocket.receive(answer);
+				} catch(SocketTimeoutException ste) {
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[connect][No answer to probe.]" +
+							"[Attempt: " + attempt + ".]");
+					continue;
+				}
+
+				if(isProbeAnswer(probeSequence, answer)) {
+					if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[connect][Motion channel is ready.]");
+					return true;
+				}
+			}
+		} catch(IOException ioe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[connect][Can not open motion channel.]");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Send binary frames in one datagram.
+	 * @param frames Encoded frames. Empty array is a probe.
+	 * @return False if datagram can not be sent.
+	 */
+	public boolean send(byte[] frames) {
+		int datagramSequence = sequence++;
+
+		byte[] body = frames;
+		if(datagramCrypto!=null) {
+			body = datagramCrypto.seal(datagramSequence, frames);
+			if(body==null) return false;
+		}
+
+		byte[] datagram = new byte[SEQUENCE_LENGTH + body.length];
+		for(int i=0; i<SEQUENCE_LENGTH; i++)
+			datagram[SEQUENCE_LENGTH-1-i] = (byte)(datagramSequence>>>(i*8));
+		System.arraycopy(body, 0, datagram, SEQUENCE_LENGTH, body.length);
+
+		try {
+			datagramSocket.send(new DatagramPacket(datagram, datagram.length));
+			return true;
+		} catch(IOException ioe) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[send][Can not send datagram.]");
+			return false;
+		}
+	}
+
+	/**
+	 * Close socket of the channel.
+	 */
+	public void close() {
+		if(datagramSocket!=null) datagramSocket.close();
+	}
+
+	/**
+	 * @param probeSequence Sequence number of sent probe.
+	 * @param answer Received datagram.
+	 * @return If datagram is valid answer to the probe.
+	 */
+	private boolean isProbeAnswer(int probeSequence, DatagramPacket answer) {
+		if(answer.getLength()<SEQUENCE_LENGTH) return false;
+
+		byte[] data = answer.getData();
+		int answerSequence = 0;
+		for(int i=0; i<SEQUENCE_LENGTH; i++) answerSequence = (answerSequence<<8) | (data[i] & 0xFF);
+
+		if(answerSequence!=probeSequence) return false;
+		if(datagramCrypto==null) return answer.getLength()==SEQUENCE_LENGTH;
+
+		byte[] body = datagramCrypto.open(answerSequence, data, SEQUENCE_LENGTH,
+				answer.getLength()-SEQUENCE_LENGTH);
+
+		return body!=null && body.length==0;
+	}
+}
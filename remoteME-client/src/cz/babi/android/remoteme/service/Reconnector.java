@@ -0,0 +1,295 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.android.remoteme.service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import android.util.Log;
+import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.crypto.AES128;
+import cz.babi.android.remoteme.crypto.DatagramCrypto;
+import cz.babi.android.remoteme.crypto.KeyExchange;
+import cz.babi.android.remoteme.crypto.SessionCrypto;
+import cz.babi.android.remoteme.entity.Message;
+import cz.babi.android.remoteme.entity.Message.SimpleMessage;
+import cz.babi.android.remoteme.entity.Welcome;
+
+/**
+ * This thread connects to the server again after connection is lost. It
+ * does not ask user for anything, resume token received in the last welcome
+ * is used instead of password. So whole handshake takes one round trip.
+ * <p>
+ * Attempts are repeated with exponential backoff, Wi-Fi usually needs a few
+ * seconds to come back. If server refuses the token, there is no next attempt.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class Reconnector extends Thread {
+
+	private static final String TAG_CLASS_NAME = Reconnector.class.getSimpleName();
+
+	/** Delay before the first attempt. It is doubled after every failed attempt. */
+	private static final long INITIAL_DELAY_MILLIS = 250;
+
+	/** Max delay between two attempts. */
+	private static final long MAX_DELAY_MILLIS = 4000;
+
+	/** Max count of attempts. All of them take about 20 seconds. */
+	private static final int MAX_ATTEMPTS = 8;
+
+	/* Results of one attempt. */
+	private static final int RESULT_RESUMED = 0;
+	private static final int RESULT_FAILED = 1;
+	private static final int RESULT_REFUSED = 2;
+
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
+
+	/**
+	 * Listener for result of reconnecting. It is called from reconnector thread.
+	 */
+	public interface ReconnectListener {
+
+		/**
+		 * Session is resumed. New connection is available from reconnector.
+		 * @param reconnector Reconnector which resumed the session.
+		 */
+		void onReconnected(Reconnector reconnector);
+
+		/**
+		 * Session can not be resumed.
+		 * @param reconnector Reconnector which gave up.
+		 */
+		void onReconnectFailed(Reconnector reconnector);
+	}
+
+	private final String remoteHost;
+	private final int remotePort;
+	private final int socketTimeout;
+	private final String resumeToken;
+
+	private final ReconnectListener listener;
+
+	private Socket clientSocket;
+	private BufferedReader in;
+	private PrintWriter out;
+	private OutputStream rawOut;
+	private Welcome welcome;
+	private SessionCrypto sessionCrypto;
+	private DatagramCrypto datagramCrypto;
+
+	private volatile boolean isCanceled = false;
+
+	/**
+	 * Constructor.
+	 * @param remoteHost Address of the server.
+	 * @param remotePort Port of the server.
+	 * @param socketTimeout Socket timeout in milliseconds.
+	 * @param resumeToken Token from the last welcome.
+	 * @param listener Listener for result.
+	 */
+	public Reconnector(String remoteHost, int remotePort, int socketTimeout, String resumeToken,
+			ReconnectListener listener) {
+		super("Reconnector");
+
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+		this.socketTimeout = socketTimeout;
+		this.resumeToken = resumeToken;
+		this.listener = listener;
+	}
+
+	/**
+	 * Stop reconnecting. Listener is not called anymore.
+	 */
+	public void cancel() {
+		isCanceled = true;
+		interrupt();
+	}
+
+	@Override
+	public void run() {
+		if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[run]");
+
+		long delay = INITIAL_DELAY_MILLIS;
+
+		for(int attempt=1; attempt<=MAX_ATTEMPTS; attempt++) {
+			try {
+				Thread.sleep(delay);
+			} catch(InterruptedException ie) {
+				return;
+			}
+
+			if(isCanceled) return;
+
+			int result = tryResume();
+
+			if(isCanceled) {
+				close();
+				return;
+			}
+
+			if(result==RESULT_RESUMED) {
+				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[run][Session is resumed.]" +
+						"[Attempt: " + attempt + ".]");
+				listener.onReconnected(this);
+				return;
+			}
+
+			close();
+
+			if(result==RESULT_REFUSED) break;
+
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[run][Can not reconnect to host.]" +
+					"[Attempt: " + attempt + ".]");
+
+			delay = Math.min(delay*2, MAX_DELAY_MILLIS);
+		}
+
+		listener.onReconnectFailed(this);
+	}
+
+	/**
+	 * Connect to the server and send resume request.
+	 * @return Result of the attempt.
+	 */
+	private int tryResume() {
+		try {
+			clientSocket = new Socket();
+			clientSocket.connect(new InetSocketAddress(remoteHost, remotePort), socketTimeout/2);
+			clientSocket.setTcpNoDelay(true);
+			clientSocket.setSoTimeout(socketTimeout);
+
+			in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			rawOut = clientSocket.getOutputStream();
+			out = new PrintWriter(rawOut, true);
+
+			/* Every attempt has its own key pair, so session key is new too. */
+			KeyExchange keyExchange = null;
+			try {
+				keyExchange = new KeyExchange();
+			} catch(GeneralSecurityException gse) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[tryResume][Can not generate key " +
+						"pair. Session key is not offered.]", gse);
+			}
+
+			SimpleMessage resumeMessage = new SimpleMessage(Message.RESUME.getId(),
+					Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR +
+					Welcome.offerProtocol(keyExchange) + SimpleMessage.SEPARATOR + resumeToken);
+
+			out.println(aes128.encryptText(resumeMessage.toString()));
+			out.flush();
+
+			String rawAnswer = in.readLine();
+			if(rawAnswer==null) return RESULT_REFUSED;
+
+			/* Connection is ready. Writer does not expect any timeout. */
+			clientSocket.setSoTimeout(0);
+
+			String answer = aes128.decryptText(rawAnswer);
+			int separatorIndex = (answer!=null) ? answer.indexOf(SimpleMessage.SEPARATOR) : -1;
+			if(separatorIndex<0 || !String.valueOf(Message.WELCOME.getId()).equals(
+					answer.substring(0, separatorIndex))) return RESULT_REFUSED;
+
+			welcome = Welcome.parse(answer.substring(separatorIndex+1));
+			if(!welcome.isAuthenticated()) {
+				if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[tryResume][Server refused resume token.]");
+				return RESULT_REFUSED;
+			}
+
+			sessionCrypto = welcome.createSessionCrypto(keyExchange);
+			datagramCrypto = welcome.createDatagramCrypto(keyExchange);
+
+			return RESULT_RESUMED;
+		} catch(IOException ioe) {
+			return RESULT_FAILED;
+		} catch(GeneralSecurityException gse) {
+			if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[tryResume][Can not init session crypto.]", gse);
+			return RESULT_REFUSED;
+		}
+	}
+
+	/**
+	 * Close connection of failed attempt.
+	 */
+	private void close() {
+		if(clientSocket!=null) {
+			try {
+				clientSocket.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) Log.e(TAG_CLASS_NAME, "[close][Can not close socket.]");
+			}
+		}
+	}
+
+	/**
+	 * @return the clientSocket
+	 */
+	public Socket getClientSocket() {
+		return clientSocket;
+	}
+
+	/**
+	 * @return the in
+	 */
+	public BufferedReader getIn() {
+		return in;
+	}
+
+	/**
+	 * @return the out
+	 */
+	public PrintWriter getOut() {
+		return out;
+	}
+
+	/**
+	 * @return the rawOut
+	 */
+	public OutputStream getRawOut() {
+		return rawOut;
+	}
+
+	/**
+	 * @return Result of handshake.
+	 */
+	public Welcome getWelcome() {
+		return welcome;
+	}
+
+	/**
+	 * @return Crypto of binary frames. Null if session key was not negotiated.
+	 */
+	public SessionCrypto getSessionCrypto() {
+		return sessionCrypto;
+	}
+
+	/**
+	 * @return Crypto of motion datagrams. Null if session key was not negotiated.
+	 */
+	public DatagramCrypto getDatagramCrypto() {
+		return datagramCrypto;
+	}
+}
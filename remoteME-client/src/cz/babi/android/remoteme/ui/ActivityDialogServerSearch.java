@@ -260,6 +260,20 @@ public class ActivityDialogServerSearch extends FragmentActivity {
 			}
 		}
 		
+		/**
+		 * Show server as soon as scan task finds it.
+		 * @param server Founded server.
+		 */
+		public void addFoundedServer(Server server) {
+			if(taskStatus!=TASK_RUNNING || serverArrayAdapter==null) return;
+			
+			if(Common.DEBUG) Log.d(TAG_CLASS_NAME, "[addFoundedServer][" + server.getIpAddress() + ":"
+					+ server.getPort() + "]");
+			
+			serverArrayAdapter.insert(server, serverArrayAdapter.getCount());
+			serverArrayAdapter.notifyDataSetChanged();
+		}
+			
 		/**
 		 * @param taskStatus the taskStatus to set
 		 */
@@ -28,6 +28,7 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceManager;
 import cz.babi.android.remoteme.R;
 import cz.babi.android.remoteme.common.Common;
+import cz.babi.android.remoteme.connection.SubnetSweep;
 import cz.babi.android.remoteme.data.XMLParsingTask;
 
 /**
@@ -39,8 +40,10 @@ import cz.babi.android.remoteme.data.XMLParsingTask;
 public class ActivityPreferences extends PreferenceActivity implements OnSharedPreferenceChangeListener {
 
 	private EditTextPreference udpScanModePort;
+	private EditTextPreference subnetSweepRange;
 	private ListPreference keyboardSimulation;
 	private ListPreference orientationLock;
+	private ListPreference mouseMoveTick;
 	private SeekBarPreference seekBarPreference;
 
 	@SuppressWarnings("deprecation")
@@ -67,6 +70,20 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 			}
 		});
 
+		subnetSweepRange = (EditTextPreference)getPreferenceScreen().
+				findPreference(getString(R.string.pref_name_subnet_sweep_range));
+		/* Need to set summary contains current network. */
+		setSubnetSweepRangeSummary(PreferenceManager.getDefaultSharedPreferences(this));
+		/* Empty value means network of Wi-Fi. Otherwise it must be valid CIDR. */
+		subnetSweepRange.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+			@Override
+			public boolean onPreferenceChange(Preference preference, Object newValue) {
+				String newRange = String.valueOf(newValue).trim();
+
+				return newRange.length()==0 || SubnetSweep.parseCidr(newRange)!=null;
+			}
+		});
+
 		keyboardSimulation = (ListPreference)getPreferenceScreen().
 				findPreference(getString(R.string.pref_name_keyboard_simulation));
 		/* Set proper summary. */
@@ -82,6 +99,11 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 		/* Set proper summary to mouse wheel smooth */
 		setMouseWheelSmoothSummary(PreferenceManager.getDefaultSharedPreferences(this));
 
+		/* Set proper summary to mouse move tick. */
+		mouseMoveTick = (ListPreference)getPreferenceScreen().
+				findPreference(getString(R.string.pref_name_mouse_move_tick));
+		setMouseMoveTickSummary();
+
 		setOrientation();
 	}
 
@@ -91,6 +113,10 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 		if(key.compareTo(getString(R.string.pref_name_udp_scan_mode_port))==0) {
 			setUdpScanModePortSummary(sharedPreferences);
 		} else
+			/* Update subnet sweep range summary. */
+			if(key.compareTo(getString(R.string.pref_name_subnet_sweep_range))==0) {
+				setSubnetSweepRangeSummary(sharedPreferences);
+			} else
 			/* Update Keyboard simulation summary. */
 			if(key.compareTo(getString(R.string.pref_name_keyboard_simulation))==0) {
 				setKeyboardSimulationSummary(sharedPreferences);
@@ -103,16 +129,20 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 					if(key.compareTo(getString(R.string.pref_name_orientation_lock))==0) {
 						setOrientationLockSummary(sharedPreferences);
 					} else
-						/* Set debug mode. */
-						if(key.compareTo(getString(R.string.pref_name_debug_mode))==0) {
-							setDebugMode(sharedPreferences);
+						/* Update mouse move tick summary. */
+						if(key.compareTo(getString(R.string.pref_name_mouse_move_tick))==0) {
+							setMouseMoveTickSummary();
 						} else
-							/* If user change visible remtotes we need to parsing them again and fill
-							 * adapter with new data. */
-							if(key.compareTo(getString(R.string.pref_name_visible_remotes))==0) {
-								XMLParsingTask xmlParsingTask = new XMLParsingTask(this);
-								xmlParsingTask.execute();
-							}
+							/* Set debug mode. */
+							if(key.compareTo(getString(R.string.pref_name_debug_mode))==0) {
+								setDebugMode(sharedPreferences);
+							} else
+								/* If user change visible remtotes we need to parsing them again and fill
+								 * adapter with new data. */
+								if(key.compareTo(getString(R.string.pref_name_visible_remotes))==0) {
+									XMLParsingTask xmlParsingTask = new XMLParsingTask(this);
+									xmlParsingTask.execute();
+								}
 	}
 
 	@SuppressWarnings("deprecation")
@@ -161,6 +191,21 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 				getString(R.string.preferences_item_udp_port_summary));
 	}
 
+	/**
+	 * Set subnet sweep range summary.
+	 * @param sharedPreferences Shared preferences.
+	 */
+	private void setSubnetSweepRangeSummary(SharedPreferences sharedPreferences) {
+		String currentRange = sharedPreferences.getString(
+				getString(R.string.pref_name_subnet_sweep_range), "").trim();
+		if(currentRange.length()==0) {
+			subnetSweepRange.setSummary(getString(R.string.preferences_item_subnet_sweep_range_summary));
+		} else {
+			subnetSweepRange.setSummary("(" + currentRange + ") " +
+					getString(R.string.preferences_item_subnet_sweep_range_summary));
+		}
+	}
+
 	/**
 	 * Set Keyboard simulation summary.
 	 * @param sharedPreferences Shared preferences.
@@ -190,6 +235,14 @@ public class ActivityPreferences extends PreferenceActivity implements OnSharedP
 				getString(R.string.preferences_item_mouse_wheel_summary));
 	}
 
+	/**
+	 * Set Mouse move tick summary. It shows tick and max count of packets per second.
+	 */
+	private void setMouseMoveTickSummary() {
+		mouseMoveTick.setSummary("(" + mouseMoveTick.getEntry() + ") " +
+				getString(R.string.preferences_item_mouse_move_tick_summary));
+	}
+
 	/**
 	 * Set Orientation lock summary.
 	 * @param sharedPreferences Shared preferences.
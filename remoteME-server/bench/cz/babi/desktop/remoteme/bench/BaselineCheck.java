@@ -0,0 +1,231 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.VerboseMode;
+
+/**
+ * Runs JMH benchmarks and compares them with committed baseline. Run fails
+ * if any benchmark is slower than baseline by more than tolerance.
+ * <p>
+ * A benchmark is slower only if even the lower bound of its 99.9% confidence
+ * interval is above the limit. The interval comes from all iterations of all
+ * forks, so a noisy run widens it instead of failing. Baseline is valid only
+ * for Java it was recorded on, on other Java nothing is compared.
+ * <p>
+ * From directory remoteME-server with JDK 8:
+ * <pre>
+ * mvn -P bench package
+ * java -cp target/benchmarks.jar cz.babi.desktop.remoteme.bench.BaselineCheck
+ * </pre>
+ * Arguments:
+ * <ul>
+ * <li><b>-baseline file</b> Baseline file. Default is bench/baseline.properties.</li>
+ * <li><b>-tolerance percent</b> Allowed slowdown against baseline. Default is 25.</li>
+ * <li><b>-include regexp</b> Run only matching benchmarks. Default is all.</li>
+ * <li><b>-write</b> Write results as new baseline.</li>
+ * </ul>
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class BaselineCheck {
+	
+	private static final String DEFAULT_BASELINE = "bench/baseline.properties";
+	private static final int DEFAULT_TOLERANCE = 25;
+	private static final String DEFAULT_INCLUDE = ".*";
+	
+	/** Key of baseline with Java it was recorded on. */
+	private static final String KEY_JAVA = "java.specification.version";
+	
+	private static final String BENCH_PACKAGE = BaselineCheck.class.getPackage().getName() + ".";
+	
+	/**
+	 * Main method.
+	 * @param args Arguments.
+	 * @throws RunnerException If JMH or any benchmark fails.
+	 */
+	public static void main(String[] args) throws RunnerException {
+		String baselineFile = DEFAULT_BASELINE;
+		int tolerance = DEFAULT_TOLERANCE;
+		String include = DEFAULT_INCLUDE;
+		boolean write = false;
+		
+		for(int i=0; i<args.length; i++) {
+			switch(args[i]) {
+				case "-baseline":
+					baselineFile = args[++i];
+					break;
+				case "-tolerance":
+					tolerance = Integer.parseInt(args[++i]);
+					break;
+				case "-include":
+					include = args[++i];
+					break;
+				case "-write":
+					write = true;
+					break;
+				default:
+					System.err.println("Unknown argument: " + args[i]);
+					System.exit(2);
+			}
+		}
+		
+		Map<String, Result<?>> results = new TreeMap<>();
+		for(RunResult runResult : new Runner(new OptionsBuilder().include(include)
+				.shouldFailOnError(true).verbosity(VerboseMode.SILENT).build()).run()) {
+			results.put(getName(runResult.getParams()), runResult.getPrimaryResult());
+		}
+		
+		if(write) {
+			writeBaseline(baselineFile, results);
+			printResults(results, new Properties(), tolerance);
+			return;
+		}
+		
+		Properties baseline = readBaseline(baselineFile);
+		String baselineJava = baseline.getProperty(KEY_JAVA);
+		String java = System.getProperty(KEY_JAVA);
+		if(baselineJava!=null && !baselineJava.equals(java)) {
+			System.err.println("Baseline was recorded on Java " + baselineJava + ", this is Java " +
+					java + ". Nothing is compared.");
+			baseline = new Properties();
+		}
+		
+		boolean passed = printResults(results, baseline, tolerance);
+		if(!passed) System.exit(1);
+	}
+	
+	/**
+	 * @param params Parameters of a run.
+	 * @return Name of benchmark without package, with values of its parameters
+	 * in brackets. It is key in baseline file.
+	 */
+	private static String getName(BenchmarkParams params) {
+		StringBuilder name = new StringBuilder(params.getBenchmark());
+		if(name.indexOf(BENCH_PACKAGE)==0) name.delete(0, BENCH_PACKAGE.length());
+		
+		if(!params.getParamsKeys().isEmpty()) {
+			String separator = "[";
+			for(String key : params.getParamsKeys()) {
+				name.append(separator).append(params.getParam(key));
+				separator = ",";
+			}
+			name.append(']');
+		}
+		
+		return name.toString();
+	}
+	
+	/**
+	 * Print results and compare them with baseline.
+	 * @param results Results of benchmarks by their names.
+	 * @param baseline Baseline. May be empty.
+	 * @param tolerance Allowed slowdown in percent.
+	 * @return False if any benchmark is slower than baseline allows.
+	 */
+	private static boolean printResults(Map<String, Result<?>> results, Properties baseline,
+			int tolerance) {
+		boolean passed = true;
+		
+		System.out.println(String.format(Locale.US, "%-56s %10s %10s %10s  %s",
+				"Benchmark", "score", "error", "baseline", "(ns/op)"));
+		
+		for(Map.Entry<String, Result<?>> entry : results.entrySet()) {
+			double score = entry.getValue().getScore();
+			double error = entry.getValue().getScoreError();
+			
+			/* Error is not known with a single iteration. */
+			if(Double.isNaN(error)) error = 0;
+			
+			String baselineValue = baseline.getProperty(entry.getKey());
+			
+			String verdict = "";
+			if(baselineValue!=null) {
+				double limit = Double.parseDouble(baselineValue)*(100 + tolerance)/100;
+				if(score - error>limit) {
+					verdict = "REGRESSION";
+					passed = false;
+				}
+			} else baselineValue = "-";
+			
+			System.out.println(String.format(Locale.US, "%-56s %10.1f %10.1f %10s  %s",
+					entry.getKey(), score, error, baselineValue, verdict));
+		}
+		
+		return passed;
+	}
+	
+	/**
+	 * @param file Baseline file.
+	 * @return Score of every benchmark by its name. Empty if file does not exist.
+	 */
+	private static Properties readBaseline(String file) {
+		Properties baseline = new Properties();
+		
+		try(InputStream inputStream = new FileInputStream(file)) {
+			baseline.load(inputStream);
+		} catch(FileNotFoundException fnfe) {
+			System.err.println("Baseline " + file + " does not exist. Nothing is compared.");
+		} catch(IOException ioe) {
+			System.err.println("Can not read baseline " + file + ": " + ioe.getMessage());
+		}
+		
+		return baseline;
+	}
+	
+	/**
+	 * @param file Baseline file.
+	 * @param results Results to write by their names.
+	 */
+	private static void writeBaseline(String file, Map<String, Result<?>> results) {
+		/* Lines are sorted by name of benchmark, so changes of baseline are easy to review. */
+		try(PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "ISO-8859-1"))) {
+			writer.println("# JMH score in ns/op of benchmarks in bench. Java " +
+					System.getProperty("java.version") + ", " + System.getProperty("os.name") + ", " +
+					Runtime.getRuntime().availableProcessors() + " CPUs.");
+			writer.println("# Recorded by: java -cp target/benchmarks.jar " +
+					BaselineCheck.class.getName() + " -write");
+			writer.println(KEY_JAVA + "=" + System.getProperty(KEY_JAVA));
+			
+			for(Map.Entry<String, Result<?>> entry : results.entrySet())
+				writer.println(entry.getKey() + "=" +
+						String.format(Locale.US, "%.1f", entry.getValue().getScore()));
+		} catch(IOException ioe) {
+			System.err.println("Can not write baseline " + file + ": " + ioe.getMessage());
+		}
+	}
+}
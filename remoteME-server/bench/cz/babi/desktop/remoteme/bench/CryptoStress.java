@@ -0,0 +1,311 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.RecordingInputSink;
+import cz.babi.desktop.remoteme.connection.AbstractTCPServer;
+import cz.babi.desktop.remoteme.connection.TCPClientServer;
+import cz.babi.desktop.remoteme.connection.TCPNioServer;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.entity.Message;
+
+/**
+ * Concurrency stress test of encryption. Many {@link VirtualClient}s talk
+ * to one server with encrypted communication at the same time, so every
+ * session decrypts with its own AES128 while the others do the same. Each
+ * client sends clipboard texts which carry its number, sequence number and
+ * a checksum. Sink checks every text it gets.
+ * <p>
+ * Run fails if any client fails or gets stuck, if any text arrives corrupted
+ * or if count of texts differs from count of sent frames. Sessions race only
+ * if they really run in parallel, so run it on a machine with more CPUs. On
+ * one CPU even a shared cipher is rarely interrupted in the middle of work.
+ * <p>
+ * Build it with benchmarks as {@link ProtocolBenchmarks} and run:
+ * <pre>
+ * java -Djava.awt.headless=true -cp target/benchmarks.jar \
+ *      cz.babi.desktop.remoteme.bench.CryptoStress -clients 64 -duration 10
+ * </pre>
+ * Arguments:
+ * <ul>
+ * <li><b>-clients count</b> Count of clients. Default is 64.</li>
+ * <li><b>-duration seconds</b> How long clients send. Default is 10.</li>
+ * <li><b>-delay millis</b> Delay between two texts of one client. Default is 1.</li>
+ * <li><b>-length chars</b> Length of texts. Default is 256.</li>
+ * <li><b>-nio</b> Use NIO server instead of thread per client.</li>
+ * <li><b>-executor</b> Run client handlers by executor instead of thread per client.</li>
+ * </ul>
+ * Even clients offer binary protocol, so every frame goes through AES128 of
+ * the session. Odd clients offer session key, they use AES128 only during
+ * handshake.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class CryptoStress {
+	
+	/** Prefix of every text, so texts of other tools are not counted. */
+	private static final String PREFIX = "stress:";
+	private static final char SEPARATOR = ':';
+	private static final String FILLER = "the quick brown fox jumps over the lazy dog ";
+	
+	/** Length of texts. Longer texts keep ciphers busy for longer. */
+	private static int textLength = 256;
+	
+	/** Count of different texts of one client. Trace is replayed again after them. */
+	private static final int TEXTS_PER_CLIENT = 100;
+	
+	/** How long we wait for the server to process all frames after clients end. */
+	private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(10);
+	
+	/**
+	 * Main method.
+	 * @param args Arguments.
+	 * @throws Exception If server can not be started.
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = 64;
+		int duration = 10;
+		int delay = 1;
+		boolean nio = false;
+		boolean executor = false;
+		
+		for(int i=0; i<args.length; i++) {
+			switch(args[i]) {
+				case "-clients":
+					clients = Integer.parseInt(args[++i]);
+					break;
+				case "-duration":
+					duration = Integer.parseInt(args[++i]);
+					break;
+				case "-delay":
+					delay = Integer.parseInt(args[++i]);
+					break;
+				case "-length":
+					textLength = Integer.parseInt(args[++i]);
+					break;
+				case "-nio":
+					nio = true;
+					break;
+				case "-executor":
+					executor = true;
+					break;
+				default:
+					System.err.println("Unknown argument: " + args[i]);
+					System.exit(2);
+			}
+		}
+		
+		Common.DEBUG = false;
+		Common.WARN = false;
+		
+		Settings settings = Settings.getInstance();
+		settings.setEncryptedCommunication(true);
+		settings.setProtectWithPassword(false);
+		
+		CheckingInputSink sink = new CheckingInputSink(clients);
+		if(!InputInjector.getInstance().init(sink)) {
+			System.err.println("Sink can not be opened.");
+			System.exit(1);
+		}
+		
+		int port = LoadGenerator.findFreePort();
+		AbstractTCPServer server = nio ? new TCPNioServer(port) : new TCPClientServer(port, executor);
+		Thread serverThread = new Thread(server, "Crypto Stress Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		LoadGenerator.waitForServer(serverAddress);
+		
+		System.out.println(String.format(Locale.ENGLISH, "Clients: %d, duration: %d s, server: %s",
+				clients, duration, nio ? "nio" : (executor ? "executor" : "thread per client")));
+		
+		VirtualClient.Totals totals = new VirtualClient.Totals();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+		
+		List<Thread> threads = new ArrayList<>();
+		for(int i=0; i<clients; i++) {
+			VirtualClient client = new VirtualClient(i, serverAddress, "", false, createTrace(i, delay), 0,
+					deadline, totals);
+			if(i%2==0) client.setOfferedProtocol(BinaryMessage.PROTOCOL_BINARY);
+			
+			Thread thread = new Thread(client, "Virtual Client " + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+		
+		/* All clients start at once, so handshakes run at the same time too. */
+		for(Thread thread : threads) thread.start();
+		
+		/* Client which can not send blocks forever, server stopped reading it. */
+		long joinEnd = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(duration) +
+				2*VirtualClient.SOCKET_TIMEOUT_MILLIS;
+		int stuckClients = 0;
+		for(Thread thread : threads) {
+			thread.join(Math.max(1, joinEnd - System.currentTimeMillis()));
+			if(thread.isAlive()) stuckClients++;
+		}
+		
+		/* Every client which ended well sent one bye after its texts. */
+		long sent = totals.frames.get() - totals.connected.get();
+		
+		long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+		while(sink.getTexts()+sink.getCorrupted()<sent && System.currentTimeMillis()<drainEnd)
+			Thread.sleep(10);
+		
+		server.stopServer();
+		
+		int silentClients = 0;
+		for(int i=0; i<clients; i++) if(sink.getTexts(i)==0) silentClients++;
+		
+		System.out.println(String.format(Locale.ENGLISH, "Connected: %d, failed: %d, stuck: %d",
+				totals.connected.get(), totals.failed.get(), stuckClients));
+		System.out.println(String.format(Locale.ENGLISH, "Sent: %d texts, received: %d, " +
+				"corrupted: %d, clients without text: %d", sent, sink.getTexts(), sink.getCorrupted(),
+				silentClients));
+		
+		/* Clients without text are not an error, short run may end before all handshakes. */
+		boolean passed = totals.failed.get()==0 && stuckClients==0 &&
+				totals.connected.get()==clients && sink.getCorrupted()==0 && sink.getTexts()==sent;
+		System.out.println(passed ? "PASSED" : "FAILED");
+		System.exit(passed ? 0 : 1);
+	}
+	
+	/**
+	 * @param clientId Number of client.
+	 * @param delay Delay between two texts in milliseconds.
+	 * @return Trace with texts of the client.
+	 */
+	private static Trace createTrace(int clientId, int delay) {
+		List<Trace.Step> steps = new ArrayList<>();
+		for(int sequence=0; sequence<TEXTS_PER_CLIENT; sequence++)
+			steps.add(new Trace.Step(delay, Message.KEY_CLIPBOARD.getId(), 0, 0,
+					createText(clientId, sequence), 0));
+		
+		return new Trace("stress " + clientId, steps);
+	}
+	
+	/**
+	 * Text is longer than one AES block, so a broken chain shows up too.
+	 * @param clientId Number of client.
+	 * @param sequence Number of text.
+	 * @return Text with checksum.
+	 */
+	static String createText(int clientId, int sequence) {
+		String body = PREFIX + clientId + SEPARATOR + sequence + SEPARATOR;
+		
+		StringBuilder text = new StringBuilder(body).append(Integer.toHexString(checksum(body)))
+				.append(SEPARATOR);
+		while(text.length()<textLength) text.append(FILLER);
+		
+		return text.toString();
+	}
+	
+	/**
+	 * @param body Beginning of text.
+	 * @return Checksum of the beginning.
+	 */
+	private static int checksum(String body) {
+		return body.hashCode()*0x9E3779B1;
+	}
+	
+	/**
+	 * Sink which checks texts of clients. Other events are only counted.
+	 */
+	private static class CheckingInputSink extends RecordingInputSink {
+		
+		private final AtomicLongArray texts;
+		private final AtomicLong corrupted = new AtomicLong();
+		
+		/**
+		 * Constructor.
+		 * @param clients Count of clients.
+		 */
+		CheckingInputSink(int clients) {
+			texts = new AtomicLongArray(clients);
+		}
+		
+		@Override
+		public void paste(String text) {
+			super.paste(text);
+			
+			int clientId = parseClientId(text);
+			if(clientId<0) corrupted.incrementAndGet();
+			else texts.incrementAndGet(clientId);
+		}
+		
+		/**
+		 * @param text Text from client.
+		 * @return Number of client or -1 if text is not one of texts of clients.
+		 */
+		private int parseClientId(String text) {
+			if(!text.startsWith(PREFIX)) return -1;
+			
+			String[] parts = text.substring(PREFIX.length()).split(String.valueOf(SEPARATOR));
+			if(parts.length!=4) return -1;
+			
+			try {
+				int clientId = Integer.parseInt(parts[0]);
+				int sequence = Integer.parseInt(parts[1]);
+				if(clientId<0 || clientId>=texts.length() || !text.equals(createText(clientId, sequence)))
+					return -1;
+				
+				return clientId;
+			} catch(NumberFormatException nfe) {
+				return -1;
+			}
+		}
+		
+		/**
+		 * @return Count of valid texts.
+		 */
+		long getTexts() {
+			long count = 0;
+			for(int i=0; i<texts.length(); i++) count += texts.get(i);
+			
+			return count;
+		}
+		
+		/**
+		 * @param clientId Number of client.
+		 * @return Count of valid texts of the client.
+		 */
+		long getTexts(int clientId) {
+			return texts.get(clientId);
+		}
+		
+		/**
+		 * @return Count of texts which are not valid.
+		 */
+		long getCorrupted() {
+			return corrupted.get();
+		}
+	}
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+import cz.babi.desktop.remoteme.common.RecordingInputSink;
+import cz.babi.desktop.remoteme.connection.TCPClientServer;
+import cz.babi.desktop.remoteme.connection.TCPClientSession;
+import cz.babi.desktop.remoteme.crypto.AES128;
+import cz.babi.desktop.remoteme.crypto.KeyExchange;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.entity.Message;
+import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
+
+/**
+ * Connect latency of the old three step handshake and of one HELLO round
+ * trip. Server runs in this JVM behind a proxy which delays every chunk by
+ * half of round trip time, so a slow Wi-Fi is simulated on loopback. Only
+ * one side talks at a time during handshake, so the delay is exact. Time is
+ * measured from the first request to the last answer, including derivation
+ * of session key.
+ * <p>
+ * Build it with benchmarks as {@link ProtocolBenchmarks} and run:
+ * <pre>
+ * java -Djava.awt.headless=true -cp target/benchmarks.jar \
+ *      cz.babi.desktop.remoteme.bench.HandshakeLatency -rtt 100 -password secret -encrypted
+ * </pre>
+ * Arguments:
+ * <ul>
+ * <li><b>-rtt millis</b> Simulated round trip time. Default is 100.</li>
+ * <li><b>-rounds count</b> Count of handshakes of every kind. Default is 20.</li>
+ * <li><b>-encrypted</b> Server requires encrypted communication.</li>
+ * <li><b>-password text</b> Server requires password.</li>
+ * </ul>
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class HandshakeLatency {
+	
+	private final InetSocketAddress serverAddress;
+	private final String password;
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
+	
+	/**
+	 * Constructor.
+	 * @param serverAddress Address of the proxy.
+	 * @param password Password sent to the server.
+	 */
+	private HandshakeLatency(InetSocketAddress serverAddress, String password) {
+		this.serverAddress = serverAddress;
+		this.password = password;
+	}
+	
+	/**
+	 * Main method.
+	 * @param args Arguments.
+	 * @throws Exception If server can not be started or handshake fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		int rtt = 100;
+		int rounds = 20;
+		boolean encrypted = false;
+		String password = "";
+		
+		for(int i=0; i<args.length; i++) {
+			switch(args[i]) {
+				case "-rtt":
+					rtt = Integer.parseInt(args[++i]);
+					break;
+				case "-rounds":
+					rounds = Integer.parseInt(args[++i]);
+					break;
+				case "-encrypted":
+					encrypted = true;
+					break;
+				case "-password":
+					password = args[++i];
+					break;
+				default:
+					System.err.println("Unknown argument: " + args[i]);
+					System.exit(2);
+			}
+		}
+		
+		Common.DEBUG = false;
+		
+		Settings settings = Settings.getInstance();
+		settings.setEncryptedCommunication(encrypted);
+		settings.setProtectWithPassword(!password.isEmpty());
+		settings.setUserPassword(password);
+		
+		/* Sessions call init() later, but injector is started only once. */
+		InputInjector.getInstance().init(new RecordingInputSink());
+		
+		int port = LoadGenerator.findFreePort();
+		TCPClientServer server = new TCPClientServer(port);
+		Thread serverThread = new Thread(server, "Handshake Latency Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		LoadGenerator.waitForServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		
+		DelayProxy proxy = new DelayProxy(port, TimeUnit.MILLISECONDS.toNanos(rtt)/2);
+		proxy.start();
+		
+		System.out.println(String.format(Locale.ENGLISH, "RTT: %d ms, rounds: %d, encrypted: %b, " +
+				"password: %b", rtt, rounds, encrypted, !password.isEmpty()));
+		
+		HandshakeLatency handshakes = new HandshakeLatency(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), proxy.getPort()), password);
+		LatencyHistogram oldTimes = new LatencyHistogram();
+		LatencyHistogram helloTimes = new LatencyHistogram();
+		
+		/* Kinds are interleaved, so they share warm-up and noise. */
+		for(int round=0; round<rounds; round++) {
+			oldTimes.record(handshakes.oldHandshake()/1000);
+			helloTimes.record(handshakes.hello()/1000);
+		}
+		
+		System.out.println(LoadGenerator.formatHistogram("Old handshake", oldTimes));
+		System.out.println(LoadGenerator.formatHistogram("Hello", helloTimes));
+		
+		server.stopServer();
+		System.exit(0);
+	}
+	
+	/**
+	 * Do the old handshake: 'do i need password', 'check password' and 'need
+	 * encrypted communication'.
+	 * @return Duration in nanoseconds.
+	 * @throws IOException If server does not answer as expected.
+	 * @throws GeneralSecurityException If session key can not be derived.
+	 */
+	private long oldHandshake() throws IOException, GeneralSecurityException {
+		try(Socket socket = connect()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+					Common.CHARSET));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			KeyExchange keyExchange = new KeyExchange(false);
+			
+			long start = System.nanoTime();
+			
+			SimpleMessage answer = request(in, out, Message.DO_I_NEED_PASSWORD);
+			if(answer.getId()==Message.YES.getId()) {
+				answer = request(in, out, new SimpleMessage(Message.CHECK_PASSWORD.getId(),
+						password));
+				if(answer.getId()!=Message.YES.getId())
+					throw new IOException("Server refused the password.");
+			}
+			
+			answer = request(in, out, new SimpleMessage(
+					Message.NEED_ENCRYPTED_COMMUNICATION.getId(), offerProtocol(keyExchange)));
+			deriveSessionKey(keyExchange, answer.getAddInfo());
+			
+			return System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * Do the whole handshake by one HELLO.
+	 * @return Duration in nanoseconds.
+	 * @throws IOException If server does not answer as expected.
+	 * @throws GeneralSecurityException If session key can not be derived.
+	 */
+	private long hello() throws IOException, GeneralSecurityException {
+		try(Socket socket = connect()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+					Common.CHARSET));
+			PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+			KeyExchange keyExchange = new KeyExchange(false);
+			
+			long start = System.nanoTime();
+			
+			SimpleMessage answer = request(in, out, new SimpleMessage(Message.HELLO.getId(),
+					Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR +
+					offerProtocol(keyExchange) + SimpleMessage.SEPARATOR + password));
+			
+			/* version;authenticated;encrypted;token;motionPort;protocol[;publicKey] */
+			String[] fields = answer.getAddInfo().split(SimpleMessage.SEPARATOR, 6);
+			if(answer.getId()!=Message.WELCOME.getId() || fields.length<6 ||
+					Integer.parseInt(fields[1])!=Message.YES.getId())
+				throw new IOException("Server refused the client: " + answer);
+			deriveSessionKey(keyExchange, fields[5]);
+			
+			return System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * @return Socket connected to the proxy.
+	 * @throws IOException If proxy can not be reached.
+	 */
+	private Socket connect() throws IOException {
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(VirtualClient.SOCKET_TIMEOUT_MILLIS);
+		socket.connect(serverAddress, VirtualClient.SOCKET_TIMEOUT_MILLIS);
+		
+		return socket;
+	}
+	
+	/**
+	 * Send one request and read its answer.
+	 * @param in Reader of the socket.
+	 * @param out Writer of the socket.
+	 * @param request Request.
+	 * @return Parsed answer.
+	 * @throws IOException If there is no valid answer.
+	 */
+	private SimpleMessage request(BufferedReader in, PrintWriter out, SimpleMessage request)
+			throws IOException {
+		out.println(aes128.encryptText(request.toString()));
+		
+		String line = in.readLine();
+		if(line==null) throw new IOException("Server closed connection.");
+		
+		SimpleMessage answer = TCPClientSession.parseIncommingMessage(aes128.decryptText(line));
+		if(answer==null) throw new IOException("Answer is malformed.");
+		
+		return answer;
+	}
+	
+	/**
+	 * @param keyExchange Key exchange of this handshake.
+	 * @return Binary protocol with session key followed by public key.
+	 */
+	private static String offerProtocol(KeyExchange keyExchange) {
+		return BinaryMessage.PROTOCOL_BINARY_SESSION + SimpleMessage.SEPARATOR +
+				DatatypeConverter.printBase64Binary(keyExchange.getPublicKey());
+	}
+	
+	/**
+	 * Derive session key, if server sent its public key.
+	 * @param keyExchange Key exchange of this handshake.
+	 * @param protocolInfo Chosen protocol, which may be followed by public key.
+	 * @throws GeneralSecurityException If public key of server is not valid.
+	 */
+	private static void deriveSessionKey(KeyExchange keyExchange, String protocolInfo)
+			throws GeneralSecurityException {
+		String[] fields = (protocolInfo==null) ? new String[0] :
+				protocolInfo.split(SimpleMessage.SEPARATOR, 2);
+		if(fields.length>1) keyExchange.deriveSessionKey(DatatypeConverter.parseBase64Binary(fields[1]));
+	}
+	
+	/**
+	 * TCP proxy in front of the server. Every chunk is delayed before it is
+	 * forwarded, in both directions.
+	 */
+	private static class DelayProxy extends Thread {
+		
+		private final ServerSocket serverSocket;
+		private final int serverPort;
+		private final long delayNanos;
+		
+		/**
+		 * Constructor.
+		 * @param serverPort Port of the server on loopback.
+		 * @param delayNanos Delay of every chunk.
+		 * @throws IOException If proxy socket can not be opened.
+		 */
+		DelayProxy(int serverPort, long delayNanos) throws IOException {
+			super("Handshake Latency Proxy");
+			setDaemon(true);
+			
+			this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			this.serverPort = serverPort;
+			this.delayNanos = delayNanos;
+		}
+		
+		/**
+		 * @return Port of the proxy.
+		 */
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+		
+		@Override
+		public void run() {
+			while(true) {
+				try {
+					Socket client = serverSocket.accept();
+					Socket server = new Socket(InetAddress.getLoopbackAddress(), serverPort);
+					client.setTcpNoDelay(true);
+					server.setTcpNoDelay(true);
+					
+					pump(client, server);
+					pump(server, client);
+				} catch(IOException ioe) {
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Start thread which forwards data from one socket to another.
+		 * @param from Source socket.
+		 * @param to Target socket. It is closed when source ends.
+		 * @throws IOException If streams can not be opened.
+		 */
+		private void pump(Socket from, final Socket to) throws IOException {
+			final InputStream in = from.getInputStream();
+			final OutputStream out = to.getOutputStream();
+			
+			Thread thread = new Thread("Handshake Latency Pump") {
+				@Override
+				public void run() {
+					byte[] buffer = new byte[8192];
+					try {
+						int count;
+						while((count=in.read(buffer))>=0) {
+							TimeUnit.NANOSECONDS.sleep(delayNanos);
+							out.write(buffer, 0, count);
+							out.flush();
+						}
+					} catch(IOException | InterruptedException e) {
+						/* Connection of one handshake ends. */
+					}
+					
+					try {
+						to.close();
+					} catch(IOException ioe) {
+						/* Nothing to do, connection ends anyway. */
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+}
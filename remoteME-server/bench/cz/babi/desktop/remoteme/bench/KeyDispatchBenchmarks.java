@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.Controller;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.KeySequence;
+import cz.babi.desktop.remoteme.common.MappedKeys;
+import cz.babi.desktop.remoteme.common.RecordingInputSink;
+
+/**
+ * JMH benchmarks of one key stroke: lookup of keys in {@link MappedKeys} and
+ * dispatch of the key codes to a sink. Keys go to {@link RecordingInputSink},
+ * so only the cost of the server is measured, not of Robot.
+ * <p>
+ * Inputs are a character, a named key, a key combination and shift with an
+ * arrow, which needs the num lock check. Build and run them as
+ * {@link ProtocolBenchmarks}.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djava.awt.headless=true")
+public class KeyDispatchBenchmarks {
+	
+	/** Key stroke as client sends it. */
+	@Param({"a", "pageup", "ctrl;-;q", "shift;-;left"})
+	public String keys;
+	
+	private RecordingInputSink sink;
+	
+	/** Compiled keys, as a macro keeps them. */
+	private KeySequence keySequence;
+	
+	/**
+	 * Prepare sink and compiled keys.
+	 */
+	@Setup
+	public void setUp() {
+		/* Logging would be measured instead of the code. */
+		Common.DEBUG = false;
+		Common.WARN = false;
+		
+		sink = new RecordingInputSink();
+		sink.open();
+		keySequence = Controller.compileKeyStroke(keys);
+	}
+	
+	/**
+	 * @return Keys found in the tables.
+	 */
+	@Benchmark
+	public KeySequence lookup() {
+		return Controller.compileKeyStroke(keys);
+	}
+	
+	/**
+	 * Lookup and dispatch, as a key stroke from client.
+	 */
+	@Benchmark
+	public void dispatch() {
+		InputInjector.makeStroke(sink, Controller.compileKeyStroke(keys));
+	}
+	
+	/**
+	 * Dispatch only, as a macro.
+	 */
+	@Benchmark
+	public void dispatchCompiled() {
+		InputInjector.makeStroke(sink, keySequence);
+	}
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.InputSink;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+import cz.babi.desktop.remoteme.common.RecordingInputSink;
+import cz.babi.desktop.remoteme.connection.AbstractTCPServer;
+import cz.babi.desktop.remoteme.connection.TCPClientServer;
+import cz.babi.desktop.remoteme.connection.TCPNioServer;
+
+/**
+ * Headless load generator. It starts TCP server in this JVM with
+ * {@link RecordingInputSink} instead of Robot, so it runs on a box without
+ * screen, and connects many {@link VirtualClient}s to it. Every client
+ * replays its own trace. At the end it prints throughput, merged moves,
+ * histogram of handshakes, of end-to-end latency of probes, of time events
+ * waited in the queue of the injector and of time spent in the sink. Real
+ * sinks can be measured too, but they really move the pointer.
+ * <p>
+ * Build it with benchmarks as {@link ProtocolBenchmarks} and run:
+ * <pre>
+ * java -Djava.awt.headless=true -cp target/benchmarks.jar \
+ *      cz.babi.desktop.remoteme.bench.LoadGenerator -clients 200 -duration 30
+ * </pre>
+ * Arguments:
+ * <ul>
+ * <li><b>-clients count</b> Count of clients. Default is 100.</li>
+ * <li><b>-duration seconds</b> How long clients replay traces. Default is 30.</li>
+ * <li><b>-trace name</b> Synthetic trace scrub, typing, macros or mixed, or file with
+ * recorded trace, see {@link Trace}. Default is mixed.</li>
+ * <li><b>-probe millis</b> Interval of latency probes of every client. Zero for no
+ * probes. Default is 100.</li>
+ * <li><b>-ramp millis</b> Clients connect evenly during this time. Default is 1000.</li>
+ * <li><b>-encrypted</b> Server requires encrypted communication.</li>
+ * <li><b>-password text</b> Server requires password.</li>
+ * <li><b>-udp</b> Clients send moves over UDP motion channel.</li>
+ * <li><b>-nio</b> Use NIO server instead of thread per client.</li>
+ * <li><b>-executor</b> Run client handlers by executor instead of thread per client.</li>
+ * <li><b>-sink name</b> Input sink recording, robot or evdev. Default is recording.</li>
+ * </ul>
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class LoadGenerator {
+	
+	/** How often depth and latency of the injector queue are sampled. */
+	private static final long SAMPLE_MILLIS = 10;
+	
+	/** How long we wait for the server to process all frames after clients end. */
+	private static final long DRAIN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+	
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+	
+	/**
+	 * Main method.
+	 * @param args Arguments.
+	 * @throws Exception If server can not be started or trace can not be read.
+	 */
+	public static void main(String[] args) throws Exception {
+		int clients = 100;
+		int duration = 30;
+		String traceName = Trace.MIXED;
+		int probeInterval = 100;
+		int ramp = 1000;
+		boolean encrypted = false;
+		String password = "";
+		boolean udp = false;
+		boolean nio = false;
+		boolean executor = false;
+		int inputSink = Common.INPUT_SINK_RECORDING;
+		
+		for(int i=0; i<args.length; i++) {
+			switch(args[i]) {
+				case "-clients":
+					clients = Integer.parseInt(args[++i]);
+					break;
+				case "-duration":
+					duration = Integer.parseInt(args[++i]);
+					break;
+				case "-trace":
+					traceName = args[++i];
+					break;
+				case "-probe":
+					probeInterval = Integer.parseInt(args[++i]);
+					break;
+				case "-ramp":
+					ramp = Integer.parseInt(args[++i]);
+					break;
+				case "-encrypted":
+					encrypted = true;
+					break;
+				case "-password":
+					password = args[++i];
+					break;
+				case "-udp":
+					udp = true;
+					break;
+				case "-nio":
+					nio = true;
+					break;
+				case "-executor":
+					executor = true;
+					break;
+				case "-sink":
+					inputSink = Arrays.asList(Common.INPUT_SINK_NAMES).indexOf(args[++i]);
+					if(inputSink<0) {
+						System.err.println("Unknown sink: " + args[i]);
+						System.exit(2);
+					}
+					break;
+				default:
+					System.err.println("Unknown argument: " + args[i]);
+					System.exit(2);
+			}
+		}
+		
+		/* Logging of every event would be measured instead of the server. */
+		Common.DEBUG = false;
+		Common.WARN = false;
+		
+		Settings settings = Settings.getInstance();
+		settings.setEncryptedCommunication(encrypted);
+		settings.setProtectWithPassword(!password.isEmpty());
+		settings.setUserPassword(password);
+		
+		LatencyHistogram latencies = new LatencyHistogram();
+		LatencyHistogram injectionTimes = new LatencyHistogram();
+		MeasuringInputSink sink = new MeasuringInputSink(InputInjector.createSink(inputSink),
+				latencies, injectionTimes);
+		InputInjector injector = InputInjector.getInstance();
+		/* Sessions call init() later, but injector is started only once. */
+		if(!injector.init(sink)) {
+			System.err.println("Sink " + Common.INPUT_SINK_NAMES[inputSink] + " can not be opened.");
+			System.exit(1);
+		}
+		
+		int port = findFreePort();
+		AbstractTCPServer server = nio ? new TCPNioServer(port) : new TCPClientServer(port, executor);
+		Thread serverThread = new Thread(server, "Load Generator Server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		
+		InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		waitForServer(serverAddress);
+		
+		System.out.println(String.format(Locale.ENGLISH, "Clients: %d, trace: %s, duration: %d s, " +
+				"server: %s, encrypted: %b, udp: %b, sink: %s", clients, traceName, duration,
+				nio ? "nio" : (executor ? "executor" : "thread per client"), encrypted, udp,
+				Common.INPUT_SINK_NAMES[inputSink]));
+		
+		Trace recordedTrace = null;
+		if(Trace.synthetic(traceName, 0)==null) recordedTrace = Trace.read(traceName);
+		
+		VirtualClient.Totals totals = new VirtualClient.Totals();
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.SECONDS.toNanos(duration);
+		
+		List<Thread> threads = new ArrayList<>();
+		for(int i=0; i<clients; i++) {
+			Trace trace = (recordedTrace!=null) ? recordedTrace : Trace.synthetic(traceName, i);
+			Thread thread = new Thread(new VirtualClient(i, serverAddress, password, udp, trace,
+					probeInterval, deadline, totals), "Virtual Client " + i);
+			thread.setDaemon(true);
+			threads.add(thread);
+		}
+		
+		LatencyHistogram queueLatencies = new LatencyHistogram();
+		long injectedBefore = injector.getInjectedEvents();
+		long lastInjected = injectedBefore;
+		int maxQueueDepth = 0;
+		
+		for(int i=0; i<clients; i++) {
+			long startAt = start + TimeUnit.MILLISECONDS.toNanos(ramp)*i/clients;
+			long delay = startAt - System.nanoTime();
+			if(delay>0) TimeUnit.NANOSECONDS.sleep(delay);
+			
+			threads.get(i).start();
+		}
+		
+		while(System.nanoTime()<deadline) {
+			maxQueueDepth = Math.max(maxQueueDepth, injector.getQueueDepth());
+			
+			/* Latency of the last injected event, if there was any since the last sample. */
+			long injected = injector.getInjectedEvents();
+			if(injected!=lastInjected) queueLatencies.record(injector.getLastLatencyNanos()/1000);
+			lastInjected = injected;
+			
+			Thread.sleep(SAMPLE_MILLIS);
+		}
+		
+		for(Thread thread : threads) thread.join();
+		long sendingEnd = System.nanoTime();
+		
+		/* Sessions may still read frames which were sent before deadline. */
+		long drainEnd = System.currentTimeMillis() + DRAIN_MILLIS;
+		while((injector.getQueueDepth()>0 || latencies.getCount()<totals.probes.get()) &&
+				System.currentTimeMillis()<drainEnd)
+			Thread.sleep(SAMPLE_MILLIS);
+		
+		double seconds = (sendingEnd - start)/1e9;
+		long injected = injector.getInjectedEvents() - injectedBefore;
+		long connected = totals.connected.get();
+		
+		printReport(totals, seconds, injected, injector.getCoalescedMoves(), maxQueueDepth,
+				queueLatencies, sink.getSink(), latencies, injectionTimes);
+		
+		server.stopServer();
+		System.exit(connected>0 ? 0 : 1);
+	}
+	
+	/**
+	 * Print results of the run.
+	 * @param totals Counters of clients.
+	 * @param seconds Duration of sending.
+	 * @param injected Count of events taken from the queue of the injector.
+	 * @param coalesced Count of moves merged by the injector.
+	 * @param maxQueueDepth The highest sampled depth of the queue.
+	 * @param queueLatencies Sampled times of events in the queue of the injector.
+	 * @param sink Measured sink. Counts of events are known only for recording sink.
+	 * @param latencies Latencies of probes.
+	 * @param injectionTimes Times of calls of the sink.
+	 */
+	private static void printReport(VirtualClient.Totals totals, double seconds, long injected,
+			long coalesced, int maxQueueDepth, LatencyHistogram queueLatencies, InputSink sink,
+			LatencyHistogram latencies, LatencyHistogram injectionTimes) {
+		long connected = totals.connected.get();
+		long sent = totals.frames.get() + totals.datagrams.get();
+		
+		System.out.println(String.format(Locale.ENGLISH, "Connected: %d, failed: %d", connected,
+				totals.failed.get()));
+		System.out.println(String.format(Locale.ENGLISH, "Sent: %d frames, %d datagrams, " +
+				"%.0f/s", totals.frames.get(), totals.datagrams.get(), sent/seconds));
+		System.out.println(String.format(Locale.ENGLISH, "Injected: %d events, %.0f/s, merged " +
+				"moves: %d, max queue depth: %d", injected, injected/seconds, coalesced, maxQueueDepth));
+		if(sink instanceof RecordingInputSink) {
+			RecordingInputSink recordingSink = (RecordingInputSink)sink;
+			System.out.println(String.format(Locale.ENGLISH, "Sink: %d moves, %d clicks, " +
+					"%d wheels, %d keys, %d pastes", recordingSink.getMouseMoves(),
+					recordingSink.getMouseButtons(), recordingSink.getMouseWheels(),
+					recordingSink.getKeys(), recordingSink.getPastes()));
+		}
+		
+		System.out.println(formatHistogram("Handshake: " + connected + " clients",
+				totals.handshakes));
+		System.out.println(formatHistogram("Queue: " + queueLatencies.getCount() + " samples",
+				queueLatencies));
+		System.out.println(formatHistogram("Latency: " + latencies.getCount() + " of " +
+				totals.probes.get() + " probes", latencies));
+		System.out.println(formatHistogram("Injection: " + injectionTimes.getCount() + " calls",
+				injectionTimes));
+	}
+	
+	/**
+	 * @param title Beginning of the line.
+	 * @param histogram Histogram in microseconds.
+	 * @return Line with mean, percentiles and max.
+	 */
+	static String formatHistogram(String title, LatencyHistogram histogram) {
+		StringBuilder line = new StringBuilder(title);
+		line.append(", mean ").append(histogram.getMean()).append(" us");
+		for(int i=0; i<PERCENTILES.length; i++)
+			line.append(", ").append(PERCENTILE_NAMES[i]).append(' ').
+					append(histogram.getPercentile(PERCENTILES[i])).append(" us");
+		line.append(", max ").append(histogram.getMax()).append(" us");
+		
+		return line.toString();
+	}
+	
+	/**
+	 * @return Port which was free a moment ago.
+	 * @throws IOException If there is no free port.
+	 */
+	static int findFreePort() throws IOException {
+		try(ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+	
+	/**
+	 * Wait until server accepts connections.
+	 * @param serverAddress Address of the server.
+	 * @throws IOException If server does not start.
+	 * @throws InterruptedException If waiting is interrupted.
+	 */
+	static void waitForServer(InetSocketAddress serverAddress) throws IOException,
+			InterruptedException {
+		for(int attempt=0; attempt<100; attempt++) {
+			try(Socket socket = new Socket()) {
+				socket.connect(serverAddress, VirtualClient.SOCKET_TIMEOUT_MILLIS);
+				return;
+			} catch(IOException ioe) {
+				Thread.sleep(SAMPLE_MILLIS);
+			}
+		}
+		
+		throw new IOException("Server does not accept connections on " + serverAddress + ".");
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import cz.babi.desktop.remoteme.common.InputSink;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+
+/**
+ * Sink which measures another sink. Time of every call of input methods is
+ * recorded, so sinks can be compared. Pasted text which starts with
+ * {@link #PROBE_PREFIX} is a latency probe sent by {@link VirtualClient}: it
+ * holds {@link System#nanoTime()} of the moment the probe was sent, so the
+ * whole path from the client socket to the injector is measured. Clients run
+ * in the same JVM, so times are comparable. Probes are not passed on.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class MeasuringInputSink implements InputSink {
+	
+	/** Prefix of latency probes. It is followed by send time in nanoseconds. */
+	public static final String PROBE_PREFIX = "lg;";
+	
+	private final InputSink sink;
+	private final LatencyHistogram latencies;
+	private final LatencyHistogram injectionTimes;
+	
+	/**
+	 * Constructor.
+	 * @param sink Measured sink.
+	 * @param latencies Histogram for latencies of probes.
+	 * @param injectionTimes Histogram for times of calls of the measured sink.
+	 */
+	public MeasuringInputSink(InputSink sink, LatencyHistogram latencies,
+			LatencyHistogram injectionTimes) {
+		this.sink = sink;
+		this.latencies = latencies;
+		this.injectionTimes = injectionTimes;
+	}
+	
+	/**
+	 * @return Measured sink.
+	 */
+	public InputSink getSink() {
+		return sink;
+	}
+	
+	@Override
+	public boolean open() {
+		return sink.open();
+	}
+	
+	@Override
+	public void mouseMove(int x, int y) {
+		long start = System.nanoTime();
+		sink.mouseMove(x, y);
+		recordInjection(start);
+	}
+	
+	@Override
+	public void mousePress(int buttons) {
+		long start = System.nanoTime();
+		sink.mousePress(buttons);
+		recordInjection(start);
+	}
+	
+	@Override
+	public void mouseRelease(int buttons) {
+		long start = System.nanoTime();
+		sink.mouseRelease(buttons);
+		recordInjection(start);
+	}
+	
+	@Override
+	public void mouseWheel(int wheelAmount) {
+		long start = System.nanoTime();
+		sink.mouseWheel(wheelAmount);
+		recordInjection(start);
+	}
+	
+	@Override
+	public void keyPress(int keyCode) {
+		long start = System.nanoTime();
+		sink.keyPress(keyCode);
+		recordInjection(start);
+	}
+	
+	@Override
+	public void keyRelease(int keyCode) {
+		long start = System.nanoTime();
+		sink.keyRelease(keyCode);
+		recordInjection(start);
+	}
+	
+	@Override
+	public boolean isNumLockOn() {
+		return sink.isNumLockOn();
+	}
+	
+	@Override
+	public void paste(String text) {
+		if(text.startsWith(PROBE_PREFIX)) {
+			try {
+				long sendTime = Long.parseLong(text.substring(PROBE_PREFIX.length()));
+				latencies.record((System.nanoTime() - sendTime)/1000);
+				return;
+			} catch(NumberFormatException nfe) {
+				/* It is just a text. */
+			}
+		}
+		
+		long start = System.nanoTime();
+		sink.paste(text);
+		recordInjection(start);
+	}
+	
+	@Override
+	public Point getPointerLocation() {
+		return sink.getPointerLocation();
+	}
+	
+	@Override
+	public Rectangle getScreenBounds() {
+		return sink.getScreenBounds();
+	}
+	
+	@Override
+	public void execute(String command) {
+		sink.execute(command);
+	}
+	
+	/**
+	 * @param start Time when call of the sink started.
+	 */
+	private void recordInjection(long start) {
+		injectionTimes.record((System.nanoTime() - start)/1000);
+	}
+}
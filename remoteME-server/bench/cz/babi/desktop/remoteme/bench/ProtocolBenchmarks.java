@@ -0,0 +1,169 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sun.misc.BASE64Decoder;
+import sun.misc.BASE64Encoder;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.Controller;
+import cz.babi.desktop.remoteme.connection.TCPClientSession;
+import cz.babi.desktop.remoteme.crypto.AES128;
+import cz.babi.desktop.remoteme.entity.Message;
+import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
+
+/**
+ * JMH benchmarks of the hot path of protocol: parsing of incoming messages,
+ * encryption, key resolution and serialization of messages. Results are
+ * compared with committed baseline by {@link BaselineCheck}.
+ * <p>
+ * Benchmarks are not part of the application. From directory
+ * remoteME-server build them with JDK 8 and run them by JMH:
+ * <pre>
+ * mvn -P bench package
+ * java -jar target/benchmarks.jar ProtocolBenchmarks
+ * </pre>
+ * Input injector is not started, so key strokes are resolved and dropped
+ * without Robot.
+ * <p>
+ * Benchmarks with suffix Legacy run text encryption as {@link AES128} did it
+ * before, with new sun.misc encoder or decoder per call and arrays returned
+ * by cipher. They are the point of comparison for encryptText and decryptText.
+ * The sun.misc codec exists only up to Java 8.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ProtocolBenchmarks {
+	
+	private static final String[] INCOMING_MESSAGES = {
+			Message.MOUSE_MOVE.getId() + SimpleMessage.SEPARATOR + "12.5" + SimpleMessage.SEPARATOR + "-3.25",
+			Message.KEY_STROKE.getId() + SimpleMessage.SEPARATOR + "a",
+			Message.MOUSE_LEFT_CLICK.getId() + SimpleMessage.SEPARATOR,
+			Message.KEY_STROKE.getId() + SimpleMessage.SEPARATOR + "ctrl;-;alt;-;tab"};
+	
+	private static final String SINGLE_KEY = "a";
+	private static final String KEY_SEQUENCE = "ctrl;-;alt;-;tab";
+	
+	private AES128 aes128;
+	private String encryptedMessage;
+	private Cipher legacyEncryptCipher;
+	private Cipher legacyDecryptCipher;
+	private Controller controller;
+	private SimpleMessage simpleMessage;
+	
+	/** Number of operation. It is used to choose input. */
+	private int iteration;
+	
+	/**
+	 * Prepare inputs.
+	 * @throws GeneralSecurityException If legacy ciphers can not be created.
+	 * @throws IOException If charset is not supported.
+	 */
+	@Setup
+	public void setUp() throws GeneralSecurityException, IOException {
+		/* Logging would be measured instead of the code. */
+		Common.DEBUG = false;
+		Common.WARN = false;
+		
+		aes128 = new AES128(Common.SECRET_ID, Common.DEFAULT_PASSWORD);
+		encryptedMessage = aes128.encryptText(INCOMING_MESSAGES[0]);
+		
+		/* The same key as AES128 generates. */
+		byte[] keyValue = MessageDigest.getInstance(Common.ALGORITHM_SHA1).digest(
+				(Common.SECRET_ID + Common.DEFAULT_PASSWORD).getBytes(Common.CHARSET));
+		SecretKeySpec key = new SecretKeySpec(Arrays.copyOf(keyValue, 16), Common.ALGORITHM_AES);
+		legacyEncryptCipher = Cipher.getInstance(Common.ALGORITHM_AES);
+		legacyEncryptCipher.init(Cipher.ENCRYPT_MODE, key);
+		legacyDecryptCipher = Cipher.getInstance(Common.ALGORITHM_AES);
+		legacyDecryptCipher.init(Cipher.DECRYPT_MODE, key);
+		controller = new Controller("127.0.0.1");
+		simpleMessage = new SimpleMessage(Message.MOUSE_MOVE.getId(),
+				"12.5" + SimpleMessage.SEPARATOR + "-3.25");
+	}
+	
+	@Benchmark
+	public int parseIncommingMessage() {
+		return TCPClientSession.parseIncommingMessage(INCOMING_MESSAGES[iteration++ & 3]).getId();
+	}
+	
+	@Benchmark
+	public String encryptText() {
+		return aes128.encryptText(INCOMING_MESSAGES[0]);
+	}
+	
+	@Benchmark
+	public String encryptTextLegacy() throws GeneralSecurityException, IOException {
+		return new BASE64Encoder().encode(legacyEncryptCipher.doFinal(
+				INCOMING_MESSAGES[0].getBytes(Common.CHARSET)));
+	}
+	
+	@Benchmark
+	public String decryptText() {
+		return aes128.decryptText(encryptedMessage);
+	}
+	
+	@Benchmark
+	public String decryptTextLegacy() throws GeneralSecurityException, IOException {
+		return new String(legacyDecryptCipher.doFinal(new BASE64Decoder().decodeBuffer(encryptedMessage)));
+	}
+	
+	@Benchmark
+	public int compileKeyStrokeSingle() {
+		return Controller.compileKeyStroke(SINGLE_KEY).getKeyCodes().length;
+	}
+	
+	@Benchmark
+	public int compileKeyStrokeSequence() {
+		return Controller.compileKeyStroke(KEY_SEQUENCE).getKeyCodes().length;
+	}
+	
+	@Benchmark
+	public void keyStroke() {
+		controller.keyStroke((iteration++ & 1)==0 ? SINGLE_KEY : KEY_SEQUENCE);
+	}
+	
+	@Benchmark
+	public String simpleMessageToString() {
+		return simpleMessage.toString();
+	}
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.entity.Message;
+
+/**
+ * Sequence of user actions replayed by {@link VirtualClient} in a loop.
+ * Synthetic traces are generated from a seed, so every client gets its own
+ * but repeatable sequence. Recorded trace is read from a text file with one
+ * action per line:
+ * <pre>
+ * # delay in milliseconds, command, arguments
+ * 8 move 3.5 -1
+ * 0 left
+ * 0 right
+ * 40 wheel -1
+ * 120 key ctrl;-;c
+ * 120 macro 3 ctrl;-;alt;-;tab
+ * 500 paste Hello
+ * </pre>
+ * Macro is defined by its first use and only its ID is sent next time, as
+ * the phone does.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class Trace {
+	
+	/** Names of synthetic traces. */
+	public static final String SCRUB = "scrub";
+	public static final String TYPING = "typing";
+	public static final String MACROS = "macros";
+	public static final String MIXED = "mixed";
+	
+	/** Keys typed by synthetic traces. */
+	private static final String[] TYPED_KEYS = {"a", "b", "c", "d", "e", "f", "g", "h", "i",
+			"j", "k", "l", "m", "n", "o", "p", "space", "enter", "backspace"};
+	
+	/** Macros pressed by synthetic traces. */
+	private static final String[] MACRO_KEYS = {"ctrl;-;c", "ctrl;-;v", "ctrl;-;alt;-;tab",
+			"alt;-;f4", "ctrl;-;shift;-;esc", "ctrl;-;z"};
+	
+	/** Delay between two mouse moves of scrub, the phone sends them in this rate. */
+	private static final int MOVE_INTERVAL_MILLIS = 8;
+	
+	/**
+	 * One user action.
+	 */
+	public static class Step {
+		/** Delay before the action. */
+		final int delayMillis;
+		/** Opcode of the action, see {@link Message}. */
+		final int opcode;
+		/** Offsets of mouse move or amount of wheel. */
+		final float x;
+		final float y;
+		/** Keys, text or keys of macro. */
+		final String text;
+		/** ID of macro. */
+		final int macroId;
+		
+		Step(int delayMillis, int opcode, float x, float y, String text, int macroId) {
+			this.delayMillis = delayMillis;
+			this.opcode = opcode;
+			this.x = x;
+			this.y = y;
+			this.text = text;
+			this.macroId = macroId;
+		}
+	}
+	
+	private final String name;
+	private final List<Step> steps;
+	
+	/**
+	 * Constructor.
+	 * @param name Name of trace.
+	 * @param steps Steps of trace.
+	 */
+	Trace(String name, List<Step> steps) {
+		this.name = name;
+		this.steps = Collections.unmodifiableList(steps);
+	}
+	
+	/**
+	 * @return Name of trace.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return Steps of trace.
+	 */
+	public List<Step> getSteps() {
+		return steps;
+	}
+	
+	/**
+	 * Create synthetic trace.
+	 * @param name One of {@link #SCRUB}, {@link #TYPING}, {@link #MACROS} or {@link #MIXED}.
+	 * @param seed Seed of random generator.
+	 * @return Trace or null if name is not known.
+	 */
+	public static Trace synthetic(String name, long seed) {
+		Random random = new Random(seed);
+		List<Step> steps = new ArrayList<>();
+		
+		switch(name) {
+			case SCRUB:
+				addScrub(steps, random);
+				break;
+			case TYPING:
+				addTyping(steps, random);
+				break;
+			case MACROS:
+				addMacros(steps, random);
+				break;
+			case MIXED:
+				addScrub(steps, random);
+				addTyping(steps, random);
+				addScrub(steps, random);
+				addMacros(steps, random);
+				break;
+			default:
+				return null;
+		}
+		
+		return new Trace(name, steps);
+	}
+	
+	/**
+	 * Read recorded trace.
+	 * @param fileName Name of file.
+	 * @return Trace.
+	 * @throws IOException If file can not be read or a line is not valid.
+	 */
+	public static Trace read(String fileName) throws IOException {
+		List<Step> steps = new ArrayList<>();
+		
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), Common.CHARSET))) {
+			String line;
+			int lineNumber = 0;
+			while((line=reader.readLine())!=null) {
+				lineNumber++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#")) continue;
+				
+				try {
+					steps.add(parseStep(line));
+				} catch(RuntimeException re) {
+					throw new IOException("Wrong step on line " + lineNumber + ": " + line, re);
+				}
+			}
+		}
+		
+		if(steps.isEmpty()) throw new IOException("Trace " + fileName + " is empty.");
+		
+		return new Trace(fileName, steps);
+	}
+	
+	/**
+	 * @param line Line of recorded trace.
+	 * @return Step.
+	 */
+	private static Step parseStep(String line) {
+		String[] fields = line.split("\\s+", 3);
+		int delay = Integer.parseInt(fields[0]);
+		String arguments = (fields.length>2) ? fields[2] : "";
+		
+		switch(fields[1]) {
+			case "move":
+				String[] offsets = arguments.split("\\s+");
+				return new Step(delay, Message.MOUSE_MOVE.getId(), Float.parseFloat(offsets[0]),
+						Float.parseFloat(offsets[1]), null, 0);
+			case "wheel":
+				return new Step(delay, Message.MOUSE_WHEEL.getId(), Float.parseFloat(arguments),
+						0, null, 0);
+			case "left":
+				return new Step(delay, Message.MOUSE_LEFT_CLICK.getId(), 0, 0, null, 0);
+			case "right":
+				return new Step(delay, Message.MOUSE_RIGHT_CLICK.getId(), 0, 0, null, 0);
+			case "key":
+				return new Step(delay, Message.KEY_STROKE.getId(), 0, 0, arguments, 0);
+			case "paste":
+				return new Step(delay, Message.KEY_CLIPBOARD.getId(), 0, 0, arguments, 0);
+			case "macro":
+				String[] macro = arguments.split("\\s+", 2);
+				return new Step(delay, Message.KEY_MACRO.getId(), 0, 0, macro[1],
+						Integer.parseInt(macro[0]));
+			default:
+				throw new IllegalArgumentException("Unknown command " + fields[1]);
+		}
+	}
+	
+	/**
+	 * Finger drags over touchpad for a while and then clicks or scrolls.
+	 * @param steps Steps to add to.
+	 * @param random Random generator.
+	 */
+	private static void addScrub(List<Step> steps, Random random) {
+		int moves = 50 + random.nextInt(150);
+		float directionX = random.nextFloat()*8 - 4;
+		float directionY = random.nextFloat()*8 - 4;
+		
+		for(int i=0; i<moves; i++) {
+			/* Direction changes slowly, like a finger does. */
+			directionX += random.nextFloat() - 0.5f;
+			directionY += random.nextFloat() - 0.5f;
+			steps.add(new Step(MOVE_INTERVAL_MILLIS, Message.MOUSE_MOVE.getId(), directionX,
+					directionY, null, 0));
+		}
+		
+		switch(random.nextInt(3)) {
+			case 0:
+				steps.add(new Step(150, Message.MOUSE_LEFT_CLICK.getId(), 0, 0, null, 0));
+				break;
+			case 1:
+				for(int i=0; i<5; i++)
+					steps.add(new Step(40, Message.MOUSE_WHEEL.getId(),
+							random.nextBoolean() ? 1 : -1, 0, null, 0));
+				break;
+			default:
+				steps.add(new Step(150, Message.MOUSE_RIGHT_CLICK.getId(), 0, 0, null, 0));
+				break;
+		}
+	}
+	
+	/**
+	 * Burst of typed keys with short pauses between words.
+	 * @param steps Steps to add to.
+	 * @param random Random generator.
+	 */
+	private static void addTyping(List<Step> steps, Random random) {
+		int words = 3 + random.nextInt(8);
+		
+		for(int word=0; word<words; word++) {
+			int letters = 2 + random.nextInt(7);
+			for(int i=0; i<letters; i++)
+				steps.add(new Step(60 + random.nextInt(80), Message.KEY_STROKE.getId(), 0, 0,
+						TYPED_KEYS[random.nextInt(TYPED_KEYS.length)], 0));
+			
+			steps.add(new Step(100 + random.nextInt(300), Message.KEY_STROKE.getId(), 0, 0,
+					"space", 0));
+		}
+	}
+	
+	/**
+	 * Presses of buttons with key combinations.
+	 * @param steps Steps to add to.
+	 * @param random Random generator.
+	 */
+	private static void addMacros(List<Step> steps, Random random) {
+		int presses = 5 + random.nextInt(10);
+		
+		for(int i=0; i<presses; i++) {
+			int macroId = random.nextInt(MACRO_KEYS.length);
+			steps.add(new Step(200 + random.nextInt(600), Message.KEY_MACRO.getId(), 0, 0,
+					MACRO_KEYS[macroId], macroId));
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.xml.bind.DatatypeConverter;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+import cz.babi.desktop.remoteme.connection.TCPClientSession;
+import cz.babi.desktop.remoteme.crypto.AES128;
+import cz.babi.desktop.remoteme.crypto.DatagramCrypto;
+import cz.babi.desktop.remoteme.crypto.KeyExchange;
+import cz.babi.desktop.remoteme.crypto.SessionCrypto;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.entity.Message;
+import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
+
+/**
+ * One simulated phone. It does the same handshake as InitConnectionTask of
+ * the Android client (hello, welcome, binary protocol with session key) and
+ * encodes frames as ConnectionService does, but with server classes, which
+ * implement the same wire format. Then it replays its trace until deadline
+ * and says bye.
+ * <p>
+ * Latency probe is a clipboard frame with {@link MeasuringInputSink#PROBE_PREFIX}
+ * and send time. It goes over TCP like every key, so it waits behind moves
+ * and keys of all clients in the queue of the injector.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class VirtualClient implements Runnable {
+	
+	/** Length of sequence number at the start of every motion datagram. */
+	private static final int SEQUENCE_LENGTH = 4;
+	
+	/** Timeout of connecting and of reading welcome. */
+	static final int SOCKET_TIMEOUT_MILLIS = 5000;
+	
+	/** Longest answer of server during handshake. */
+	private static final int MAX_LINE_LENGTH = 4096;
+	
+	private static final Charset CHARSET = Charset.forName(Common.CHARSET);
+	
+	/**
+	 * Counters shared by all clients.
+	 */
+	public static class Totals {
+		final AtomicLong connected = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong frames = new AtomicLong();
+		final AtomicLong datagrams = new AtomicLong();
+		final AtomicLong probes = new AtomicLong();
+		final LatencyHistogram handshakes = new LatencyHistogram();
+	}
+	
+	private final int clientId;
+	private final InetSocketAddress serverAddress;
+	private final String password;
+	private final boolean useMotionChannel;
+	private final Trace trace;
+	private final long probeIntervalNanos;
+	private final long deadline;
+	private final Totals totals;
+	
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
+	
+	private String offeredProtocol = BinaryMessage.PROTOCOL_BINARY_SESSION;
+	
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	
+	private boolean isEncrypted = false;
+	private SessionCrypto sessionCrypto = null;
+	private DatagramCrypto datagramCrypto = null;
+	
+	private DatagramSocket motionSocket = null;
+	private int motionSequence = 0;
+	
+	private final boolean[] definedMacros = new boolean[BinaryMessage.MAX_MACROS];
+	
+	/**
+	 * Constructor.
+	 * @param clientId Number of client. Clients start at different steps of trace.
+	 * @param serverAddress Address of the server.
+	 * @param password Password of the server. Empty if there is none.
+	 * @param useMotionChannel Send moves over UDP if server opens motion channel.
+	 * @param trace Trace to replay.
+	 * @param probeIntervalMillis Interval of latency probes. Zero for no probes.
+	 * @param deadline Time of {@link System#nanoTime()} when client stops.
+	 * @param totals Shared counters.
+	 */
+	public VirtualClient(int clientId, InetSocketAddress serverAddress, String password,
+			boolean useMotionChannel, Trace trace, int probeIntervalMillis, long deadline,
+			Totals totals) {
+		this.clientId = clientId;
+		this.serverAddress = serverAddress;
+		this.password = password;
+		this.useMotionChannel = useMotionChannel;
+		this.trace = trace;
+		this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+		this.deadline = deadline;
+		this.totals = totals;
+	}
+	
+	/**
+	 * @param offeredProtocol Protocol offered in hello. Default is binary protocol
+	 * with session key, binary protocol is encrypted by AES128.
+	 */
+	public void setOfferedProtocol(String offeredProtocol) {
+		this.offeredProtocol = offeredProtocol;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			long start = System.nanoTime();
+			connect();
+			totals.handshakes.record((System.nanoTime() - start)/1000);
+			totals.connected.incrementAndGet();
+			
+			replay();
+			
+			sendFrame(new BinaryMessage(Message.BYE_BYE.getId()));
+		} catch(IOException | GeneralSecurityException ex) {
+			totals.failed.incrementAndGet();
+			System.err.println("Client " + clientId + ": " + ex);
+		} finally {
+			close();
+		}
+	}
+	
+	/**
+	 * Connect to the server and do the handshake.
+	 * @throws IOException If server can not be reached or it refuses the client.
+	 * @throws GeneralSecurityException If session key can not be used.
+	 */
+	private void connect() throws IOException, GeneralSecurityException {
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+		socket.connect(serverAddress, SOCKET_TIMEOUT_MILLIS);
+		
+		in = socket.getInputStream();
+		out = new BufferedOutputStream(socket.getOutputStream());
+		
+		KeyExchange keyExchange = null;
+		String publicKey = "";
+		if(BinaryMessage.PROTOCOL_BINARY_SESSION.equals(offeredProtocol)) {
+			keyExchange = new KeyExchange(false);
+			publicKey = DatatypeConverter.printBase64Binary(keyExchange.getPublicKey());
+		}
+		
+		SimpleMessage helloMessage = new SimpleMessage(Message.HELLO.getId(),
+				Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR + offeredProtocol +
+				SimpleMessage.SEPARATOR + publicKey + SimpleMessage.SEPARATOR + password);
+		out.write((aes128.encryptText(helloMessage.toString()) + "\n").getBytes(CHARSET));
+		out.flush();
+		
+		SimpleMessage welcome = TCPClientSession.parseIncommingMessage(
+				aes128.decryptText(readLine()));
+		if(welcome==null || welcome.getId()!=Message.WELCOME.getId())
+			throw new IOException("Server did not send welcome.");
+		
+		/* version;authenticated;encrypted;token;motionPort;protocol[;publicKey] */
+		String[] fields = welcome.getAddInfo().split(SimpleMessage.SEPARATOR);
+		if(fields.length<6 || Integer.parseInt(fields[1])!=Message.YES.getId())
+			throw new IOException("Server refused the client: " + welcome.getAddInfo());
+		
+		isEncrypted = Integer.parseInt(fields[2])==Message.YES.getId();
+		int motionPort = Integer.parseInt(fields[4]);
+		String protocol = fields[5];
+		
+		if(BinaryMessage.PROTOCOL_BINARY_SESSION.equals(protocol) && keyExchange!=null &&
+				fields.length>6) {
+			byte[] sessionKey = keyExchange.deriveSessionKey(
+					DatatypeConverter.parseBase64Binary(fields[6]));
+			sessionCrypto = new SessionCrypto(sessionKey, false);
+			datagramCrypto = new DatagramCrypto(sessionKey, false);
+		} else if(!BinaryMessage.PROTOCOL_BINARY.equals(protocol) &&
+				!BinaryMessage.PROTOCOL_BINARY_SESSION.equals(protocol)) {
+			throw new IOException("Server does not support binary protocol.");
+		}
+		
+		if(useMotionChannel && motionPort>0) {
+			motionSocket = new DatagramSocket();
+			motionSocket.connect(serverAddress.getAddress(), motionPort);
+		}
+	}
+	
+	/**
+	 * Replay trace until deadline. Steps are scheduled from the start of
+	 * replay, so slow sending does not slow down the trace.
+	 * @throws IOException If frame can not be sent.
+	 */
+	private void replay() throws IOException {
+		List<Trace.Step> steps = trace.getSteps();
+		int index = (clientId*7919) % steps.size();
+		
+		long nextStep = System.nanoTime();
+		long nextProbe = nextStep + ((probeIntervalNanos>0) ? (clientId*1000003L) %
+				probeIntervalNanos : 0);
+		
+		while(true) {
+			Trace.Step step = steps.get(index);
+			index = (index + 1) % steps.size();
+			nextStep += TimeUnit.MILLISECONDS.toNanos(step.delayMillis);
+			
+			while(probeIntervalNanos>0 && nextProbe<=nextStep) {
+				if(nextProbe>=deadline) return;
+				waitUntil(nextProbe);
+				sendProbe();
+				nextProbe += probeIntervalNanos;
+			}
+			
+			if(nextStep>=deadline) return;
+			waitUntil(nextStep);
+			sendStep(step);
+		}
+	}
+	
+	/**
+	 * @param time Time of {@link System#nanoTime()}.
+	 */
+	private static void waitUntil(long time) {
+		long remaining;
+		while((remaining=time-System.nanoTime())>0) LockSupport.parkNanos(remaining);
+	}
+	
+	/**
+	 * Send clipboard frame with current time.
+	 * @throws IOException If frame can not be sent.
+	 */
+	private void sendProbe() throws IOException {
+		sendFrame(new BinaryMessage(Message.KEY_CLIPBOARD.getId(),
+				MeasuringInputSink.PROBE_PREFIX + System.nanoTime()));
+		totals.probes.incrementAndGet();
+	}
+	
+	/**
+	 * Encode and send one step of trace.
+	 * @param step Step to send.
+	 * @throws IOException If frame can not be sent.
+	 */
+	private void sendStep(Trace.Step step) throws IOException {
+		int opcode = step.opcode;
+		
+		if(opcode==Message.MOUSE_MOVE.getId()) {
+			sendMotion(new BinaryMessage(opcode, step.x, step.y));
+		} else if(opcode==Message.MOUSE_WHEEL.getId()) {
+			sendMotion(new BinaryMessage(opcode, step.x));
+		} else if(opcode==Message.KEY_MACRO.getId()) {
+			sendFrame(macroFrame(step.macroId, step.text));
+		} else if(step.text!=null) {
+			sendFrame(new BinaryMessage(opcode, step.text));
+		} else {
+			sendFrame(new BinaryMessage(opcode));
+		}
+	}
+	
+	/**
+	 * @param macroId ID of macro.
+	 * @param keys Keys of macro.
+	 * @return Definition of macro for the first use, only ID later.
+	 */
+	private BinaryMessage macroFrame(int macroId, String keys) {
+		if(definedMacros[macroId]) {
+			return new BinaryMessage(Message.KEY_MACRO.getId(),
+					ByteBuffer.allocate(4).putInt(macroId).array());
+		}
+		
+		definedMacros[macroId] = true;
+		
+		byte[] text = keys.getBytes(CHARSET);
+		
+		return new BinaryMessage(Message.KEY_MACRO_DEFINE.getId(),
+				ByteBuffer.allocate(4 + text.length).putInt(macroId).put(text).array());
+	}
+	
+	/**
+	 * Send move or wheel over motion channel, or over TCP if there is no channel.
+	 * @param message Frame to send.
+	 * @throws IOException If frame can not be sent.
+	 */
+	private void sendMotion(BinaryMessage message) throws IOException {
+		if(motionSocket==null) {
+			sendFrame(message);
+			return;
+		}
+		
+		int sequence = motionSequence++;
+		byte[] body = message.toBytes();
+		if(datagramCrypto!=null) {
+			body = datagramCrypto.seal(sequence, body, body.length);
+			if(body==null) throw new IOException("Datagram can not be encrypted.");
+		}
+		
+		byte[] datagram = ByteBuffer.allocate(SEQUENCE_LENGTH + body.length).putInt(sequence).
+				put(body).array();
+		motionSocket.send(new DatagramPacket(datagram, datagram.length));
+		totals.datagrams.incrementAndGet();
+	}
+	
+	/**
+	 * Encrypt and send frame over TCP.
+	 * @param message Frame to send.
+	 * @throws IOException If frame can not be sent.
+	 */
+	private void sendFrame(BinaryMessage message) throws IOException {
+		byte[] frame = message.toBytes();
+		
+		if(sessionCrypto!=null) {
+			byte[] sealed = sessionCrypto.encrypt(frame);
+			if(sealed==null) throw new IOException("Frame can not be encrypted.");
+			frame = new BinaryMessage(BinaryMessage.SESSION_ENCRYPTED, sealed).toBytes();
+		} else if(isEncrypted) {
+			byte[] encrypted = aes128.encryptData(frame);
+			if(encrypted==null) throw new IOException("Frame can not be encrypted.");
+			frame = new BinaryMessage(BinaryMessage.ENCRYPTED, encrypted).toBytes();
+		}
+		
+		out.write(frame);
+		out.flush();
+		totals.frames.incrementAndGet();
+	}
+	
+	/**
+	 * Read one line of handshake. Nothing else is read, binary frames may follow.
+	 * @return Line without line end.
+	 * @throws IOException If line can not be read.
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		
+		int b;
+		while((b=in.read())!='\n') {
+			if(b<0) throw new IOException("Server closed connection.");
+			if(line.size()>=MAX_LINE_LENGTH) throw new IOException("Line is too long.");
+			if(b!='\r') line.write(b);
+		}
+		
+		return line.toString(Common.CHARSET);
+	}
+	
+	/**
+	 * Close all sockets.
+	 */
+	private void close() {
+		if(motionSocket!=null) motionSocket.close();
+		
+		if(socket!=null) {
+			try {
+				socket.close();
+			} catch(IOException ioe) {
+				/* Nothing to do, client ends anyway. */
+			}
+		}
+	}
+}
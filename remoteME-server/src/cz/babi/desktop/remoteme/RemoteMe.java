@@ -16,6 +16,8 @@
 
 package cz.babi.desktop.remoteme;
 
+import java.util.Arrays;
+
 import org.apache.log4j.Logger;
 
 import cz.babi.desktop.remoteme.common.Common;
@@ -42,11 +44,19 @@ public class RemoteMe {
 	public static void main(String[] args) {
 		
 		/* User may add commands when starting the application. */
-		if(args.length>0) {
-			String command = args[0];
+		String inputSinkName = null;
+		String metricsPort = null;
+		for(int i=0; i<args.length; i++) {
+			String command = args[i];
 			/* If there is a debug argument, we need to set logging on. */
 			if(command.equals(Common.DEBUG_ARGUMENT))
 				settings.setLogLevel(Common.LOG_ERROR);
+			/* Input sink for this run, e.g. 'recording' on a box without display. */
+			else if(command.equals(Common.INPUT_SINK_ARGUMENT) && i+1<args.length)
+				inputSinkName = args[++i];
+			/* Port of local metrics endpoint for this run. */
+			else if(command.equals(Common.METRICS_ARGUMENT) && i+1<args.length)
+				metricsPort = args[++i];
 		}
 		
 		if(Common.DEBUG) LOGGER.debug("[main][Application started.]");
@@ -56,6 +66,21 @@ public class RemoteMe {
 		/* Create/load settings. */
 		remoteMe.settingsStuff();
 		
+		if(inputSinkName!=null) {
+			int inputSink = Arrays.asList(Common.INPUT_SINK_NAMES).indexOf(inputSinkName);
+			if(inputSink>=0) settings.setInputSink(inputSink);
+			else if(Common.ERROR) LOGGER.error("[main][Unknown input sink '" + inputSinkName +
+					"'. Known sinks: " + Arrays.toString(Common.INPUT_SINK_NAMES) + ".]");
+		}
+		
+		if(metricsPort!=null) {
+			try {
+				settings.setMetricsPort(Integer.parseInt(metricsPort));
+			} catch(NumberFormatException nfe) {
+				if(Common.ERROR) LOGGER.error("[main][Wrong metrics port '" + metricsPort + "'.]", nfe);
+			}
+		}
+		
 		/* Create Tray menu. */
 		new TrayMenu();
 		
@@ -65,6 +90,9 @@ public class RemoteMe {
 		/* Create UDP server. */
 		if(settings.isDiscoverableServer()) remoteMe.createUDPServer();
 		
+		/* Create metrics server. */
+		if(settings.getMetricsPort()>0) myThreadGroups.createMetricsServer(settings.getMetricsPort());
+		
 		if(Common.DEBUG) LOGGER.debug("[main][Active threads in group '" +
 				myThreadGroups.getServersThreadGroup().getName() + "': " +
 				myThreadGroups.getServersThreadGroup().activeCount()+ "]");
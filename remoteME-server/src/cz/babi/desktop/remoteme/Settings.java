@@ -16,9 +16,15 @@
 
 package cz.babi.desktop.remoteme;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.PointerProfile;
 
 /**
  * Settings.
@@ -81,6 +87,18 @@ public class Settings {
 	/** Server user password. */
 	private String userPassword = "";
 	
+	/** TCP server mode. See Common.TCP_SERVER_MODE_* constants. */
+	private int tcpServerMode = Common.TCP_SERVER_MODE_THREAD_PER_CLIENT;
+	
+	/** Input sink. See Common.INPUT_SINK_* constants. */
+	private int inputSink = Common.INPUT_SINK_ROBOT;
+	
+	/** Port of metrics endpoint on loopback. Zero means that endpoint is off. */
+	private int metricsPort = 0;
+	
+	/** Pointer acceleration profiles. See PointerProfile. */
+	private List<PointerProfile> pointerProfiles = new ArrayList<>();
+	
 	/**
 	 * @return the visibleServer
 	 */
@@ -220,4 +238,80 @@ public class Settings {
 	public void setUserPassword(String userPassword) {
 		this.userPassword = userPassword;
 	}
+	
+	/**
+	 * @return the tcpServerMode
+	 */
+	public int getTcpServerMode() {
+		return tcpServerMode;
+	}
+	
+	/**
+	 * @param tcpServerMode the tcpServerMode to set
+	 */
+	public void setTcpServerMode(int tcpServerMode) {
+		this.tcpServerMode = tcpServerMode;
+	}
+	
+	/**
+	 * @return the inputSink
+	 */
+	public int getInputSink() {
+		return inputSink;
+	}
+	
+	/**
+	 * @param inputSink the inputSink to set
+	 */
+	public void setInputSink(int inputSink) {
+		this.inputSink = inputSink;
+	}
+	
+	/**
+	 * @return the metricsPort
+	 */
+	public int getMetricsPort() {
+		return metricsPort;
+	}
+	
+	/**
+	 * @param metricsPort the metricsPort to set
+	 */
+	public void setMetricsPort(int metricsPort) {
+		this.metricsPort = metricsPort;
+	}
+	
+	/**
+	 * @return the pointerProfiles
+	 */
+	@XmlElementWrapper(name="pointerProfiles")
+	@XmlElement(name="pointerProfile")
+	public List<PointerProfile> getPointerProfiles() {
+		return pointerProfiles;
+	}
+	
+	/**
+	 * @param pointerProfiles the pointerProfiles to set
+	 */
+	public void setPointerProfiles(List<PointerProfile> pointerProfiles) {
+		this.pointerProfiles = pointerProfiles;
+	}
+	
+	/**
+	 * Find pointer profile of a client.
+	 * @param clientName Address of the client.
+	 * @return Profile of the client, default profile or new profile with default values.
+	 */
+	public PointerProfile findPointerProfile(String clientName) {
+		PointerProfile defaultProfile = null;
+		
+		for(PointerProfile profile : pointerProfiles) {
+			if(profile.getName()==null) continue;
+			
+			if(profile.getName().equals(clientName)) return profile;
+			if(profile.getName().equals(PointerProfile.DEFAULT_NAME)) defaultProfile = profile;
+		}
+		
+		return (defaultProfile!=null) ? defaultProfile : new PointerProfile();
+	}
 }
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.ClipboardOwner;
+import java.awt.datatransfer.StringSelection;
+import java.awt.datatransfer.Transferable;
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Common part of sinks which inject events to the real system. State of the
+ * desktop (pointer, screens, num lock and clipboard) is read through AWT, if
+ * there is a display. Commands are run as new processes.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public abstract class AbstractInputSink implements InputSink {
+	
+	private static final Logger LOGGER = Logger.getLogger(AbstractInputSink.class.getSimpleName());
+	
+	private Clipboard clipboard;
+	private ClipboardOwner clipboardOwner;
+	
+	/* Screen bounds are read again and again, missing screen is logged only once. */
+	private volatile boolean isNoScreenLogged = false;
+	
+	/**
+	 * Obtain system clipboard. It is not available without display.
+	 * @return If clipboard can be used.
+	 */
+	protected boolean openClipboard() {
+		try {
+			clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
+		} catch(HeadlessException he) {
+			if(Common.ERROR) LOGGER.error("[openClipboard][There is no clipboard.]", he);
+			return false;
+		}
+		
+		clipboardOwner = new ClipboardOwner() {
+			@Override
+			public void lostOwnership(Clipboard clipboard, Transferable contents) {
+				if(Common.DEBUG) LOGGER.debug("[lostOwnership]");
+			}
+		};
+		
+		return true;
+	}
+	
+	/**
+	 * Put text to clipboard and press Ctrl+V.
+	 * @param text Text to paste.
+	 */
+	@Override
+	public void paste(String text) {
+		if(clipboard==null) {
+			if(Common.DEBUG) LOGGER.debug("[paste][There is no clipboard. Text is dropped.]");
+			return;
+		}
+		
+		StringSelection stringSelection = new StringSelection(text);
+		clipboard.setContents(stringSelection, clipboardOwner);
+		
+		keyPress(KeyEvent.VK_CONTROL);
+		keyPress(KeyEvent.VK_V);
+		keyRelease(KeyEvent.VK_V);
+		keyRelease(KeyEvent.VK_CONTROL);
+	}
+	
+	@Override
+	public boolean isNumLockOn() {
+		try {
+			return Toolkit.getDefaultToolkit().getLockingKeyState(KeyEvent.VK_NUM_LOCK);
+		} catch(UnsupportedOperationException uoe) {
+			/* HeadlessException is UnsupportedOperationException too. */
+			return false;
+		}
+	}
+	
+	@Override
+	public Point getPointerLocation() {
+		if(GraphicsEnvironment.isHeadless()) return null;
+		
+		try {
+			PointerInfo pointerInfo = MouseInfo.getPointerInfo();
+			return (pointerInfo==null) ? null : pointerInfo.getLocation();
+		} catch(HeadlessException he) {
+			return null;
+		}
+	}
+	
+	@Override
+	public Rectangle getScreenBounds() {
+		if(GraphicsEnvironment.isHeadless()) {
+			logNoScreen(null);
+			return null;
+		}
+		
+		Rectangle bounds = null;
+		
+		try {
+			for(GraphicsDevice device : GraphicsEnvironment.getLocalGraphicsEnvironment().
+					getScreenDevices()) {
+				Rectangle deviceBounds = device.getDefaultConfiguration().getBounds();
+				bounds = (bounds==null) ? deviceBounds : bounds.union(deviceBounds);
+			}
+		} catch(HeadlessException he) {
+			logNoScreen(he);
+		}
+		
+		return bounds;
+	}
+	
+	/**
+	 * Log missing screen, but only the first time.
+	 * @param he Cause or null if environment is headless.
+	 */
+	private void logNoScreen(HeadlessException he) {
+		if(isNoScreenLogged) return;
+		isNoScreenLogged = true;
+		
+		if(Common.ERROR) LOGGER.error("[getScreenBounds][There is no screen. Pointer is not " +
+				"limited to screen bounds.]", he);
+	}
+	
+	@Override
+	public void execute(String command) {
+		try {
+			Runtime.getRuntime().exec(command);
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[execute][Can not run '" + command + "'.]", ioe);
+		}
+	}
+}
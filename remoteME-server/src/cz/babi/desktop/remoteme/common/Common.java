@@ -16,10 +16,6 @@
 
 package cz.babi.desktop.remoteme.common;
 
-import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
-import java.util.Enumeration;
 import java.util.ResourceBundle;
 
 import org.apache.log4j.Logger;
@@ -55,7 +51,8 @@ public class Common {
 	 */
 	public static final String DEFAULT_PASSWORD = "default-password";
 	
-	/** Will be used for UDP scan mode and for first TCP comunication. */
+	/** Will be used for UDP scan mode and for first TCP comunication.
+	 * It is not thread-safe, so every thread uses its own copy: new AES128(AES128_DEFAULT). */
 	public static final AES128 AES128_DEFAULT = new AES128(Common.SECRET_ID,
 			Common.DEFAULT_PASSWORD);
 	
@@ -67,6 +64,12 @@ public class Common {
 	/** Debug argument. */
 	public static final String DEBUG_ARGUMENT = "-debug";
 	
+	/** Input sink argument. It is followed by one of {@link #INPUT_SINK_NAMES}. */
+	public static final String INPUT_SINK_ARGUMENT = "-sink";
+	
+	/** Metrics argument. It is followed by port of metrics endpoint, zero turns it off. */
+	public static final String METRICS_ARGUMENT = "-metrics";
+	
 	/** Debug log level. */
 	public static final int LOG_DEBUG = 1;
 	public static final int LOG_WARN = 2;
@@ -84,103 +87,38 @@ public class Common {
 	/** Default port. Can not be changed. */
 	public static final int DEFAULT_PORT = 4449;
 	
+	/** Version of handshake sent in HELLO and WELCOME messages. */
+	public static final int HANDSHAKE_VERSION = 3;
+	
+	/** TCP server modes. One thread per client, non-blocking channels
+	 * served by a few selector threads or client handlers run by executor
+	 * of MyThreadGroups. */
+	public static final int TCP_SERVER_MODE_THREAD_PER_CLIENT = 0;
+	public static final int TCP_SERVER_MODE_NIO = 1;
+	public static final int TCP_SERVER_MODE_EXECUTOR = 2;
+	
+	/** Input sinks. Robot, sink which only records events (for headless boxes
+	 * and benchmarks) or Linux evdev devices. Names are used on command line. */
+	public static final int INPUT_SINK_ROBOT = 0;
+	public static final int INPUT_SINK_RECORDING = 1;
+	public static final int INPUT_SINK_EVDEV = 2;
+	public static final String[] INPUT_SINK_NAMES = {"robot", "recording", "evdev"};
+	
 	/**
-	 * Obtain proper IP address.
+	 * Obtain proper IP address. It is cached, see {@link NetworkIdentity}.
 	 * 
 	 * @return IP address. May return null.
 	 */
 	public static String getLocalIpAddress() {
-		if(Common.ERROR)
-			LOGGER.error("[getLocalIpAddress]");
-		
-		/* Obtain list of interfaces. */
-		Enumeration<NetworkInterface> networkInterfaces = null;
-		try {
-			networkInterfaces = NetworkInterface.getNetworkInterfaces();
-		} catch(SocketException e) {
-			if(Common.ERROR)
-				LOGGER.error("[getLocalIpAddress][Can not obtain "
-						+ "network interfaces.]");
-			
-			return null;
-		}
-		
-		while(networkInterfaces.hasMoreElements()) {
-			NetworkInterface networkInterface = networkInterfaces.nextElement();
-			
-			Enumeration<InetAddress> inetAddresses = networkInterface
-					.getInetAddresses();
-			
-			while(inetAddresses.hasMoreElements()) {
-				InetAddress inetAddress = inetAddresses.nextElement();
-				
-				/* This is our IP address. */
-				if(inetAddress.isSiteLocalAddress()) {
-					return inetAddress.getHostAddress();
-				}
-			}
-		}
-		
-		return null;
+		return NetworkIdentity.getInstance().getSnapshot().getIpAddress();
 	}
 	
 	/**
-	 * Get Mac address.
+	 * Get Mac address. It is cached, see {@link NetworkIdentity}.
 	 * 
 	 * @return Mac address. May return null.
 	 */
 	public static String getMapAddress() {
-		if(Common.ERROR)
-			LOGGER.error("[getMapAddress]");
-		
-		/* Obtain list of interfaces. */
-		Enumeration<NetworkInterface> networkInterfaces = null;
-		try {
-			networkInterfaces = NetworkInterface.getNetworkInterfaces();
-		} catch(SocketException e) {
-			if(Common.ERROR)
-				LOGGER.error("[getLocalIpAddress][Can not obtain "
-						+ "network interfaces.]");
-			
-			return null;
-		}
-		
-		while(networkInterfaces.hasMoreElements()) {
-			NetworkInterface networkInterface = networkInterfaces.nextElement();
-			
-			Enumeration<InetAddress> inetAddresses = networkInterface
-					.getInetAddresses();
-			
-			while(inetAddresses.hasMoreElements()) {
-				InetAddress inetAddress = inetAddresses.nextElement();
-				
-				/* This is our IP address. */
-				if(inetAddress.isSiteLocalAddress()) {
-					byte[] mac = null;
-					try {
-						mac = networkInterface.getHardwareAddress();
-					} catch(SocketException e) {
-						if(Common.ERROR)
-							LOGGER.error("[getLocalIpAddress][Can not obtain "
-									+ "hardware address.]");
-						
-						return null;
-					}
-					
-					if(mac!=null) {
-						StringBuilder sb = new StringBuilder();
-						for(int i = 0; i < mac.length; i++) {
-							sb.append(String.format("%02X%s", mac[i],
-									(i < mac.length - 1) ? "-" : ""));
-						}
-						
-						return sb.toString();
-					} else
-						return null;
-				}
-			}
-		}
-		
-		return null;
+		return NetworkIdentity.getInstance().getSnapshot().getMacAddress();
 	}
 }
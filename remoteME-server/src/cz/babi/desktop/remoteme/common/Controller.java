@@ -16,27 +16,15 @@
 
 package cz.babi.desktop.remoteme.common;
 
-import java.awt.AWTException;
-import java.awt.MouseInfo;
-import java.awt.Point;
-import java.awt.Robot;
-import java.awt.Toolkit;
-import java.awt.datatransfer.Clipboard;
-import java.awt.datatransfer.ClipboardOwner;
-import java.awt.datatransfer.StringSelection;
-import java.awt.datatransfer.Transferable;
-import java.awt.event.InputEvent;
-import java.awt.event.KeyEvent;
-import java.io.IOException;
-import java.util.ArrayList;
-
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.log4j.Logger;
 
+import cz.babi.desktop.remoteme.Settings;
 import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
 
 /**
- * This class represents controller for Robot class.
+ * This class represents controller of one client. Input events are not
+ * injected here, they are passed to the shared {@link InputInjector}.
  * 
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
@@ -45,86 +33,103 @@ public class Controller {
 	
 	private static final Logger LOGGER = Logger.getLogger(Controller.class.getSimpleName());
 	
-	private Robot robot;
-	private Clipboard clipboard;
-	private ClipboardOwner clipboardOwner;
+	private final InputInjector injector = InputInjector.getInstance();
+	
+	private final PointerAcceleration pointerAcceleration;
 	
 	/**
-	 * Init Robot.
-	 * @return If robot is inited.
+	 * Constructor.
+	 * @param clientName Address of the client. It selects pointer profile.
 	 */
-	public boolean initRobot() {
-		try {
-			robot = new Robot();
-		} catch(AWTException awte) {
-			if(Common.ERROR) LOGGER.error("[TCPClientHandler][Can not create Robot.]", awte);
-			return false;
-		}
+	public Controller(String clientName) {
+		PointerProfile profile = Settings.getInstance().findPointerProfile(clientName);
+		if(Common.DEBUG) LOGGER.debug("[Controller][Pointer profile '" + profile.getName() +
+				"' is used for " + clientName + ".]");
 		
-		return true;
+		pointerAcceleration = new PointerAcceleration(profile);
 	}
 	
 	/**
-	 * Init clipboard.
+	 * Init Robot. There is only one Robot for all clients, it is created
+	 * by the first call.
+	 * @return If robot is inited.
 	 */
-	public void initClipboard() {
-		clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
-		
-		clipboardOwner = new ClipboardOwner() {
-			@Override
-			public void lostOwnership(Clipboard clipboard, Transferable contents) {
-				if(Common.DEBUG) LOGGER.debug("[lostOwnership]");
-			}
-		};
+	public boolean initRobot() {
+		return injector.init();
 	}
 	
 	/**
-	 * Move mouse.
+	 * Move mouse. Malformed offsets are ignored.
 	 * @param addInfo String include offsetX and offsetY.
 	 */
 	public void mouseMove(String addInfo) {
 		String[] offsets = addInfo.split(SimpleMessage.SEPARATOR);
-		float offsetX = Float.valueOf(offsets[0]);
-		float offsetY = Float.valueOf(offsets[1]);
 		
-		if(Common.DEBUG) LOGGER.debug("[mouseMove][" + offsetX*-1 + ";" + offsetY*-1 + "]");
+		float offsetX;
+		float offsetY;
+		try {
+			if(offsets.length<2) throw new NumberFormatException("Missing offset.");
+			
+			offsetX = Float.parseFloat(offsets[0]);
+			offsetY = Float.parseFloat(offsets[1]);
+		} catch(NumberFormatException nfe) {
+			if(Common.ERROR) LOGGER.error("[mouseMove][Wrong offsets '" + addInfo + "'.]", nfe);
+			return;
+		}
 		
-		Point currentLocation = MouseInfo.getPointerInfo().getLocation();
+		mouseMove(offsetX, offsetY);
+	}
+	
+	/**
+	 * Move mouse. It is synchronized, because moves come from TCP connection
+	 * and from UDP motion channel.
+	 * @param offsetX Offset X.
+	 * @param offsetY Offset Y.
+	 */
+	public synchronized void mouseMove(float offsetX, float offsetY) {
+		pointerAcceleration.apply(offsetX, offsetY);
 		
-		robot.mouseMove(currentLocation.x + (int)offsetX*-1,
-				currentLocation.y + (int)offsetY*-1);
+		injector.mouseMove(pointerAcceleration.getX(), pointerAcceleration.getY());
 	}
 	
 	/**
 	 * Left mouse click.
 	 */
 	public void mouseLeftClick() {
-		if(Common.DEBUG) LOGGER.debug("[mouseLeftClick]");
-		
-		robot.mousePress(InputEvent.BUTTON1_MASK);
-		robot.mouseRelease(InputEvent.BUTTON1_MASK);
+		injector.mouseLeftClick();
 	}
 	
 	/**
 	 * Right mouse click.
 	 */
 	public void mouseRightClick() {
-		if(Common.DEBUG) LOGGER.debug("[mouseRightClick]");
-		
-		robot.mousePress(InputEvent.BUTTON3_MASK);
-		robot.mouseRelease(InputEvent.BUTTON3_MASK);
+		injector.mouseRightClick();
 	}
 	
 	/**
-	 * Mouse wheel.
+	 * Mouse wheel. Malformed amount is ignored.
 	 * @param addInfo Wheel amout.
 	 */
 	public void mouseWheel(String addInfo) {
 		if(Common.DEBUG) LOGGER.debug("[mouseWheel]");
 		
-		float wheelAmount = Float.valueOf(addInfo);
-		if(Common.DEBUG) LOGGER.debug("[mouseWheel][" + wheelAmount + "]");
-		robot.mouseWheel(((int)wheelAmount*-1));
+		float wheelAmount;
+		try {
+			wheelAmount = Float.parseFloat(addInfo);
+		} catch(NumberFormatException nfe) {
+			if(Common.ERROR) LOGGER.error("[mouseWheel][Wrong amount '" + addInfo + "'.]", nfe);
+			return;
+		}
+		
+		mouseWheel(wheelAmount);
+	}
+	
+	/**
+	 * Mouse wheel.
+	 * @param wheelAmount Wheel amout.
+	 */
+	public void mouseWheel(float wheelAmount) {
+		injector.mouseWheel(wheelAmount);
 	}
 	
 	/**
@@ -132,15 +137,7 @@ public class Controller {
 	 * @param character Character to paste from clipboard.
 	 */
 	public void keyClipboard(String addInfo) {
-		if(Common.DEBUG) LOGGER.debug("[keyClipboard][" + addInfo + "]");
-		
-		StringSelection stringSelection = new StringSelection(addInfo);
-		clipboard.setContents(stringSelection, clipboardOwner);
-		
-		robot.keyPress(KeyEvent.VK_CONTROL);
-		robot.keyPress(KeyEvent.VK_V);
-		robot.keyRelease(KeyEvent.VK_V);
-		robot.keyRelease(KeyEvent.VK_CONTROL);
+		injector.keyClipboard(addInfo);
 	}
 	
 	/**
@@ -148,96 +145,52 @@ public class Controller {
 	 * @param character Key(s) to stroke. May contains more commands.
 	 */
 	public void keyStroke(String addInfo) {
-		Integer[] keyCodes = null;
-		ArrayList<Integer[]> keyCodesList = null;
-		
-		/* Need to check if addInfo contains more than one command. */
-		String[] commands = addInfo.split(MappedKeys.DIVIDER);
-		
-		/* There is only one command. */
-		if(commands.length==1) {
-			keyCodes = MappedKeys.keyMap.get(addInfo);
-			
-			if(keyCodes!=null) {
-				makeStroke(keyCodes);
-			} else if(Common.DEBUG) LOGGER.debug("[keyStroke][No mapped key for '" +
-					addInfo + "'.]");
-		} else {
-			keyCodesList = new ArrayList<Integer[]>();
-			/* For every command we need to obtain its key code(s) */
-			for(int i=0; i<commands.length; i++) {
-				Integer[] command = MappedKeys.keyMap.get(commands[i]);
-				if(command!=null) keyCodesList.add(command);
-			}
-			
-			if(!keyCodesList.isEmpty()) {
-				/* Iterate arrays in list. */
-				ArrayList<Integer> list = new ArrayList<Integer>();
-				for(Integer[] codes : keyCodesList) {
-					for(Integer code : codes) list.add(code);
-				}
-				
-				keyCodes = new Integer[list.size()];
-				for(int i=0; i<keyCodes.length; i++) keyCodes[i] = list.get(i);
-				
-				makeStroke(keyCodes);
-			} else if(Common.DEBUG) LOGGER.debug("[keyStroke][No mapped key for '" +
-					addInfo + "'.]");
-		}
+		keyStroke(compileKeyStroke(addInfo));
 	}
 	
 	/**
-	 * Make key stroke.
-	 * @param character Key(s) to stroke.
+	 * Simulate compiled key stroke.
+	 * @param keySequence Keys from {@link #compileKeyStroke(String)}.
 	 */
-	private void makeStroke(Integer[] keyCodes) {
-		/*
-		 * There is a bug with shift and arrows.
-		 * Workaround is turn num lock off.
-		 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4908075
-		 */
-		boolean needSetNumlockOn = false;
-		/* If numlock is on. */
-		if(Toolkit.getDefaultToolkit().getLockingKeyState(KeyEvent.VK_NUM_LOCK)) {
-			boolean isShift = false;
-			boolean isArrow = false;
-			
-			/* Check if there is a shift or an arrow. */
-			for(Integer integer : keyCodes) {
-				if(integer==KeyEvent.VK_SHIFT) isShift = true;
-				if(integer==KeyEvent.VK_LEFT) isArrow = true;
-				if(integer==KeyEvent.VK_RIGHT) isArrow = true;
-				if(integer==KeyEvent.VK_UP) isArrow = true;
-				if(integer==KeyEvent.VK_DOWN) isArrow = true;
-			}
+	public void keyStroke(KeySequence keySequence) {
+		if(!keySequence.isEmpty()) injector.keyStroke(keySequence);
+	}
+	
+	/**
+	 * Compile key stroke to key sequence. Result can be kept and stroked again
+	 * without parsing.
+	 * @param addInfo Key(s) to stroke. May contains more commands.
+	 * @return Keys of all commands. Empty if there is no mapped key.
+	 */
+	public static KeySequence compileKeyStroke(String addInfo) {
+		/* There is only one command. Mapped sequence is used as it is. */
+		if(!addInfo.contains(MappedKeys.DIVIDER)) {
+			KeySequence keySequence = MappedKeys.get(addInfo);
+			if(keySequence!=null) return keySequence;
 			
-			/* Disable numlock. */
-			if(isShift && isArrow) {
-				robot.keyPress(KeyEvent.VK_NUM_LOCK);
-				robot.keyRelease(KeyEvent.VK_NUM_LOCK);
-				needSetNumlockOn = true;
-			}
+			if(Common.DEBUG) LOGGER.debug("[compileKeyStroke][No mapped key for '" +
+					addInfo + "'.]");
+			return KeySequence.EMPTY;
 		}
 		
-		/* Do press. */
-		for(int i=0; i<keyCodes.length; i++) {
-			if(Common.DEBUG) LOGGER.debug("[keyPress][" + keyCodes[i] + "]");
+		/* For every command we need to obtain its key code(s) */
+		KeySequence[] commands = new KeySequence[addInfo.length()/MappedKeys.DIVIDER.length() + 1];
+		int count = 0;
+		int start = 0;
+		while(start<=addInfo.length()) {
+			int end = addInfo.indexOf(MappedKeys.DIVIDER, start);
+			if(end<0) end = addInfo.length();
 			
-			robot.keyPress(keyCodes[i]);
-		}
-		
-		/* Do release. */
-		for(int i=keyCodes.length-1; i>=0; i--){
-			if(Common.DEBUG) LOGGER.debug("[keyRelease][" + keyCodes[i] + "]");
+			KeySequence command = MappedKeys.get(addInfo.substring(start, end));
+			if(command!=null) commands[count++] = command;
 			
-			robot.keyRelease(keyCodes[i]);
+			start = end + MappedKeys.DIVIDER.length();
 		}
 		
-		/* Set numlock back. */
-		if(needSetNumlockOn) {
-			robot.keyPress(KeyEvent.VK_NUM_LOCK);
-			robot.keyRelease(KeyEvent.VK_NUM_LOCK);
-		}
+		if(count==0 && Common.DEBUG) LOGGER.debug("[compileKeyStroke][No mapped key for '" +
+				addInfo + "'.]");
+		
+		return KeySequence.join(commands, count);
 	}
 	
 	/**
@@ -290,11 +243,7 @@ public class Controller {
 			return;
 		}
 		
-		try {
-			Runtime.getRuntime().exec(shutdownCommand);
-		} catch(IOException e) {
-			if(Common.ERROR) LOGGER.error("[doShutdown][Ups. Can not shut down pc.]");
-		}
+		injector.execute(shutdownCommand);
 	}
 	
 	/**
@@ -317,11 +266,7 @@ public class Controller {
 			return;
 		}
 		
-		try {
-			Runtime.getRuntime().exec(shutdownCommand);
-		} catch(IOException e) {
-			if(Common.ERROR) LOGGER.error("[doRestart][Ups. Can not restart pc.]");
-		}
+		injector.execute(shutdownCommand);
 	}
 	
 	/**
@@ -340,10 +285,6 @@ public class Controller {
 			return;
 		}
 		
-		try {
-			Runtime.getRuntime().exec(shutdownCommand);
-		} catch(IOException e) {
-			if(Common.ERROR) LOGGER.error("[doLogoff][Ups. Can not log off user.]");
-		}
+		injector.execute(shutdownCommand);
 	}
 }
@@ -0,0 +1,373 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.Point;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Linux sink which writes events directly to evdev devices of the kernel
+ * (/dev/input/eventN), so they go the same way as events of real mouse and
+ * keyboard. It works without X server and with Wayland, and nothing waits
+ * for the display server. Creating own device by uinput needs ioctl calls,
+ * which are not possible from pure Java, so events are written to the first
+ * mouse and the first keyboard found in /proc/bus/input/devices.
+ * Server needs write permission to both devices (root or group 'input').
+ * <p>
+ * Mouse device is relative, so absolute position from {@link PointerTracker}
+ * is turned back to offsets. Desktop may accelerate them, resync of the
+ * tracker corrects it, if there is a display. Key codes are translated for
+ * US layout, characters which need Shift get it.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class EvdevInputSink extends AbstractInputSink {
+	
+	private static final Logger LOGGER = Logger.getLogger(EvdevInputSink.class.getSimpleName());
+	
+	private static final String DEVICES_FILE = "/proc/bus/input/devices";
+	private static final String DEVICE_PATH = "/dev/input/";
+	
+	/* Types and codes of events, see linux/input-event-codes.h. */
+	private static final int EV_SYN = 0x00;
+	private static final int EV_KEY = 0x01;
+	private static final int EV_REL = 0x02;
+	private static final int SYN_REPORT = 0;
+	private static final int REL_X = 0x00;
+	private static final int REL_Y = 0x01;
+	private static final int REL_WHEEL = 0x08;
+	private static final int BTN_LEFT = 0x110;
+	private static final int BTN_RIGHT = 0x111;
+	private static final int BTN_MIDDLE = 0x112;
+	private static final int KEY_LEFTSHIFT = 42;
+	
+	/* Capabilities of devices. Keyboard has keys, LEDs and repeat, mouse has X and Y. */
+	private static final long KEYBOARD_EVENTS = (1<<EV_KEY) | (1<<0x11) | (1<<0x14);
+	private static final long MOUSE_AXES = (1<<REL_X) | (1<<REL_Y);
+	
+	/** Flag of translated key which needs Shift. */
+	private static final int SHIFT = 0x10000;
+	
+	/** Size of struct input_event: struct timeval, type, code and value. */
+	private static final int EVENT_SIZE = ("32".equals(System.getProperty("sun.arch.data.model")) ?
+			8 : 16) + 8;
+	
+	/**
+	 * Translation of AWT key codes to Linux key codes, index is AWT key code.
+	 * All translated AWT codes are below 0x10000. Zero means no translation,
+	 * Linux has no key with that code.
+	 */
+	private static final int[] KEYS = new int[0x10000];
+	
+	static {
+		int[] letters = {30, 48, 46, 32, 18, 33, 34, 35, 23, 36, 37, 38, 50, 49, 24, 25, 16, 19,
+				31, 20, 22, 47, 17, 45, 21, 44};
+		for(int i=0; i<letters.length; i++) KEYS[KeyEvent.VK_A + i] = letters[i];
+		
+		/* Key 1 is 2, ..., key 9 is 10, key 0 is 11. */
+		for(int i=1; i<=9; i++) KEYS[KeyEvent.VK_0 + i] = i + 1;
+		KEYS[KeyEvent.VK_0] = 11;
+		
+		for(int i=0; i<10; i++) KEYS[KeyEvent.VK_F1 + i] = 59 + i;
+		KEYS[KeyEvent.VK_F11] = 87;
+		KEYS[KeyEvent.VK_F12] = 88;
+		for(int i=0; i<12; i++) KEYS[KeyEvent.VK_F13 + i] = 183 + i;
+		
+		KEYS[KeyEvent.VK_ESCAPE] = 1;
+		KEYS[KeyEvent.VK_MINUS] = 12;
+		KEYS[KeyEvent.VK_EQUALS] = 13;
+		KEYS[KeyEvent.VK_BACK_SPACE] = 14;
+		KEYS[KeyEvent.VK_TAB] = 15;
+		KEYS[KeyEvent.VK_OPEN_BRACKET] = 26;
+		KEYS[KeyEvent.VK_CLOSE_BRACKET] = 27;
+		KEYS[KeyEvent.VK_ENTER] = 28;
+		KEYS[KeyEvent.VK_CONTROL] = 29;
+		KEYS[KeyEvent.VK_SEMICOLON] = 39;
+		KEYS[KeyEvent.VK_QUOTE] = 40;
+		KEYS[KeyEvent.VK_BACK_QUOTE] = 41;
+		KEYS[KeyEvent.VK_SHIFT] = KEY_LEFTSHIFT;
+		KEYS[KeyEvent.VK_BACK_SLASH] = 43;
+		KEYS[KeyEvent.VK_COMMA] = 51;
+		KEYS[KeyEvent.VK_PERIOD] = 52;
+		KEYS[KeyEvent.VK_SLASH] = 53;
+		KEYS[KeyEvent.VK_ASTERISK] = 55;
+		KEYS[KeyEvent.VK_ALT] = 56;
+		KEYS[KeyEvent.VK_SPACE] = 57;
+		KEYS[KeyEvent.VK_CAPS_LOCK] = 58;
+		KEYS[KeyEvent.VK_NUM_LOCK] = 69;
+		KEYS[KeyEvent.VK_SCROLL_LOCK] = 70;
+		KEYS[KeyEvent.VK_ADD] = 78;
+		KEYS[KeyEvent.VK_LESS] = 86;
+		KEYS[KeyEvent.VK_GREATER] = 86 | SHIFT;
+		KEYS[KeyEvent.VK_ALT_GRAPH] = 100;
+		KEYS[KeyEvent.VK_HOME] = 102;
+		KEYS[KeyEvent.VK_UP] = 103;
+		KEYS[KeyEvent.VK_PAGE_UP] = 104;
+		KEYS[KeyEvent.VK_LEFT] = 105;
+		KEYS[KeyEvent.VK_RIGHT] = 106;
+		KEYS[KeyEvent.VK_END] = 107;
+		KEYS[KeyEvent.VK_DOWN] = 108;
+		KEYS[KeyEvent.VK_PAGE_DOWN] = 109;
+		KEYS[KeyEvent.VK_INSERT] = 110;
+		KEYS[KeyEvent.VK_DELETE] = 111;
+		KEYS[KeyEvent.VK_WINDOWS] = 125;
+		
+		KEYS[KeyEvent.VK_EXCLAMATION_MARK] = 2 | SHIFT;
+		KEYS[KeyEvent.VK_AT] = 3 | SHIFT;
+		KEYS[KeyEvent.VK_NUMBER_SIGN] = 4 | SHIFT;
+		KEYS[KeyEvent.VK_DOLLAR] = 5 | SHIFT;
+		KEYS[KeyEvent.VK_CIRCUMFLEX] = 7 | SHIFT;
+		KEYS[KeyEvent.VK_AMPERSAND] = 8 | SHIFT;
+		KEYS[KeyEvent.VK_LEFT_PARENTHESIS] = 10 | SHIFT;
+		KEYS[KeyEvent.VK_RIGHT_PARENTHESIS] = 11 | SHIFT;
+		KEYS[KeyEvent.VK_UNDERSCORE] = 12 | SHIFT;
+		KEYS[KeyEvent.VK_COLON] = 39 | SHIFT;
+		KEYS[KeyEvent.VK_QUOTEDBL] = 40 | SHIFT;
+	}
+	
+	private FileChannel mouse;
+	private FileChannel keyboard;
+	
+	/* Events of one action are written at once, the last one is SYN_REPORT. */
+	private final ByteBuffer events = ByteBuffer.allocate(EVENT_SIZE*4).
+			order(ByteOrder.nativeOrder());
+	
+	/* Position where the pointer should be now. */
+	private int x = 0;
+	private int y = 0;
+	
+	@Override
+	public boolean open() {
+		String mouseDevice = null;
+		String keyboardDevice = null;
+		
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(DEVICES_FILE), Common.CHARSET))) {
+			String handlers = "";
+			long eventBits = 0;
+			long relativeBits = 0;
+			
+			String line;
+			do {
+				line = reader.readLine();
+				
+				if(line==null || line.isEmpty()) {
+					/* End of one device. */
+					String device = findEventHandler(handlers);
+					if(device!=null && mouseDevice==null && handlers.contains("mouse") &&
+							(relativeBits & MOUSE_AXES)==MOUSE_AXES)
+						mouseDevice = device;
+					else if(device!=null && keyboardDevice==null && handlers.contains("kbd") &&
+							(eventBits & KEYBOARD_EVENTS)==KEYBOARD_EVENTS)
+						keyboardDevice = device;
+					
+					handlers = "";
+					eventBits = 0;
+					relativeBits = 0;
+				} else if(line.startsWith("H: Handlers=")) {
+					handlers = line.substring(12);
+				} else if(line.startsWith("B: EV=")) {
+					eventBits = parseBits(line.substring(6));
+				} else if(line.startsWith("B: REL=")) {
+					relativeBits = parseBits(line.substring(7));
+				}
+			} while(line!=null);
+		} catch(IOException | NumberFormatException ex) {
+			if(Common.ERROR) LOGGER.error("[open][Can not read " + DEVICES_FILE + ".]", ex);
+			return false;
+		}
+		
+		if(mouseDevice==null || keyboardDevice==null) {
+			if(Common.ERROR) LOGGER.error("[open][There is no mouse or keyboard. Mouse: " +
+					mouseDevice + ", keyboard: " + keyboardDevice + ".]");
+			return false;
+		}
+		
+		try {
+			mouse = new FileOutputStream(DEVICE_PATH + mouseDevice).getChannel();
+			keyboard = new FileOutputStream(DEVICE_PATH + keyboardDevice).getChannel();
+		} catch(IOException | SecurityException ex) {
+			if(Common.ERROR) LOGGER.error("[open][Can not open input devices. Server needs " +
+					"write permission to " + DEVICE_PATH + ".]", ex);
+			return false;
+		}
+		
+		if(Common.DEBUG) LOGGER.debug("[open][Mouse: " + mouseDevice + ", keyboard: " +
+				keyboardDevice + ".]");
+		
+		openClipboard();
+		
+		return true;
+	}
+	
+	@Override
+	public void mouseMove(int x, int y) {
+		if(x!=this.x) addEvent(EV_REL, REL_X, x - this.x);
+		if(y!=this.y) addEvent(EV_REL, REL_Y, y - this.y);
+		
+		this.x = x;
+		this.y = y;
+		
+		write(mouse);
+	}
+	
+	@Override
+	public void mousePress(int buttons) {
+		mouseButtons(buttons, 1);
+	}
+	
+	@Override
+	public void mouseRelease(int buttons) {
+		mouseButtons(buttons, 0);
+	}
+	
+	@Override
+	public void mouseWheel(int wheelAmount) {
+		/* Robot scrolls down for positive amount, evdev scrolls up. */
+		addEvent(EV_REL, REL_WHEEL, -wheelAmount);
+		write(mouse);
+	}
+	
+	@Override
+	public void keyPress(int keyCode) {
+		int key = translate(keyCode);
+		if(key==0) {
+			if(Common.DEBUG) LOGGER.debug("[keyPress][Key " + keyCode + " is not translated.]");
+			return;
+		}
+		
+		if((key & SHIFT)!=0) addEvent(EV_KEY, KEY_LEFTSHIFT, 1);
+		addEvent(EV_KEY, key & ~SHIFT, 1);
+		write(keyboard);
+	}
+	
+	@Override
+	public void keyRelease(int keyCode) {
+		int key = translate(keyCode);
+		if(key==0) return;
+		
+		addEvent(EV_KEY, key & ~SHIFT, 0);
+		if((key & SHIFT)!=0) addEvent(EV_KEY, KEY_LEFTSHIFT, 0);
+		write(keyboard);
+	}
+	
+	/**
+	 * @param keyCode AWT key code.
+	 * @return Linux key code with {@link #SHIFT} flag or zero if key is not translated.
+	 */
+	private static int translate(int keyCode) {
+		return (keyCode>=0 && keyCode<KEYS.length) ? KEYS[keyCode] : 0;
+	}
+	
+	/**
+	 * Real position is known only with display. Tracked position continues
+	 * from it, so offsets have to continue from it too.
+	 */
+	@Override
+	public Point getPointerLocation() {
+		Point location = super.getPointerLocation();
+		
+		if(location!=null) {
+			x = location.x;
+			y = location.y;
+		}
+		
+		return location;
+	}
+	
+	/**
+	 * @param buttons Mask of buttons, see {@link InputEvent}.
+	 * @param value 1 for press, 0 for release.
+	 */
+	private void mouseButtons(int buttons, int value) {
+		if((buttons & (InputEvent.BUTTON1_MASK | InputEvent.BUTTON1_DOWN_MASK))!=0)
+			addEvent(EV_KEY, BTN_LEFT, value);
+		if((buttons & (InputEvent.BUTTON2_MASK | InputEvent.BUTTON2_DOWN_MASK))!=0)
+			addEvent(EV_KEY, BTN_MIDDLE, value);
+		if((buttons & (InputEvent.BUTTON3_MASK | InputEvent.BUTTON3_DOWN_MASK))!=0)
+			addEvent(EV_KEY, BTN_RIGHT, value);
+		
+		write(mouse);
+	}
+	
+	/**
+	 * Add one struct input_event to the buffer. Time is filled by kernel.
+	 * @param type Type of event.
+	 * @param code Code of event.
+	 * @param value Value of event.
+	 */
+	private void addEvent(int type, int code, int value) {
+		for(int i=0; i<EVENT_SIZE-8; i++) events.put((byte)0);
+		
+		events.putShort((short)type);
+		events.putShort((short)code);
+		events.putInt(value);
+	}
+	
+	/**
+	 * Finish action by SYN_REPORT and write all its events to the device.
+	 * @param device Device.
+	 */
+	private void write(FileChannel device) {
+		if(events.position()==0) return;
+		
+		addEvent(EV_SYN, SYN_REPORT, 0);
+		events.flip();
+		
+		try {
+			while(events.hasRemaining()) device.write(events);
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[write][Can not write events.]", ioe);
+		}
+		
+		events.clear();
+	}
+	
+	/**
+	 * @param bitmap Bitmap from devices file. Only the lowest word is needed.
+	 * @return Bits.
+	 */
+	private static long parseBits(String bitmap) {
+		String[] words = bitmap.trim().split(" ");
+		
+		return new BigInteger(words[words.length-1], 16).longValue();
+	}
+	
+	/**
+	 * @param handlers Handlers of device, e.g. <code>sysrq kbd event3 leds</code>.
+	 * @return Name of event device or null.
+	 */
+	private static String findEventHandler(String handlers) {
+		for(String handler : handlers.split(" "))
+			if(handler.startsWith("event")) return handler;
+		
+		return null;
+	}
+}
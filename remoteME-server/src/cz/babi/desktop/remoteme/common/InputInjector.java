@@ -0,0 +1,470 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+
+/**
+ * The only one owner of {@link InputSink}, by default Robot and clipboard. All
+ * sessions put their input events to one queue and this thread injects them
+ * to the sink one by one.
+ * So key sequences of more clients never interleave and modifiers of one
+ * client can not stick to keys of another. Reading of sockets does not wait
+ * for slow system input.
+ * <p>
+ * If the queue is full, new mouse moves are merged into one pending move,
+ * which keeps its place among other events. Clicks, wheels, keys and
+ * commands are never dropped. Queue depth and latency
+ * between posting and injecting of events are available for monitoring,
+ * histograms of latencies and of time spent in the sink are in {@link Metrics}.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public final class InputInjector implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(InputInjector.class.getSimpleName());
+	
+	private static final InputInjector instance = new InputInjector();
+	
+	/** Max count of waiting events. Moves over it are merged, other events are always added. */
+	private static final int QUEUE_CAPACITY = 4096;
+	
+	/** Injector checks its state at least this often, even if there is nothing to do. */
+	private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+	
+	/* Types of events. */
+	private static final int MOUSE_MOVE = 0;
+	private static final int MOUSE_LEFT_CLICK = 1;
+	private static final int MOUSE_RIGHT_CLICK = 2;
+	private static final int MOUSE_WHEEL = 3;
+	private static final int KEY_STROKE = 4;
+	private static final int KEY_CLIPBOARD = 5;
+	private static final int COMMAND = 6;
+	
+	/**
+	 * One input event waiting for injection.
+	 */
+	private static class Event {
+		final int type;
+		final float x;
+		final float y;
+		final Object data;
+		final long postTime;
+		
+		Event(int type, float x, float y, Object data) {
+			this(type, x, y, data, System.nanoTime());
+		}
+		
+		Event(int type, float x, float y, Object data, long postTime) {
+			this.type = type;
+			this.x = x;
+			this.y = y;
+			this.data = data;
+			this.postTime = postTime;
+		}
+	}
+	
+	private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+	
+	/* Moves merged while the queue is full. Every event posted after them
+	 * waits behind them, so order of events is kept. */
+	private final Object pendingMoveLock = new Object();
+	private boolean hasPendingMove = false;
+	private float pendingMoveX = 0;
+	private float pendingMoveY = 0;
+	private long pendingMoveTime = 0;
+	
+	private final AtomicLong injectedEvents = new AtomicLong();
+	private final AtomicLong coalescedMoves = new AtomicLong();
+	private volatile long lastLatencyNanos = 0;
+	private volatile long maxLatencyNanos = 0;
+	
+	private final Metrics metrics = Metrics.getInstance();
+	
+	private InputSink sink;
+	private volatile PointerTracker pointer;
+	
+	private volatile Thread thread;
+	
+	private InputInjector() {}
+	
+	/**
+	 * Get singleton instance.
+	 * @return Instance.
+	 */
+	public static InputInjector getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Open sink chosen in settings and start injector thread. It is done only
+	 * once, next calls just return the result.
+	 * @return If injector is ready.
+	 */
+	public boolean init() {
+		if(thread!=null) return true;
+		
+		return init(createSink(Settings.getInstance().getInputSink()));
+	}
+	
+	/**
+	 * @param inputSink One of Common.INPUT_SINK_* constants.
+	 * @return New sink. Robot sink if constant is not known.
+	 */
+	public static InputSink createSink(int inputSink) {
+		switch(inputSink) {
+			case Common.INPUT_SINK_RECORDING:
+				return new RecordingInputSink();
+			case Common.INPUT_SINK_EVDEV:
+				return new EvdevInputSink();
+			default:
+				return new RobotInputSink();
+		}
+	}
+	
+	/**
+	 * Start injector thread with given sink. It is done only once, next calls
+	 * just return the result and the sink is not used.
+	 * @param inputSink Sink for all events.
+	 * @return If injector is ready.
+	 */
+	public synchronized boolean init(InputSink inputSink) {
+		if(thread!=null) return true;
+		
+		if(!inputSink.open()) return false;
+		
+		if(Common.DEBUG) LOGGER.debug("[init][Input sink: " + inputSink.getClass().getSimpleName() +
+				".]");
+		
+		sink = inputSink;
+		pointer = new PointerTracker(inputSink);
+		
+		Thread injectorThread = new Thread(MyThreadGroups.getInstance().getServersThreadGroup(),
+				this, "Input Injector");
+		injectorThread.setDaemon(true);
+		thread = injectorThread;
+		injectorThread.start();
+		
+		return true;
+	}
+	
+	/**
+	 * Move mouse.
+	 * @param offsetX Offset X.
+	 * @param offsetY Offset Y.
+	 */
+	public void mouseMove(float offsetX, float offsetY) {
+		post(new Event(MOUSE_MOVE, offsetX, offsetY, null));
+	}
+	
+	/**
+	 * Left mouse click.
+	 */
+	public void mouseLeftClick() {
+		post(new Event(MOUSE_LEFT_CLICK, 0, 0, null));
+	}
+	
+	/**
+	 * Right mouse click.
+	 */
+	public void mouseRightClick() {
+		post(new Event(MOUSE_RIGHT_CLICK, 0, 0, null));
+	}
+	
+	/**
+	 * Mouse wheel.
+	 * @param wheelAmount Wheel amount.
+	 */
+	public void mouseWheel(float wheelAmount) {
+		post(new Event(MOUSE_WHEEL, wheelAmount, 0, null));
+	}
+	
+	/**
+	 * Stroke whole key sequence. Keys of another event are never injected
+	 * in the middle of it.
+	 * @param keySequence Keys to stroke.
+	 */
+	public void keyStroke(KeySequence keySequence) {
+		post(new Event(KEY_STROKE, 0, 0, keySequence));
+	}
+	
+	/**
+	 * Paste text through clipboard.
+	 * @param text Text to paste.
+	 */
+	public void keyClipboard(String text) {
+		post(new Event(KEY_CLIPBOARD, 0, 0, text));
+	}
+	
+	/**
+	 * Run system command after all events which are already waiting.
+	 * @param command Command line.
+	 */
+	public void execute(String command) {
+		post(new Event(COMMAND, 0, 0, command));
+	}
+	
+	/**
+	 * @return Count of events waiting for injection.
+	 */
+	public int getQueueDepth() {
+		return queueSize.get();
+	}
+	
+	/**
+	 * @return Count of injected events.
+	 */
+	public long getInjectedEvents() {
+		return injectedEvents.get();
+	}
+	
+	/**
+	 * @return Count of mouse moves merged into another one because the queue was full.
+	 */
+	public long getCoalescedMoves() {
+		return coalescedMoves.get();
+	}
+	
+	/**
+	 * @return Time between posting and injecting of the last event in nanoseconds.
+	 */
+	public long getLastLatencyNanos() {
+		return lastLatencyNanos;
+	}
+	
+	/**
+	 * @return The longest time between posting and injecting of an event in nanoseconds.
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+	
+	/**
+	 * @return Count of reads of real pointer position.
+	 */
+	public long getPointerSyncCount() {
+		PointerTracker pointerTracker = pointer;
+		return (pointerTracker==null) ? 0 : pointerTracker.getSyncCount();
+	}
+	
+	/**
+	 * @return Count of reads which found the pointer moved by somebody else.
+	 */
+	public long getPointerDriftCount() {
+		PointerTracker pointerTracker = pointer;
+		return (pointerTracker==null) ? 0 : pointerTracker.getDriftCount();
+	}
+	
+	@Override
+	public void run() {
+		if(Common.DEBUG) LOGGER.debug("[run][Input injector is running.]");
+		
+		while(true) {
+			Event event = queue.poll();
+			if(event!=null) queueSize.decrementAndGet();
+			else event = takePendingMove();
+			
+			if(event==null) {
+				LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+				continue;
+			}
+			
+			long latency = System.nanoTime() - event.postTime;
+			lastLatencyNanos = latency;
+			if(latency>maxLatencyNanos) maxLatencyNanos = latency;
+			
+			/* One bad event must not stop injection for all clients. */
+			try {
+				long injectStart = System.nanoTime();
+				inject(event);
+				metrics.recordInjection(latency, System.nanoTime() - injectStart);
+				injectedEvents.incrementAndGet();
+			} catch(RuntimeException re) {
+				if(Common.ERROR) LOGGER.error("[run][Can not inject an event.]", re);
+			}
+		}
+	}
+	
+	/**
+	 * Add event to the queue. If the queue is full, mouse move is merged into
+	 * the pending move. Any other event is added after the pending move.
+	 * @param event Event to add.
+	 */
+	private void post(Event event) {
+		Thread injectorThread = thread;
+		if(injectorThread==null) {
+			if(Common.DEBUG) LOGGER.debug("[post][Injector is not running.]");
+			return;
+		}
+		
+		synchronized(pendingMoveLock) {
+			if(event.type==MOUSE_MOVE && (hasPendingMove || queueSize.get()>=QUEUE_CAPACITY)) {
+				if(hasPendingMove) {
+					coalescedMoves.incrementAndGet();
+				} else {
+					hasPendingMove = true;
+					pendingMoveTime = event.postTime;
+				}
+				pendingMoveX += event.x;
+				pendingMoveY += event.y;
+				return;
+			}
+			
+			/* Pending move was made before this event, so it goes first. */
+			if(hasPendingMove) enqueue(takePendingMoveLocked());
+			enqueue(event);
+		}
+		
+		LockSupport.unpark(injectorThread);
+	}
+	
+	/**
+	 * @param event Event to add to the end of the queue.
+	 */
+	private void enqueue(Event event) {
+		queueSize.incrementAndGet();
+		queue.offer(event);
+	}
+	
+	/**
+	 * Take pending move. It is called when the queue is empty.
+	 * @return Merged move or null if there is no pending move.
+	 */
+	private Event takePendingMove() {
+		/* Any event posted after the pending move would take it to the queue,
+		 * so there is nothing which should go before it. */
+		synchronized(pendingMoveLock) {
+			return hasPendingMove ? takePendingMoveLocked() : null;
+		}
+	}
+	
+	/**
+	 * Caller must hold the pending move lock.
+	 * @return Merged move. It keeps time of the first merged move.
+	 */
+	private Event takePendingMoveLocked() {
+		Event event = new Event(MOUSE_MOVE, pendingMoveX, pendingMoveY, null, pendingMoveTime);
+		
+		hasPendingMove = false;
+		pendingMoveX = 0;
+		pendingMoveY = 0;
+		
+		return event;
+	}
+	
+	/**
+	 * Inject one event to the system.
+	 * @param event Event to inject.
+	 */
+	private void inject(Event event) {
+		switch(event.type) {
+			case MOUSE_MOVE:
+				if(Common.DEBUG) LOGGER.debug("[mouseMove][" + event.x*-1 + ";" + event.y*-1 + "]");
+				
+				if(pointer.move(event.x*-1, event.y*-1)) sink.mouseMove(pointer.getX(), pointer.getY());
+				break;
+			case MOUSE_LEFT_CLICK:
+				if(Common.DEBUG) LOGGER.debug("[mouseLeftClick]");
+				
+				sink.mousePress(InputEvent.BUTTON1_MASK);
+				sink.mouseRelease(InputEvent.BUTTON1_MASK);
+				break;
+			case MOUSE_RIGHT_CLICK:
+				if(Common.DEBUG) LOGGER.debug("[mouseRightClick]");
+				
+				sink.mousePress(InputEvent.BUTTON3_MASK);
+				sink.mouseRelease(InputEvent.BUTTON3_MASK);
+				break;
+			case MOUSE_WHEEL:
+				if(Common.DEBUG) LOGGER.debug("[mouseWheel][" + event.x + "]");
+				
+				sink.mouseWheel(((int)event.x*-1));
+				break;
+			case KEY_STROKE:
+				makeStroke(sink, (KeySequence)event.data);
+				break;
+			case KEY_CLIPBOARD:
+				if(Common.DEBUG) LOGGER.debug("[keyClipboard][" + event.data + "]");
+				
+				sink.paste((String)event.data);
+				break;
+			case COMMAND:
+				if(Common.DEBUG) LOGGER.debug("[execute][" + event.data + "]");
+				
+				sink.execute((String)event.data);
+				break;
+			default:
+				break;
+		}
+	}
+	
+	/**
+	 * Make key stroke. It does not use the injector, so it can be measured alone.
+	 * @param sink Sink which gets the keys.
+	 * @param keySequence Key(s) to stroke.
+	 */
+	public static void makeStroke(InputSink sink, KeySequence keySequence) {
+		int[] keyCodes = keySequence.getKeyCodes();
+		
+		/*
+		 * There is a bug with shift and arrows.
+		 * Workaround is turn num lock off.
+		 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4908075
+		 */
+		boolean needSetNumlockOn = false;
+		/* If numlock is on. Flags are known in advance, so it is asked only if it matters. */
+		if(keySequence.hasShiftAndArrow() && sink.isNumLockOn()) {
+			/* Disable numlock. */
+			sink.keyPress(KeyEvent.VK_NUM_LOCK);
+			sink.keyRelease(KeyEvent.VK_NUM_LOCK);
+			needSetNumlockOn = true;
+		}
+		
+		/* Do press. */
+		for(int i=0; i<keyCodes.length; i++) {
+			if(Common.DEBUG) LOGGER.debug("[keyPress][" + keyCodes[i] + "]");
+			
+			sink.keyPress(keyCodes[i]);
+		}
+		
+		/* Do release. */
+		for(int i=keyCodes.length-1; i>=0; i--){
+			if(Common.DEBUG) LOGGER.debug("[keyRelease][" + keyCodes[i] + "]");
+			
+			sink.keyRelease(keyCodes[i]);
+		}
+		
+		/* Set numlock back. */
+		if(needSetNumlockOn) {
+			sink.keyPress(KeyEvent.VK_NUM_LOCK);
+			sink.keyRelease(KeyEvent.VK_NUM_LOCK);
+		}
+	}
+}
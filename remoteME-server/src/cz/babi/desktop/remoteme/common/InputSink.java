@@ -0,0 +1,96 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+/**
+ * Target of input events. {@link InputInjector} calls it only from its own
+ * thread, so implementations do not need to be thread-safe. Buttons and
+ * key codes are the same as for {@link java.awt.Robot}.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public interface InputSink {
+	
+	/**
+	 * Prepare the sink. It is called once, before the first event.
+	 * @return If the sink can inject events.
+	 */
+	public boolean open();
+	
+	/**
+	 * Move pointer to absolute position.
+	 * @param x Position X.
+	 * @param y Position Y.
+	 */
+	public void mouseMove(int x, int y);
+	
+	/**
+	 * @param buttons Mask of buttons, see {@link java.awt.event.InputEvent}.
+	 */
+	public void mousePress(int buttons);
+	
+	/**
+	 * @param buttons Mask of buttons, see {@link java.awt.event.InputEvent}.
+	 */
+	public void mouseRelease(int buttons);
+	
+	/**
+	 * @param wheelAmount Count of notches. Negative means up.
+	 */
+	public void mouseWheel(int wheelAmount);
+	
+	/**
+	 * @param keyCode Key code, see {@link java.awt.event.KeyEvent}.
+	 */
+	public void keyPress(int keyCode);
+	
+	/**
+	 * @param keyCode Key code, see {@link java.awt.event.KeyEvent}.
+	 */
+	public void keyRelease(int keyCode);
+	
+	/**
+	 * @return If num lock is on. False if it is not known.
+	 */
+	public boolean isNumLockOn();
+	
+	/**
+	 * Paste text at position of cursor.
+	 * @param text Text to paste.
+	 */
+	public void paste(String text);
+	
+	/**
+	 * @return Real position of pointer or null if it is not known.
+	 */
+	public Point getPointerLocation();
+	
+	/**
+	 * @return Bounds of all screens together or null if they are not known.
+	 */
+	public Rectangle getScreenBounds();
+	
+	/**
+	 * Run system command, like shut down of the computer.
+	 * @param command Command line.
+	 */
+	public void execute(String command);
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.event.KeyEvent;
+
+/**
+ * Key codes to press together with flags computed from them. Instance is
+ * immutable, so it can be shared by all sessions.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public final class KeySequence {
+	
+	/** Sequence contains shift. */
+	public static final int FLAG_SHIFT = 1;
+	/** Sequence contains an arrow. */
+	public static final int FLAG_ARROW = 2;
+	
+	/** Sequence without keys. */
+	public static final KeySequence EMPTY = new KeySequence(new int[0]);
+	
+	private final int[] keyCodes;
+	private final int flags;
+	
+	/**
+	 * Constructor.
+	 * @param keyCodes Key codes. Array is not copied.
+	 */
+	public KeySequence(int... keyCodes) {
+		this.keyCodes = keyCodes;
+		
+		int keyFlags = 0;
+		for(int keyCode : keyCodes) {
+			if(keyCode==KeyEvent.VK_SHIFT) keyFlags |= FLAG_SHIFT;
+			else if(keyCode==KeyEvent.VK_LEFT || keyCode==KeyEvent.VK_RIGHT ||
+					keyCode==KeyEvent.VK_UP || keyCode==KeyEvent.VK_DOWN) keyFlags |= FLAG_ARROW;
+		}
+		this.flags = keyFlags;
+	}
+	
+	/**
+	 * Join more sequences to one.
+	 * @param sequences Sequences to join.
+	 * @param count Count of sequences to use from array.
+	 * @return Joined sequence.
+	 */
+	public static KeySequence join(KeySequence[] sequences, int count) {
+		if(count==0) return EMPTY;
+		if(count==1) return sequences[0];
+		
+		int length = 0;
+		for(int i=0; i<count; i++) length += sequences[i].keyCodes.length;
+		
+		int[] joinedKeyCodes = new int[length];
+		int index = 0;
+		for(int i=0; i<count; i++) {
+			int[] codes = sequences[i].keyCodes;
+			System.arraycopy(codes, 0, joinedKeyCodes, index, codes.length);
+			index += codes.length;
+		}
+		
+		return new KeySequence(joinedKeyCodes);
+	}
+	
+	/**
+	 * @return the keyCodes. Must not be changed.
+	 */
+	public int[] getKeyCodes() {
+		return keyCodes;
+	}
+	
+	/**
+	 * @return the flags
+	 */
+	public int getFlags() {
+		return flags;
+	}
+	
+	/**
+	 * @return If there are no keys.
+	 */
+	public boolean isEmpty() {
+		return keyCodes.length==0;
+	}
+	
+	/**
+	 * @return If sequence contains both shift and an arrow.
+	 */
+	public boolean hasShiftAndArrow() {
+		return (flags & (FLAG_SHIFT|FLAG_ARROW))==(FLAG_SHIFT|FLAG_ARROW);
+	}
+}
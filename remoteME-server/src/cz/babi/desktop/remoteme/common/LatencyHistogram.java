@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies. Unit is chosen by caller, server metrics use
+ * nanoseconds. Values below {@link #LINEAR_LIMIT} have their own bucket,
+ * every higher power of two is split to {@link #SUB_BUCKETS} buckets, so
+ * error of reported percentile is at most about 3 %. Recording does not
+ * allocate and can be called from many threads.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class LatencyHistogram {
+	
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BITS = SUB_BUCKET_BITS + 1;
+	private static final int LINEAR_LIMIT = 1 << LINEAR_BITS;
+	
+	private static final int BUCKETS = LINEAR_LIMIT + (Long.SIZE - LINEAR_BITS)*SUB_BUCKETS;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Record one value.
+	 * @param latency Latency. Negative values are recorded as zero.
+	 */
+	public void record(long latency) {
+		long value = Math.max(0, latency);
+		
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		
+		long currentMax;
+		while(value>(currentMax=max.get()) && !max.compareAndSet(currentMax, value));
+	}
+	
+	/**
+	 * @return Count of recorded values.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * @return Sum of recorded values.
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+	
+	/**
+	 * @return The highest recorded value.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @return Mean of recorded values. Zero if there is none.
+	 */
+	public long getMean() {
+		long total = count.get();
+		return (total==0) ? 0 : sum.get()/total;
+	}
+	
+	/**
+	 * @param percentile Percentile from 0 to 100.
+	 * @return The highest value of bucket which holds given percentile. Zero if
+	 * nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if(total==0) return 0;
+		
+		long rank = Math.max(1, (long)Math.ceil(total*percentile/100));
+		long seen = 0;
+		for(int i=0; i<BUCKETS; i++) {
+			seen += buckets.get(i);
+			if(seen>=rank) return Math.min(highestValueOf(i), max.get());
+		}
+		
+		return max.get();
+	}
+	
+	/**
+	 * @param value Value.
+	 * @return Index of bucket for the value.
+	 */
+	private static int bucketOf(long value) {
+		if(value<LINEAR_LIMIT) return (int)value;
+		
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value>>>(exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		
+		return LINEAR_LIMIT + (exponent - LINEAR_BITS)*SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * @param bucket Index of bucket.
+	 * @return The highest value which falls into the bucket.
+	 */
+	private static long highestValueOf(int bucket) {
+		if(bucket<LINEAR_LIMIT) return bucket;
+		
+		int exponent = (bucket - LINEAR_LIMIT)/SUB_BUCKETS + LINEAR_BITS;
+		long subBucket = (bucket - LINEAR_LIMIT)%SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		
+		return (1L << exponent) + (subBucket + 1)*width - 1;
+	}
+}
@@ -17,10 +17,15 @@
 package cz.babi.desktop.remoteme.common;
 
 import java.awt.event.KeyEvent;
-import java.util.HashMap;
+import java.util.ArrayList;
 
 /**
  * Class holds map of keys.
+ * <p>
+ * Single characters are looked up in a table indexed by the character. Named
+ * keys (f1, pageup, ...) are in a perfect hash table, which is built once,
+ * so there is at most one string comparison per lookup. Values are
+ * {@link KeySequence}s with precomputed flags.
  * 
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
@@ -29,165 +34,268 @@ public class MappedKeys {
 	
 	public static final String DIVIDER = ";-;";
 	
-	/** Used for key stroke. */
-	public static HashMap<String, Integer[]> keyMap = getKeyMap();
+	/** Size of table for single characters. */
+	private static final int CHAR_TABLE_SIZE = 128;
+	
+	/** Keys of single characters. Index is the character. */
+	private static final KeySequence[] charKeys = new KeySequence[CHAR_TABLE_SIZE];
+	
+	/* Named keys before perfect hash table is built. */
+	private static ArrayList<String> names = new ArrayList<>();
+	private static ArrayList<KeySequence> namedValues = new ArrayList<>();
+	
+	/* Perfect hash table of named keys. */
+	private static String[] namedTableKeys;
+	private static KeySequence[] namedTableValues;
+	private static int namedTableSeed;
+	private static int namedTableMask;
+	
+	static {
+		put("a", KeyEvent.VK_A);
+		put("b", KeyEvent.VK_B);
+		put("c", KeyEvent.VK_C);
+		put("d", KeyEvent.VK_D);
+		put("e", KeyEvent.VK_E);
+		put("f", KeyEvent.VK_F);
+		put("g", KeyEvent.VK_G);
+		put("h", KeyEvent.VK_H);
+		put("i", KeyEvent.VK_I);
+		put("j", KeyEvent.VK_J);
+		put("k", KeyEvent.VK_K);
+		put("l", KeyEvent.VK_L);
+		put("m", KeyEvent.VK_M);
+		put("n", KeyEvent.VK_N);
+		put("o", KeyEvent.VK_O);
+		put("p", KeyEvent.VK_P);
+		put("q", KeyEvent.VK_Q);
+		put("r", KeyEvent.VK_R);
+		put("s", KeyEvent.VK_S);
+		put("t", KeyEvent.VK_T);
+		put("u", KeyEvent.VK_U);
+		put("v", KeyEvent.VK_V);
+		put("w", KeyEvent.VK_W);
+		put("x", KeyEvent.VK_X);
+		put("y", KeyEvent.VK_Y);
+		put("z", KeyEvent.VK_Z);
+		
+		put("A", KeyEvent.VK_SHIFT, KeyEvent.VK_A);
+		put("B", KeyEvent.VK_SHIFT, KeyEvent.VK_B);
+		put("C", KeyEvent.VK_SHIFT, KeyEvent.VK_C);
+		put("D", KeyEvent.VK_SHIFT, KeyEvent.VK_D);
+		put("E", KeyEvent.VK_SHIFT, KeyEvent.VK_E);
+		put("F", KeyEvent.VK_SHIFT, KeyEvent.VK_F);
+		put("G", KeyEvent.VK_SHIFT, KeyEvent.VK_G);
+		put("H", KeyEvent.VK_SHIFT, KeyEvent.VK_H);
+		put("I", KeyEvent.VK_SHIFT, KeyEvent.VK_I);
+		put("J", KeyEvent.VK_SHIFT, KeyEvent.VK_J);
+		put("K", KeyEvent.VK_SHIFT, KeyEvent.VK_K);
+		put("L", KeyEvent.VK_SHIFT, KeyEvent.VK_L);
+		put("M", KeyEvent.VK_SHIFT, KeyEvent.VK_M);
+		put("N", KeyEvent.VK_SHIFT, KeyEvent.VK_N);
+		put("O", KeyEvent.VK_SHIFT, KeyEvent.VK_O);
+		put("P", KeyEvent.VK_SHIFT, KeyEvent.VK_P);
+		put("Q", KeyEvent.VK_SHIFT, KeyEvent.VK_Q);
+		put("R", KeyEvent.VK_SHIFT, KeyEvent.VK_R);
+		put("S", KeyEvent.VK_SHIFT, KeyEvent.VK_S);
+		put("T", KeyEvent.VK_SHIFT, KeyEvent.VK_T);
+		put("U", KeyEvent.VK_SHIFT, KeyEvent.VK_U);
+		put("V", KeyEvent.VK_SHIFT, KeyEvent.VK_V);
+		put("W", KeyEvent.VK_SHIFT, KeyEvent.VK_W);
+		put("X", KeyEvent.VK_SHIFT, KeyEvent.VK_X);
+		put("Y", KeyEvent.VK_SHIFT, KeyEvent.VK_Y);
+		put("Z", KeyEvent.VK_SHIFT, KeyEvent.VK_Z);
+		
+		put("1", KeyEvent.VK_1);
+		put("2", KeyEvent.VK_2);
+		put("3", KeyEvent.VK_3);
+		put("4", KeyEvent.VK_4);
+		put("5", KeyEvent.VK_5);
+		put("6", KeyEvent.VK_6);
+		put("7", KeyEvent.VK_7);
+		put("8", KeyEvent.VK_8);
+		put("9", KeyEvent.VK_9);
+		put("0", KeyEvent.VK_0);
+		
+		put("f1", KeyEvent.VK_F1);
+		put("f2", KeyEvent.VK_F2);
+		put("f3", KeyEvent.VK_F3);
+		put("f4", KeyEvent.VK_F4);
+		put("f5", KeyEvent.VK_F5);
+		put("f6", KeyEvent.VK_F6);
+		put("f7", KeyEvent.VK_F7);
+		put("f8", KeyEvent.VK_F8);
+		put("f9", KeyEvent.VK_F9);
+		put("f10", KeyEvent.VK_F10);
+		put("f11", KeyEvent.VK_F11);
+		put("f12", KeyEvent.VK_F12);
+		put("f13", KeyEvent.VK_F13);
+		put("f14", KeyEvent.VK_F14);
+		put("f15", KeyEvent.VK_F15);
+		put("f16", KeyEvent.VK_F16);
+		put("f17", KeyEvent.VK_F17);
+		put("f18", KeyEvent.VK_F18);
+		put("f19", KeyEvent.VK_F19);
+		put("f20", KeyEvent.VK_F20);
+		put("f21", KeyEvent.VK_F21);
+		
+		put("enter", KeyEvent.VK_ENTER);
+		put("esc", KeyEvent.VK_ESCAPE);
+		put("shift", KeyEvent.VK_SHIFT);
+		put("alt", KeyEvent.VK_ALT);
+		put("ctrl", KeyEvent.VK_CONTROL);
+		put("up", KeyEvent.VK_UP);
+		put("down", KeyEvent.VK_DOWN);
+		put("left", KeyEvent.VK_LEFT);
+		put("right", KeyEvent.VK_RIGHT);
+		put("space", KeyEvent.VK_SPACE);
+		put("backspace", KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_SPACE);
+		put("windows", KeyEvent.VK_WINDOWS);
+		put("tab", KeyEvent.VK_TAB);
+		put("pageup", KeyEvent.VK_PAGE_UP);
+		put("end", KeyEvent.VK_END);
+		put("insert", KeyEvent.VK_INSERT);
+		put("home", KeyEvent.VK_HOME);
+		put("pagedown", KeyEvent.VK_PAGE_DOWN);
+		put("less", KeyEvent.VK_LESS);
+		put("greather", KeyEvent.VK_GREATER);
+		
+		put("`", KeyEvent.VK_BACK_QUOTE);
+		put("-", KeyEvent.VK_MINUS);
+		put("=", KeyEvent.VK_EQUALS);
+		put("~", KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_QUOTE);
+		put("!", KeyEvent.VK_EXCLAMATION_MARK);
+		put("@", KeyEvent.VK_AT);
+		put("#", KeyEvent.VK_NUMBER_SIGN);
+		put("$", KeyEvent.VK_DOLLAR);
+		put("%", KeyEvent.VK_SHIFT, KeyEvent.VK_5);
+		put("^", KeyEvent.VK_CIRCUMFLEX);
+		put("&", KeyEvent.VK_AMPERSAND);
+		put("*", KeyEvent.VK_ASTERISK);
+		put("(", KeyEvent.VK_LEFT_PARENTHESIS);
+		put(")", KeyEvent.VK_RIGHT_PARENTHESIS);
+		put("_", KeyEvent.VK_UNDERSCORE);
+		put("[", KeyEvent.VK_OPEN_BRACKET);
+		put("]", KeyEvent.VK_CLOSE_BRACKET);
+		put("\\", KeyEvent.VK_BACK_SLASH);
+		put("{", KeyEvent.VK_SHIFT, KeyEvent.VK_OPEN_BRACKET);
+		put("}", KeyEvent.VK_SHIFT, KeyEvent.VK_CLOSE_BRACKET);
+		put("|", KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_SLASH);
+		put(";", KeyEvent.VK_SEMICOLON);
+		put(":", KeyEvent.VK_COLON);
+		put("'", KeyEvent.VK_QUOTE);
+		put("\"", KeyEvent.VK_QUOTEDBL);
+		put(",", KeyEvent.VK_COMMA);
+		put("<", KeyEvent.VK_LESS);
+		put(".", KeyEvent.VK_PERIOD);
+		put(">", KeyEvent.VK_GREATER);
+		put("/", KeyEvent.VK_SLASH);
+		put("?", KeyEvent.VK_SHIFT, KeyEvent.VK_SLASH);
+		put(" ", KeyEvent.VK_SPACE);
+		
+		/*
+		 * There is some bug with '+'
+		 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6942481
+		 */
+		put("+", KeyEvent.VK_ADD);
+		
+		buildNamedTable();
+	}
 	
 	/**
-	 * Get map of keys contains string character as key and array of integers as their codes.
-	 * @return Map of keys.
+	 * Get mapped key.
+	 * @param key Character or name of key.
+	 * @return Key sequence or null if key is not mapped.
 	 */
-	private static HashMap<String, Integer[]> getKeyMap() {
-		if(keyMap==null) {
-			keyMap = new HashMap<>();
-			
-			keyMap.put("a", new Integer[] { KeyEvent.VK_A });
-			keyMap.put("b", new Integer[] { KeyEvent.VK_B });
-			keyMap.put("c", new Integer[] { KeyEvent.VK_C });
-			keyMap.put("d", new Integer[] { KeyEvent.VK_D });
-			keyMap.put("e", new Integer[] { KeyEvent.VK_E });
-			keyMap.put("f", new Integer[] { KeyEvent.VK_F });
-			keyMap.put("g", new Integer[] { KeyEvent.VK_G });
-			keyMap.put("h", new Integer[] { KeyEvent.VK_H });
-			keyMap.put("i", new Integer[] { KeyEvent.VK_I });
-			keyMap.put("j", new Integer[] { KeyEvent.VK_J });
-			keyMap.put("k", new Integer[] { KeyEvent.VK_K });
-			keyMap.put("l", new Integer[] { KeyEvent.VK_L });
-			keyMap.put("m", new Integer[] { KeyEvent.VK_M });
-			keyMap.put("n", new Integer[] { KeyEvent.VK_N });
-			keyMap.put("o", new Integer[] { KeyEvent.VK_O });
-			keyMap.put("p", new Integer[] { KeyEvent.VK_P });
-			keyMap.put("q", new Integer[] { KeyEvent.VK_Q });
-			keyMap.put("r", new Integer[] { KeyEvent.VK_R });
-			keyMap.put("s", new Integer[] { KeyEvent.VK_S });
-			keyMap.put("t", new Integer[] { KeyEvent.VK_T });
-			keyMap.put("u", new Integer[] { KeyEvent.VK_U });
-			keyMap.put("v", new Integer[] { KeyEvent.VK_V });
-			keyMap.put("w", new Integer[] { KeyEvent.VK_W });
-			keyMap.put("x", new Integer[] { KeyEvent.VK_X });
-			keyMap.put("y", new Integer[] { KeyEvent.VK_Y });
-			keyMap.put("z", new Integer[] { KeyEvent.VK_Z });
-			
-			keyMap.put("A", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_A });
-			keyMap.put("B", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_B });
-			keyMap.put("C", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_C });
-			keyMap.put("D", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_D });
-			keyMap.put("E", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_E });
-			keyMap.put("F", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_F });
-			keyMap.put("G", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_G });
-			keyMap.put("H", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_H });
-			keyMap.put("I", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_I });
-			keyMap.put("J", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_J });
-			keyMap.put("K", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_K });
-			keyMap.put("L", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_L });
-			keyMap.put("M", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_M });
-			keyMap.put("N", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_N });
-			keyMap.put("O", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_O });
-			keyMap.put("P", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_P });
-			keyMap.put("Q", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_Q });
-			keyMap.put("R", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_R });
-			keyMap.put("S", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_S });
-			keyMap.put("T", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_T });
-			keyMap.put("U", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_U });
-			keyMap.put("V", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_V });
-			keyMap.put("W", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_W });
-			keyMap.put("X", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_X });
-			keyMap.put("Y", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_Y });
-			keyMap.put("Z", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_Z });
-			
-			keyMap.put("1", new Integer[] { KeyEvent.VK_1 });
-			keyMap.put("2", new Integer[] { KeyEvent.VK_2 });
-			keyMap.put("3", new Integer[] { KeyEvent.VK_3 });
-			keyMap.put("4", new Integer[] { KeyEvent.VK_4 });
-			keyMap.put("5", new Integer[] { KeyEvent.VK_5 });
-			keyMap.put("6", new Integer[] { KeyEvent.VK_6 });
-			keyMap.put("7", new Integer[] { KeyEvent.VK_7 });
-			keyMap.put("8", new Integer[] { KeyEvent.VK_8 });
-			keyMap.put("9", new Integer[] { KeyEvent.VK_9 });
-			keyMap.put("0", new Integer[] { KeyEvent.VK_0 });
-			
-			keyMap.put("f1", new Integer[] { KeyEvent.VK_F1 });
-			keyMap.put("f2", new Integer[] { KeyEvent.VK_F2 });
-			keyMap.put("f3", new Integer[] { KeyEvent.VK_F3 });
-			keyMap.put("f4", new Integer[] { KeyEvent.VK_F4 });
-			keyMap.put("f5", new Integer[] { KeyEvent.VK_F5 });
-			keyMap.put("f6", new Integer[] { KeyEvent.VK_F6 });
-			keyMap.put("f7", new Integer[] { KeyEvent.VK_F7 });
-			keyMap.put("f8", new Integer[] { KeyEvent.VK_F8 });
-			keyMap.put("f9", new Integer[] { KeyEvent.VK_F9 });
-			keyMap.put("f10", new Integer[] { KeyEvent.VK_F10 });
-			keyMap.put("f11", new Integer[] { KeyEvent.VK_F11 });
-			keyMap.put("f12", new Integer[] { KeyEvent.VK_F12 });
-			keyMap.put("f13", new Integer[] { KeyEvent.VK_F13 });
-			keyMap.put("f14", new Integer[] { KeyEvent.VK_F14 });
-			keyMap.put("f15", new Integer[] { KeyEvent.VK_F15 });
-			keyMap.put("f16", new Integer[] { KeyEvent.VK_F16 });
-			keyMap.put("f17", new Integer[] { KeyEvent.VK_F17 });
-			keyMap.put("f18", new Integer[] { KeyEvent.VK_F18 });
-			keyMap.put("f19", new Integer[] { KeyEvent.VK_F19 });
-			keyMap.put("f20", new Integer[] { KeyEvent.VK_F20 });
-			keyMap.put("f21", new Integer[] { KeyEvent.VK_F21 });
-			
-			keyMap.put("enter", new Integer[] { KeyEvent.VK_ENTER });
-			keyMap.put("esc", new Integer[] { KeyEvent.VK_ESCAPE });
-			keyMap.put("shift", new Integer[] { KeyEvent.VK_SHIFT });
-			keyMap.put("alt", new Integer[] { KeyEvent.VK_ALT });
-			keyMap.put("ctrl", new Integer[] { KeyEvent.VK_CONTROL });
-			keyMap.put("up", new Integer[] { KeyEvent.VK_UP });
-			keyMap.put("down", new Integer[] { KeyEvent.VK_DOWN });
-			keyMap.put("left", new Integer[] { KeyEvent.VK_LEFT });
-			keyMap.put("right", new Integer[] { KeyEvent.VK_RIGHT });
-			keyMap.put("space", new Integer[] { KeyEvent.VK_SPACE });
-			keyMap.put("backspace", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_SPACE });
-			keyMap.put("windows", new Integer[] { KeyEvent.VK_WINDOWS });
-			keyMap.put("tab", new Integer[] { KeyEvent.VK_TAB });
-			keyMap.put("pageup", new Integer[] { KeyEvent.VK_PAGE_UP });
-			keyMap.put("end", new Integer[] { KeyEvent.VK_END });
-			keyMap.put("insert", new Integer[] { KeyEvent.VK_INSERT });
-			keyMap.put("home", new Integer[] { KeyEvent.VK_HOME });
-			keyMap.put("pagedown", new Integer[] { KeyEvent.VK_PAGE_DOWN });
-			keyMap.put("less", new Integer[] { KeyEvent.VK_LESS });
-			keyMap.put("greather", new Integer[] { KeyEvent.VK_GREATER });
+	public static KeySequence get(String key) {
+		if(key.length()==1) return get(key.charAt(0));
+		
+		int index = hashIndex(key, namedTableSeed, namedTableMask);
+		if(key.equals(namedTableKeys[index])) return namedTableValues[index];
+		
+		return null;
+	}
+	
+	/**
+	 * Get mapped character.
+	 * @param character Character.
+	 * @return Key sequence or null if character is not mapped.
+	 */
+	public static KeySequence get(char character) {
+		return (character<CHAR_TABLE_SIZE) ? charKeys[character] : null;
+	}
+	
+	/**
+	 * Map key.
+	 * @param key Character or name of key.
+	 * @param keyCodes Key codes to stroke.
+	 */
+	private static void put(String key, int... keyCodes) {
+		KeySequence keySequence = new KeySequence(keyCodes);
+		
+		if(key.length()==1 && key.charAt(0)<CHAR_TABLE_SIZE) {
+			charKeys[key.charAt(0)] = keySequence;
+		} else {
+			names.add(key);
+			namedValues.add(keySequence);
+		}
+	}
+	
+	/**
+	 * Find seed and size of table, so there is no collision of named keys.
+	 */
+	private static void buildNamedTable() {
+		int size = Integer.highestOneBit(Math.max(1, names.size()))*2;
+		
+		while(true) {
+			for(int seed=1; seed<(1<<16); seed+=2) {
+				String[] tableKeys = new String[size];
+				if(fillNamedTable(tableKeys, seed, size-1)) {
+					namedTableKeys = tableKeys;
+					namedTableValues = new KeySequence[size];
+					namedTableSeed = seed;
+					namedTableMask = size-1;
+					
+					for(int i=0; i<tableKeys.length; i++) {
+						if(tableKeys[i]!=null)
+							namedTableValues[i] = namedValues.get(names.indexOf(tableKeys[i]));
+					}
+					
+					names = null;
+					namedValues = null;
+					return;
+				}
+			}
 			
-			keyMap.put("`", new Integer[] { KeyEvent.VK_BACK_QUOTE });
-			keyMap.put("-", new Integer[] { KeyEvent.VK_MINUS });
-			keyMap.put("=", new Integer[] { KeyEvent.VK_EQUALS });
-			keyMap.put("~", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_QUOTE});
-			keyMap.put("!", new Integer[] { KeyEvent.VK_EXCLAMATION_MARK });
-			keyMap.put("@", new Integer[] { KeyEvent.VK_AT });
-			keyMap.put("#", new Integer[] { KeyEvent.VK_NUMBER_SIGN });
-			keyMap.put("$", new Integer[] { KeyEvent.VK_DOLLAR });
-			keyMap.put("%", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_5 });
-			keyMap.put("^", new Integer[] { KeyEvent.VK_CIRCUMFLEX });
-			keyMap.put("&", new Integer[] { KeyEvent.VK_AMPERSAND });
-			keyMap.put("*", new Integer[] { KeyEvent.VK_ASTERISK });
-			keyMap.put("(", new Integer[] { KeyEvent.VK_LEFT_PARENTHESIS });
-			keyMap.put(")", new Integer[] { KeyEvent.VK_RIGHT_PARENTHESIS });
-			keyMap.put("_", new Integer[] { KeyEvent.VK_UNDERSCORE });
-			keyMap.put("[", new Integer[] { KeyEvent.VK_OPEN_BRACKET });
-			keyMap.put("]", new Integer[] { KeyEvent.VK_CLOSE_BRACKET });
-			keyMap.put("\\", new Integer[] { KeyEvent.VK_BACK_SLASH });
-			keyMap.put("{", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_OPEN_BRACKET });
-			keyMap.put("}", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_CLOSE_BRACKET });
-			keyMap.put("|", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_BACK_SLASH });
-			keyMap.put(";", new Integer[] { KeyEvent.VK_SEMICOLON });
-			keyMap.put(":", new Integer[] { KeyEvent.VK_COLON });
-			keyMap.put("\\", new Integer[] { KeyEvent.VK_QUOTE });
-			keyMap.put("\"", new Integer[] { KeyEvent.VK_QUOTEDBL });
-			keyMap.put(",", new Integer[] { KeyEvent.VK_COMMA });
-			keyMap.put("<", new Integer[] { KeyEvent.VK_LESS });
-			keyMap.put(".", new Integer[] { KeyEvent.VK_PERIOD });
-			keyMap.put(">", new Integer[] { KeyEvent.VK_GREATER });
-			keyMap.put("/", new Integer[] { KeyEvent.VK_SLASH });
-			keyMap.put("?", new Integer[] { KeyEvent.VK_SHIFT, KeyEvent.VK_SLASH });
-			keyMap.put(" ", new Integer[] { KeyEvent.VK_SPACE });
+			size *= 2;
+		}
+	}
+	
+	/**
+	 * @param tableKeys Table to fill.
+	 * @param seed Seed of hash function.
+	 * @param mask Mask of table index.
+	 * @return If there is no collision.
+	 */
+	private static boolean fillNamedTable(String[] tableKeys, int seed, int mask) {
+		for(String name : names) {
+			int index = hashIndex(name, seed, mask);
+			if(tableKeys[index]!=null) return false;
 			
-			/*
-			 * There is some bug with '+'
-			 * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6942481
-			 */
-			keyMap.put("+", new Integer[] { KeyEvent.VK_ADD });
+			tableKeys[index] = name;
 		}
 		
-		return keyMap;
+		return true;
+	}
+	
+	/**
+	 * @param key Key.
+	 * @param seed Seed of hash function.
+	 * @param mask Mask of table index.
+	 * @return Index of key in perfect hash table.
+	 */
+	private static int hashIndex(String key, int seed, int mask) {
+		int hash = key.hashCode()*(seed*0x9E3779B1);
+		
+		return (hash ^ (hash>>>16)) & mask;
 	}
 }
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.babi.desktop.remoteme.entity.Message;
+
+/**
+ * Registry of performance metrics. It holds metrics of live sessions, their
+ * aggregate since start of the application and times of {@link InputInjector}.
+ * Metrics are shown in main frame and served by
+ * {@link cz.babi.desktop.remoteme.connection.MetricsServer}.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public final class Metrics {
+	
+	private static final Metrics instance = new Metrics();
+	
+	/** Names of message types, index is message ID. */
+	private static final String[] EVENT_NAMES = new String[SessionMetrics.EVENT_TYPES];
+	static {
+		EVENT_NAMES[SessionMetrics.UNKNOWN_EVENT] = "unknown";
+		EVENT_NAMES[Message.MOUSE_LEFT_CLICK.getId()] = "mouse_left_click";
+		EVENT_NAMES[Message.MOUSE_RIGHT_CLICK.getId()] = "mouse_right_click";
+		EVENT_NAMES[Message.MOUSE_WHEEL.getId()] = "mouse_wheel";
+		EVENT_NAMES[Message.MOUSE_MOVE.getId()] = "mouse_move";
+		EVENT_NAMES[Message.KEY_STROKE.getId()] = "key_stroke";
+		EVENT_NAMES[Message.KEY_CLIPBOARD.getId()] = "key_clipboard";
+		EVENT_NAMES[Message.BYE_BYE.getId()] = "bye_bye";
+		EVENT_NAMES[Message.SPECIAL_COMMAND.getId()] = "special_command";
+		EVENT_NAMES[Message.KEY_MACRO_DEFINE.getId()] = "key_macro_define";
+		EVENT_NAMES[Message.KEY_MACRO.getId()] = "key_macro";
+	}
+	
+	private final long startTime = System.nanoTime();
+	
+	private final SessionMetrics total = new SessionMetrics(null, 0, "total");
+	private final ArrayList<SessionMetrics> sessions = new ArrayList<>();
+	private final AtomicInteger sessionCounter = new AtomicInteger();
+	
+	private final LatencyHistogram injectionLatencies = new LatencyHistogram();
+	private final LatencyHistogram sinkTimes = new LatencyHistogram();
+	
+	private Metrics() {}
+	
+	/**
+	 * Get singleton instance.
+	 * @return Instance.
+	 */
+	public static Metrics getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * @param type Message ID.
+	 * @return Name of message type or null if messages of this type are not events.
+	 */
+	public static String getEventName(int type) {
+		return (type>=0 && type<EVENT_NAMES.length) ? EVENT_NAMES[type] : null;
+	}
+	
+	/**
+	 * Register new session.
+	 * @param client Address of client.
+	 * @return Metrics of the session.
+	 */
+	public SessionMetrics sessionStarted(String client) {
+		SessionMetrics sessionMetrics = new SessionMetrics(total, sessionCounter.incrementAndGet(),
+				client);
+		
+		synchronized(sessions) {
+			sessions.add(sessionMetrics);
+		}
+		
+		return sessionMetrics;
+	}
+	
+	/**
+	 * Forget closed session. Its values stay in the aggregate.
+	 * @param sessionMetrics Metrics of the session.
+	 */
+	public void sessionFinished(SessionMetrics sessionMetrics) {
+		synchronized(sessions) {
+			sessions.remove(sessionMetrics);
+		}
+	}
+	
+	/**
+	 * @return Copy of the list of metrics of live sessions.
+	 */
+	public ArrayList<SessionMetrics> getSessions() {
+		synchronized(sessions) {
+			return new ArrayList<>(sessions);
+		}
+	}
+	
+	/**
+	 * @return Aggregate of all sessions since start.
+	 */
+	public SessionMetrics getTotal() {
+		return total;
+	}
+	
+	/**
+	 * Record injection of one event.
+	 * @param latency Time between posting and injecting of the event in nanoseconds.
+	 * @param sinkTime Time spent in input sink in nanoseconds.
+	 */
+	public void recordInjection(long latency, long sinkTime) {
+		injectionLatencies.record(latency);
+		sinkTimes.record(sinkTime);
+	}
+	
+	/**
+	 * @return Times between posting and injecting of events.
+	 */
+	public LatencyHistogram getInjectionLatencies() {
+		return injectionLatencies;
+	}
+	
+	/**
+	 * @return Times spent in input sink.
+	 */
+	public LatencyHistogram getSinkTimes() {
+		return sinkTimes;
+	}
+	
+	/**
+	 * @return Time since start of the application in nanoseconds.
+	 */
+	public long getUptime() {
+		return System.nanoTime() - startTime;
+	}
+}
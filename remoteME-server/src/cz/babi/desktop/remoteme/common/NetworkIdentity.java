@@ -0,0 +1,296 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+
+/**
+ * Cached identity of this host in the network: host name, OS name, site-local
+ * addresses and MAC addresses. Enumeration of network interfaces is slow,
+ * mainly on Windows with many virtual adapters, so it is done by one
+ * background thread every {@link #REFRESH_MILLIS}. Readers get the current
+ * {@link Snapshot} without any lock. New snapshot is published only when
+ * something changed, so readers can compare snapshots by reference.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public final class NetworkIdentity implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(NetworkIdentity.class.getSimpleName());
+	
+	/** How often network interfaces are checked for changes. */
+	private static final long REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * Immutable state of network interfaces at one moment.
+	 */
+	public static final class Snapshot {
+		private final String hostName;
+		private final String osName;
+		private final String ipAddress;
+		private final String macAddress;
+		private final List<String> siteLocalAddresses;
+		private final List<String> macAddresses;
+		private final List<String> multicastInterfaces;
+		
+		private Snapshot(String hostName, String osName, String ipAddress, String macAddress,
+				List<String> siteLocalAddresses, List<String> macAddresses,
+				List<String> multicastInterfaces) {
+			this.hostName = hostName;
+			this.osName = osName;
+			this.ipAddress = ipAddress;
+			this.macAddress = macAddress;
+			this.siteLocalAddresses = Collections.unmodifiableList(siteLocalAddresses);
+			this.macAddresses = Collections.unmodifiableList(macAddresses);
+			this.multicastInterfaces = Collections.unmodifiableList(multicastInterfaces);
+		}
+		
+		/**
+		 * @return Host name. Empty if it is not known.
+		 */
+		public String getHostName() {
+			return hostName;
+		}
+		
+		/**
+		 * @return Name of operating system.
+		 */
+		public String getOsName() {
+			return osName;
+		}
+		
+		/**
+		 * @return The first site-local address. May return null.
+		 */
+		public String getIpAddress() {
+			return ipAddress;
+		}
+		
+		/**
+		 * @return MAC address of interface with the first site-local address. May return null.
+		 */
+		public String getMacAddress() {
+			return macAddress;
+		}
+		
+		/**
+		 * @return All site-local addresses.
+		 */
+		public List<String> getSiteLocalAddresses() {
+			return siteLocalAddresses;
+		}
+		
+		/**
+		 * @return MAC addresses of all interfaces with site-local address.
+		 */
+		public List<String> getMacAddresses() {
+			return macAddresses;
+		}
+		
+		/**
+		 * @return Names of interfaces which are up and support multicast.
+		 */
+		public List<String> getMulticastInterfaces() {
+			return multicastInterfaces;
+		}
+		
+		/**
+		 * @param other Another snapshot.
+		 * @return If both snapshots describe the same interfaces.
+		 */
+		private boolean isSame(Snapshot other) {
+			return other!=null && hostName.equals(other.hostName) &&
+					siteLocalAddresses.equals(other.siteLocalAddresses) &&
+					macAddresses.equals(other.macAddresses) &&
+					multicastInterfaces.equals(other.multicastInterfaces);
+		}
+		
+		@Override
+		public String toString() {
+			return "[Host: " + hostName + "][OS: " + osName + "][Addresses: " +
+					siteLocalAddresses + "][MACs: " + macAddresses + "]";
+		}
+	}
+	
+	private static class Holder {
+		static final NetworkIdentity instance = new NetworkIdentity();
+	}
+	
+	private volatile Snapshot snapshot;
+	
+	/**
+	 * The first snapshot is taken right now, so it is never null.
+	 */
+	private NetworkIdentity() {
+		snapshot = scan();
+		
+		if(Common.DEBUG) LOGGER.debug("[NetworkIdentity]" + snapshot);
+		
+		Thread thread = new Thread(MyThreadGroups.getInstance().getServersThreadGroup(), this,
+				"Network Identity");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Get singleton instance. Background refresh starts with the first call.
+	 * @return Instance.
+	 */
+	public static NetworkIdentity getInstance() {
+		return Holder.instance;
+	}
+	
+	/**
+	 * @return Current snapshot. Never null.
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+	
+	/**
+	 * Scan network interfaces now. New snapshot is published if something changed.
+	 * @return Current snapshot.
+	 */
+	public synchronized Snapshot refresh() {
+		Snapshot newSnapshot = scan();
+		
+		if(!newSnapshot.isSame(snapshot)) {
+			if(Common.DEBUG) LOGGER.debug("[refresh][Network interfaces changed.]" + newSnapshot);
+			snapshot = newSnapshot;
+		}
+		
+		return snapshot;
+	}
+	
+	@Override
+	public void run() {
+		while(true) {
+			try {
+				Thread.sleep(REFRESH_MILLIS);
+			} catch(InterruptedException ie) {
+				return;
+			}
+			
+			refresh();
+		}
+	}
+	
+	/**
+	 * Enumerate all network interfaces.
+	 * @return New snapshot.
+	 */
+	private static Snapshot scan() {
+		String osName = System.getProperty("os.name");
+		
+		String hostName = "";
+		try {
+			hostName = InetAddress.getLocalHost().getHostName();
+		} catch(UnknownHostException uhe) {
+			if(Common.ERROR) LOGGER.error("[scan][Can not obtain host name.]", uhe);
+		}
+		
+		String ipAddress = null;
+		String macAddress = null;
+		List<String> siteLocalAddresses = new ArrayList<>();
+		List<String> macAddresses = new ArrayList<>();
+		List<String> multicastInterfaces = new ArrayList<>();
+		
+		Enumeration<NetworkInterface> networkInterfaces = null;
+		try {
+			networkInterfaces = NetworkInterface.getNetworkInterfaces();
+		} catch(SocketException se) {
+			if(Common.ERROR) LOGGER.error("[scan][Can not obtain network interfaces.]", se);
+		}
+		
+		while(networkInterfaces!=null && networkInterfaces.hasMoreElements()) {
+			NetworkInterface networkInterface = networkInterfaces.nextElement();
+			
+			try {
+				if(networkInterface.isUp() && !networkInterface.isLoopback() &&
+						networkInterface.supportsMulticast())
+					multicastInterfaces.add(networkInterface.getName());
+			} catch(SocketException se) {
+				if(Common.ERROR) LOGGER.error("[scan][Can not obtain state of " +
+						networkInterface.getName() + ".]", se);
+			}
+			
+			boolean isSiteLocal = false;
+			Enumeration<InetAddress> inetAddresses = networkInterface.getInetAddresses();
+			while(inetAddresses.hasMoreElements()) {
+				InetAddress inetAddress = inetAddresses.nextElement();
+				
+				/* This is our IP address. */
+				if(inetAddress.isSiteLocalAddress()) {
+					isSiteLocal = true;
+					siteLocalAddresses.add(inetAddress.getHostAddress());
+				}
+			}
+			
+			if(!isSiteLocal) continue;
+			
+			String mac = null;
+			try {
+				mac = formatMacAddress(networkInterface.getHardwareAddress());
+			} catch(SocketException se) {
+				if(Common.ERROR) LOGGER.error("[scan][Can not obtain hardware address of " +
+						networkInterface.getName() + ".]", se);
+			}
+			
+			if(mac!=null) macAddresses.add(mac);
+			
+			if(ipAddress==null) {
+				ipAddress = siteLocalAddresses.get(0);
+				macAddress = mac;
+			}
+		}
+		
+		return new Snapshot(hostName, osName, ipAddress, macAddress, siteLocalAddresses,
+				macAddresses, multicastInterfaces);
+	}
+	
+	/**
+	 * @param mac Hardware address. May be null.
+	 * @return MAC address in format XX-XX-XX-XX-XX-XX or null.
+	 */
+	private static String formatMacAddress(byte[] mac) {
+		if(mac==null || mac.length==0) return null;
+		
+		char[] formatted = new char[mac.length*3 - 1];
+		for(int i=0; i<mac.length; i++) {
+			formatted[i*3] = HEX_DIGITS[(mac[i]>>4) & 0x0F];
+			formatted[i*3+1] = HEX_DIGITS[mac[i] & 0x0F];
+			if(i<mac.length-1) formatted[i*3+2] = '-';
+		}
+		
+		return new String(formatted);
+	}
+}
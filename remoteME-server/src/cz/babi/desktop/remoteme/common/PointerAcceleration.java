@@ -0,0 +1,130 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acceleration of relative pointer moves of one client. Speed of every move
+ * is computed from its length and time since previous move, then it is
+ * smoothed, so one late packet does not make a jump. Move is multiplied
+ * by gain computed from the smoothed speed, see {@link PointerProfile}.
+ * <p>
+ * Only gain is smoothed, not the move itself. So direction of moves is
+ * kept and the pointer does not lag behind the finger.
+ * <p>
+ * Instance is not thread-safe. Every session has its own.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class PointerAcceleration {
+	
+	/** Pause after which gesture is taken as new one. */
+	private static final long GESTURE_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+	
+	/** Shortest time between two moves, so packets which come together do not make huge speed. */
+	private static final float MIN_INTERVAL_MILLIS = 4f;
+	
+	private final float baseGain;
+	private final float acceleration;
+	private final float threshold;
+	private final float maxGain;
+	private final float smoothing;
+	
+	private long lastMoveTime = 0;
+	private float speed = 0;
+	
+	private float x = 0;
+	private float y = 0;
+	
+	/**
+	 * Constructor.
+	 * @param profile Profile of the client. It is read only once.
+	 */
+	public PointerAcceleration(PointerProfile profile) {
+		this.baseGain = profile.getBaseGain();
+		this.acceleration = Math.max(0f, profile.getAcceleration());
+		this.threshold = Math.max(0f, profile.getThreshold());
+		this.maxGain = Math.max(1f, profile.getMaxGain());
+		this.smoothing = Math.min(1f, Math.max(0.01f, profile.getSmoothing()));
+	}
+	
+	/**
+	 * Accelerate one move. Result is available by {@link #getX()} and {@link #getY()}.
+	 * @param offsetX Offset X sent by client.
+	 * @param offsetY Offset Y sent by client.
+	 */
+	public void apply(float offsetX, float offsetY) {
+		apply(offsetX, offsetY, System.nanoTime());
+	}
+	
+	/**
+	 * Accelerate one move. Result is available by {@link #getX()} and {@link #getY()}.
+	 * @param offsetX Offset X sent by client.
+	 * @param offsetY Offset Y sent by client.
+	 * @param now Time of the move in nanoseconds.
+	 */
+	public void apply(float offsetX, float offsetY, long now) {
+		/* Without acceleration speed does not matter. */
+		if(acceleration==0f) {
+			x = offsetX * baseGain;
+			y = offsetY * baseGain;
+			return;
+		}
+		
+		long interval = now - lastMoveTime;
+		lastMoveTime = now;
+		
+		float distance = (float)Math.sqrt(offsetX*offsetX + offsetY*offsetY);
+		
+		if(interval>=GESTURE_PAUSE_NANOS) {
+			/* Time from previous gesture tells nothing. First move is taken as slow. */
+			speed = 0;
+		} else {
+			float intervalMillis = Math.max(MIN_INTERVAL_MILLIS, interval/1000000f);
+			speed += smoothing * (distance/intervalMillis - speed);
+		}
+		
+		float gain = baseGain * Math.min(maxGain,
+				1f + acceleration * Math.max(0f, speed - threshold));
+		
+		x = offsetX * gain;
+		y = offsetY * gain;
+	}
+	
+	/**
+	 * @return Accelerated offset X of the last move.
+	 */
+	public float getX() {
+		return x;
+	}
+	
+	/**
+	 * @return Accelerated offset Y of the last move.
+	 */
+	public float getY() {
+		return y;
+	}
+	
+	/**
+	 * @return Smoothed speed of the last move in pixels per millisecond. Zero without acceleration.
+	 */
+	public float getSpeed() {
+		return speed;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+/**
+ * Pointer acceleration settings of one client. Profiles are saved together
+ * with {@link cz.babi.desktop.remoteme.Settings}. Client is identified by its
+ * address, profile with name {@link #DEFAULT_NAME} is used for all others.
+ * <p>
+ * Gain of a move is computed from speed of the pointer:
+ * <pre>
+ * gain = baseGain * min(maxGain, 1 + acceleration * max(0, speed - threshold))
+ * </pre>
+ * Speed is in pixels per millisecond. Values which are not configured move
+ * the pointer 1:1, without acceleration and smoothing. So the curve is
+ * applied only if a profile sets it.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class PointerProfile {
+	
+	/** Name of profile used for clients without own profile. */
+	public static final String DEFAULT_NAME = "default";
+	
+	/** Client address or {@link #DEFAULT_NAME}. */
+	private String name = DEFAULT_NAME;
+	
+	/** Gain of slow moves. */
+	private float baseGain = 1f;
+	
+	/** How fast gain grows with speed above threshold. 0 for no acceleration. */
+	private float acceleration = 0f;
+	
+	/** Speed in pixels per millisecond where acceleration starts. */
+	private float threshold = 0.4f;
+	
+	/** Max multiplier of base gain. */
+	private float maxGain = 4f;
+	
+	/** Weight of new speed in exponential smoothing. 1 for no smoothing. */
+	private float smoothing = 1f;
+	
+	/**
+	 * Constructor.
+	 */
+	public PointerProfile() {}
+	
+	/**
+	 * Constructor.
+	 * @param name Client address or {@link #DEFAULT_NAME}.
+	 */
+	public PointerProfile(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @param name the name to set
+	 */
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * @return the baseGain
+	 */
+	public float getBaseGain() {
+		return baseGain;
+	}
+	
+	/**
+	 * @param baseGain the baseGain to set
+	 */
+	public void setBaseGain(float baseGain) {
+		this.baseGain = baseGain;
+	}
+	
+	/**
+	 * @return the acceleration
+	 */
+	public float getAcceleration() {
+		return acceleration;
+	}
+	
+	/**
+	 * @param acceleration the acceleration to set
+	 */
+	public void setAcceleration(float acceleration) {
+		this.acceleration = acceleration;
+	}
+	
+	/**
+	 * @return the threshold
+	 */
+	public float getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * @param threshold the threshold to set
+	 */
+	public void setThreshold(float threshold) {
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * @return the maxGain
+	 */
+	public float getMaxGain() {
+		return maxGain;
+	}
+	
+	/**
+	 * @param maxGain the maxGain to set
+	 */
+	public void setMaxGain(float maxGain) {
+		this.maxGain = maxGain;
+	}
+	
+	/**
+	 * @return the smoothing
+	 */
+	public float getSmoothing() {
+		return smoothing;
+	}
+	
+	/**
+	 * @param smoothing the smoothing to set
+	 */
+	public void setSmoothing(float smoothing) {
+		this.smoothing = smoothing;
+	}
+}
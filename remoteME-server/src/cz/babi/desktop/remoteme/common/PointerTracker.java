@@ -0,0 +1,171 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Position of the pointer tracked locally, so relative moves do not need
+ * to ask the system where the pointer is. Parts of pixels are kept and
+ * added to the next move, so slow moves are not lost.
+ * <p>
+ * Real position is read again only after {@link #RESYNC_NANOS}. So if user
+ * moves the pointer by another mouse, it is found out at the next resync.
+ * Tracked position is kept inside of screens, so it does not run away
+ * when the pointer stops at the edge.
+ * <p>
+ * Instance is not thread-safe. It is used only by injector thread, only
+ * counters may be read by other threads.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+class PointerTracker {
+	
+	private static final Logger LOGGER = Logger.getLogger(PointerTracker.class.getSimpleName());
+	
+	/** Max time between two reads of real position. */
+	private static final long RESYNC_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+	
+	private int x = 0;
+	private int y = 0;
+	private float remainderX = 0;
+	private float remainderY = 0;
+	
+	private boolean isSynced = false;
+	private long lastSyncTime = 0;
+	
+	private Rectangle screenBounds = null;
+	
+	/* Counters are read by metrics panel. */
+	private final AtomicLong syncCount = new AtomicLong();
+	private final AtomicLong driftCount = new AtomicLong();
+	
+	private final InputSink sink;
+	
+	/**
+	 * Constructor.
+	 * @param sink Sink which knows real position of the pointer.
+	 */
+	PointerTracker(InputSink sink) {
+		this.sink = sink;
+	}
+	
+	/**
+	 * Move tracked position.
+	 * @param deltaX Amount X in pixels. May contain part of pixel.
+	 * @param deltaY Amount Y in pixels. May contain part of pixel.
+	 * @return If position has changed and the pointer should be moved.
+	 */
+	boolean move(float deltaX, float deltaY) {
+		long now = System.nanoTime();
+		if(!isSynced || now-lastSyncTime>=RESYNC_NANOS) sync(now);
+		
+		float totalX = remainderX + deltaX;
+		float totalY = remainderY + deltaY;
+		
+		int stepX = (int)totalX;
+		int stepY = (int)totalY;
+		
+		remainderX = totalX - stepX;
+		remainderY = totalY - stepY;
+		
+		if(stepX==0 && stepY==0) return false;
+		
+		int newX = x + stepX;
+		int newY = y + stepY;
+		
+		/* Pointer can not leave screens. So there is nothing to keep. */
+		if(screenBounds!=null) {
+			if(newX<screenBounds.x || newX>=screenBounds.x+screenBounds.width) remainderX = 0;
+			if(newY<screenBounds.y || newY>=screenBounds.y+screenBounds.height) remainderY = 0;
+			
+			newX = Math.max(screenBounds.x, Math.min(screenBounds.x+screenBounds.width-1, newX));
+			newY = Math.max(screenBounds.y, Math.min(screenBounds.y+screenBounds.height-1, newY));
+		}
+		
+		if(newX==x && newY==y) return false;
+		
+		x = newX;
+		y = newY;
+		
+		return true;
+	}
+	
+	/**
+	 * @return Tracked position X.
+	 */
+	int getX() {
+		return x;
+	}
+	
+	/**
+	 * @return Tracked position Y.
+	 */
+	int getY() {
+		return y;
+	}
+	
+	/**
+	 * @return Count of reads of real position.
+	 */
+	long getSyncCount() {
+		return syncCount.get();
+	}
+	
+	/**
+	 * @return Count of resyncs which found the pointer somewhere else.
+	 */
+	long getDriftCount() {
+		return driftCount.get();
+	}
+	
+	/**
+	 * Read real position of the pointer and bounds of screens.
+	 * @param now Current time.
+	 */
+	private void sync(long now) {
+		lastSyncTime = now;
+		syncCount.incrementAndGet();
+		
+		screenBounds = sink.getScreenBounds();
+		
+		/* If real position is not known, tracked one is the only truth. */
+		Point location = sink.getPointerLocation();
+		if(location==null) {
+			isSynced = true;
+			return;
+		}
+		
+		if(isSynced && (location.x!=x || location.y!=y)) {
+			driftCount.incrementAndGet();
+			if(Common.DEBUG) LOGGER.debug("[sync][Pointer has moved from " + x + ";" + y +
+					" to " + location.x + ";" + location.y + ".]");
+			remainderX = 0;
+			remainderY = 0;
+		}
+		
+		x = location.x;
+		y = location.y;
+		isSynced = true;
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sink which does not touch the system, it only counts events and remembers
+ * position of the pointer on a virtual screen. Server with this sink runs
+ * on a box without display and whole pipeline from socket to injection can
+ * be measured. Commands like shut down are not run.
+ * <p>
+ * Counters are written only by injector thread and can be read by any thread.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class RecordingInputSink implements InputSink {
+	
+	private static final Logger LOGGER = Logger.getLogger(RecordingInputSink.class.getSimpleName());
+	
+	/** Size of virtual screen. */
+	private static final Rectangle SCREEN_BOUNDS = new Rectangle(0, 0, 1920, 1080);
+	
+	private volatile int x = SCREEN_BOUNDS.width/2;
+	private volatile int y = SCREEN_BOUNDS.height/2;
+	
+	private volatile long mouseMoves = 0;
+	private volatile long mouseButtons = 0;
+	private volatile long mouseWheels = 0;
+	private volatile long keys = 0;
+	private volatile long pastes = 0;
+	private volatile long commands = 0;
+	
+	@Override
+	public boolean open() {
+		if(Common.DEBUG) LOGGER.debug("[open][Events are only recorded.]");
+		
+		return true;
+	}
+	
+	@Override
+	public void mouseMove(int x, int y) {
+		this.x = x;
+		this.y = y;
+		mouseMoves++;
+	}
+	
+	@Override
+	public void mousePress(int buttons) {
+		mouseButtons++;
+	}
+	
+	@Override
+	public void mouseRelease(int buttons) {}
+	
+	@Override
+	public void mouseWheel(int wheelAmount) {
+		mouseWheels++;
+	}
+	
+	@Override
+	public void keyPress(int keyCode) {
+		keys++;
+	}
+	
+	@Override
+	public void keyRelease(int keyCode) {}
+	
+	@Override
+	public boolean isNumLockOn() {
+		return false;
+	}
+	
+	@Override
+	public void paste(String text) {
+		pastes++;
+	}
+	
+	@Override
+	public Point getPointerLocation() {
+		return new Point(x, y);
+	}
+	
+	@Override
+	public Rectangle getScreenBounds() {
+		return SCREEN_BOUNDS;
+	}
+	
+	@Override
+	public void execute(String command) {
+		if(Common.DEBUG) LOGGER.debug("[execute][Command '" + command + "' is not run.]");
+		
+		commands++;
+	}
+	
+	/**
+	 * @return Count of pointer moves.
+	 */
+	public long getMouseMoves() {
+		return mouseMoves;
+	}
+	
+	/**
+	 * @return Count of mouse clicks.
+	 */
+	public long getMouseButtons() {
+		return mouseButtons;
+	}
+	
+	/**
+	 * @return Count of mouse wheel events.
+	 */
+	public long getMouseWheels() {
+		return mouseWheels;
+	}
+	
+	/**
+	 * @return Count of pressed keys.
+	 */
+	public long getKeys() {
+		return keys;
+	}
+	
+	/**
+	 * @return Count of pasted texts.
+	 */
+	public long getPastes() {
+		return pastes;
+	}
+	
+	/**
+	 * @return Count of commands which were not run.
+	 */
+	public long getCommands() {
+		return commands;
+	}
+}
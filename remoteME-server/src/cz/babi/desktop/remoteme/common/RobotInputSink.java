@@ -0,0 +1,78 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.awt.AWTException;
+import java.awt.Robot;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sink which injects events by {@link Robot}. It is the default sink.
+ * On X11 Robot uses XTest extension. Text is pasted through system clipboard.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class RobotInputSink extends AbstractInputSink {
+	
+	private static final Logger LOGGER = Logger.getLogger(RobotInputSink.class.getSimpleName());
+	
+	private Robot robot;
+	
+	@Override
+	public boolean open() {
+		try {
+			robot = new Robot();
+		} catch(AWTException | SecurityException ex) {
+			if(Common.ERROR) LOGGER.error("[open][Can not create Robot.]", ex);
+			return false;
+		}
+		
+		return openClipboard();
+	}
+	
+	@Override
+	public void mouseMove(int x, int y) {
+		robot.mouseMove(x, y);
+	}
+	
+	@Override
+	public void mousePress(int buttons) {
+		robot.mousePress(buttons);
+	}
+	
+	@Override
+	public void mouseRelease(int buttons) {
+		robot.mouseRelease(buttons);
+	}
+	
+	@Override
+	public void mouseWheel(int wheelAmount) {
+		robot.mouseWheel(wheelAmount);
+	}
+	
+	@Override
+	public void keyPress(int keyCode) {
+		robot.keyPress(keyCode);
+	}
+	
+	@Override
+	public void keyRelease(int keyCode) {
+		robot.keyRelease(keyCode);
+	}
+}
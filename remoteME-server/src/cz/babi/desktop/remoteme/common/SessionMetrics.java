@@ -0,0 +1,218 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of one client session. Every value is recorded to the aggregate of
+ * all sessions too, see {@link Metrics#getTotal()}. Session thread and UDP
+ * motion channel record at the same time, so recording is lock-free and
+ * does not allocate. Times are in nanoseconds.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class SessionMetrics {
+	
+	/** Counters are kept for message IDs below this value. */
+	public static final int EVENT_TYPES = 32;
+	
+	/** Index of counter for messages which are not events. There is no message with ID zero. */
+	public static final int UNKNOWN_EVENT = 0;
+	
+	private final SessionMetrics total;
+	private final int id;
+	private final String client;
+	private final long startTime = System.nanoTime();
+	
+	private final AtomicLongArray events = new AtomicLongArray(EVENT_TYPES);
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	
+	private final LatencyHistogram decryptTimes = new LatencyHistogram();
+	private final LatencyHistogram parseTimes = new LatencyHistogram();
+	private final LatencyHistogram dispatchTimes = new LatencyHistogram();
+	
+	/* Only aggregate keeps histogram of handshakes, one session has only one. */
+	private final LatencyHistogram handshakeTimes;
+	private volatile long handshakeTime = -1;
+	
+	/**
+	 * Constructor.
+	 * @param total Aggregate of all sessions. Null for aggregate itself.
+	 * @param id Sequence number of session.
+	 * @param client Address of client.
+	 */
+	SessionMetrics(SessionMetrics total, int id, String client) {
+		this.total = total;
+		this.id = id;
+		this.client = client;
+		
+		handshakeTimes = (total==null) ? new LatencyHistogram() : null;
+	}
+	
+	/**
+	 * Count received bytes.
+	 * @param count Count of bytes.
+	 */
+	public void addBytesIn(long count) {
+		bytesIn.addAndGet(count);
+		if(total!=null) total.addBytesIn(count);
+	}
+	
+	/**
+	 * Count sent bytes.
+	 * @param count Count of bytes.
+	 */
+	public void addBytesOut(long count) {
+		bytesOut.addAndGet(count);
+		if(total!=null) total.addBytesOut(count);
+	}
+	
+	/**
+	 * @param nanos Time of decryption of one message.
+	 */
+	public void recordDecrypt(long nanos) {
+		decryptTimes.record(nanos);
+		if(total!=null) total.recordDecrypt(nanos);
+	}
+	
+	/**
+	 * @param nanos Time of parsing of one message.
+	 */
+	public void recordParse(long nanos) {
+		parseTimes.record(nanos);
+		if(total!=null) total.recordParse(nanos);
+	}
+	
+	/**
+	 * Count processed message and time of its dispatch to controller.
+	 * @param type Message ID, see {@link cz.babi.desktop.remoteme.entity.Message}.
+	 * @param nanos Time of dispatch.
+	 */
+	public void recordEvent(int type, long nanos) {
+		events.incrementAndGet((Metrics.getEventName(type)!=null) ? type : UNKNOWN_EVENT);
+		dispatchTimes.record(nanos);
+		if(total!=null) total.recordEvent(type, nanos);
+	}
+	
+	/**
+	 * @param nanos Time from start of session to the end of handshake.
+	 */
+	public void recordHandshake(long nanos) {
+		handshakeTime = nanos;
+		if(handshakeTimes!=null) handshakeTimes.record(nanos);
+		if(total!=null) total.recordHandshake(nanos);
+	}
+	
+	/**
+	 * @return Sequence number of session. Zero for aggregate.
+	 */
+	public int getId() {
+		return id;
+	}
+	
+	/**
+	 * @return Address of client.
+	 */
+	public String getClient() {
+		return client;
+	}
+	
+	/**
+	 * @return Time since start of session in nanoseconds.
+	 */
+	public long getAge() {
+		return System.nanoTime() - startTime;
+	}
+	
+	/**
+	 * @param type Message ID.
+	 * @return Count of processed messages of given type.
+	 */
+	public long getEvents(int type) {
+		return events.get(type);
+	}
+	
+	/**
+	 * @return Count of all processed messages.
+	 */
+	public long getEvents() {
+		long sum = 0;
+		for(int i=0; i<EVENT_TYPES; i++) sum += events.get(i);
+		
+		return sum;
+	}
+	
+	/**
+	 * @return Average count of processed messages per second since start.
+	 */
+	public double getEventRate() {
+		return getEvents()/Math.max(1e-9, getAge()/1e9);
+	}
+	
+	/**
+	 * @return Count of received bytes.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	/**
+	 * @return Count of sent bytes.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	/**
+	 * @return Times of decryption.
+	 */
+	public LatencyHistogram getDecryptTimes() {
+		return decryptTimes;
+	}
+	
+	/**
+	 * @return Times of parsing.
+	 */
+	public LatencyHistogram getParseTimes() {
+		return parseTimes;
+	}
+	
+	/**
+	 * @return Times of dispatch.
+	 */
+	public LatencyHistogram getDispatchTimes() {
+		return dispatchTimes;
+	}
+	
+	/**
+	 * @return Times of handshakes. Null if these are not aggregated metrics.
+	 */
+	public LatencyHistogram getHandshakeTimes() {
+		return handshakeTimes;
+	}
+	
+	/**
+	 * @return Duration of handshake in nanoseconds or -1 if it is not done yet.
+	 */
+	public long getHandshakeTime() {
+		return handshakeTime;
+	}
+}
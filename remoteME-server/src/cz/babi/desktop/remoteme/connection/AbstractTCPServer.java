@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.util.ArrayList;
+import java.util.Observable;
+
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
+import cz.babi.desktop.remoteme.interfaces.DefaultServer;
+
+/**
+ * Base of all TCP servers. It holds connected clients and notify observers
+ * (GUI) every time the count of clients changes.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public abstract class AbstractTCPServer extends Observable implements Runnable, DefaultServer {
+	
+	/** Variable define user port. */
+	protected final int PORT;
+	
+	/** List holds all clients. */
+	private final ArrayList<DefaultClient> clients;
+	
+	/**
+	 * Constructor.
+	 * @param port Port to set.
+	 */
+	protected AbstractTCPServer(int port) {
+		this.PORT = port;
+		clients = new ArrayList<>();
+	}
+	
+	@Override
+	public void run() {
+		startServer();
+		if(isRunning()) waitForConnection();
+	}
+	
+	/**
+	 * @return If server is ready for incoming requests.
+	 */
+	protected abstract boolean isRunning();
+	
+	/**
+	 * Remove all clients.
+	 */
+	public void clearClients() {
+		int count;
+		synchronized(clients) {
+			clients.clear();
+			count = clients.size();
+		}
+		
+		setChanged();
+		notifyObservers(count);
+	}
+	
+	/**
+	 * @return Copy of the list of clients. Clients may disconnect while caller
+	 * iterates over it.
+	 */
+	public ArrayList<DefaultClient> getClients() {
+		synchronized(clients) {
+			return new ArrayList<>(clients);
+		}
+	}
+	
+	/**
+	 * Remove client from list.
+	 * @param client Client to remove.
+	 */
+	public void removeClient(DefaultClient client) {
+		int count;
+		synchronized(clients) {
+			if(!clients.remove(client)) return;
+			count = clients.size();
+		}
+		
+		setChanged();
+		notifyObservers(count);
+	}
+	
+	/**
+	 * Add client to list.
+	 * @param client New Client.
+	 */
+	public void addClient(DefaultClient client) {
+		int count;
+		synchronized(clients) {
+			clients.add(client);
+			count = clients.size();
+		}
+		
+		setChanged();
+		notifyObservers(count);
+	}
+}
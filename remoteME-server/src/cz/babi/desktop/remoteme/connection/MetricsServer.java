@@ -0,0 +1,471 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+import cz.babi.desktop.remoteme.common.Metrics;
+import cz.babi.desktop.remoteme.common.SessionMetrics;
+import cz.babi.desktop.remoteme.interfaces.DefaultServer;
+
+/**
+ * Tiny HTTP server with {@link Metrics}. It listens only on loopback and
+ * serves one request at a time. {@link #PATH_PROMETHEUS} returns Prometheus
+ * text format, {@link #PATH_JSON} returns JSON. Times are in seconds in
+ * Prometheus format and in microseconds in JSON.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class MetricsServer implements Runnable, DefaultServer {
+	
+	private static final Logger LOGGER = Logger.getLogger(MetricsServer.class.getSimpleName());
+	
+	private static final Charset CHARSET = Charset.forName(Common.CHARSET);
+	
+	/** Path of metrics in Prometheus text format. */
+	public static final String PATH_PROMETHEUS = "/metrics";
+	/** Path of metrics in JSON. */
+	public static final String PATH_JSON = "/metrics.json";
+	
+	/** Slow client must not block next requests for long. */
+	private static final int SOCKET_TIMEOUT = 2000;
+	
+	/** Percentiles reported for every histogram. */
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+	
+	private final int port;
+	
+	private ServerSocket serverSocket = null;
+	private volatile boolean keepRunning = false;
+	
+	/**
+	 * Constructor.
+	 * @param port Port on loopback.
+	 */
+	public MetricsServer(int port) {
+		this.port = port;
+	}
+	
+	@Override
+	public void run() {
+		startServer();
+		if(keepRunning) waitForConnection();
+	}
+	
+	@Override
+	public void startServer() {
+		if(Common.DEBUG) LOGGER.debug("[startServer][Metrics server is starting on port: '" +
+				port + "'.]");
+		
+		try {
+			serverSocket = new ServerSocket(port, 0, InetAddress.getByName(null));
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[startServer][Can not create a ServerSocket on port " +
+					port + ".]", ioe);
+			return;
+		}
+		
+		keepRunning = true;
+	}
+	
+	@Override
+	public void waitForConnection() {
+		while(keepRunning) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch(IOException ioe) {
+				if(keepRunning && Common.ERROR) LOGGER.error("[waitForConnection][Can not accept " +
+						"a connection.]", ioe);
+				return;
+			}
+			
+			try {
+				socket.setSoTimeout(SOCKET_TIMEOUT);
+				serve(socket);
+			} catch(IOException ioe) {
+				if(Common.DEBUG) LOGGER.debug("[waitForConnection][Can not serve a request: " +
+						ioe.getMessage() + "]");
+			} finally {
+				try {
+					socket.close();
+				} catch(IOException ioe) {
+					if(Common.ERROR) LOGGER.error("[waitForConnection][Can not close socket.]", ioe);
+				}
+			}
+		}
+	}
+	
+	@Override
+	public void stopServer() {
+		if(Common.DEBUG) LOGGER.debug("[stopServer]");
+		
+		keepRunning = false;
+		
+		if(serverSocket!=null && !serverSocket.isClosed()) {
+			try {
+				serverSocket.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[stopServer][Can not close ServerSocket.]", ioe);
+			}
+		}
+	}
+	
+	/**
+	 * @return Port on loopback.
+	 */
+	public int getPort() {
+		return port;
+	}
+	
+	/**
+	 * Read one request and send metrics or error.
+	 * @param socket Socket of client.
+	 * @throws IOException If request can not be read or answer can not be sent.
+	 */
+	private void serve(Socket socket) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+				CHARSET));
+		
+		String requestLine = in.readLine();
+		if(requestLine==null) return;
+		
+		/* Headers are not needed. */
+		String header;
+		while((header=in.readLine())!=null && !header.isEmpty());
+		
+		String[] request = requestLine.split(" ");
+		String path = (request.length>1) ? request[1] : "";
+		int query = path.indexOf('?');
+		if(query>=0) path = path.substring(0, query);
+		
+		if(Common.DEBUG) LOGGER.debug("[serve][" + requestLine + "]");
+		
+		if(!request[0].equals("GET")) {
+			send(socket, "405 Method Not Allowed", "text/plain", "Only GET is supported.\n");
+		} else if(path.equals(PATH_PROMETHEUS)) {
+			send(socket, "200 OK", "text/plain; version=0.0.4", toPrometheus(Metrics.getInstance()));
+		} else if(path.equals(PATH_JSON)) {
+			send(socket, "200 OK", "application/json", toJson(Metrics.getInstance()));
+		} else {
+			send(socket, "404 Not Found", "text/plain", "Use " + PATH_PROMETHEUS + " or " +
+					PATH_JSON + ".\n");
+		}
+	}
+	
+	/**
+	 * Send HTTP answer.
+	 * @param socket Socket of client.
+	 * @param status Status code and reason.
+	 * @param contentType Content type.
+	 * @param body Body of answer.
+	 * @throws IOException If answer can not be sent.
+	 */
+	private static void send(Socket socket, String status, String contentType, String body)
+			throws IOException {
+		byte[] data = body.getBytes(CHARSET);
+		String head = "HTTP/1.0 " + status + "\r\n" +
+				"Content-Type: " + contentType + "; charset=" + Common.CHARSET + "\r\n" +
+				"Content-Length: " + data.length + "\r\n" +
+				"Connection: close\r\n\r\n";
+		
+		OutputStream out = socket.getOutputStream();
+		out.write(head.getBytes(CHARSET));
+		out.write(data);
+		out.flush();
+	}
+	
+	/**
+	 * @param metrics Metrics.
+	 * @return Metrics in Prometheus text format.
+	 */
+	static String toPrometheus(Metrics metrics) {
+		StringBuilder out = new StringBuilder();
+		InputInjector injector = InputInjector.getInstance();
+		SessionMetrics total = metrics.getTotal();
+		List<SessionMetrics> sessions = metrics.getSessions();
+		
+		appendHeader(out, "remoteme_uptime_seconds", "gauge", "Time since start of server.");
+		appendSample(out, "remoteme_uptime_seconds", "", metrics.getUptime()/1e9);
+		appendHeader(out, "remoteme_sessions", "gauge", "Live client sessions.");
+		appendSample(out, "remoteme_sessions", "", sessions.size());
+		
+		appendHeader(out, "remoteme_events_total", "counter", "Processed messages by type.");
+		appendEvents(out, "remoteme_events_total", "", total);
+		appendHeader(out, "remoteme_received_bytes_total", "counter", "Bytes received from clients.");
+		appendSample(out, "remoteme_received_bytes_total", "", total.getBytesIn());
+		appendHeader(out, "remoteme_sent_bytes_total", "counter", "Bytes sent to clients.");
+		appendSample(out, "remoteme_sent_bytes_total", "", total.getBytesOut());
+		
+		appendSummary(out, "remoteme_handshake_seconds", "Duration of handshakes.", "",
+				total.getHandshakeTimes());
+		appendSummary(out, "remoteme_decrypt_seconds", "Decryption of one message.", "",
+				total.getDecryptTimes());
+		appendSummary(out, "remoteme_parse_seconds", "Parsing of one message.", "",
+				total.getParseTimes());
+		appendSummary(out, "remoteme_dispatch_seconds", "Dispatch of one message to controller.",
+				"", total.getDispatchTimes());
+		
+		appendHeader(out, "remoteme_injector_queue_depth", "gauge", "Events waiting for injection.");
+		appendSample(out, "remoteme_injector_queue_depth", "", injector.getQueueDepth());
+		appendHeader(out, "remoteme_injector_injected_total", "counter", "Injected events.");
+		appendSample(out, "remoteme_injector_injected_total", "", injector.getInjectedEvents());
+		appendHeader(out, "remoteme_injector_coalesced_moves_total", "counter", "Mouse moves " +
+				"merged because the queue was full.");
+		appendSample(out, "remoteme_injector_coalesced_moves_total", "", injector.getCoalescedMoves());
+		appendHeader(out, "remoteme_pointer_syncs_total", "counter", "Reads of real pointer " +
+				"position.");
+		appendSample(out, "remoteme_pointer_syncs_total", "", injector.getPointerSyncCount());
+		appendHeader(out, "remoteme_pointer_drifts_total", "counter", "Reads which found the " +
+				"pointer moved by somebody else.");
+		appendSample(out, "remoteme_pointer_drifts_total", "", injector.getPointerDriftCount());
+		appendSummary(out, "remoteme_injection_latency_seconds", "Time between posting and " +
+				"injecting of an event.", "", metrics.getInjectionLatencies());
+		appendSummary(out, "remoteme_sink_seconds", "Time spent in input sink.", "",
+				metrics.getSinkTimes());
+		
+		appendHeader(out, "remoteme_session_events_total", "counter", "Processed messages of " +
+				"live session by type.");
+		for(SessionMetrics session : sessions)
+			appendEvents(out, "remoteme_session_events_total", sessionLabels(session), session);
+		appendHeader(out, "remoteme_session_received_bytes_total", "counter", "Bytes received " +
+				"from client of live session.");
+		for(SessionMetrics session : sessions)
+			appendSample(out, "remoteme_session_received_bytes_total", sessionLabels(session),
+					session.getBytesIn());
+		appendHeader(out, "remoteme_session_sent_bytes_total", "counter", "Bytes sent to client " +
+				"of live session.");
+		for(SessionMetrics session : sessions)
+			appendSample(out, "remoteme_session_sent_bytes_total", sessionLabels(session),
+					session.getBytesOut());
+		appendHeader(out, "remoteme_session_handshake_seconds", "gauge", "Duration of handshake " +
+				"of live session.");
+		for(SessionMetrics session : sessions)
+			if(session.getHandshakeTime()>=0)
+				appendSample(out, "remoteme_session_handshake_seconds", sessionLabels(session),
+						session.getHandshakeTime()/1e9);
+		appendHeader(out, "remoteme_session_dispatch_seconds", "summary", "Dispatch of one " +
+				"message of live session.");
+		for(SessionMetrics session : sessions)
+			appendQuantiles(out, "remoteme_session_dispatch_seconds", sessionLabels(session),
+					session.getDispatchTimes());
+		
+		return out.toString();
+	}
+	
+	/**
+	 * @param session Metrics of session.
+	 * @return Labels which identify the session.
+	 */
+	private static String sessionLabels(SessionMetrics session) {
+		return "session=\"" + session.getId() + "\",client=\"" + session.getClient() + "\"";
+	}
+	
+	/**
+	 * Append HELP and TYPE lines.
+	 * @param out Output.
+	 * @param name Name of metric.
+	 * @param type Type of metric.
+	 * @param help Description of metric.
+	 */
+	private static void appendHeader(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+	
+	/**
+	 * Append one sample.
+	 * @param out Output.
+	 * @param name Name of metric.
+	 * @param labels Labels separated by comma. Can be empty.
+	 * @param value Value.
+	 */
+	private static void appendSample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if(!labels.isEmpty()) out.append('{').append(labels).append('}');
+		out.append(' ');
+		
+		if(value==Math.rint(value)) out.append((long)value);
+		else out.append(value);
+		
+		out.append('\n');
+	}
+	
+	/**
+	 * Append counters of events. Types which were not seen are skipped.
+	 * @param out Output.
+	 * @param name Name of metric.
+	 * @param labels Labels separated by comma. Can be empty.
+	 * @param session Metrics of session.
+	 */
+	private static void appendEvents(StringBuilder out, String name, String labels,
+			SessionMetrics session) {
+		String separator = labels.isEmpty() ? "" : ",";
+		for(int type=0; type<SessionMetrics.EVENT_TYPES; type++) {
+			long count = session.getEvents(type);
+			if(count>0) appendSample(out, name, labels + separator + "type=\"" +
+					Metrics.getEventName(type) + "\"", count);
+		}
+	}
+	
+	/**
+	 * Append summary with header.
+	 * @param out Output.
+	 * @param name Name of metric.
+	 * @param help Description of metric.
+	 * @param labels Labels separated by comma. Can be empty.
+	 * @param histogram Times in nanoseconds.
+	 */
+	private static void appendSummary(StringBuilder out, String name, String help, String labels,
+			LatencyHistogram histogram) {
+		appendHeader(out, name, "summary", help);
+		appendQuantiles(out, name, labels, histogram);
+	}
+	
+	/**
+	 * Append quantiles, sum and count of summary.
+	 * @param out Output.
+	 * @param name Name of metric.
+	 * @param labels Labels separated by comma. Can be empty.
+	 * @param histogram Times in nanoseconds.
+	 */
+	private static void appendQuantiles(StringBuilder out, String name, String labels,
+			LatencyHistogram histogram) {
+		String separator = labels.isEmpty() ? "" : ",";
+		for(int i=0; i<PERCENTILES.length; i++)
+			appendSample(out, name, labels + separator + "quantile=\"" + QUANTILES[i] + "\"",
+					histogram.getPercentile(PERCENTILES[i])/1e9);
+		appendSample(out, name + "_sum", labels, histogram.getSum()/1e9);
+		appendSample(out, name + "_count", labels, histogram.getCount());
+	}
+	
+	/**
+	 * @param metrics Metrics.
+	 * @return Metrics in JSON.
+	 */
+	static String toJson(Metrics metrics) {
+		InputInjector injector = InputInjector.getInstance();
+		List<SessionMetrics> sessions = metrics.getSessions();
+		
+		StringBuilder out = new StringBuilder("{");
+		out.append("\"uptime_seconds\":").append(metrics.getUptime()/1000000000);
+		
+		out.append(",\"injector\":{\"queue_depth\":").append(injector.getQueueDepth());
+		out.append(",\"injected\":").append(injector.getInjectedEvents());
+		out.append(",\"coalesced_moves\":").append(injector.getCoalescedMoves());
+		out.append(",\"pointer_syncs\":").append(injector.getPointerSyncCount());
+		out.append(",\"pointer_drifts\":").append(injector.getPointerDriftCount());
+		out.append(",\"latency_us\":");
+		appendJson(out, metrics.getInjectionLatencies());
+		out.append(",\"sink_us\":");
+		appendJson(out, metrics.getSinkTimes());
+		out.append('}');
+		
+		out.append(",\"total\":");
+		appendJson(out, metrics.getTotal());
+		
+		out.append(",\"sessions\":[");
+		for(int i=0; i<sessions.size(); i++) {
+			if(i>0) out.append(',');
+			appendJson(out, sessions.get(i));
+		}
+		out.append("]}\n");
+		
+		return out.toString();
+	}
+	
+	/**
+	 * Append metrics of session as JSON object.
+	 * @param out Output.
+	 * @param session Metrics of session.
+	 */
+	private static void appendJson(StringBuilder out, SessionMetrics session) {
+		out.append("{\"id\":").append(session.getId());
+		out.append(",\"client\":\"").append(session.getClient()).append('"');
+		out.append(",\"age_seconds\":").append(session.getAge()/1000000000);
+		if(session.getHandshakeTimes()!=null) {
+			out.append(",\"handshake_us\":");
+			appendJson(out, session.getHandshakeTimes());
+		} else if(session.getHandshakeTime()>=0) {
+			out.append(",\"handshake_us\":").append(session.getHandshakeTime()/1000);
+		}
+		out.append(",\"bytes_in\":").append(session.getBytesIn());
+		out.append(",\"bytes_out\":").append(session.getBytesOut());
+		
+		out.append(",\"events\":{");
+		boolean isFirst = true;
+		for(int type=0; type<SessionMetrics.EVENT_TYPES; type++) {
+			long count = session.getEvents(type);
+			if(count==0) continue;
+			
+			if(!isFirst) out.append(',');
+			isFirst = false;
+			out.append('"').append(Metrics.getEventName(type)).append("\":").append(count);
+		}
+		out.append('}');
+		out.append(",\"events_per_second\":").append(String.format(Locale.ENGLISH, "%.1f",
+				session.getEventRate()));
+		
+		out.append(",\"decrypt_us\":");
+		appendJson(out, session.getDecryptTimes());
+		out.append(",\"parse_us\":");
+		appendJson(out, session.getParseTimes());
+		out.append(",\"dispatch_us\":");
+		appendJson(out, session.getDispatchTimes());
+		out.append('}');
+	}
+	
+	/**
+	 * Append histogram as JSON object.
+	 * @param out Output.
+	 * @param histogram Times in nanoseconds.
+	 */
+	private static void appendJson(StringBuilder out, LatencyHistogram histogram) {
+		out.append("{\"count\":").append(histogram.getCount());
+		out.append(",\"mean\":").append(toMicros(histogram.getMean()));
+		for(int i=0; i<PERCENTILES.length; i++)
+			out.append(",\"").append(PERCENTILE_NAMES[i]).append("\":").
+					append(toMicros(histogram.getPercentile(PERCENTILES[i])));
+		out.append(",\"max\":").append(toMicros(histogram.getMax()));
+		out.append('}');
+	}
+	
+	/**
+	 * @param nanos Time in nanoseconds.
+	 * @return Time in microseconds with one decimal place.
+	 */
+	private static String toMicros(long nanos) {
+		return String.format(Locale.ENGLISH, "%.1f", nanos/1e3);
+	}
+}
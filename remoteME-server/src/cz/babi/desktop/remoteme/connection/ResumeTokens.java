@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
+
+/**
+ * Resumption tokens of authenticated sessions. Client gets a token in
+ * welcome message and it can use it for one reconnect without password,
+ * e.g. after Wi-Fi drop out. Token is valid while its session is alive and
+ * {@link #RESUME_WINDOW_NANOS} after the session is closed. Every token can
+ * be used only once, resumed session gets a new one.
+ * <p>
+ * Old connection often stays open on server side when client loses Wi-Fi.
+ * So it is disconnected when its token is used.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public final class ResumeTokens {
+	
+	private static final Logger LOGGER = Logger.getLogger(ResumeTokens.class.getSimpleName());
+	
+	private static final ResumeTokens instance = new ResumeTokens();
+	
+	/** How long token is valid after its session is closed. */
+	private static final long RESUME_WINDOW_NANOS = TimeUnit.MINUTES.toNanos(2);
+	
+	/** Max count of tokens. Expired tokens are removed when there are more. */
+	private static final int MAX_TOKENS = 256;
+	
+	private static final int TOKEN_LENGTH = 16;
+	
+	private static final SecureRandom RANDOM = new SecureRandom();
+	
+	/**
+	 * Client of a token and time when the token expires.
+	 */
+	private static class Entry {
+		final DefaultClient client;
+		/* Zero while session is alive. */
+		volatile long expireTime = 0;
+		
+		Entry(DefaultClient client) {
+			this.client = client;
+		}
+	}
+	
+	private final ConcurrentHashMap<String, Entry> tokens = new ConcurrentHashMap<>();
+	
+	private ResumeTokens() {}
+	
+	/**
+	 * Get singleton instance.
+	 * @return Instance.
+	 */
+	public static ResumeTokens getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Issue new token for authenticated session.
+	 * @param client Client of the session.
+	 * @return New token.
+	 */
+	public String issue(DefaultClient client) {
+		if(tokens.size()>=MAX_TOKENS) removeExpired();
+		
+		byte[] tokenBytes = new byte[TOKEN_LENGTH];
+		RANDOM.nextBytes(tokenBytes);
+		String token = DatatypeConverter.printBase64Binary(tokenBytes);
+		
+		tokens.put(token, new Entry(client));
+		
+		return token;
+	}
+	
+	/**
+	 * Session of a token is closed. Token stays valid for a while.
+	 * @param token Token of the session. May be null.
+	 */
+	public void release(String token) {
+		if(token==null) return;
+		
+		Entry entry = tokens.get(token);
+		if(entry!=null) entry.expireTime = System.nanoTime() + RESUME_WINDOW_NANOS;
+	}
+	
+	/**
+	 * Use token for resuming of session. Token is removed and old connection
+	 * of the session is closed, if it is still open.
+	 * @param token Token sent by client.
+	 * @return If token is valid.
+	 */
+	public boolean redeem(String token) {
+		Entry entry = tokens.remove(token);
+		if(entry==null) return false;
+		
+		if(entry.expireTime==0) {
+			if(Common.DEBUG) LOGGER.debug("[redeem][Old connection is still open. " +
+					"Disconnecting it.]");
+			entry.client.forceDisconnect();
+			return true;
+		}
+		
+		return System.nanoTime()-entry.expireTime<0;
+	}
+	
+	/**
+	 * Remove tokens of closed sessions which can not be used anymore.
+	 */
+	private void removeExpired() {
+		long now = System.nanoTime();
+		
+		Iterator<Map.Entry<String, Entry>> iterator = tokens.entrySet().iterator();
+		while(iterator.hasNext()) {
+			long expireTime = iterator.next().getValue().expireTime;
+			if(expireTime!=0 && now-expireTime>=0) iterator.remove();
+		}
+	}
+}
@@ -19,56 +19,61 @@ package cz.babi.desktop.remoteme.connection;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Observable;
 
 import org.apache.log4j.Logger;
 
 import cz.babi.desktop.remoteme.common.Common;
 import cz.babi.desktop.remoteme.entity.MyThreadGroups;
-import cz.babi.desktop.remoteme.interfaces.DefaultServer;
 
 /**
  * This class represent TCP server,
  * which will be used for init communication with remote clients.
  * The server is waiting for incoming requests (clients) and after it
  * receive right request, it will create a new thread represents one client.
+ * In executor mode client is run by executor of {@link MyThreadGroups}.
  * 
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
  */
-public class TCPClientServer extends Observable implements Runnable, DefaultServer {
+public class TCPClientServer extends AbstractTCPServer {
 	
 	private static final Logger LOGGER = Logger.getLogger(TCPClientServer.class.getSimpleName());
 	
-	/** Variable define user port. */
-	private final int PORT;
 	/** Variable define if server can run. */
 	private boolean keepRunning = false;
+	/** Run client handlers by executor instead of new thread per client. */
+	private final boolean useExecutor;
 	
 	private ServerSocket serverSocket = null;
 	private Socket clientSocket = null;
 	
-	/** List holds all clients. */
-	private ArrayList<TCPClientHandler> clients;
-	
 	/**
 	 * Constructor of TCP server.
 	 * @param port Port to set.
 	 */
 	public TCPClientServer(int port) {
+		this(port, false);
+	}
+	
+	/**
+	 * Constructor of TCP server.
+	 * @param port Port to set.
+	 * @param useExecutor Run client handlers by executor of {@link MyThreadGroups}.
+	 */
+	public TCPClientServer(int port, boolean useExecutor) {
+		super(port);
+		
 		if(Common.DEBUG) LOGGER.debug("[TCPClientServer][Public constructor.]");
 		
-		this.PORT = port;
-		clients = new ArrayList<>();
+		this.useExecutor = useExecutor;
 	}
 	
+	/**
+	 * @see cz.babi.desktop.remoteme.connection.AbstractTCPServer#isRunning()
+	 */
 	@Override
-	public void run() {
-		if(Common.DEBUG) LOGGER.debug("[run][Start task.]");
-		
-		startServer();
-		if(keepRunning) waitForConnection();
+	protected boolean isRunning() {
+		return keepRunning;
 	}
 	
 	/**
@@ -106,15 +111,20 @@ public class TCPClientServer extends Observable implements Runnable, DefaultServ
 				return;
 			}
 			
-			Thread tcpClientHandler = new Thread(MyThreadGroups.getInstance().getTcpThreadGroup(),
-					new TCPClientHandler(clientSocket, this));
+			TCPClientHandler clientHandler = new TCPClientHandler(clientSocket, this);
 			
-			tcpClientHandler.setDaemon(false);
-			tcpClientHandler.start();
+			if(useExecutor) {
+				MyThreadGroups.getInstance().getTcpClientExecutor().execute(clientHandler);
+			} else {
+				Thread tcpClientHandler = new Thread(MyThreadGroups.getInstance().getTcpThreadGroup(),
+						clientHandler);
+				
+				tcpClientHandler.setDaemon(false);
+				tcpClientHandler.start();
+			}
 			
-			if(Common.DEBUG) LOGGER.debug("[waitForConnection][[Active threads in group '" +
-					MyThreadGroups.getInstance().getServersThreadGroup().getName() + "': " +
-					MyThreadGroups.getInstance().getServersThreadGroup().activeCount()+ "]");
+			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Active client sessions: " +
+					MyThreadGroups.getInstance().getActiveSessionCount() + "]");
 		}
 	}
 	
@@ -134,43 +144,4 @@ public class TCPClientServer extends Observable implements Runnable, DefaultServ
 			if(Common.DEBUG) LOGGER.debug("[stopServer][Server is off.]");
 		}
 	}
-	
-	/**
-	 * Remove all clients.
-	 */
-	public void clearClients() {
-		clients.clear();
-		
-		setChanged();
-		notifyObservers(clients.size());
-	}
-	
-	/**
-	 * @return the clients
-	 */
-	public ArrayList<TCPClientHandler> getClients() {
-		return clients;
-	}
-	
-	/**
-	 * Add client to list.
-	 * @param client New Client.
-	 */
-	public void removeClient(TCPClientHandler client) {
-		clients.remove(client);
-		
-		setChanged();
-		notifyObservers(clients.size());
-	}
-	
-	/**
-	 * Remove client from list.
-	 * @param client Client to remove.
-	 */
-	public void addClient(TCPClientHandler client) {
-		clients.add(client);
-		
-		setChanged();
-		notifyObservers(clients.size());
-	}
 }
@@ -0,0 +1,805 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.Controller;
+import cz.babi.desktop.remoteme.common.KeySequence;
+import cz.babi.desktop.remoteme.common.Metrics;
+import cz.babi.desktop.remoteme.common.SessionMetrics;
+import cz.babi.desktop.remoteme.crypto.AES128;
+import cz.babi.desktop.remoteme.crypto.DatagramCrypto;
+import cz.babi.desktop.remoteme.crypto.KeyExchange;
+import cz.babi.desktop.remoteme.crypto.SessionCrypto;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.entity.Message;
+import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
+
+/**
+ * Session of one client. It holds state of the handshake and process incoming
+ * messages line by line, so it does not matter if the connection is served
+ * by blocking thread or by selector. If client asks for binary protocol
+ * during the handshake, all next messages are binary frames. If it also
+ * supports session keys and communication is encrypted, frames are encrypted
+ * by {@link SessionCrypto} with the key sent in the handshake answer.
+ * Binary clients which know handshake version 2 also get port of
+ * {@link UDPMotionChannel} for mouse moves.
+ * <p>
+ * Traffic, handshake duration and times of decryption, parsing and dispatch
+ * of messages are recorded to {@link SessionMetrics}.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class TCPClientSession {
+	
+	private static final Logger LOGGER = Logger.getLogger(TCPClientSession.class.getSimpleName());
+	
+	private static Settings settings = Settings.getInstance();
+	
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
+	
+	/** Waiting for 'do i need password' request. */
+	private static final int STATE_NEED_PASSWORD = 0;
+	/** Waiting for 'check password' request. */
+	private static final int STATE_CHECK_PASSWORD = 1;
+	/** Waiting for 'need encrypted communication' request. */
+	private static final int STATE_NEED_ENCRYPTED_COMMUNICATION = 2;
+	/** Handshake is done, waiting for another requests. */
+	private static final int STATE_RUNNING = 3;
+	/** Session is closed. */
+	private static final int STATE_CLOSED = 4;
+	
+	/** First handshake version which knows UDP motion channel. */
+	private static final int HANDSHAKE_VERSION_MOTION = 2;
+	/** First handshake version which sends public key for {@link KeyExchange}. */
+	private static final int HANDSHAKE_VERSION_KEY_EXCHANGE = 3;
+	
+	private final AbstractTCPServer server;
+	private final DefaultClient client;
+	private final InetAddress clientAddress;
+	
+	/* This controller will do all job. */
+	private final Controller controller;
+	
+	private final SessionMetrics metrics;
+	
+	private int state = STATE_NEED_PASSWORD;
+	private boolean isAdded = false;
+	private boolean isFinished = false;
+	private boolean isBinary = false;
+	
+	/* Crypto of binary frames. It is null if session key was not negotiated. */
+	private SessionCrypto sessionCrypto = null;
+	
+	/* Crypto of motion datagrams. It is null if session key was not negotiated. */
+	private DatagramCrypto datagramCrypto = null;
+	
+	/* Handshake version of client. Zero for old handshake. */
+	private int clientVersion = 0;
+	
+	/* UDP channel for mouse moves. Null if client does not use it. */
+	private UDPMotionChannel motionChannel = null;
+	
+	/* Token for resuming of this session. Null if session was not authenticated by hello. */
+	private String resumeToken = null;
+	
+	/* Compiled key macros defined by client. Index is macro ID. */
+	private KeySequence[] macros = new KeySequence[16];
+	
+	/**
+	 * Constructor.
+	 * @param server Server which holds the client.
+	 * @param client Client this session belongs to.
+	 * @param clientAddress Address of the client.
+	 * @param controller Initialized controller.
+	 */
+	public TCPClientSession(AbstractTCPServer server, DefaultClient client,
+			InetAddress clientAddress, Controller controller) {
+		this.server = server;
+		this.client = client;
+		this.clientAddress = clientAddress;
+		this.controller = controller;
+		
+		metrics = Metrics.getInstance().sessionStarted(
+				(clientAddress==null) ? "" : clientAddress.getHostAddress());
+		MyThreadGroups.getInstance().sessionStarted();
+	}
+	
+	/**
+	 * @return If session is closed and connection should be closed too.
+	 */
+	public boolean isClosed() {
+		return state==STATE_CLOSED;
+	}
+	
+	/**
+	 * @return If incoming messages are binary frames instead of lines.
+	 */
+	public boolean isBinary() {
+		return isBinary;
+	}
+	
+	/**
+	 * Process one incoming line.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response to send back to the client. Can be null if there is no answer.
+	 */
+	public String processLine(String incomingMessage) {
+		/* Lines are ASCII, except not encrypted text, so length is close enough. */
+		metrics.addBytesIn(incomingMessage.length() + 1);
+		
+		String response = processLineInState(incomingMessage);
+		if(response!=null) metrics.addBytesOut(response.length() + 1);
+		
+		return response;
+	}
+	
+	/**
+	 * Process one incoming line according to state of the handshake.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response. Can be null if there is no answer.
+	 */
+	private String processLineInState(String incomingMessage) {
+		switch(state) {
+			case STATE_NEED_PASSWORD:
+				return processNeedPassword(incomingMessage);
+			case STATE_CHECK_PASSWORD:
+				return processCheckPassword(incomingMessage);
+			case STATE_NEED_ENCRYPTED_COMMUNICATION:
+				return processNeedEncryptedCommunication(incomingMessage);
+			case STATE_RUNNING:
+				return processRequest(incomingMessage);
+			default:
+				return null;
+		}
+	}
+	
+	/**
+	 * Connection is lost or closed. Client is removed from the server.
+	 */
+	public void close() {
+		if(Common.DEBUG) LOGGER.debug("[close]");
+		
+		state = STATE_CLOSED;
+		
+		if(isAdded) {
+			isAdded = false;
+			server.removeClient(client);
+		}
+		
+		ResumeTokens.getInstance().release(resumeToken);
+		
+		if(motionChannel!=null) {
+			motionChannel.close();
+			motionChannel = null;
+		}
+		
+		if(!isFinished) {
+			isFinished = true;
+			Metrics.getInstance().sessionFinished(metrics);
+			MyThreadGroups.getInstance().sessionFinished();
+		}
+	}
+	
+	/**
+	 * Process 'do i need password' request.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response.
+	 */
+	private String processNeedPassword(String incomingMessage) {
+		SimpleMessage simpleMessage = parseIncommingMessage(aes128.decryptText(incomingMessage));
+		
+		/* New clients send whole handshake at once. */
+		if(simpleMessage!=null && simpleMessage.getId()==Message.HELLO.getId())
+			return processHello(simpleMessage);
+		if(simpleMessage!=null && simpleMessage.getId()==Message.RESUME.getId())
+			return processResume(simpleMessage);
+		
+		if(simpleMessage==null || simpleMessage.getId()!=Message.DO_I_NEED_PASSWORD.getId()) {
+			if(Common.DEBUG) LOGGER.debug("[processNeedPassword][The incoming 'do i need " +
+					"password' message has a wrong ID.]");
+			state = STATE_CLOSED;
+			return null;
+		}
+		
+		if(settings.isProtectWithPassword()) {
+			if(Common.DEBUG) LOGGER.debug("[processNeedPassword][User needs password " +
+					"comunicate with server.]");
+			state = STATE_CHECK_PASSWORD;
+			return aes128.encryptText(Message.YES.toString());
+		} else {
+			if(Common.DEBUG) LOGGER.debug("[processNeedPassword][User do not needs password " +
+					"communicate with server.]");
+			state = STATE_NEED_ENCRYPTED_COMMUNICATION;
+			return aes128.encryptText(Message.NO.toString());
+		}
+	}
+	
+	/**
+	 * Process 'check password' request.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response.
+	 */
+	private String processCheckPassword(String incomingMessage) {
+		SimpleMessage simpleMessage = parseIncommingMessage(aes128.decryptText(incomingMessage));
+		
+		state = STATE_NEED_ENCRYPTED_COMMUNICATION;
+		
+		if(simpleMessage==null || simpleMessage.getId()!=Message.CHECK_PASSWORD.getId()) {
+			if(Common.DEBUG) LOGGER.debug("[processCheckPassword][The incoming 'pasword check' " +
+					"message has a wrong ID.]");
+			return null;
+		}
+		
+		/* If both passwords are empty or both passwords are same. */
+		if(settings.getUserPassword().compareTo(simpleMessage.getAddInfo())==0) {
+			if(Common.DEBUG) LOGGER.debug("[processCheckPassword][Both passwords are same.]");
+			return aes128.encryptText(Message.YES.toString());
+		} else {
+			/* Passwords are not same. So there is no need to wait for another requests. */
+			if(Common.DEBUG) LOGGER.debug("[processCheckPassword][Passwords are not same.]");
+			state = STATE_CLOSED;
+			return aes128.encryptText(Message.NO.toString());
+		}
+	}
+	
+	/**
+	 * Process 'need encrypted communication' request. After this request
+	 * handshake is done.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response.
+	 */
+	private String processNeedEncryptedCommunication(String incomingMessage) {
+		SimpleMessage simpleMessage = parseIncommingMessage(aes128.decryptText(incomingMessage));
+		
+		if(simpleMessage==null || simpleMessage.getId()!=Message.NEED_ENCRYPTED_COMMUNICATION.getId()) {
+			if(Common.DEBUG) LOGGER.debug("[processNeedEncryptedCommunication][The incoming " +
+					"'need encrypted communication' message has a wrong ID.]");
+			negotiateProtocol(null, null);
+			return null;
+		}
+		
+		/* New clients send their public key after the protocol. */
+		String[] fields = (simpleMessage.getAddInfo()==null) ? new String[0] :
+				simpleMessage.getAddInfo().split(SimpleMessage.SEPARATOR, 2);
+		String protocol = negotiateProtocol((fields.length>0) ? fields[0] : null,
+				(fields.length>1) ? fields[1] : null);
+		
+		if(settings.isEncryptedCommunication()) {
+			if(Common.DEBUG) LOGGER.debug("[processNeedEncryptedCommunication][Need encrypted " +
+					"communication.]");
+			return aes128.encryptText(new SimpleMessage(Message.YES.getId(),
+					protocol).toString());
+		} else {
+			if(Common.DEBUG) LOGGER.debug("[processNeedEncryptedCommunication][Do not need " +
+					"encrypted communication.]");
+			return aes128.encryptText(new SimpleMessage(Message.NO.getId(),
+					protocol).toString());
+		}
+	}
+	
+	/**
+	 * Process 'hello' request. It replaces 'do i need password', 'check password'
+	 * and 'need encrypted communication' requests, so whole handshake takes only
+	 * one round trip. Format of additional info is <code>version;protocol;password</code>.
+	 * Clients of version 3 send <code>version;protocol;publicKey;password</code>.
+	 * See {@link #welcome(String, String)} for answer.
+	 * @param simpleMessage Parsed 'hello' request.
+	 * @return Response.
+	 */
+	private String processHello(SimpleMessage simpleMessage) {
+		String[] fields = splitRequest(simpleMessage);
+		if(fields==null) return null;
+		
+		String offeredProtocol = fields[1];
+		String publicKey = fields[2];
+		String password = (fields[3]==null) ? "" : fields[3];
+		
+		if(settings.isProtectWithPassword() && settings.getUserPassword().compareTo(password)!=0) {
+			/* Passwords are not same. So there is no need to wait for another requests. */
+			if(Common.DEBUG) LOGGER.debug("[processHello][Passwords are not same.]");
+			return refuse();
+		}
+		
+		return welcome(offeredProtocol, publicKey);
+	}
+	
+	/**
+	 * Process 'resume' request. Client was connected before and it proves that
+	 * by resume token instead of password. Format of additional info is
+	 * <code>version;protocol;token</code>. Clients of version 3 send
+	 * <code>version;protocol;publicKey;token</code>. See {@link #welcome(String, String)}
+	 * for answer.
+	 * @param simpleMessage Parsed 'resume' request.
+	 * @return Response.
+	 */
+	private String processResume(SimpleMessage simpleMessage) {
+		String[] fields = splitRequest(simpleMessage);
+		if(fields==null) return null;
+		
+		if(fields[3]==null || !ResumeTokens.getInstance().redeem(fields[3])) {
+			if(Common.DEBUG) LOGGER.debug("[processResume][Resume token is not valid.]");
+			return refuse();
+		}
+		
+		if(Common.DEBUG) LOGGER.debug("[processResume][Session is resumed.]");
+		
+		return welcome(fields[1], fields[2]);
+	}
+	
+	/**
+	 * Split additional info of 'hello' or 'resume' request and check its version.
+	 * @param simpleMessage Parsed request.
+	 * @return Version, protocol, public key and password or token. Missing fields
+	 * are null. Null if version is not valid.
+	 */
+	private String[] splitRequest(SimpleMessage simpleMessage) {
+		String addInfo = (simpleMessage.getAddInfo()==null) ? "" : simpleMessage.getAddInfo();
+		
+		if(!checkVersion(addInfo.split(SimpleMessage.SEPARATOR, 2)[0])) return null;
+		
+		/* Public key is there since version 3, password or token is always the last one. */
+		boolean hasPublicKey = clientVersion>=HANDSHAKE_VERSION_KEY_EXCHANGE;
+		String[] parts = addInfo.split(SimpleMessage.SEPARATOR, hasPublicKey ? 4 : 3);
+		
+		String[] fields = new String[4];
+		fields[0] = parts[0];
+		fields[1] = (parts.length>1) ? parts[1] : null;
+		if(hasPublicKey) {
+			fields[2] = (parts.length>2) ? parts[2] : null;
+			fields[3] = (parts.length>3) ? parts[3] : null;
+		} else {
+			fields[3] = (parts.length>2) ? parts[2] : null;
+		}
+		
+		return fields;
+	}
+	
+	/**
+	 * Check version of handshake sent by client.
+	 * @param version Version field of request.
+	 * @return If version is valid. Session is closed if it is not.
+	 */
+	private boolean checkVersion(String version) {
+		try {
+			clientVersion = Integer.parseInt(version);
+			if(Common.DEBUG) LOGGER.debug("[checkVersion][Client handshake version " +
+					clientVersion + ".]");
+			return true;
+		} catch(NumberFormatException nfe) {
+			if(Common.DEBUG) LOGGER.debug("[checkVersion][The incoming message has a wrong " +
+					"version.]");
+			state = STATE_CLOSED;
+			return false;
+		}
+	}
+	
+	/**
+	 * Refuse client and close session.
+	 * @return Answer <code>version;authenticated</code> where authenticated is ID of NO message.
+	 */
+	private String refuse() {
+		state = STATE_CLOSED;
+		
+		return aes128.encryptText(new SimpleMessage(Message.WELCOME.getId(),
+				Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR + Message.NO.getId()).toString());
+	}
+	
+	/**
+	 * Finish handshake of authenticated client and issue resume token.
+	 * @param offeredProtocol Protocol offered by client.
+	 * @param clientPublicKey Public key of client for {@link KeyExchange}. May be null.
+	 * @return Answer <code>version;authenticated;encrypted;token;protocol</code>, where
+	 * authenticated and encrypted are IDs of YES or NO messages. Clients of version 2
+	 * get <code>version;authenticated;encrypted;token;motionPort;protocol</code>, where
+	 * motion port is zero if there is no UDP channel.
+	 */
+	private String welcome(String offeredProtocol, String clientPublicKey) {
+		String protocol = negotiateProtocol(offeredProtocol, clientPublicKey);
+		
+		resumeToken = ResumeTokens.getInstance().issue(client);
+		
+		int encrypted = settings.isEncryptedCommunication() ? Message.YES.getId() : Message.NO.getId();
+		String welcome = Common.HANDSHAKE_VERSION + SimpleMessage.SEPARATOR +
+				Message.YES.getId() + SimpleMessage.SEPARATOR + encrypted + SimpleMessage.SEPARATOR +
+				resumeToken + SimpleMessage.SEPARATOR;
+		
+		if(clientVersion>=HANDSHAKE_VERSION_MOTION)
+			welcome += openMotionChannel() + SimpleMessage.SEPARATOR;
+		
+		welcome += protocol;
+		
+		return aes128.encryptText(new SimpleMessage(Message.WELCOME.getId(), welcome).toString());
+	}
+	
+	/**
+	 * Finish handshake. Client is added to the server and protocol offered by
+	 * the client is chosen. Session key is derived by {@link KeyExchange} if it is needed.
+	 * @param offeredProtocol Protocol offered by client. May be null or empty.
+	 * @param clientPublicKey Public key of client encoded in Base64. May be null.
+	 * @return Chosen protocol followed by public key of server, if there is a session key.
+	 * Null for text protocol.
+	 */
+	private String negotiateProtocol(String offeredProtocol, String clientPublicKey) {
+		if(Common.DEBUG) LOGGER.debug("[negotiateProtocol][Now we can wait for another requests.]");
+		
+		state = STATE_RUNNING;
+		isAdded = true;
+		server.addClient(client);
+		
+		metrics.recordHandshake(metrics.getAge());
+		
+		/* Old clients do not send anything here, so they stay with text protocol. */
+		String protocol = null;
+		if(BinaryMessage.PROTOCOL_BINARY_SESSION.equals(offeredProtocol)) {
+			if(Common.DEBUG) LOGGER.debug("[negotiateProtocol][Client supports binary " +
+					"protocol with session key.]");
+			protocol = BinaryMessage.PROTOCOL_BINARY_SESSION;
+			isBinary = true;
+		} else if(BinaryMessage.PROTOCOL_BINARY.equals(offeredProtocol)) {
+			if(Common.DEBUG) LOGGER.debug("[negotiateProtocol][Client supports binary protocol.]");
+			protocol = BinaryMessage.PROTOCOL_BINARY;
+			isBinary = true;
+		}
+		
+		if(!settings.isEncryptedCommunication()) return protocol;
+		
+		/* Only public key of server is sent, session key is derived on both sides. */
+		if(BinaryMessage.PROTOCOL_BINARY_SESSION.equals(protocol)) {
+			try {
+				KeyExchange keyExchange = new KeyExchange(true);
+				byte[] sessionKey = keyExchange.deriveSessionKey((clientPublicKey==null) ? null :
+						DatatypeConverter.parseBase64Binary(clientPublicKey));
+				sessionCrypto = new SessionCrypto(sessionKey, true);
+				datagramCrypto = new DatagramCrypto(sessionKey, true);
+				protocol = protocol + SimpleMessage.SEPARATOR +
+						DatatypeConverter.printBase64Binary(keyExchange.getPublicKey());
+			} catch(GeneralSecurityException gse) {
+				if(Common.ERROR) LOGGER.error("[negotiateProtocol][Can not agree on session " +
+						"key. Using default key.]", gse);
+				sessionCrypto = null;
+				datagramCrypto = null;
+				protocol = BinaryMessage.PROTOCOL_BINARY;
+			}
+		}
+		
+		return protocol;
+	}
+	
+	/**
+	 * Open UDP channel for mouse moves. Channel is opened only for binary
+	 * protocol and only if its datagrams can be encrypted as frames on TCP.
+	 * @return Port of the channel or zero if there is no channel.
+	 */
+	private int openMotionChannel() {
+		if(!isBinary || clientAddress==null) return 0;
+		if(settings.isEncryptedCommunication() && datagramCrypto==null) return 0;
+		
+		try {
+			motionChannel = new UDPMotionChannel(clientAddress, controller, datagramCrypto,
+					metrics);
+		} catch(SocketException se) {
+			if(Common.ERROR) LOGGER.error("[openMotionChannel][Can not open UDP motion " +
+					"channel.]", se);
+			return 0;
+		}
+		
+		motionChannel.start();
+		
+		return motionChannel.getPort();
+	}
+	
+	/**
+	 * Process request after handshake.
+	 * @param incomingMessage Raw incoming line.
+	 * @return Response. Can be null if there is not answer.
+	 */
+	private String processRequest(String incomingMessage) {
+		if(incomingMessage.isEmpty()) {
+			if(Common.DEBUG) LOGGER.debug("[processRequest][Incoming message is empty. " +
+					"Waiting for another...]");
+			return null;
+		}
+		
+		/* Let's decrypt incoming message. If need so. */
+		if(settings.isEncryptedCommunication()) {
+			long decryptStart = System.nanoTime();
+			incomingMessage = aes128.decryptText(incomingMessage);
+			metrics.recordDecrypt(System.nanoTime() - decryptStart);
+		}
+		
+		/* Let's parse incoming message. */
+		long parseStart = System.nanoTime();
+		SimpleMessage parsedMessage = parseIncommingMessage(incomingMessage);
+		metrics.recordParse(System.nanoTime() - parseStart);
+		if(parsedMessage==null) return null;
+		
+		/* If user wants to disconnect. */
+		if(parsedMessage.getId()==Message.BYE_BYE.getId()) {
+			if(Common.DEBUG) LOGGER.debug("[processRequest][User wants to disconnect. Bye bye.]");
+			close();
+			return null;
+		}
+		
+		/* Here we need to process incoming parsed message and obtain response. */
+		long dispatchStart = System.nanoTime();
+		Object response = processIncomingMessage(parsedMessage);
+		metrics.recordEvent(parsedMessage.getId(), System.nanoTime() - dispatchStart);
+		
+		/* If response is not null, we encrypt it (if need so). */
+		if(response instanceof String) {
+			if(settings.isEncryptedCommunication())
+				return aes128.encryptText(String.valueOf(response));
+			return (String)response;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Process one incoming binary frame. Binary requests have no answers.
+	 * Batch frame is unpacked and its frames are processed one by one.
+	 * @param message Incoming frame.
+	 */
+	public void processMessage(BinaryMessage message) {
+		metrics.addBytesIn(message.getFrameLength());
+		
+		if(state!=STATE_RUNNING) return;
+		
+		/* Let's decrypt incoming frame. If need so. */
+		if(sessionCrypto!=null) {
+			byte[] decryptedData = null;
+			if(message.getOpcode()==BinaryMessage.SESSION_ENCRYPTED) {
+				long decryptStart = System.nanoTime();
+				decryptedData = sessionCrypto.decrypt(message.getPayload());
+				metrics.recordDecrypt(System.nanoTime() - decryptStart);
+			}
+			
+			/* Stream of session crypto is broken now, so there is no way back. */
+			if(decryptedData==null) {
+				if(Common.ERROR) LOGGER.error("[processMessage][Incoming frame is not valid. " +
+						"Closing session.]");
+				close();
+				return;
+			}
+			
+			message = readFrame(decryptedData);
+			if(message==null) return;
+		} else if(settings.isEncryptedCommunication()) {
+			if(message.getOpcode()!=BinaryMessage.ENCRYPTED) {
+				if(Common.DEBUG) LOGGER.debug("[processMessage][Incoming frame is not " +
+						"encrypted.]");
+				return;
+			}
+			
+			long decryptStart = System.nanoTime();
+			byte[] decryptedData = aes128.decryptData(message.getPayload());
+			metrics.recordDecrypt(System.nanoTime() - decryptStart);
+			if(decryptedData==null) return;
+			
+			message = readFrame(decryptedData);
+			if(message==null) return;
+		}
+		
+		if(message.getOpcode()==Message.BATCH.getId()) processBatch(message);
+		else processFrame(message);
+	}
+	
+	/**
+	 * Process all frames from batch in the same order as client sent them.
+	 * Batch can not hold another batch.
+	 * @param batch Batch frame.
+	 */
+	private void processBatch(BinaryMessage batch) {
+		if(Common.DEBUG) LOGGER.debug("[processBatch][" + batch + "]");
+		
+		ByteBuffer buffer = ByteBuffer.wrap(batch.getPayload());
+		while(buffer.hasRemaining() && state==STATE_RUNNING) {
+			BinaryMessage message;
+			long parseStart = System.nanoTime();
+			try {
+				message = BinaryMessage.read(buffer);
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[processBatch][Malformed frame in batch.]", ioe);
+				return;
+			}
+			metrics.recordParse(System.nanoTime() - parseStart);
+			
+			if(message==null) {
+				if(Common.DEBUG) LOGGER.debug("[processBatch][Last frame in batch is not complete.]");
+				return;
+			}
+			
+			if(message.getOpcode()==Message.BATCH.getId()) {
+				if(Common.DEBUG) LOGGER.debug("[processBatch][Nested batch is ignored.]");
+				continue;
+			}
+			
+			processFrame(message);
+		}
+	}
+	
+	/**
+	 * Process one decrypted frame.
+	 * @param message Decrypted frame.
+	 */
+	private void processFrame(BinaryMessage message) {
+		if(Common.DEBUG) LOGGER.debug("[processFrame][" + message + "]");
+		
+		long dispatchStart = System.nanoTime();
+		int opcode = message.getOpcode();
+		
+		if(opcode==Message.MOUSE_MOVE.getId()) {
+			controller.mouseMove(message.getFloat(0), message.getFloat(1));
+		} else if(opcode==Message.MOUSE_LEFT_CLICK.getId()) {
+			controller.mouseLeftClick();
+		} else if(opcode==Message.MOUSE_RIGHT_CLICK.getId()) {
+			controller.mouseRightClick();
+		} else if(opcode==Message.MOUSE_WHEEL.getId()) {
+			controller.mouseWheel(message.getFloat(0));
+		} else if(opcode==Message.KEY_CLIPBOARD.getId()) {
+			controller.keyClipboard(message.getText());
+		} else if(opcode==Message.KEY_STROKE.getId()) {
+			controller.keyStroke(message.getText());
+		} else if(opcode==Message.KEY_MACRO.getId()) {
+			KeySequence keySequence = getMacro(message.getInt(0));
+			if(keySequence!=null) controller.keyStroke(keySequence);
+		} else if(opcode==Message.KEY_MACRO_DEFINE.getId()) {
+			KeySequence keySequence = defineMacro(message.getInt(0), message.getText(4));
+			if(keySequence!=null) controller.keyStroke(keySequence);
+		} else if(opcode==Message.SPECIAL_COMMAND.getId()) {
+			controller.doSpecial(message.getText());
+		} else if(opcode==Message.BYE_BYE.getId()) {
+			if(Common.DEBUG) LOGGER.debug("[processFrame][User wants to disconnect. Bye bye.]");
+			close();
+		} else {
+			if(Common.DEBUG) LOGGER.debug("[processFrame][Nothing to do - wrong opcode.]");
+		}
+		
+		metrics.recordEvent(opcode, System.nanoTime() - dispatchStart);
+	}
+	
+	/**
+	 * Compile key stroke and keep it under given ID.
+	 * @param macroId Macro ID chosen by client.
+	 * @param addInfo Key(s) to stroke.
+	 * @return Compiled keys or null if ID is not valid.
+	 */
+	private KeySequence defineMacro(int macroId, String addInfo) {
+		if(macroId<0 || macroId>=BinaryMessage.MAX_MACROS) {
+			if(Common.DEBUG) LOGGER.debug("[defineMacro][Wrong macro ID: " + macroId + ".]");
+			return null;
+		}
+		
+		if(macroId>=macros.length)
+			macros = Arrays.copyOf(macros, Math.min(BinaryMessage.MAX_MACROS,
+					Math.max(macroId+1, macros.length*2)));
+		
+		macros[macroId] = Controller.compileKeyStroke(addInfo);
+		
+		return macros[macroId];
+	}
+	
+	/**
+	 * @param macroId Macro ID.
+	 * @return Compiled keys or null if macro is not defined.
+	 */
+	private KeySequence getMacro(int macroId) {
+		if(macroId<0 || macroId>=macros.length || macros[macroId]==null) {
+			if(Common.DEBUG) LOGGER.debug("[getMacro][Macro " + macroId + " is not defined.]");
+			return null;
+		}
+		
+		return macros[macroId];
+	}
+	
+	/**
+	 * Read frame from decrypted data.
+	 * @param decryptedData Decrypted data.
+	 * @return Frame or null if data are malformed.
+	 */
+	private BinaryMessage readFrame(byte[] decryptedData) {
+		long parseStart = System.nanoTime();
+		try {
+			return BinaryMessage.read(ByteBuffer.wrap(decryptedData));
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[readFrame][Malformed encrypted frame.]", ioe);
+			return null;
+		} finally {
+			metrics.recordParse(System.nanoTime() - parseStart);
+		}
+	}
+	
+	/**
+	 * Parsing incomming message from raw String to SimpleMessage..
+	 * It does not depend on state of session, so it is public for benchmarks.
+	 * @param incomingMessage Raw String.
+	 * @return Parsed SimpleMessage. May be null if message is malformed.
+	 */
+	public static SimpleMessage parseIncommingMessage(String incomingMessage) {
+		if(Common.DEBUG) LOGGER.debug("[parseIncommingMessage][" + incomingMessage + "]");
+		
+		if(incomingMessage==null) return null;
+		
+		int separatorIndex = incomingMessage.indexOf(SimpleMessage.SEPARATOR);
+		if(separatorIndex<0) return null;
+		
+		int messageId;
+		try {
+			messageId = Integer.valueOf(incomingMessage.substring(0, separatorIndex));
+		} catch(NumberFormatException nfe) {
+			if(Common.ERROR) LOGGER.error("[parseIncommingMessage][Wrong message ID.]", nfe);
+			return null;
+		}
+		
+		String addInfo = incomingMessage.substring(separatorIndex+1, incomingMessage.length());
+		
+		return new SimpleMessage(messageId, addInfo);
+	}
+	
+	/**
+	 * Process incoming message.
+	 * @param message Parsed incoming message.
+	 * @return Response to incoming message. Can be null if there is not answer.
+	 */
+	private Object processIncomingMessage(SimpleMessage message) {
+		if(Common.DEBUG) LOGGER.debug("[processIncomingMessage]");
+		
+		if(message.getId()==Message.MOUSE_MOVE.getId()) {
+			controller.mouseMove(message.getAddInfo());
+			return null;
+		} else if(message.getId()==Message.MOUSE_LEFT_CLICK.getId()) {
+			controller.mouseLeftClick();
+			return null;
+		} else if(message.getId()==Message.MOUSE_RIGHT_CLICK.getId()) {
+			controller.mouseRightClick();
+			return null;
+		} else if(message.getId()==Message.MOUSE_WHEEL.getId()) {
+			controller.mouseWheel(message.getAddInfo());
+			return null;
+		} else if(message.getId()==Message.KEY_CLIPBOARD.getId()) {
+			controller.keyClipboard(message.getAddInfo());
+			return null;
+		} else if(message.getId()==Message.KEY_STROKE.getId()) {
+			controller.keyStroke(message.getAddInfo());
+			return null;
+		} else if(message.getId()==Message.SPECIAL_COMMAND.getId()) {
+			controller.doSpecial(message.getAddInfo());
+			return null;
+		} else {
+			if(Common.DEBUG) LOGGER.debug("[processIncomingMessage][Nothing to do - wrong " +
+					"message ID.]");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.Controller;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
+
+/**
+ * Client handler for {@link TCPNioServer}. It is not a thread, it is called
+ * by its worker every time there are data to read or write.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+class TCPNioClientHandler implements DefaultClient {
+	
+	private static final Logger LOGGER = Logger.getLogger(TCPNioClientHandler.class.getSimpleName());
+	
+	private static final Charset CHARSET = Charset.forName(Common.CHARSET);
+	
+	/** Initial size of the read buffer. */
+	private static final int BUFFER_SIZE = 512;
+	/** Longest line we accept. Longer lines close the connection. */
+	private static final int MAX_LINE_LENGTH = 64*1024;
+	/** Most of unsent responses we keep. Client which does not read them is disconnected. */
+	private static final int MAX_PENDING_WRITE = 64*1024;
+	
+	private final SocketChannel clientChannel;
+	private final SelectionKey key;
+	private final TCPNioWorker worker;
+	
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/* This session will do all job. */
+	private TCPClientSession session;
+	
+	/**
+	 * Constructor.
+	 * @param clientChannel Client channel in non-blocking mode.
+	 * @param key Selection key of the channel.
+	 * @param worker Worker which serves this client.
+	 * @param server Server which holds this client.
+	 */
+	TCPNioClientHandler(SocketChannel clientChannel, SelectionKey key, TCPNioWorker worker,
+			AbstractTCPServer server) {
+		if(Common.DEBUG) LOGGER.debug("[TCPNioClientHandler][Constructor.]");
+		
+		this.clientChannel = clientChannel;
+		this.key = key;
+		this.worker = worker;
+		
+		Controller controller = new Controller(
+				clientChannel.socket().getInetAddress().getHostAddress());
+		
+		if(!controller.initRobot()) return;
+		
+		session = new TCPClientSession(server, this,
+				clientChannel.socket().getInetAddress(), controller);
+	}
+	
+	/**
+	 * @return If handler is ready to serve the client.
+	 */
+	boolean isReady() {
+		return session!=null;
+	}
+	
+	/**
+	 * Read available data and process all complete lines or binary frames.
+	 */
+	void read() {
+		int count;
+		try {
+			count = clientChannel.read(readBuffer);
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[read][Can not obtain an incoming message.]", ioe);
+			closeConnection();
+			return;
+		}
+		
+		if(count<0) {
+			closeConnection();
+			return;
+		}
+		
+		readBuffer.flip();
+		
+		/* Session may switch to binary frames after any line. */
+		while(!session.isClosed()) {
+			if(session.isBinary()) {
+				BinaryMessage message;
+				try {
+					message = BinaryMessage.read(readBuffer);
+				} catch(IOException ioe) {
+					if(Common.ERROR) LOGGER.error("[read][Malformed incoming frame.]", ioe);
+					closeConnection();
+					return;
+				}
+				
+				if(message==null) break;
+				
+				session.processMessage(message);
+			} else {
+				if(!processLine()) break;
+			}
+		}
+		
+		/* Client did not read responses. */
+		if(!clientChannel.isOpen()) return;
+		
+		readBuffer.compact();
+		
+		if(session.isClosed()) {
+			/* Send the rest of responses and close. */
+			write();
+			closeConnection();
+			return;
+		}
+		
+		/* There is no complete line or frame in the whole buffer, so we need bigger one.
+		 * Longest frame is a bit longer than longest line. */
+		if(!readBuffer.hasRemaining()) {
+			if(readBuffer.capacity()>MAX_LINE_LENGTH) {
+				if(Common.ERROR) LOGGER.error("[read][Incoming message is too long.]");
+				closeConnection();
+				return;
+			}
+			
+			ByteBuffer biggerBuffer = ByteBuffer.allocate(readBuffer.capacity()*2);
+			readBuffer.flip();
+			biggerBuffer.put(readBuffer);
+			readBuffer = biggerBuffer;
+		}
+		
+		if(writeBuffer.position()>0) write();
+	}
+	
+	/**
+	 * Process one line from the read buffer.
+	 * @return If there was a complete line.
+	 */
+	private boolean processLine() {
+		int lineStart = readBuffer.position();
+		for(int i=lineStart; i<readBuffer.limit(); i++) {
+			if(readBuffer.get(i)!='\n') continue;
+			
+			int lineEnd = i;
+			if(lineEnd>lineStart && readBuffer.get(lineEnd-1)=='\r') lineEnd--;
+			
+			String incomingMessage = new String(readBuffer.array(), lineStart,
+					lineEnd-lineStart, CHARSET);
+			readBuffer.position(i+1);
+			
+			String response = session.processLine(incomingMessage);
+			if(response!=null) queueResponse(response);
+			
+			return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Write pending responses. If socket buffer is full, wait for OP_WRITE.
+	 */
+	void write() {
+		writeBuffer.flip();
+		
+		try {
+			clientChannel.write(writeBuffer);
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[write][Can not send a response.]", ioe);
+			closeConnection();
+			return;
+		}
+		
+		boolean hasPending = writeBuffer.hasRemaining();
+		writeBuffer.compact();
+		
+		if(key.isValid()) {
+			if(hasPending) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			else key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		}
+	}
+	
+	/**
+	 * Add response line to the write buffer. If client does not read responses
+	 * and there is too much of them, connection is closed.
+	 * @param response Response to send.
+	 */
+	private void queueResponse(String response) {
+		byte[] data = (response + "\n").getBytes(CHARSET);
+		
+		if(writeBuffer.position() + data.length>MAX_PENDING_WRITE) {
+			if(Common.ERROR) LOGGER.error("[queueResponse][Client does not read responses.]");
+			closeConnection();
+			return;
+		}
+		
+		if(writeBuffer.remaining()<data.length) {
+			ByteBuffer biggerBuffer = ByteBuffer.allocate(writeBuffer.position() + data.length +
+					BUFFER_SIZE);
+			writeBuffer.flip();
+			biggerBuffer.put(writeBuffer);
+			writeBuffer = biggerBuffer;
+		}
+		
+		writeBuffer.put(data);
+	}
+	
+	/**
+	 * This will close all necessary objects.
+	 */
+	void closeConnection() {
+		if(!clientChannel.isOpen()) return;
+		
+		if(Common.DEBUG) LOGGER.debug("[closeConnection]");
+		
+		if(session!=null) session.close();
+		
+		key.cancel();
+		
+		try {
+			clientChannel.close();
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[closeConnection][Can not close client channel.]", ioe);
+		}
+	}
+	
+	/**
+	 * Connection is closed by worker thread, so it does not interfere with
+	 * reading.
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultClient#forceDisconnect()
+	 */
+	@Override
+	public void forceDisconnect() {
+		if(Common.DEBUG) LOGGER.debug("[forceDisconnect]");
+		
+		worker.disconnect(this);
+	}
+}
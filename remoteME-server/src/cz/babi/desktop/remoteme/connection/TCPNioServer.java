@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+
+/**
+ * This class represent TCP server built on non-blocking channels.
+ * Server thread only accepts new clients and hand them over to a small fixed
+ * pool of I/O workers. Every worker serves many clients with one selector,
+ * so idle clients do not hold any thread.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class TCPNioServer extends AbstractTCPServer {
+	
+	private static final Logger LOGGER = Logger.getLogger(TCPNioServer.class.getSimpleName());
+	
+	/** Count of I/O workers. */
+	private static final int WORKERS_COUNT = Math.max(1,
+			Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+	
+	/** Variable define if server can run. */
+	private volatile boolean keepRunning = false;
+	
+	private ServerSocketChannel serverChannel = null;
+	
+	private TCPNioWorker[] workers;
+	private int nextWorker = 0;
+	
+	/**
+	 * Constructor of TCP server.
+	 * @param port Port to set.
+	 */
+	public TCPNioServer(int port) {
+		super(port);
+		
+		if(Common.DEBUG) LOGGER.debug("[TCPNioServer][Public constructor.]");
+	}
+	
+	/**
+	 * @see cz.babi.desktop.remoteme.connection.AbstractTCPServer#isRunning()
+	 */
+	@Override
+	protected boolean isRunning() {
+		return keepRunning;
+	}
+	
+	/**
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultServer#startServer()
+	 */
+	@Override
+	public void startServer() {
+		if(Common.DEBUG) LOGGER.debug("[startServer][TCP NIO Server is starting on port: '" +
+				PORT + "'.]");
+		
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(new InetSocketAddress(PORT));
+		} catch(IOException ioe) {
+			LOGGER.error("[startServer][Can not create a ServerSocketChannel on port " +
+					PORT + ".]", ioe);
+			stopServer();
+			return;
+		}
+		
+		workers = new TCPNioWorker[WORKERS_COUNT];
+		for(int i=0; i<workers.length; i++) {
+			try {
+				workers[i] = new TCPNioWorker(this);
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[startServer][Can not open a selector.]", ioe);
+				stopServer();
+				return;
+			}
+			
+			Thread workerThread = new Thread(MyThreadGroups.getInstance().getTcpThreadGroup(),
+					workers[i], "TCP NIO Worker #" + i);
+			workerThread.setDaemon(false);
+			workerThread.start();
+		}
+		
+		keepRunning = true;
+		
+		if(Common.DEBUG) LOGGER.debug("[startServer][TCP NIO Server is ready for incoming " +
+				"requests with " + WORKERS_COUNT + " worker(s).]");
+	}
+	
+	/**
+	 * Server thread is blocked in accept. Accepted channels are switched to
+	 * non-blocking mode and registered to workers in round robin.
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultServer#waitForConnection()
+	 */
+	@Override
+	public void waitForConnection() {
+		while(keepRunning) {
+			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Waiting for incoming request...]");
+			
+			SocketChannel clientChannel;
+			try {
+				clientChannel = serverChannel.accept();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[waitForConnection][An error occurred during " +
+						"accepting a tcp connection.]");
+				return;
+			}
+			
+			if(clientChannel==null) continue;
+			
+			TCPNioWorker worker = workers[nextWorker];
+			nextWorker = (nextWorker+1)%workers.length;
+			
+			worker.register(clientChannel);
+		}
+	}
+	
+	@Override
+	public void stopServer() {
+		if(Common.DEBUG) LOGGER.debug("[stopServer]");
+		
+		keepRunning = false;
+		
+		if(workers!=null) {
+			for(TCPNioWorker worker : workers)
+				if(worker!=null) worker.stopWorker();
+		}
+		
+		if(serverChannel!=null && serverChannel.isOpen()) {
+			try {
+				serverChannel.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[stopServer][Can not close ServerSocketChannel.]", ioe);
+			}
+			
+			if(Common.DEBUG) LOGGER.debug("[stopServer][Server is off.]");
+		}
+	}
+}
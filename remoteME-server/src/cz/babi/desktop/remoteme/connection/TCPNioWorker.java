@@ -0,0 +1,182 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+
+/**
+ * I/O worker of {@link TCPNioServer}. One worker serves many clients
+ * through one selector.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+class TCPNioWorker implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(TCPNioWorker.class.getSimpleName());
+	
+	private final TCPNioServer server;
+	private final Selector selector;
+	
+	/** Channels accepted by server thread waiting for registration. */
+	private final ConcurrentLinkedQueue<SocketChannel> pendingChannels;
+	/** Clients disconnected from another thread (GUI) waiting for close. */
+	private final ConcurrentLinkedQueue<TCPNioClientHandler> pendingDisconnects;
+	
+	private volatile boolean keepRunning = true;
+	
+	/**
+	 * Constructor.
+	 * @param server Server which holds clients.
+	 * @throws IOException If selector can not be opened.
+	 */
+	TCPNioWorker(TCPNioServer server) throws IOException {
+		this.server = server;
+		this.selector = Selector.open();
+		this.pendingChannels = new ConcurrentLinkedQueue<>();
+		this.pendingDisconnects = new ConcurrentLinkedQueue<>();
+	}
+	
+	/**
+	 * Hand over new client channel to this worker. Can be called from any thread.
+	 * @param clientChannel Accepted channel.
+	 */
+	void register(SocketChannel clientChannel) {
+		pendingChannels.add(clientChannel);
+		selector.wakeup();
+		
+		/* Worker could stop before the channel was added, so nobody would close it. */
+		if(!keepRunning) closePendingChannels();
+	}
+	
+	/**
+	 * Close client connection on worker thread. Can be called from any thread.
+	 * @param client Client to disconnect.
+	 */
+	void disconnect(TCPNioClientHandler client) {
+		pendingDisconnects.add(client);
+		selector.wakeup();
+	}
+	
+	/**
+	 * Stop worker and close all its clients.
+	 */
+	void stopWorker() {
+		keepRunning = false;
+		selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		while(keepRunning) {
+			try {
+				selector.select();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[run][Selector failed.]", ioe);
+				break;
+			}
+			
+			registerPendingChannels();
+			
+			TCPNioClientHandler disconnected;
+			while((disconnected=pendingDisconnects.poll())!=null) disconnected.closeConnection();
+			
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while(iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				
+				TCPNioClientHandler client = (TCPNioClientHandler)key.attachment();
+				
+				/* Bug in handling of one client must not stop the others of this worker. */
+				try {
+					if(key.isValid() && key.isReadable()) client.read();
+					if(key.isValid() && key.isWritable()) client.write();
+				} catch(RuntimeException re) {
+					if(Common.ERROR) LOGGER.error("[run][Client failed, it is disconnected.]", re);
+					client.closeConnection();
+				}
+			}
+		}
+		
+		/* Close all clients of this worker. */
+		for(SelectionKey key : selector.keys())
+			((TCPNioClientHandler)key.attachment()).closeConnection();
+		closePendingChannels();
+		
+		try {
+			selector.close();
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[run][Can not close selector.]", ioe);
+		}
+		
+		if(Common.DEBUG) LOGGER.debug("[run][Finish.]");
+	}
+	
+	/**
+	 * Close channels which were never registered.
+	 */
+	private void closePendingChannels() {
+		SocketChannel clientChannel;
+		while((clientChannel=pendingChannels.poll())!=null) {
+			try {
+				clientChannel.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[closePendingChannels][Can not close client " +
+						"channel.]", ioe);
+			}
+		}
+	}
+	
+	/**
+	 * Register channels accepted since last select.
+	 */
+	private void registerPendingChannels() {
+		SocketChannel clientChannel;
+		while((clientChannel=pendingChannels.poll())!=null) {
+			try {
+				clientChannel.configureBlocking(false);
+				clientChannel.socket().setTcpNoDelay(true);
+				
+				SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ);
+				TCPNioClientHandler client = new TCPNioClientHandler(clientChannel, key, this,
+						server);
+				key.attach(client);
+				
+				if(!client.isReady()) client.closeConnection();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[registerPendingChannels][Can not register " +
+						"client channel.]", ioe);
+				try {
+					clientChannel.close();
+				} catch(IOException e) {
+					if(Common.ERROR) LOGGER.error("[registerPendingChannels][Can not close " +
+							"client channel.]", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.connection;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.Controller;
+import cz.babi.desktop.remoteme.common.SessionMetrics;
+import cz.babi.desktop.remoteme.crypto.DatagramCrypto;
+import cz.babi.desktop.remoteme.entity.BinaryMessage;
+import cz.babi.desktop.remoteme.entity.Message;
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+
+/**
+ * UDP channel of one session for mouse moves and mouse wheel. These
+ * frames are sent many times per second and lost one does not matter, so
+ * they should not wait for retransmission of TCP. Everything else stays on
+ * the TCP connection.
+ * <p>
+ * Every datagram starts with 4 bytes of sequence number followed by binary
+ * frames. If communication is encrypted, frames are encrypted by
+ * {@link DatagramCrypto}. Datagrams which were already received are ignored.
+ * Datagram without frames is a probe and it is sent back, so client knows
+ * the channel works.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class UDPMotionChannel implements Runnable {
+	
+	private static final Logger LOGGER = Logger.getLogger(UDPMotionChannel.class.getSimpleName());
+	
+	/** Max length of datagram. Motion datagrams are much shorter. */
+	private static final int MAX_DATAGRAM_LENGTH = 512;
+	
+	/** Length of sequence number at the start of every datagram. */
+	private static final int SEQUENCE_LENGTH = 4;
+	
+	/** Count of sequence numbers behind the highest one which are still accepted. */
+	private static final int REPLAY_WINDOW = 64;
+	
+	private final InetAddress clientAddress;
+	private final Controller controller;
+	private final DatagramCrypto datagramCrypto;
+	private final SessionMetrics metrics;
+	
+	private final DatagramSocket datagramSocket;
+	
+	/* Anti-replay window. Bit i of mask means that sequence number highestSequence-i was received. */
+	private boolean isFirst = true;
+	private int highestSequence = 0;
+	private long receivedMask = 0;
+	
+	private volatile boolean keepRunning = true;
+	
+	/**
+	 * Constructor. Socket is bound to random port.
+	 * @param clientAddress Address of client. Datagrams from other addresses are ignored.
+	 * @param controller Controller of the session.
+	 * @param datagramCrypto Crypto of datagrams. Null if communication is not encrypted.
+	 * @param metrics Metrics of the session.
+	 * @throws SocketException If socket can not be created.
+	 */
+	public UDPMotionChannel(InetAddress clientAddress, Controller controller,
+			DatagramCrypto datagramCrypto, SessionMetrics metrics) throws SocketException {
+		this.clientAddress = clientAddress;
+		this.controller = controller;
+		this.datagramCrypto = datagramCrypto;
+		this.metrics = metrics;
+		
+		datagramSocket = new DatagramSocket(0);
+	}
+	
+	/**
+	 * Start thread of the channel.
+	 */
+	public void start() {
+		Thread thread = new Thread(MyThreadGroups.getInstance().getTcpThreadGroup(), this,
+				"UDP Motion Channel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * @return Local port of the channel.
+	 */
+	public int getPort() {
+		return datagramSocket.getLocalPort();
+	}
+	
+	/**
+	 * Close the channel. Its thread ends.
+	 */
+	public void close() {
+		keepRunning = false;
+		datagramSocket.close();
+	}
+	
+	@Override
+	public void run() {
+		if(Common.DEBUG) LOGGER.debug("[run][Start task on port: '" + getPort() + "'.]");
+		
+		/* Buffer is reused for all datagrams. */
+		byte[] buffer = new byte[MAX_DATAGRAM_LENGTH];
+		DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+		
+		while(keepRunning) {
+			packet.setLength(buffer.length);
+			
+			try {
+				datagramSocket.receive(packet);
+			} catch(IOException ioe) {
+				if(keepRunning && Common.ERROR)
+					LOGGER.error("[run][Can not receive datagram.]", ioe);
+				break;
+			}
+			
+			if(!clientAddress.equals(packet.getAddress())) {
+				if(Common.DEBUG) LOGGER.debug("[run][Datagram from unknown address: " +
+						packet.getAddress() + ".]");
+				continue;
+			}
+			
+			processDatagram(packet);
+		}
+		
+		if(Common.DEBUG) LOGGER.debug("[run][Task is finished.]");
+	}
+	
+	/**
+	 * Process one datagram from the client.
+	 * @param packet Received datagram.
+	 */
+	private void processDatagram(DatagramPacket packet) {
+		metrics.addBytesIn(packet.getLength());
+		
+		if(packet.getLength()<SEQUENCE_LENGTH) return;
+		
+		ByteBuffer datagram = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+		int sequence = datagram.getInt();
+		
+		byte[] frames;
+		if(datagramCrypto!=null) {
+			long decryptStart = System.nanoTime();
+			frames = datagramCrypto.open(sequence, packet.getData(), SEQUENCE_LENGTH,
+					packet.getLength()-SEQUENCE_LENGTH);
+			metrics.recordDecrypt(System.nanoTime() - decryptStart);
+			if(frames==null) {
+				if(Common.DEBUG) LOGGER.debug("[processDatagram][Datagram is not valid.]");
+				return;
+			}
+		} else {
+			frames = new byte[datagram.remaining()];
+			datagram.get(frames);
+		}
+		
+		/* Sequence number is checked after datagram is authenticated. */
+		if(!checkSequence(sequence)) {
+			if(Common.DEBUG) LOGGER.debug("[processDatagram][Datagram " + sequence +
+					" was already received or it is too old.]");
+			return;
+		}
+		
+		if(frames.length==0) {
+			answerProbe(sequence, packet);
+			return;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(frames);
+		while(buffer.hasRemaining()) {
+			BinaryMessage message;
+			long parseStart = System.nanoTime();
+			try {
+				message = BinaryMessage.read(buffer);
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[processDatagram][Malformed frame in datagram.]", ioe);
+				return;
+			}
+			metrics.recordParse(System.nanoTime() - parseStart);
+			
+			if(message==null) return;
+			
+			long dispatchStart = System.nanoTime();
+			int opcode = message.getOpcode();
+			if(opcode==Message.MOUSE_MOVE.getId()) {
+				controller.mouseMove(message.getFloat(0), message.getFloat(1));
+			} else if(opcode==Message.MOUSE_WHEEL.getId()) {
+				controller.mouseWheel(message.getFloat(0));
+			} else {
+				if(Common.DEBUG) LOGGER.debug("[processDatagram][Frame " + opcode +
+						" is not allowed in datagram.]");
+			}
+			metrics.recordEvent(opcode, System.nanoTime() - dispatchStart);
+		}
+	}
+	
+	/**
+	 * Check sequence number against anti-replay window and mark it as received.
+	 * @param sequence Sequence number of datagram.
+	 * @return If datagram was not received yet and it is not too old.
+	 */
+	private boolean checkSequence(int sequence) {
+		if(isFirst) {
+			isFirst = false;
+			highestSequence = sequence;
+			receivedMask = 1;
+			return true;
+		}
+		
+		int distance = sequence - highestSequence;
+		if(distance>0) {
+			receivedMask = (distance>=REPLAY_WINDOW) ? 1 : (receivedMask<<distance) | 1;
+			highestSequence = sequence;
+			return true;
+		}
+		
+		distance = -distance;
+		if(distance>=REPLAY_WINDOW) return false;
+		
+		long bit = 1L<<distance;
+		if((receivedMask & bit)!=0) return false;
+		
+		receivedMask |= bit;
+		return true;
+	}
+	
+	/**
+	 * Send probe back to the client.
+	 * @param sequence Sequence number of probe.
+	 * @param packet Received probe.
+	 */
+	private void answerProbe(int sequence, DatagramPacket packet) {
+		if(Common.DEBUG) LOGGER.debug("[answerProbe][" + sequence + "]");
+		
+		byte[] body = new byte[0];
+		if(datagramCrypto!=null) {
+			body = datagramCrypto.seal(sequence, body, 0);
+			if(body==null) return;
+		}
+		
+		ByteBuffer answer = ByteBuffer.allocate(SEQUENCE_LENGTH + body.length);
+		answer.putInt(sequence);
+		answer.put(body);
+		
+		try {
+			datagramSocket.send(new DatagramPacket(answer.array(), answer.capacity(),
+					packet.getSocketAddress()));
+			metrics.addBytesOut(answer.capacity());
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[answerProbe][Can not send answer to probe.]", ioe);
+		}
+	}
+}
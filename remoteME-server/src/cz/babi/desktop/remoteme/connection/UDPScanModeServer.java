@@ -18,15 +18,31 @@ package cz.babi.desktop.remoteme.connection;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
 import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.NetworkIdentity;
 import cz.babi.desktop.remoteme.crypto.AES128;
 import cz.babi.desktop.remoteme.entity.Message;
 import cz.babi.desktop.remoteme.entity.Message.SimpleMessage;
@@ -37,7 +53,14 @@ import cz.babi.desktop.remoteme.interfaces.DefaultServer;
  * which will be used for communication with devices in SCAN MODE.
  * Simple, the server is waiting for incoming requests and after it
  * receive right request, it will send appropriate response.
- * 
+ * <p>
+ * Requests are read by non-blocking channel into one reused buffer. The
+ * response is prepared in advance and it is built again only when
+ * {@link NetworkIdentity} changes. All clients send the same encrypted request, so once it
+ * is decrypted, next requests are only compared with it. Response goes back
+ * to the requester only, and every address gets a few responses per second
+ * at most, so many scanning phones do not keep the server busy.
+ *
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
  */
@@ -45,22 +68,53 @@ public class UDPScanModeServer implements Runnable, DefaultServer {
 	
 	private static final Logger LOGGER = Logger.getLogger(UDPScanModeServer.class.getSimpleName());
 	
-	private static final AES128 AES128_DEFAULT = Common.AES128_DEFAULT;
+	/* Own cipher state. AES128 is not thread-safe. */
+	private final AES128 aes128 = new AES128(Common.AES128_DEFAULT);
 	
-	/** Variable define multicast address which datagrams will be sent to. */
+	/** Variable define multicast address which requests are sent to. */
 	private static final String MULTICAST_ADDR = "230.0.0.1";
+	
+	/** Max length of request. Longer datagrams are truncated and ignored. */
+	private static final int MAX_REQUEST_LENGTH = 512;
+	
+	/** How often network identity is compared with the one response was built for. */
+	private static final long IDENTITY_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+	
+	/** Size of rate limit table. Addresses with the same slot share their limit. */
+	private static final int RATE_TABLE_SIZE = 256;
+	/** Count of responses one address can get at once. */
+	private static final int RATE_BURST = 3;
+	/** One response is added to the limit of an address this often. */
+	private static final long RATE_REFILL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+	
 	/** Variable define if server can  run. */
-	private boolean keepRunning = false;
+	private volatile boolean keepRunning = false;
 	/** Variable define user port. */
 	private final int PORT;
 	
-	private String hostName = "";
-	private String hostOsName = "";
-	private String macAddress = "";
-	
-	private MulticastSocket multicastSocket = null;
+	private DatagramChannel datagramChannel = null;
+	private Selector selector = null;
 	private InetAddress multicastAddress = null;
 	
+	/* Memberships of multicast group. Key is name of network interface. */
+	private final Map<String, MembershipKey> memberships = new HashMap<>();
+	
+	/* Buffers reused by all requests. */
+	private final ByteBuffer requestBuffer = ByteBuffer.allocateDirect(MAX_REQUEST_LENGTH);
+	private final byte[] requestBytes = new byte[MAX_REQUEST_LENGTH];
+	
+	/* The last request which was decrypted as scan mode request. */
+	private byte[] knownRequest = null;
+	
+	/* Prepared response and network identity it was built for. */
+	private ByteBuffer responseBuffer = null;
+	private NetworkIdentity.Snapshot identity = null;
+	
+	/* Token bucket of every slot: address, available responses and time of the last refill. */
+	private final int[] rateAddresses = new int[RATE_TABLE_SIZE];
+	private final int[] rateTokens = new int[RATE_TABLE_SIZE];
+	private final long[] rateRefillTimes = new long[RATE_TABLE_SIZE];
+	
 	/**
 	 * Constructor of UDP server.
 	 * @param port Port to set.
@@ -86,22 +140,8 @@ public class UDPScanModeServer implements Runnable, DefaultServer {
 	public void startServer() {
 		if(Common.DEBUG) LOGGER.debug("[startServer][UDP Server is starting on port: '" + PORT + "'.]");
 		
-		/* Inicialization of multicast socket to user port. */
-		try {
-			multicastSocket = new MulticastSocket(PORT);
-		} catch(IOException ioe) {
-			if(Common.ERROR) LOGGER.error("[startServer][Can not create a MulticastSocket " +
-					"on port " + PORT + ".]", ioe);
-			stopServer();
-			return;
-		}
-		
-		/* Need to get instance of InetAddress from multicast address. */
 		try {
 			multicastAddress = InetAddress.getByName(MULTICAST_ADDR);
-			hostOsName = System.getProperty("os.name");
-			if(hostOsName.toLowerCase().contains("win"))
-				hostName = InetAddress.getLocalHost().getHostName();
 		} catch(UnknownHostException uhe) {
 			if(Common.ERROR) LOGGER.error("[startServer][Can not get InetAddress from " +
 					"multicast address " + MULTICAST_ADDR + ".]", uhe);
@@ -109,41 +149,25 @@ public class UDPScanModeServer implements Runnable, DefaultServer {
 			return;
 		}
 		
-		
-		/* If instance of InetAddress is an multicast address then
-		 * we need to join multicast socket to this address. */
-		if(multicastAddress.isMulticastAddress()) {
-			try {
-				multicastSocket.joinGroup(multicastAddress);
-			} catch (IOException ioe) {
-				if(Common.ERROR) LOGGER.error("[startServer][Socket can not join into " +
-						"multicast group.]", ioe);
-				stopServer();
-				return;
-			}
-			/* If not, then we need to setBroadcast to true. */
-		} else {
-			try {
-				multicastSocket.setBroadcast(true);
-			} catch(SocketException se) {
-				if(Common.ERROR) LOGGER.error("[startServer][Can not turned broadcast on.]", se);
-				stopServer();
-				keepRunning = false;
-				return;
-			}
-		}
-		
-		/* We do now want to receive our sent datagrams. */
+		/* Inicialization of non-blocking channel to user port. */
 		try {
-			multicastSocket.setLoopbackMode(true);
-		} catch (SocketException se) {
-			if(Common.ERROR) LOGGER.error("[startServer][Can not set LoopBack mode to " +
-					"socket.]", se);
+			datagramChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			datagramChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			datagramChannel.bind(new InetSocketAddress(PORT));
+			datagramChannel.configureBlocking(false);
+			
+			selector = Selector.open();
+			datagramChannel.register(selector, SelectionKey.OP_READ);
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[startServer][Can not create a DatagramChannel " +
+					"on port " + PORT + ".]", ioe);
 			stopServer();
-			keepRunning = false;
 			return;
 		}
 		
+		/* Multicast group is joined on every interface and the response is prepared. */
+		checkIdentity();
+		
 		keepRunning = true;
 		
 		if(Common.DEBUG) LOGGER.debug("[startServer][UDP Server is ready for incoming " +
@@ -151,98 +175,212 @@ public class UDPScanModeServer implements Runnable, DefaultServer {
 	}
 	
 	/**
-	 * 
+	 * Wait for requests until server is stopped.
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultServer#waitForConnection()
 	 */
 	@Override
 	public void waitForConnection() {
-		/* There need to be a loop for waiting for an incoming requests. */
-		while(true) {
-			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Waiting for incoming request...]");
-			
-			/* We do not know what size will be a encrypted request */
-			byte[] request = new byte[128];
-			DatagramPacket requestDatagramPacket = new DatagramPacket(
-					request, request.length);
-			
-			/* Here we are waiting for incoming requests */
+		while(keepRunning) {
 			try {
-				multicastSocket.receive(requestDatagramPacket);
-			} catch (IOException ioe) {
-				if(Common.ERROR) LOGGER.error("[waitForConnection][An error occurred during " +
-						"receiving an udp datagram.]");
+				selector.select(IDENTITY_CHECK_MILLIS);
+				selector.selectedKeys().clear();
+				
+				/* Read all waiting requests. */
+				SocketAddress source;
+				while(keepRunning && (source = datagramChannel.receive(requestBuffer))!=null) {
+					requestBuffer.flip();
+					processRequest((InetSocketAddress)source);
+					requestBuffer.clear();
+				}
+			} catch(IOException | ClosedSelectorException ex) {
+				/* Channel and selector are closed when server is stopped. */
+				if(keepRunning && Common.ERROR) LOGGER.error("[waitForConnection][An error " +
+						"occurred during receiving an udp datagram.]", ex);
+				stopServer();
 				return;
 			}
 			
-			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Received request from: " +
-					requestDatagramPacket.getAddress().getHostAddress() + ":" +
-					requestDatagramPacket.getPort() + ".]");
-			
-			String requestMessage = new String(requestDatagramPacket.getData());
-			
-			/* Need to trim request message */
-			requestMessage = new String(requestMessage.trim());
+			checkIdentity();
+		}
+	}
+	
+	/**
+	 * Process one request waiting in {@link #requestBuffer}.
+	 * @param source Address of requester.
+	 */
+	private void processRequest(InetSocketAddress source) {
+		if(Common.DEBUG) LOGGER.debug("[processRequest][Received request from: " +
+				source.getAddress().getHostAddress() + ":" + source.getPort() + ".]");
+		
+		if(!takeRateToken(source.getAddress())) {
+			if(Common.DEBUG) LOGGER.debug("[processRequest][Too many requests from " +
+					source.getAddress().getHostAddress() + ".]");
+			return;
+		}
+		
+		/* Need to trim request message. */
+		int length = requestBuffer.remaining();
+		requestBuffer.get(requestBytes, 0, length);
+		while(length>0 && requestBytes[length-1]<=' ') length--;
+		
+		if(!isKnownRequest(length)) {
+			SimpleMessage message = null;
+			try {
+				String requestMessage = new String(requestBytes, 0, length, Common.CHARSET);
+				message = TCPClientSession.parseIncommingMessage(aes128.decryptText(requestMessage));
+			} catch(UnsupportedEncodingException uee) {
+				if(Common.ERROR) LOGGER.error("[processRequest][An error occurred " +
+						"while trying to decode text.]", uee);
+			}
 			
-			/* Here we need to decrypt incoming message */
-			String decrypteddMessage = AES128_DEFAULT.decryptText(requestMessage);
+			/* We can also receive an response send by another servers,
+			 * so in that case we can discard received datagram. */
+			if(message==null || message.getId()!=Message.SCAN_MODE_REQUEST.getId()) {
+				if(Common.DEBUG) LOGGER.debug("[processRequest][Oouu, wrong request catched.]");
+				return;
+			}
 			
-			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Raw request message:][" +
-					requestMessage + "]");
-			if(Common.DEBUG) LOGGER.debug("[waitForConnection][Decrypted request message:][" +
-					decrypteddMessage + "]");
+			knownRequest = Arrays.copyOf(requestBytes, length);
+		}
+		
+		if(Common.DEBUG) LOGGER.debug("[processRequest][Yes, catched right request :)]");
+		
+		if(responseBuffer==null) {
+			if(Common.ERROR) LOGGER.error("[processRequest][Response is 'null', can not sent it.]");
+			return;
+		}
+		
+		responseBuffer.rewind();
+		try {
+			/* Channel is non-blocking. If it can not take response now, client asks again. */
+			if(datagramChannel.send(responseBuffer, source)==0 && Common.DEBUG)
+				LOGGER.debug("[processRequest][Response was not sent, buffer is full.]");
+		} catch(IOException ioe) {
+			if(Common.ERROR) LOGGER.error("[processRequest][Can not send a response datagram to " +
+					source.getAddress().getHostAddress() + ":" + source.getPort() + ".]", ioe);
+		}
+	}
+	
+	/**
+	 * @param length Length of request in {@link #requestBytes}.
+	 * @return If request is the same as the last valid one.
+	 */
+	private boolean isKnownRequest(int length) {
+		if(knownRequest==null || knownRequest.length!=length) return false;
+		
+		for(int i=0; i<length; i++)
+			if(knownRequest[i]!=requestBytes[i]) return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Take one response from the limit of given address.
+	 * @param address Address of requester.
+	 * @return If response can be sent.
+	 */
+	private boolean takeRateToken(InetAddress address) {
+		int key = (address instanceof Inet4Address) ? address.hashCode() :
+			Arrays.hashCode(address.getAddress());
+		int slot = (key ^ (key>>>8) ^ (key>>>16)) & (RATE_TABLE_SIZE-1);
+		long now = System.nanoTime();
+		
+		if(rateAddresses[slot]!=key || rateRefillTimes[slot]==0) {
+			rateAddresses[slot] = key;
+			rateTokens[slot] = RATE_BURST;
+			rateRefillTimes[slot] = now;
+		} else {
+			long refills = (now - rateRefillTimes[slot]) / RATE_REFILL_NANOS;
+			if(refills>0) {
+				rateTokens[slot] = (int)Math.min(RATE_BURST, rateTokens[slot] + refills);
+				rateRefillTimes[slot] += refills * RATE_REFILL_NANOS;
+			}
+		}
+		
+		if(rateTokens[slot]==0) return false;
+		
+		rateTokens[slot]--;
+		return true;
+	}
+	
+	/**
+	 * Check network identity. If it changed, multicast group is joined on
+	 * new interfaces and response is built again.
+	 */
+	private void checkIdentity() {
+		NetworkIdentity.Snapshot snapshot = NetworkIdentity.getInstance().getSnapshot();
+		
+		/* New snapshot is published only if something changed. */
+		if(snapshot==identity) return;
+		
+		if(Common.DEBUG) LOGGER.debug("[checkIdentity][Network identity changed.]" + snapshot);
+		
+		identity = snapshot;
+		
+		joinMulticastGroup(snapshot.getMulticastInterfaces());
+		prepareResponse(snapshot);
+	}
+	
+	/**
+	 * Join multicast group on given interfaces and leave it on others.
+	 * @param multicastInterfaces Names of interfaces which are up and support multicast.
+	 */
+	private void joinMulticastGroup(List<String> multicastInterfaces) {
+		Iterator<Map.Entry<String, MembershipKey>> iterator = memberships.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<String, MembershipKey> membership = iterator.next();
+			if(!multicastInterfaces.contains(membership.getKey()) ||
+					!membership.getValue().isValid()) {
+				membership.getValue().drop();
+				iterator.remove();
+			}
+		}
+		
+		for(String interfaceName : multicastInterfaces) {
+			if(memberships.containsKey(interfaceName)) continue;
 			
-			/* Let's parse decrypted message. */
-			SimpleMessage message = parseIncommingMessage(decrypteddMessage);
+			try {
+				NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+				if(networkInterface!=null) memberships.put(interfaceName,
+						datagramChannel.join(multicastAddress, networkInterface));
+			} catch(IOException | UnsupportedOperationException ex) {
+				/* Interface without IPv4 address can not join. Unicast requests still work. */
+				if(Common.DEBUG) LOGGER.debug("[joinMulticastGroup][Can not join multicast " +
+						"group on " + interfaceName + ".]");
+			}
+		}
+	}
+	
+	/**
+	 * Build response with host name, OS name and MAC address.
+	 * @param snapshot Current network identity.
+	 */
+	private void prepareResponse(NetworkIdentity.Snapshot snapshot) {
+		String hostOsName = snapshot.getOsName();
+		String macAddress = snapshot.getMacAddress();
+		
+		/* Host name is sent only by Windows hosts. */
+		String hostName = hostOsName.toLowerCase().contains("win") ? snapshot.getHostName() : "";
+		
+		SimpleMessage simpleResponse = new SimpleMessage(Message.SCAN_MODE_RESPONSE.getId(),
+				hostName + SimpleMessage.SEPARATOR + hostOsName + SimpleMessage.SEPARATOR +
+				((macAddress!=null) ? macAddress : ""));
+		
+		try {
+			byte[] response = aes128.encryptText(simpleResponse.toString()).getBytes(Common.CHARSET);
 			
-			/* If received datagram contains specific request,
-			 * thereafter we need to send our response. */
-			if(message.getId()==Message.SCAN_MODE_REQUEST.getId()) {
-				if(Common.DEBUG) LOGGER.debug("[waitForConnection][Yes, catched right request :)]");
-				
-				macAddress = Common.getMapAddress();
-				
-				byte[] response = null;
-				try {
-					/* Need to add host name to our response. */
-					SimpleMessage simpleResponse = Message.SCAN_MODE_RESPONSE;
-					simpleResponse.setAddInfo(hostName + SimpleMessage.SEPARATOR + hostOsName +
-							SimpleMessage.SEPARATOR + ((macAddress!=null) ? macAddress : ""));
-					
-					response = AES128_DEFAULT.encryptText(simpleResponse.toString()).
-							getBytes(Common.CHARSET);
-				} catch(UnsupportedEncodingException uee) {
-					if(Common.ERROR) LOGGER.error("[waitForConnection][An error occurred " +
-							"while trying to encode text.]", uee);
-				}
-				
-				if(response!=null) {
-					DatagramPacket responseDatagramPacket = new DatagramPacket(
-							response, response.length, multicastAddress, PORT);
-					
-					try {
-						multicastSocket.send(responseDatagramPacket);
-					} catch (IOException ioe) {
-						if(Common.ERROR) LOGGER.error("[waitForConnection][Can not send a " +
-								"response datagram to " +
-								requestDatagramPacket.getAddress().getHostAddress() + ":" +
-								requestDatagramPacket.getPort() + ".]", ioe);
-						stopServer();
-						return;
-					}
-					
-					if(Common.DEBUG) LOGGER.debug("[waitForConnection][Response sent!]");
-				} else if(Common.ERROR) LOGGER.error("[waitForConnection][Response is 'null', " +
-						"can not sent it.]");
-				/* We can also receive an response send by another servers,
-				 * so in that case we can discard received datagram
-				 * and start waiting for another. */
-			} else if(Common.DEBUG) LOGGER.debug("[waitForConnection][Oouu, wrong request " +
-					"catched.]");
+			responseBuffer = ByteBuffer.allocateDirect(response.length);
+			responseBuffer.put(response);
+			responseBuffer.flip();
+		} catch(UnsupportedEncodingException uee) {
+			if(Common.ERROR) LOGGER.error("[prepareResponse][An error occurred " +
+					"while trying to encode text.]", uee);
 		}
 	}
 	
 	/**
 	 * Here we can set up a class variable for stop receiving incoming requests
-	 * and also leave group and close socket (if so).
+	 * and also leave group and close channel (if so).
 	 * @see cz.babi.desktop.remoteme.interfaces.DefaultServer#stopServer()
 	 */
 	@Override
@@ -251,41 +389,24 @@ public class UDPScanModeServer implements Runnable, DefaultServer {
 		
 		if(keepRunning) keepRunning = false;
 		
-		if(multicastSocket!=null) {
-			if(!multicastSocket.isClosed()) {
-				if(multicastAddress!=null) {
-					/* In the end we need to leave multicast group and close the socket. */
-					try {
-						multicastSocket.leaveGroup(multicastAddress);
-					} catch (IOException ioe) {
-						if(Common.ERROR) LOGGER.error("[stopServer][Socket can not leave " +
-								"multicast group.]", ioe);
-					}
-				}
-				
-				multicastSocket.close();
-				
-				if(Common.DEBUG) LOGGER.debug("[stopServer][Server is off.]");
+		if(selector!=null) {
+			selector.wakeup();
+			try {
+				selector.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[stopServer][Can not close selector.]", ioe);
 			}
 		}
-	}
-	
-	/**
-	 * Parsing incomming message from raw String to SimpleMessage..
-	 * @param incomingMessage Raw String.
-	 * @return Parsed SimpleMessage.
-	 */
-	private SimpleMessage parseIncommingMessage(String incomingMessage) {
-		if(Common.DEBUG) LOGGER.debug("[parseIncommingMessage][" + incomingMessage + "]");
-		
-		int messageId = Integer.valueOf(
-				incomingMessage.substring(0, incomingMessage.indexOf(
-						SimpleMessage.SEPARATOR)));
 		
-		String addInfo = incomingMessage.substring(
-				incomingMessage.indexOf(SimpleMessage.SEPARATOR),
-				incomingMessage.length());
-		
-		return new SimpleMessage(messageId, addInfo);
+		if(datagramChannel!=null && datagramChannel.isOpen()) {
+			/* Memberships are dropped together with the channel. */
+			try {
+				datagramChannel.close();
+			} catch(IOException ioe) {
+				if(Common.ERROR) LOGGER.error("[stopServer][Can not close channel.]", ioe);
+			}
+			
+			if(Common.DEBUG) LOGGER.debug("[stopServer][Server is off.]");
+		}
 	}
 }
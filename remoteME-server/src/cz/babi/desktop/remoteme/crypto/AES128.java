@@ -16,8 +16,8 @@
 
 package cz.babi.desktop.remoteme.crypto;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
@@ -28,17 +28,23 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
 
 import org.apache.log4j.Logger;
 
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
 import cz.babi.desktop.remoteme.common.Common;
 import cz.babi.desktop.remoteme.interfaces.DefaultCrypto;
 
 /**
  * Class that provide simple 128bit AES encryption and decryption.
+ * Instance holds its own ciphers and it is not thread-safe, so every thread
+ * (client session) needs its own instance. Use {@link #AES128(AES128)} to get
+ * one without generating the key again.
+ * <p>
+ * Decrypted text is written to an instance buffer which only grows.
+ * Encrypted data are not, see {@link #encryptText(String)}.
  * 
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
@@ -47,6 +53,8 @@ public class AES128 implements DefaultCrypto {
 	
 	private static final Logger LOGGER = Logger.getLogger(AES128.class.getSimpleName());
 	
+	private static final Charset CHARSET = Charset.forName(Common.CHARSET);
+	
 	/** for better encryption there is second text which is addet to password */
 	private final String secretId;
 	/** simple password define by user */
@@ -57,6 +65,9 @@ public class AES128 implements DefaultCrypto {
 	private Cipher decrypCipher;
 	private Cipher encryptCipher;
 	
+	/* Reusable buffer for decrypted text. It only grows. */
+	private byte[] dataBuffer = new byte[256];
+	
 	/**
 	 * Constructor.
 	 * @param secretId Secret ID define by app-maker.
@@ -72,6 +83,19 @@ public class AES128 implements DefaultCrypto {
 		initEncryptCipher();
 	}
 	
+	/**
+	 * Constructor. New instance has the same key, but its own ciphers.
+	 * @param crypto Instance to copy the key from.
+	 */
+	public AES128(AES128 crypto) {
+		this.secretId = crypto.secretId;
+		this.password = crypto.password;
+		this.generatedKey = crypto.generatedKey;
+		
+		initDecryptCipher();
+		initEncryptCipher();
+	}
+	
 	/**
 	 * @see cz.babi.desktop.remoteme.interfaces.DefaultCrypto#encryptText(java.lang.String)
 	 * @return Encrypted input text. May be null.
@@ -80,22 +104,19 @@ public class AES128 implements DefaultCrypto {
 	public String encryptText(String originalMessage) {
 		if(Common.DEBUG) LOGGER.debug("[encryptText][" + originalMessage + "]");
 		
-		String ret = null;
-		
-		if(this.generatedKey!=null) {
-			byte[] encryptedRawData = null;
-			try {
-				encryptedRawData = encryptCipher.doFinal(originalMessage.getBytes(Common.CHARSET));
-			} catch (IllegalBlockSizeException | BadPaddingException
-					| UnsupportedEncodingException ex) {
-				if(Common.ERROR) LOGGER.error("[encryptText][An error occurred while " +
-						"trying to encrypt input text.]", ex);
-			}
-			
-			ret = new BASE64Encoder().encode(encryptedRawData);
-		}
+		if(this.generatedKey==null || originalMessage==null) return null;
+		
+		byte[] originalData = originalMessage.getBytes(CHARSET);
 		
-		return ret;
+		/* Encoder takes only whole array, so a reused buffer would have to be copied
+		 * to an array of exact length. Cipher allocates the same array itself. */
+		try {
+			return DatatypeConverter.printBase64Binary(encryptCipher.doFinal(originalData));
+		} catch (IllegalBlockSizeException | BadPaddingException ex) {
+			if(Common.ERROR) LOGGER.error("[encryptText][An error occurred while " +
+					"trying to encrypt input text.]", ex);
+			return null;
+		}
 	}
 	
 	/**
@@ -106,31 +127,70 @@ public class AES128 implements DefaultCrypto {
 	public String decryptText(String encryptedText) {
 		if(Common.DEBUG) LOGGER.debug("[decryptText][" + encryptedText + "]");
 		
-		String ret = null;
+		if(this.generatedKey==null || encryptedText==null) return null;
 		
-		if(this.generatedKey!=null) {
-			byte[] decryptedRawData = null;
-			try {
-				decryptedRawData = new BASE64Decoder().decodeBuffer(encryptedText);
-			} catch (IOException ioe) {
-				if(Common.ERROR) LOGGER.error("[decryptText][An error occurred while " +
-						"trying to decode input text.]", ioe);
-			}
-			
-			byte[] originalMessageData = null;
-			try {
-				originalMessageData = decrypCipher.doFinal(decryptedRawData);
-			} catch (IllegalBlockSizeException | BadPaddingException e) {
-				if(Common.ERROR) LOGGER.error("[decryptText][An error occurred while trying " +
-						"to retreive original message.]", e);
-			}
-			
-			if(originalMessageData==null) return null;
+		/* Decoder skips whitespace, older clients break long texts to more lines. */
+		byte[] encodedData = DatatypeConverter.parseBase64Binary(encryptedText);
+		
+		if(encodedData.length==0) {
+			if(Common.ERROR) LOGGER.error("[decryptText][An error occurred while " +
+					"trying to decode input text.]");
+			return null;
+		}
+		
+		try {
+			dataBuffer = ensureCapacity(dataBuffer, decrypCipher.getOutputSize(encodedData.length));
+			int length = decrypCipher.doFinal(encodedData, 0, encodedData.length, dataBuffer, 0);
 			
-			ret = new String(originalMessageData);
+			return new String(dataBuffer, 0, length, CHARSET);
+		} catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException ex) {
+			if(Common.ERROR) LOGGER.error("[decryptText][An error occurred while trying " +
+					"to retreive original message.]", ex);
+			return null;
 		}
+	}
+	
+	/**
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultCrypto#encryptData(byte[])
+	 * @return Encrypted data. May be null.
+	 */
+	@Override
+	public byte[] encryptData(byte[] originalData) {
+		if(this.generatedKey==null) return null;
 		
-		return ret;
+		try {
+			return encryptCipher.doFinal(originalData);
+		} catch (IllegalBlockSizeException | BadPaddingException ex) {
+			if(Common.ERROR) LOGGER.error("[encryptData][An error occurred while " +
+					"trying to encrypt input data.]", ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * @see cz.babi.desktop.remoteme.interfaces.DefaultCrypto#decryptData(byte[])
+	 * @return Decrypted data. May be null.
+	 */
+	@Override
+	public byte[] decryptData(byte[] encryptedData) {
+		if(this.generatedKey==null) return null;
+		
+		try {
+			return decrypCipher.doFinal(encryptedData);
+		} catch (IllegalBlockSizeException | BadPaddingException ex) {
+			if(Common.ERROR) LOGGER.error("[decryptData][An error occurred while trying " +
+					"to retreive original data.]", ex);
+			return null;
+		}
+	}
+	
+	/**
+	 * @param buffer Buffer to check.
+	 * @param capacity Needed capacity.
+	 * @return The same buffer or a new one if it is too small.
+	 */
+	private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+		return (buffer.length>=capacity) ? buffer : new byte[Math.max(capacity, buffer.length*2)];
 	}
 	
 	/**
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+
+/**
+ * Encryption of datagrams with the key of a session. Datagrams can be lost
+ * or reordered, so unlike {@link SessionCrypto} every datagram is encrypted
+ * alone. Its sequence number is the nonce. Counter blocks start with other
+ * direction bytes than blocks of {@link SessionCrypto}, so key stream is
+ * never used twice. Tag is computed from direction, sequence number and
+ * encrypted data. Must be same as on client side.
+ * <p>
+ * Instance is not thread-safe.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class DatagramCrypto {
+	
+	private static final Logger LOGGER = Logger.getLogger(DatagramCrypto.class.getSimpleName());
+	
+	/** Length of tag at the end of every datagram. */
+	public static final int TAG_LENGTH = SessionCrypto.TAG_LENGTH;
+	
+	private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+	private static final String ALGORITHM_MAC = "HmacSHA1";
+	
+	private static final byte DIRECTION_TO_SERVER = 3;
+	private static final byte DIRECTION_TO_CLIENT = 4;
+	
+	private final Cipher cipher;
+	private final Mac mac;
+	private final SecretKeySpec cipherKey;
+	
+	private final byte sealDirection;
+	private final byte openDirection;
+	
+	private final byte[] header = new byte[5];
+	private final byte[] counterBlock = new byte[16];
+	private final byte[] tag = new byte[TAG_LENGTH];
+	
+	/**
+	 * Constructor.
+	 * @param sessionKey Key of the session. See {@link SessionCrypto#KEY_LENGTH}.
+	 * @param isServer If instance is used by server.
+	 * @throws GeneralSecurityException If cipher can not be initialized.
+	 */
+	public DatagramCrypto(byte[] sessionKey, boolean isServer) throws GeneralSecurityException {
+		if(sessionKey==null || sessionKey.length!=SessionCrypto.KEY_LENGTH)
+			throw new GeneralSecurityException("Wrong length of session key.");
+		
+		sealDirection = isServer ? DIRECTION_TO_CLIENT : DIRECTION_TO_SERVER;
+		openDirection = isServer ? DIRECTION_TO_SERVER : DIRECTION_TO_CLIENT;
+		
+		cipherKey = new SecretKeySpec(sessionKey, 0, 16, Common.ALGORITHM_AES);
+		cipher = Cipher.getInstance(TRANSFORMATION);
+		
+		mac = Mac.getInstance(ALGORITHM_MAC);
+		mac.init(new SecretKeySpec(sessionKey, 16, 16, ALGORITHM_MAC));
+	}
+	
+	/**
+	 * Encrypt outgoing datagram.
+	 * @param sequence Sequence number of datagram. Must not be used twice.
+	 * @param data Data to encrypt.
+	 * @param length Length of data.
+	 * @return Encrypted data with tag. May be null.
+	 */
+	public byte[] seal(int sequence, byte[] data, int length) {
+		byte[] sealed = new byte[length + TAG_LENGTH];
+		
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, cipherKey, counter(sealDirection, sequence));
+			cipher.doFinal(data, 0, length, sealed, 0);
+			
+			computeTag(sealDirection, sequence, sealed, 0, length);
+			System.arraycopy(tag, 0, sealed, length, TAG_LENGTH);
+		} catch(GeneralSecurityException gse) {
+			if(Common.ERROR) LOGGER.error("[seal][An error occurred while trying to encrypt " +
+					"datagram.]", gse);
+			return null;
+		}
+		
+		return sealed;
+	}
+	
+	/**
+	 * Check and decrypt incoming datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @param sealed Buffer with encrypted data and tag.
+	 * @param offset Offset of encrypted data in buffer.
+	 * @param length Length of encrypted data with tag.
+	 * @return Decrypted data or null if datagram is not valid.
+	 */
+	public byte[] open(int sequence, byte[] sealed, int offset, int length) {
+		if(length<TAG_LENGTH) return null;
+		
+		int dataLength = length - TAG_LENGTH;
+		
+		try {
+			computeTag(openDirection, sequence, sealed, offset, dataLength);
+			
+			byte[] receivedTag = Arrays.copyOfRange(sealed, offset+dataLength, offset+length);
+			if(!MessageDigest.isEqual(tag, receivedTag)) return null;
+			
+			cipher.init(Cipher.DECRYPT_MODE, cipherKey, counter(openDirection, sequence));
+			return cipher.doFinal(sealed, offset, dataLength);
+		} catch(GeneralSecurityException gse) {
+			if(Common.ERROR) LOGGER.error("[open][An error occurred while trying to decrypt " +
+					"datagram.]", gse);
+			return null;
+		}
+	}
+	
+	/**
+	 * Compute tag of datagram to {@link #tag}.
+	 * @param direction Direction of datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @param data Buffer with encrypted data.
+	 * @param offset Offset of encrypted data.
+	 * @param length Length of encrypted data.
+	 */
+	private void computeTag(byte direction, int sequence, byte[] data, int offset, int length) {
+		header[0] = direction;
+		for(int i=0; i<4; i++) header[4-i] = (byte)(sequence>>>(i*8));
+		
+		mac.update(header);
+		mac.update(data, offset, length);
+		
+		byte[] fullTag = mac.doFinal();
+		System.arraycopy(fullTag, 0, tag, 0, TAG_LENGTH);
+	}
+	
+	/**
+	 * @param direction Direction of datagram.
+	 * @param sequence Sequence number of datagram.
+	 * @return Initial counter block of cipher for given datagram.
+	 */
+	private IvParameterSpec counter(byte direction, int sequence) {
+		Arrays.fill(counterBlock, (byte)0);
+		counterBlock[0] = direction;
+		for(int i=0; i<4; i++) counterBlock[11-i] = (byte)(sequence>>>(i*8));
+		
+		return new IvParameterSpec(counterBlock);
+	}
+}
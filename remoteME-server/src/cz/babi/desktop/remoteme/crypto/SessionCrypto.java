@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import cz.babi.desktop.remoteme.common.Common;
+
+/**
+ * Stream encryption of binary frames with a key generated for one session.
+ * <p>
+ * Every direction has one AES/CTR cipher, which is initialized only once.
+ * Frames are encrypted one after another, so the counter of the cipher is the
+ * nonce and nothing else has to be sent. Every frame has a short HMAC tag
+ * computed from direction, frame number and encrypted data. So a changed,
+ * replayed or reordered frame is found out. Session must be closed after
+ * the first bad frame, because the cipher streams are not in sync anymore.
+ * <p>
+ * Instance is not thread-safe.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class SessionCrypto {
+	
+	private static final Logger LOGGER = Logger.getLogger(SessionCrypto.class.getSimpleName());
+	
+	/** Length of session key. First half is cipher key, second half is MAC key. */
+	public static final int KEY_LENGTH = 32;
+	/** Length of tag at the end of every frame. */
+	public static final int TAG_LENGTH = 8;
+	
+	private static final String TRANSFORMATION = "AES/CTR/NoPadding";
+	private static final String ALGORITHM_MAC = "HmacSHA1";
+	
+	private static final byte DIRECTION_TO_SERVER = 1;
+	private static final byte DIRECTION_TO_CLIENT = 2;
+	
+	private final Cipher encryptCipher;
+	private final Cipher decryptCipher;
+	private final Mac mac;
+	
+	private final byte encryptDirection;
+	private final byte decryptDirection;
+	
+	private long encryptCounter = 0;
+	private long decryptCounter = 0;
+	
+	private final byte[] header = new byte[9];
+	private final byte[] tag = new byte[TAG_LENGTH];
+	
+	/**
+	 * Constructor.
+	 * @param sessionKey Key of this session. See {@link #KEY_LENGTH}.
+	 * @param isServer If instance is used by server.
+	 * @throws GeneralSecurityException If ciphers can not be initialized.
+	 */
+	public SessionCrypto(byte[] sessionKey, boolean isServer) throws GeneralSecurityException {
+		if(sessionKey==null || sessionKey.length!=KEY_LENGTH)
+			throw new GeneralSecurityException("Wrong length of session key.");
+		
+		encryptDirection = isServer ? DIRECTION_TO_CLIENT : DIRECTION_TO_SERVER;
+		decryptDirection = isServer ? DIRECTION_TO_SERVER : DIRECTION_TO_CLIENT;
+		
+		SecretKeySpec cipherKey = new SecretKeySpec(sessionKey, 0, 16, Common.ALGORITHM_AES);
+		
+		encryptCipher = Cipher.getInstance(TRANSFORMATION);
+		encryptCipher.init(Cipher.ENCRYPT_MODE, cipherKey, initialCounter(encryptDirection));
+		
+		decryptCipher = Cipher.getInstance(TRANSFORMATION);
+		decryptCipher.init(Cipher.DECRYPT_MODE, cipherKey, initialCounter(decryptDirection));
+		
+		mac = Mac.getInstance(ALGORITHM_MAC);
+		mac.init(new SecretKeySpec(sessionKey, 16, 16, ALGORITHM_MAC));
+	}
+	
+	/**
+	 * Encrypt next outgoing frame.
+	 * @param frame Encoded frame.
+	 * @return Encrypted frame with tag. May be null.
+	 */
+	public byte[] encrypt(byte[] frame) {
+		byte[] sealed = new byte[frame.length + TAG_LENGTH];
+		
+		try {
+			encryptCipher.update(frame, 0, frame.length, sealed, 0);
+			
+			computeTag(encryptDirection, encryptCounter++, sealed, frame.length);
+			System.arraycopy(tag, 0, sealed, frame.length, TAG_LENGTH);
+		} catch (GeneralSecurityException gse) {
+			if(Common.ERROR) LOGGER.error("[encrypt][An error occurred while " +
+					"trying to encrypt frame.]", gse);
+			return null;
+		}
+		
+		return sealed;
+	}
+	
+	/**
+	 * Check and decrypt next incoming frame.
+	 * @param sealed Encrypted frame with tag.
+	 * @return Decrypted frame or null if frame is not valid.
+	 */
+	public byte[] decrypt(byte[] sealed) {
+		if(sealed.length<TAG_LENGTH) return null;
+		
+		int length = sealed.length - TAG_LENGTH;
+		
+		try {
+			computeTag(decryptDirection, decryptCounter++, sealed, length);
+			
+			byte[] receivedTag = Arrays.copyOfRange(sealed, length, sealed.length);
+			if(!MessageDigest.isEqual(tag, receivedTag)) {
+				if(Common.ERROR) LOGGER.error("[decrypt][Frame has a wrong tag.]");
+				return null;
+			}
+			
+			return decryptCipher.update(sealed, 0, length);
+		} catch (GeneralSecurityException gse) {
+			if(Common.ERROR) LOGGER.error("[decrypt][An error occurred while trying " +
+					"to decrypt frame.]", gse);
+			return null;
+		}
+	}
+	
+	/**
+	 * Compute tag of frame to {@link #tag}.
+	 * @param direction Direction of frame.
+	 * @param counter Number of frame.
+	 * @param data Encrypted data.
+	 * @param length Length of encrypted data.
+	 * @throws GeneralSecurityException If tag can not be computed.
+	 */
+	private void computeTag(byte direction, long counter, byte[] data, int length)
+			throws GeneralSecurityException {
+		header[0] = direction;
+		for(int i=0; i<8; i++) header[8-i] = (byte)(counter>>>(i*8));
+		
+		mac.update(header);
+		mac.update(data, 0, length);
+		
+		byte[] fullTag = mac.doFinal();
+		System.arraycopy(fullTag, 0, tag, 0, TAG_LENGTH);
+	}
+	
+	/**
+	 * @param direction Direction of frames.
+	 * @return Initial counter block of cipher for given direction.
+	 */
+	private static IvParameterSpec initialCounter(byte direction) {
+		byte[] counterBlock = new byte[16];
+		counterBlock[0] = direction;
+		
+		return new IvParameterSpec(counterBlock);
+	}
+}
@@ -196,6 +196,11 @@ public final class FileOperations {
 			settings.setScanPort(newSettings.getScanPort());
 			settings.setUserPassword(newSettings.getUserPassword());
 			settings.setVisibleServer(newSettings.isVisibleServer());
+			settings.setTcpServerMode(newSettings.getTcpServerMode());
+			settings.setInputSink(newSettings.getInputSink());
+			settings.setMetricsPort(newSettings.getMetricsPort());
+			if(newSettings.getPointerProfiles()!=null)
+				settings.setPointerProfiles(newSettings.getPointerProfiles());
 			return true;
 		} else return false;
 	}
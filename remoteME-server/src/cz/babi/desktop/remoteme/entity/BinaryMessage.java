@@ -0,0 +1,291 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.entity;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import cz.babi.desktop.remoteme.common.Common;
+
+/**
+ * Binary message. It is used instead of SimpleMessage if both sides agree
+ * on binary protocol during the handshake.
+ * <p>
+ * Frame is: opcode (1 byte), payload length (unsigned varint), payload.
+ * Opcodes are same as IDs of SimpleMessages. Mouse move holds two floats,
+ * mouse wheel one float, key macros hold int ID (and UTF-8 text if macro is
+ * defined), other messages hold UTF-8 text or nothing.
+ * If communication is encrypted, whole frame is encrypted and sent as payload
+ * of frame with {@link #ENCRYPTED} opcode. If session key was negotiated, frames
+ * are encrypted by session crypto and sent with {@link #SESSION_ENCRYPTED} opcode.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class BinaryMessage {
+	
+	/** Client sends this as additional info of 'need encrypted communication' request
+	 * and server sends it back if it switches to binary protocol. */
+	public static final String PROTOCOL_BINARY = "binary1";
+	/** Binary protocol where encrypted frames use the key generated for the session.
+	 * Server sends the key together with protocol name. */
+	public static final String PROTOCOL_BINARY_SESSION = "binary2";
+	
+	/** Opcode of frame which holds another encrypted frame. */
+	public static final int ENCRYPTED = 0;
+	/** Opcode of frame which holds another frame encrypted by session crypto. */
+	public static final int SESSION_ENCRYPTED = 127;
+	
+	/** Max count of key macros which client can define in one session. */
+	public static final int MAX_MACROS = 1024;
+	
+	/** Longest payload we accept. */
+	public static final int MAX_PAYLOAD_LENGTH = 64*1024;
+	
+	private static final Charset CHARSET = Charset.forName(Common.CHARSET);
+	
+	private static final byte[] EMPTY_PAYLOAD = new byte[0];
+	
+	private final int opcode;
+	private final byte[] payload;
+	
+	/**
+	 * Constructor.
+	 * @param opcode Message opcode.
+	 * @param payload Message payload.
+	 */
+	public BinaryMessage(int opcode, byte[] payload) {
+		this.opcode = opcode;
+		this.payload = (payload!=null) ? payload : EMPTY_PAYLOAD;
+	}
+	
+	/**
+	 * Constructor of message without payload.
+	 * @param opcode Message opcode.
+	 */
+	public BinaryMessage(int opcode) {
+		this(opcode, EMPTY_PAYLOAD);
+	}
+	
+	/**
+	 * Constructor of message with text payload.
+	 * @param opcode Message opcode.
+	 * @param text Text to send.
+	 */
+	public BinaryMessage(int opcode, String text) {
+		this(opcode, (text!=null) ? text.getBytes(CHARSET) : EMPTY_PAYLOAD);
+	}
+	
+	/**
+	 * Constructor of message with float values as payload.
+	 * @param opcode Message opcode.
+	 * @param values Values to send.
+	 */
+	public BinaryMessage(int opcode, float... values) {
+		this(opcode, toPayload(values));
+	}
+	
+	/**
+	 * @return the opcode
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+	
+	/**
+	 * @return the payload
+	 */
+	public byte[] getPayload() {
+		return payload;
+	}
+	
+	/**
+	 * @return Payload as UTF-8 text.
+	 */
+	public String getText() {
+		return new String(payload, CHARSET);
+	}
+	
+	/**
+	 * @param offset Offset of text in payload.
+	 * @return Part of payload as UTF-8 text.
+	 */
+	public String getText(int offset) {
+		if(payload.length<=offset) return "";
+		
+		return new String(payload, offset, payload.length-offset, CHARSET);
+	}
+	
+	/**
+	 * Get int value from payload.
+	 * @param index Index of value.
+	 * @return Value or -1 if payload is too short.
+	 */
+	public int getInt(int index) {
+		if(payload.length<(index+1)*4) return -1;
+		
+		return ByteBuffer.wrap(payload).getInt(index*4);
+	}
+	
+	/**
+	 * Get float value from payload.
+	 * @param index Index of value.
+	 * @return Value or zero if payload is too short.
+	 */
+	public float getFloat(int index) {
+		if(payload.length<(index+1)*4) return 0;
+		
+		return ByteBuffer.wrap(payload).getFloat(index*4);
+	}
+	
+	/**
+	 * @return Length of encoded frame.
+	 */
+	public int getFrameLength() {
+		int headerLength = 2;
+		for(int length=payload.length; (length & ~0x7F)!=0; length>>>=7) headerLength++;
+		
+		return headerLength + payload.length;
+	}
+	
+	/**
+	 * @return Encoded frame.
+	 */
+	public byte[] toBytes() {
+		ByteBuffer frame = ByteBuffer.allocate(1 + 5 + payload.length);
+		
+		frame.put((byte)opcode);
+		
+		int length = payload.length;
+		while((length & ~0x7F)!=0) {
+			frame.put((byte)((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		frame.put((byte)length);
+		
+		frame.put(payload);
+		
+		byte[] ret = new byte[frame.position()];
+		frame.flip();
+		frame.get(ret);
+		
+		return ret;
+	}
+	
+	/**
+	 * Read one frame from buffer. If the frame is not complete, buffer position
+	 * is not changed.
+	 * @param buffer Buffer in read mode.
+	 * @return Message or null if frame is not complete.
+	 * @throws IOException If frame is malformed.
+	 */
+	public static BinaryMessage read(ByteBuffer buffer) throws IOException {
+		int start = buffer.position();
+		
+		try {
+			int opcode = buffer.get() & 0xFF;
+			int length = readLength(buffer);
+			
+			if(buffer.remaining()<length) {
+				buffer.position(start);
+				return null;
+			}
+			
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			
+			return new BinaryMessage(opcode, payload);
+		} catch(BufferUnderflowException bue) {
+			buffer.position(start);
+			return null;
+		}
+	}
+	
+	/**
+	 * Read one frame from stream. It blocks until whole frame is read.
+	 * @param in Input stream.
+	 * @return Message or null if stream ends before frame starts.
+	 * @throws IOException If stream ends in the middle of frame or frame is malformed.
+	 */
+	public static BinaryMessage read(InputStream in) throws IOException {
+		int opcode = in.read();
+		if(opcode<0) return null;
+		
+		int length = 0;
+		for(int shift=0; ; shift+=7) {
+			int b = in.read();
+			if(b<0) throw new EOFException();
+			if(shift>28) throw new IOException("Malformed frame length.");
+			
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80)==0) break;
+		}
+		
+		if(length<0 || length>MAX_PAYLOAD_LENGTH) throw new IOException("Frame is too long.");
+		
+		byte[] payload = new byte[length];
+		int count = 0;
+		while(count<length) {
+			int read = in.read(payload, count, length-count);
+			if(read<0) throw new EOFException();
+			count += read;
+		}
+		
+		return new BinaryMessage(opcode, payload);
+	}
+	
+	/**
+	 * Read payload length from buffer.
+	 * @param buffer Buffer in read mode.
+	 * @return Payload length.
+	 * @throws IOException If length is malformed or too long.
+	 */
+	private static int readLength(ByteBuffer buffer) throws IOException {
+		int length = 0;
+		for(int shift=0; ; shift+=7) {
+			int b = buffer.get();
+			if(shift>28) throw new IOException("Malformed frame length.");
+			
+			length |= (b & 0x7F) << shift;
+			if((b & 0x80)==0) break;
+		}
+		
+		if(length<0 || length>MAX_PAYLOAD_LENGTH) throw new IOException("Frame is too long.");
+		
+		return length;
+	}
+	
+	/**
+	 * @param values Float values.
+	 * @return Values as payload.
+	 */
+	private static byte[] toPayload(float... values) {
+		ByteBuffer buffer = ByteBuffer.allocate(values.length*4);
+		for(float value : values) buffer.putFloat(value);
+		
+		return buffer.array();
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(opcode) + "[" + payload.length + "]";
+	}
+}
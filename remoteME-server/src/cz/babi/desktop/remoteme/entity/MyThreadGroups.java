@@ -16,11 +16,21 @@
 
 package cz.babi.desktop.remoteme.entity;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cz.babi.desktop.remoteme.Settings;
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.connection.AbstractTCPServer;
+import cz.babi.desktop.remoteme.connection.MetricsServer;
 import cz.babi.desktop.remoteme.connection.TCPClientServer;
+import cz.babi.desktop.remoteme.connection.TCPNioServer;
 import cz.babi.desktop.remoteme.connection.UDPScanModeServer;
 
 /**
- * Here we are holding all threads.
+ * Here we are holding all threads and executor for client handlers.
  *
  * @author Martin Misiarz
  * @author dev.misiarz@gmail.com
@@ -32,8 +42,18 @@ public final class MyThreadGroups {
 	private final ThreadGroup serversThreadGroup;
 	private final ThreadGroup tcpThreadGroup;
 	
-	private TCPClientServer tcpServer;
+	/** Stack size of executor threads. Blocked reader needs only small stack. */
+	private static final long CLIENT_THREAD_STACK_SIZE = 128*1024;
+	
+	/** Executor for client handlers in executor mode. Created on first use. */
+	private ExecutorService tcpClientExecutor;
+	
+	/** Count of live client sessions, no matter which server serves them. */
+	private final AtomicInteger activeSessions = new AtomicInteger();
+	
+	private AbstractTCPServer tcpServer;
 	private UDPScanModeServer udpScanModeServer;
+	private MetricsServer metricsServer;
 	
 	private MyThreadGroups() {
 		serversThreadGroup = new ThreadGroup("remoteMe-serversGroup");
@@ -62,10 +82,58 @@ public final class MyThreadGroups {
 		return tcpThreadGroup;
 	}
 	
+	/**
+	 * Get executor for client handlers in {@link Common#TCP_SERVER_MODE_EXECUTOR}.
+	 * Threads of finished sessions are reused by next clients and they have
+	 * small stack, so many idle sessions with blocking reads are cheap. Virtual
+	 * threads would be cheaper, but server runs on Java 7 and 8.
+	 * @return Executor.
+	 */
+	public synchronized ExecutorService getTcpClientExecutor() {
+		if(tcpClientExecutor==null) {
+			tcpClientExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(tcpThreadGroup, runnable,
+							"TCP Client #" + threadNumber.incrementAndGet(), CLIENT_THREAD_STACK_SIZE);
+					thread.setDaemon(false);
+					return thread;
+				}
+			});
+		}
+		
+		return tcpClientExecutor;
+	}
+	
+	/**
+	 * @return Count of live client sessions.
+	 */
+	public int getActiveSessionCount() {
+		return activeSessions.get();
+	}
+	
+	/**
+	 * Call when new client session starts.
+	 * @return Count of live client sessions.
+	 */
+	public int sessionStarted() {
+		return activeSessions.incrementAndGet();
+	}
+	
+	/**
+	 * Call when client session ends.
+	 * @return Count of live client sessions.
+	 */
+	public int sessionFinished() {
+		return activeSessions.decrementAndGet();
+	}
+	
 	/**
 	 * @return the tcpServer
 	 */
-	public TCPClientServer getTcpServer() {
+	public AbstractTCPServer getTcpServer() {
 		return tcpServer;
 	}
 	
@@ -76,6 +144,26 @@ public final class MyThreadGroups {
 		return udpScanModeServer;
 	}
 	
+	/**
+	 * @return the metricsServer
+	 */
+	public MetricsServer getMetricsServer() {
+		return metricsServer;
+	}
+	
+	/**
+	 * Create metrics server. It listens on loopback only.
+	 * @param port Port to bind.
+	 */
+	public void createMetricsServer(int port) {
+		metricsServer = new MetricsServer(port);
+		
+		Thread metricsServerThread = new Thread(serversThreadGroup,
+				metricsServer, "Metrics Server");
+		metricsServerThread.setDaemon(true);
+		metricsServerThread.start();
+	}
+	
 	/**
 	 * Create UDP server.
 	 * @param port Port to bind.
@@ -90,11 +178,14 @@ public final class MyThreadGroups {
 	}
 	
 	/**
-	 * Create TCP server.
+	 * Create TCP server. Type of the server depends on settings.
 	 * @param port Port to bind.
 	 */
 	public void createTCPServer(int port) {
-		tcpServer = new TCPClientServer(port);
+		int mode = Settings.getInstance().getTcpServerMode();
+		
+		if(mode==Common.TCP_SERVER_MODE_NIO) tcpServer = new TCPNioServer(port);
+		else tcpServer = new TCPClientServer(port, mode==Common.TCP_SERVER_MODE_EXECUTOR);
 		
 		Thread tcpServerThread = new Thread(serversThreadGroup,
 				tcpServer, "TCP Server");
@@ -61,10 +61,10 @@ import org.apache.log4j.Logger;
 
 import cz.babi.desktop.remoteme.Settings;
 import cz.babi.desktop.remoteme.common.Common;
-import cz.babi.desktop.remoteme.connection.TCPClientHandler;
 import cz.babi.desktop.remoteme.data.FileOperations;
 import cz.babi.desktop.remoteme.data.Icons;
 import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
 
 /**
  * Main frame.
@@ -84,6 +84,7 @@ public class MainFrame extends JFrame implements Observer {
 	private JPanel pnlTabServerInformation;
 	private JPanel pnlServerInformation;
 	private JPanel pnlTabAbout;
+	private MetricsPanel pnlTabMetrics;
 	private JPanel pnlPreferences;
 	
 	private JLabel lblIpAddress_;
@@ -394,6 +395,11 @@ public class MainFrame extends JFrame implements Observer {
 		pnlPreferences.setLayout(gl_pnlPreferences);
 		pnlTabServerInformation.setLayout(gl_pnlTabServerInformation);
 		
+		pnlTabMetrics = new MetricsPanel();
+		tabbedPane.addTab(l10n.getString("MainFrame.tab.metrics.title.text"),
+				null, pnlTabMetrics,
+				l10n.getString("MainFrame.tab.metrics.tooltip.text"));
+		
 		pnlTabAbout = new JPanel();
 		tabbedPane.addTab(l10n.getString("MainFrame.tab.about.title.text"),
 				null, pnlTabAbout,
@@ -778,7 +784,7 @@ public class MainFrame extends JFrame implements Observer {
 	private void disconnectClients() {
 		if(MyThreadGroups.getInstance().getTcpServer()!=null) {
 			/* Close connection for all clients. */
-			for(TCPClientHandler client : MyThreadGroups.getInstance().getTcpServer().getClients())
+			for(DefaultClient client : MyThreadGroups.getInstance().getTcpServer().getClients())
 				client.forceDisconnect();
 			MyThreadGroups.getInstance().getTcpServer().clearClients();
 		}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2013 Martin Misiarz (dev.misiarz@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cz.babi.desktop.remoteme.gui;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+
+import cz.babi.desktop.remoteme.common.Common;
+import cz.babi.desktop.remoteme.common.InputInjector;
+import cz.babi.desktop.remoteme.common.LatencyHistogram;
+import cz.babi.desktop.remoteme.common.Metrics;
+import cz.babi.desktop.remoteme.common.SessionMetrics;
+import cz.babi.desktop.remoteme.connection.MetricsServer;
+import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+
+/**
+ * Tab with {@link Metrics}. Aggregate is in the upper table, live sessions in
+ * the lower one. Rates are computed from the difference since the last
+ * refresh. Tables are refreshed only while the panel is shown.
+ *
+ * @author Martin Misiarz
+ * @author dev.misiarz@gmail.com
+ */
+public class MetricsPanel extends JPanel {
+	
+	private static final long serialVersionUID = 1L;
+	
+	/** Period of refresh in milliseconds. */
+	private static final int REFRESH_PERIOD = 1000;
+	
+	private final ResourceBundle l10n = Common.L10N;
+	private final Metrics metrics = Metrics.getInstance();
+	
+	private final DefaultTableModel summaryModel;
+	private final DefaultTableModel sessionsModel;
+	private final Timer timer;
+	
+	/* Values of the last refresh for rates. */
+	private long lastRefresh = System.nanoTime();
+	private final long[] lastEvents = new long[SessionMetrics.EVENT_TYPES];
+	private long lastBytesIn = 0;
+	private long lastBytesOut = 0;
+	
+	/**
+	 * Constructor.
+	 */
+	public MetricsPanel() {
+		super(new BorderLayout());
+		
+		summaryModel = new ReadOnlyTableModel(new String[] {
+				l10n.getString("MainFrame.tab.metrics.col.metric.text"),
+				l10n.getString("MainFrame.tab.metrics.col.value.text")});
+		JTable tblSummary = new JTable(summaryModel);
+		tblSummary.getColumnModel().getColumn(0).setPreferredWidth(120);
+		tblSummary.getColumnModel().getColumn(1).setPreferredWidth(330);
+		add(new JScrollPane(tblSummary), BorderLayout.CENTER);
+		
+		sessionsModel = new ReadOnlyTableModel(new String[] {
+				l10n.getString("MainFrame.tab.metrics.col.client.text"),
+				l10n.getString("MainFrame.tab.metrics.col.handshake.text"),
+				l10n.getString("MainFrame.tab.metrics.col.events.text"),
+				l10n.getString("MainFrame.tab.metrics.col.in.text"),
+				l10n.getString("MainFrame.tab.metrics.col.out.text"),
+				l10n.getString("MainFrame.tab.metrics.col.dispatch.text")});
+		JScrollPane scpSessions = new JScrollPane(new JTable(sessionsModel));
+		scpSessions.setPreferredSize(new Dimension(0, 110));
+		add(scpSessions, BorderLayout.SOUTH);
+		
+		/* Rates are counted from now. */
+		SessionMetrics total = metrics.getTotal();
+		for(int type=0; type<SessionMetrics.EVENT_TYPES; type++)
+			lastEvents[type] = total.getEvents(type);
+		lastBytesIn = total.getBytesIn();
+		lastBytesOut = total.getBytesOut();
+		
+		timer = new Timer(REFRESH_PERIOD, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		
+		refresh();
+	}
+	
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		timer.start();
+	}
+	
+	@Override
+	public void removeNotify() {
+		timer.stop();
+		super.removeNotify();
+	}
+	
+	/**
+	 * Read metrics and fill both tables.
+	 */
+	private void refresh() {
+		long now = System.nanoTime();
+		double seconds = Math.max(1e-3, (now - lastRefresh)/1e9);
+		lastRefresh = now;
+		
+		SessionMetrics total = metrics.getTotal();
+		InputInjector injector = InputInjector.getInstance();
+		List<SessionMetrics> sessions = metrics.getSessions();
+		
+		summaryModel.setRowCount(0);
+		addRow("sessions", String.valueOf(sessions.size()));
+		
+		List<Object[]> eventRows = new ArrayList<>();
+		long allEvents = 0;
+		long newEvents = 0;
+		for(int type=0; type<SessionMetrics.EVENT_TYPES; type++) {
+			long count = total.getEvents(type);
+			if(count==0) continue;
+			
+			allEvents += count;
+			newEvents += count - lastEvents[type];
+			eventRows.add(new Object[] {"  " + Metrics.getEventName(type),
+					formatRate(count - lastEvents[type], seconds, count)});
+			lastEvents[type] = count;
+		}
+		addRow("events", formatRate(newEvents, seconds, allEvents));
+		for(Object[] eventRow : eventRows) summaryModel.addRow(eventRow);
+		
+		addRow("bytesin", formatTraffic(total.getBytesIn() - lastBytesIn, seconds,
+				total.getBytesIn()));
+		addRow("bytesout", formatTraffic(total.getBytesOut() - lastBytesOut, seconds,
+				total.getBytesOut()));
+		lastBytesIn = total.getBytesIn();
+		lastBytesOut = total.getBytesOut();
+		
+		addRow("handshake", formatTimes(total.getHandshakeTimes()));
+		addRow("decrypt", formatTimes(total.getDecryptTimes()));
+		addRow("parse", formatTimes(total.getParseTimes()));
+		addRow("dispatch", formatTimes(total.getDispatchTimes()));
+		addRow("injection", formatTimes(metrics.getInjectionLatencies()));
+		addRow("sink", formatTimes(metrics.getSinkTimes()));
+		addRow("queue", String.format(Locale.ENGLISH, "%d / %d / %d", injector.getQueueDepth(),
+				injector.getInjectedEvents(), injector.getCoalescedMoves()));
+		addRow("pointer", String.format(Locale.ENGLISH, "%d / %d", injector.getPointerSyncCount(),
+				injector.getPointerDriftCount()));
+		
+		MetricsServer metricsServer = MyThreadGroups.getInstance().getMetricsServer();
+		addRow("endpoint", (metricsServer==null) ?
+				l10n.getString("MainFrame.tab.metrics.endpoint.off.text") :
+				"http://localhost:" + metricsServer.getPort() + MetricsServer.PATH_PROMETHEUS);
+		
+		sessionsModel.setRowCount(0);
+		for(SessionMetrics session : sessions) {
+			long handshakeTime = session.getHandshakeTime();
+			sessionsModel.addRow(new Object[] {
+					session.getClient(),
+					(handshakeTime<0) ? "-" : String.format(Locale.ENGLISH, "%.1f",
+							handshakeTime/1e6),
+					String.format(Locale.ENGLISH, "%.1f", session.getEventRate()),
+					session.getBytesIn()/1024,
+					session.getBytesOut()/1024,
+					session.getDispatchTimes().getPercentile(99)/1000});
+		}
+	}
+	
+	/**
+	 * @param key Last part of localization key of the row.
+	 * @param value Value.
+	 */
+	private void addRow(String key, String value) {
+		summaryModel.addRow(new Object[] {
+				l10n.getString("MainFrame.tab.metrics.row." + key + ".text"), value});
+	}
+	
+	/**
+	 * @param count Count since the last refresh.
+	 * @param seconds Time since the last refresh.
+	 * @param total Count since start.
+	 * @return Rate and total count.
+	 */
+	private static String formatRate(long count, double seconds, long total) {
+		return String.format(Locale.ENGLISH, "%.1f/s (%d)", count/seconds, total);
+	}
+	
+	/**
+	 * @param bytes Bytes since the last refresh.
+	 * @param seconds Time since the last refresh.
+	 * @param total Bytes since start.
+	 * @return Rate and total in kilobytes.
+	 */
+	private static String formatTraffic(long bytes, double seconds, long total) {
+		return String.format(Locale.ENGLISH, "%.1f kB/s (%d kB)", bytes/seconds/1024, total/1024);
+	}
+	
+	/**
+	 * @param histogram Times in nanoseconds.
+	 * @return Median, 99th percentile and max in microseconds.
+	 */
+	private static String formatTimes(LatencyHistogram histogram) {
+		return String.format(Locale.ENGLISH, "p50 %d us, p99 %d us, max %d us (%d)",
+				histogram.getPercentile(50)/1000, histogram.getPercentile(99)/1000,
+				histogram.getMax()/1000, histogram.getCount());
+	}
+	
+	/**
+	 * Model which can not be edited by user.
+	 */
+	private static class ReadOnlyTableModel extends DefaultTableModel {
+		
+		private static final long serialVersionUID = 1L;
+		
+		ReadOnlyTableModel(String[] columnNames) {
+			super(columnNames, 0);
+		}
+		
+		@Override
+		public boolean isCellEditable(int row, int column) {
+			return false;
+		}
+	}
+}
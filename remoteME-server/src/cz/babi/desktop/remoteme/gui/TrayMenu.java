@@ -28,9 +28,9 @@ import java.util.ResourceBundle;
 import org.apache.log4j.Logger;
 
 import cz.babi.desktop.remoteme.common.Common;
-import cz.babi.desktop.remoteme.connection.TCPClientHandler;
 import cz.babi.desktop.remoteme.data.Icons;
 import cz.babi.desktop.remoteme.entity.MyThreadGroups;
+import cz.babi.desktop.remoteme.interfaces.DefaultClient;
 
 /**
  * Tray menu.
@@ -127,7 +127,7 @@ public class TrayMenu {
 		MyThreadGroups.getInstance().getUdpScanModeServer().stopServer();
 		if(MyThreadGroups.getInstance().getTcpServer()!=null) {
 			/* Close connection for all clients. */
-			for(TCPClientHandler client : MyThreadGroups.getInstance().getTcpServer().getClients())
+			for(DefaultClient client : MyThreadGroups.getInstance().getTcpServer().getClients())
 				client.forceDisconnect();
 			/* Stop TCP server. */
 			MyThreadGroups.getInstance().getTcpServer().stopServer();
@@ -37,4 +37,18 @@ public interface DefaultCrypto {
 	 * @return Decrypted input text.
 	 */
 	public String decryptText(String encryptedText);
+	
+	/**
+	 * Method encrypt raw data.
+	 * @param originalData Data to encrypt.
+	 * @return Encrypted data.
+	 */
+	public byte[] encryptData(byte[] originalData);
+	
+	/**
+	 * Method decrypt raw <i>encrypted</i> data.
+	 * @param encryptedData Data to decrypt.
+	 * @return Decrypted data.
+	 */
+	public byte[] decryptData(byte[] encryptedData);
 }